@@ -8,23 +8,48 @@ import gov.hhs.cdc.trustedintermediary.wrappers.InvalidTokenException;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException;
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 import javax.inject.Inject;
 
 /**
  * This class is used to check the validity of a http request. It has methods that extract the
  * bearer token, check if the token is empty or null, and if the token is valid. For example,
- * expired tokens, empty tokens, or tokens not signed by our private key, will be invalid.
+ * expired tokens, empty tokens, or tokens not signed by our private key, will be invalid. Partners
+ * reuse a token for many requests, so the SHA-256 digest of a token that was verified is kept until
+ * the token expires, and its signature is only checked once. Once there are too many, the token
+ * used the longest time ago is forgotten, which is usually one that expired.
  */
 public class AuthRequestValidator {
 
     private static final AuthRequestValidator INSTANCE = new AuthRequestValidator();
 
+    static final int MAX_VERIFIED_TOKENS = 10_000;
+
     @Inject private AuthEngine jwtEngine;
     @Inject private Cache keyCache;
     @Inject private Secrets secrets;
     @Inject private Logger logger;
 
+    // the public key is kept along with the expiration, so a token verified with a key that was
+    // rotated since is verified again
+    final Map<String, VerifiedToken> verifiedTokens =
+            Collections.synchronizedMap(
+                    new LinkedHashMap<String, VerifiedToken>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(
+                                Map.Entry<String, VerifiedToken> eldest) {
+                            return size() > MAX_VERIFIED_TOKENS;
+                        }
+                    });
+
     private AuthRequestValidator() {}
 
     public static AuthRequestValidator getInstance() {
@@ -44,7 +69,15 @@ public class AuthRequestValidator {
 
         try {
             logger.logDebug("Checking if bearer token is valid...");
-            jwtEngine.validateToken(token, retrievePublicKey());
+            var publicKey = retrievePublicKey();
+            var digest = digest(token);
+            if (isVerified(digest, publicKey)) {
+                logger.logInfo("Bearer token is valid");
+                return true;
+            }
+
+            jwtEngine.validateToken(token, publicKey);
+            rememberVerified(digest, token, publicKey);
             logger.logInfo("Bearer token is valid");
             return true;
         } catch (InvalidTokenException e) {
@@ -53,16 +86,42 @@ public class AuthRequestValidator {
         }
     }
 
-    protected String retrievePublicKey() throws SecretRetrievalException {
-        var ourPublicKey = "trusted-intermediary-public-key-" + ApplicationContext.getEnvironment();
-        String key = this.keyCache.get(ourPublicKey);
-        if (key != null) {
-            return key;
+    boolean isVerified(String digest, String publicKey) {
+        var verified = verifiedTokens.get(digest);
+        if (verified == null) {
+            return false;
         }
 
-        key = secrets.getKey(ourPublicKey);
-        this.keyCache.put(ourPublicKey, key);
-        return key;
+        if (!verified.publicKey().equals(publicKey)
+                || !verified.expiration().isAfter(LocalDateTime.now())) {
+            verifiedTokens.remove(digest, verified);
+            return false;
+        }
+
+        return true;
+    }
+
+    void rememberVerified(String digest, String token, String publicKey) {
+        LocalDateTime expiration;
+        try {
+            expiration = jwtEngine.getExpirationDate(token);
+        } catch (RuntimeException e) {
+            logger.logWarning(
+                    "Unable to read the expiration of the bearer token to remember it: {}",
+                    e.getMessage());
+            return;
+        }
+
+        if (expiration == null || !expiration.isAfter(LocalDateTime.now())) {
+            return;
+        }
+
+        verifiedTokens.put(digest, new VerifiedToken(publicKey, expiration));
+    }
+
+    protected String retrievePublicKey() throws SecretRetrievalException {
+        var ourPublicKey = "trusted-intermediary-public-key-" + ApplicationContext.getEnvironment();
+        return this.keyCache.get(ourPublicKey, secrets);
     }
 
     protected String extractToken(DomainRequest request) {
@@ -74,4 +133,18 @@ public class AuthRequestValidator {
     protected boolean tokenHasContent(String token) {
         return token != null && !token.isEmpty();
     }
+
+    private static String digest(String token) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("SHA-256")
+                            .digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    record VerifiedToken(String publicKey, LocalDateTime expiration) {}
 }
@@ -9,11 +9,17 @@ import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException;
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets;
 import gov.hhs.cdc.trustedintermediary.wrappers.TokenGenerationException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Inject;
 
 /**
  * Checks the token passed in by a client trying to log in. If the token passes muster, we generate
- * a token of our own to be used as an API key by the client in subsequent calls.
+ * a token of our own to be used as an API key by the client in subsequent calls. When
+ * SESSION_TOKEN_MIN_REMAINING_SECONDS is set, the token generated for an organization is given
+ * again to the same organization while it has at least that many seconds left, instead of signing
+ * a new one on every call.
  */
 public class RequestSessionTokenUsecase {
 
@@ -22,6 +28,10 @@ public class RequestSessionTokenUsecase {
     private static final String OUR_NAME = "cdc-trusted-intermediary";
     private static final int TOKEN_TTL = 300;
 
+    // the TI private key is kept with each token, so a token signed with a key that was rotated
+    // since isn't given out again
+    final Map<String, IssuedToken> tokensByOrganization = new ConcurrentHashMap<>();
+
     @Inject private AuthEngine auth;
     @Inject private Secrets secrets;
     @Inject private OrganizationsSettings organizationsSettings;
@@ -59,15 +69,47 @@ public class RequestSessionTokenUsecase {
         logger.logInfo("Organization {} token is valid", organization.getName());
 
         // Provide a short-lived access token for subsequent calls to the TI service
-        logger.logInfo("Generating TI login token");
         var tiPrivateKey = retrieveTiPrivateKey();
-        return auth.generateToken(
-                OUR_NAME,
-                OUR_NAME,
-                organization.getName(),
-                organization.getName(),
-                TOKEN_TTL,
-                tiPrivateKey);
+        var minRemainingSeconds = getMinRemainingSeconds();
+        if (minRemainingSeconds > 0) {
+            var issued = tokensByOrganization.get(organization.getName());
+            if (issued != null
+                    && issued.privateKey().equals(tiPrivateKey)
+                    && Instant.now()
+                            .plusSeconds(minRemainingSeconds)
+                            .isBefore(issued.expiration())) {
+                logger.logInfo("Reusing the TI login token of {}", organization.getName());
+                return issued.token();
+            }
+        }
+
+        logger.logInfo("Generating TI login token");
+        // taken before signing, so the token never expires before this
+        var expiration = Instant.now().plusSeconds(TOKEN_TTL);
+        var token =
+                auth.generateToken(
+                        OUR_NAME,
+                        OUR_NAME,
+                        organization.getName(),
+                        organization.getName(),
+                        TOKEN_TTL,
+                        tiPrivateKey);
+
+        if (minRemainingSeconds > 0) {
+            tokensByOrganization.put(
+                    organization.getName(), new IssuedToken(token, expiration, tiPrivateKey));
+        }
+        return token;
+    }
+
+    /**
+     * The minimum number of seconds a token must have left to be given out again, or 0 when tokens
+     * aren't reused. A value that isn't a number between 0 and the token lifetime turns reuse off.
+     */
+    static int getMinRemainingSeconds() {
+        int minRemainingSeconds =
+                ApplicationContext.getIntProperty("SESSION_TOKEN_MIN_REMAINING_SECONDS", 0);
+        return minRemainingSeconds > 0 && minRemainingSeconds < TOKEN_TTL ? minRemainingSeconds : 0;
     }
 
     protected String retrieveOrganizationPublicKey(String organizationName)
@@ -85,14 +127,8 @@ public class RequestSessionTokenUsecase {
     }
 
     private String retrieveKey(String keyId) throws SecretRetrievalException {
-        String key = cache.get(keyId);
-        if (key != null) {
-            return key;
-        }
-
-        key = secrets.getKey(keyId);
-        cache.put(keyId, key);
-
-        return key;
+        return cache.get(keyId, secrets);
     }
+
+    record IssuedToken(String token, Instant expiration, String privateKey) {}
 }
@@ -16,6 +16,8 @@ import io.javalin.http.Context;
 import io.javalin.http.Handler;
 import io.javalin.http.HandlerType;
 import io.javalin.router.Endpoint;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.HashSet;
@@ -182,6 +184,7 @@ public class DomainsRegistration {
         request.setUrl(ctx.url());
         request.setHeaders(caseInsensitiveHeaderMap);
         request.setPathParams(ctx.pathParamMap());
+        request.setQueryParams(ctx.queryParamMap());
 
         return request;
     }
@@ -189,6 +192,17 @@ public class DomainsRegistration {
     static void domainResponseFillsInJavalinContext(DomainResponse response, Context ctx) {
         ctx.status(response.getStatusCode());
         response.getHeaders().forEach(ctx::header);
-        ctx.result(response.getBody());
+
+        if (response.getBodyWriter() == null) {
+            ctx.result(response.getBody());
+            return;
+        }
+
+        try (OutputStream outputStream = ctx.outputStream()) {
+            response.getBodyWriter().writeTo(outputStream);
+        } catch (IOException e) {
+            // the status has already been sent, so the client only sees a truncated body
+            LOGGER.logError("Error streaming the response", e);
+        }
     }
 }
@@ -8,6 +8,8 @@ import gov.hhs.cdc.trustedintermediary.wrappers.AuthEngine
 import gov.hhs.cdc.trustedintermediary.wrappers.Cache
 import gov.hhs.cdc.trustedintermediary.wrappers.InvalidTokenException
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets
+import java.time.LocalDateTime
+import java.util.concurrent.ScheduledExecutorService
 import spock.lang.Specification
 
 class AuthRequestValidatorTest extends Specification{
@@ -16,6 +18,7 @@ class AuthRequestValidatorTest extends Specification{
         TestApplicationContext.reset()
         TestApplicationContext.init()
         TestApplicationContext.register(AuthRequestValidator, AuthRequestValidator.getInstance())
+        AuthRequestValidator.getInstance().verifiedTokens.clear()
     }
 
     def "tokenHasContent unhappy empty path works"() {
@@ -97,14 +100,14 @@ class AuthRequestValidatorTest extends Specification{
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
-        mockCache.get(_ as String) >> key
+        mockCache.get(_ as String, _) >> key
         def actual = validator.retrievePublicKey()
 
         then:
         actual == expected
     }
 
-    def "retrievePublicKey works when keyCache is empty"() {
+    def "retrievePublicKey retrieves the key from the secrets through the keyCache"() {
         given:
         def mockCache = Mock(KeyCache)
         def mockSecrets = Mock(Secrets)
@@ -116,17 +119,17 @@ class AuthRequestValidatorTest extends Specification{
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
-        mockCache.get(_ as String) >> null
-        mockSecrets.getKey(_ as String) >> key
         def actual = validator.retrievePublicKey()
 
         then:
+        1 * mockCache.get("trusted-intermediary-public-key-local", mockSecrets) >> key
         actual == expected
     }
 
     def "retrievePublicKey adds key to keyCache works"() {
         given:
         def cache = KeyCache.getInstance()
+        cache.scheduler = Mock(ScheduledExecutorService)
         def mockSecrets = Mock(Secrets)
         def key = "fake key"
         def expected = key
@@ -155,7 +158,7 @@ class AuthRequestValidatorTest extends Specification{
         def expected = true
 
         request.setHeaders(header)
-        mockCache.get(_ as String) >> "my-fake-private-key"
+        mockCache.get(_ as String, _) >> "my-fake-private-key"
         mockEngine.validateToken(_ as String, _ as String)
 
         TestApplicationContext.register(Cache, mockCache)
@@ -237,11 +240,157 @@ class AuthRequestValidatorTest extends Specification{
 
         when:
         request.setHeaders(header)
-        mockCache.get(_ as String) >> {"my-fake-private-key"}
+        mockCache.get(_ as String, _) >> {"my-fake-private-key"}
         mockEngine.validateToken(_ as String, _ as String) >> { throw new InvalidTokenException(new Throwable("fake exception"))}
         def actual = validator.isValidAuthenticatedRequest(request)
 
         then:
         actual == expected
     }
+
+    def "isValidAuthenticatedRequest only verifies the signature of a token once until it expires"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def request = new DomainRequest()
+        request.setHeaders(Map.of("authorization", "Bearer fake-token-here"))
+        def mockEngine = Mock(JjwtEngine)
+        def mockCache = Mock(KeyCache)
+        mockCache.get(_ as String, _) >> "my-fake-public-key"
+        mockEngine.getExpirationDate("fake-token-here") >> LocalDateTime.now().plusMinutes(5)
+
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def first = validator.isValidAuthenticatedRequest(request)
+        def second = validator.isValidAuthenticatedRequest(request)
+
+        then:
+        first
+        second
+        1 * mockEngine.validateToken("fake-token-here", "my-fake-public-key")
+    }
+
+    def "isValidAuthenticatedRequest verifies the signature again once the remembered token expired"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def request = new DomainRequest()
+        request.setHeaders(Map.of("authorization", "Bearer fake-token-here"))
+        def mockEngine = Mock(JjwtEngine)
+        def mockCache = Mock(KeyCache)
+        mockCache.get(_ as String, _) >> "my-fake-public-key"
+        mockEngine.getExpirationDate(_ as String) >> LocalDateTime.now().plusMinutes(5)
+
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        validator.isValidAuthenticatedRequest(request)
+        validator.verifiedTokens.replaceAll { digest, verified ->
+            new AuthRequestValidator.VerifiedToken(verified.publicKey(), LocalDateTime.now().minusSeconds(1))
+        }
+
+        when:
+        def actual = validator.isValidAuthenticatedRequest(request)
+
+        then:
+        actual
+        1 * mockEngine.validateToken(_ as String, _ as String)
+    }
+
+    def "isValidAuthenticatedRequest verifies the signature again when the public key changed"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def request = new DomainRequest()
+        request.setHeaders(Map.of("authorization", "Bearer fake-token-here"))
+        def mockEngine = Mock(JjwtEngine)
+        def mockCache = Mock(KeyCache)
+        mockCache.get(_ as String, _) >>> ["my-fake-public-key", "my-rotated-public-key"]
+        mockEngine.getExpirationDate(_ as String) >> LocalDateTime.now().plusMinutes(5)
+
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        validator.isValidAuthenticatedRequest(request)
+
+        when:
+        def actual = validator.isValidAuthenticatedRequest(request)
+
+        then:
+        !actual
+        1 * mockEngine.validateToken("fake-token-here", "my-rotated-public-key") >> { throw new InvalidTokenException(new Throwable("fake exception")) }
+    }
+
+    def "isValidAuthenticatedRequest doesn't remember a token it can't read the expiration of"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def request = new DomainRequest()
+        request.setHeaders(Map.of("authorization", "Bearer fake-token-here"))
+        def mockEngine = Mock(JjwtEngine)
+        def mockCache = Mock(KeyCache)
+        mockCache.get(_ as String, _) >> "my-fake-public-key"
+        mockEngine.getExpirationDate(_ as String) >> { throw new NullPointerException("no expiration") }
+
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        validator.isValidAuthenticatedRequest(request)
+        def actual = validator.isValidAuthenticatedRequest(request)
+
+        then:
+        actual
+        2 * mockEngine.validateToken(_ as String, _ as String)
+        validator.verifiedTokens.isEmpty()
+    }
+
+    def "isValidAuthenticatedRequest doesn't remember an invalid token"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def request = new DomainRequest()
+        request.setHeaders(Map.of("authorization", "Bearer fake-token-here"))
+        def mockEngine = Mock(JjwtEngine)
+        def mockCache = Mock(KeyCache)
+        mockCache.get(_ as String, _) >> "my-fake-public-key"
+        mockEngine.getExpirationDate(_ as String) >> LocalDateTime.now().plusMinutes(5)
+
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def first = validator.isValidAuthenticatedRequest(request)
+        def second = validator.isValidAuthenticatedRequest(request)
+
+        then:
+        !first
+        !second
+        2 * mockEngine.validateToken(_ as String, _ as String) >> { throw new InvalidTokenException(new Throwable("fake exception")) }
+        validator.verifiedTokens.isEmpty()
+    }
+
+    def "rememberVerified forgets the token used the longest time ago when the cache is full"() {
+        given:
+        def validator = AuthRequestValidator.getInstance()
+        def mockEngine = Mock(JjwtEngine)
+        mockEngine.getExpirationDate(_ as String) >> LocalDateTime.now().plusMinutes(5)
+        TestApplicationContext.register(AuthEngine, mockEngine)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def unexpired = new AuthRequestValidator.VerifiedToken("my-fake-public-key", LocalDateTime.now().plusMinutes(5))
+        (1..AuthRequestValidator.MAX_VERIFIED_TOKENS).each { validator.verifiedTokens.put("unexpired" + it, unexpired) }
+        validator.isVerified("unexpired1", "my-fake-public-key")
+
+        when:
+        validator.rememberVerified("new", "fake-token-here", "my-fake-public-key")
+
+        then:
+        validator.verifiedTokens.size() == AuthRequestValidator.MAX_VERIFIED_TOKENS
+        validator.verifiedTokens.containsKey("new")
+        validator.verifiedTokens.containsKey("unexpired1")
+        !validator.verifiedTokens.containsKey("unexpired2")
+    }
 }
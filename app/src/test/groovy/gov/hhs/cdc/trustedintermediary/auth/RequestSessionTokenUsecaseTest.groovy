@@ -2,6 +2,7 @@ package gov.hhs.cdc.trustedintermediary.auth
 
 
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.external.inmemory.KeyCache
 import gov.hhs.cdc.trustedintermediary.organizations.Organization
 import gov.hhs.cdc.trustedintermediary.organizations.OrganizationsSettings
 import gov.hhs.cdc.trustedintermediary.wrappers.AuthEngine
@@ -10,6 +11,8 @@ import gov.hhs.cdc.trustedintermediary.wrappers.InvalidTokenException
 import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets
 import gov.hhs.cdc.trustedintermediary.wrappers.TokenGenerationException
+import java.time.Instant
+import java.util.concurrent.ScheduledExecutorService
 import spock.lang.Specification
 
 class RequestSessionTokenUsecaseTest extends Specification {
@@ -18,10 +21,11 @@ class RequestSessionTokenUsecaseTest extends Specification {
         TestApplicationContext.reset()
         TestApplicationContext.init()
         TestApplicationContext.register(RequestSessionTokenUsecase, RequestSessionTokenUsecase.getInstance())
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.clear()
 
-        def mockCache = Mock(Cache)
-        mockCache.get(_ as String) >> null
-        TestApplicationContext.register(Cache, mockCache)
+        def keyCache = KeyCache.getInstance()
+        keyCache.scheduler = Mock(ScheduledExecutorService)
+        TestApplicationContext.register(Cache, keyCache)
 
         TestApplicationContext.injectRegisteredImplementations()
     }
@@ -181,7 +185,7 @@ class RequestSessionTokenUsecaseTest extends Specification {
         TestApplicationContext.injectRegisteredImplementations()
 
         def expectedCachedKey = "DogCow"
-        cache.get(_ as String) >> expectedCachedKey
+        cache.get(_ as String, _) >> expectedCachedKey
 
         when:
         def actualKey = RequestSessionTokenUsecase.getInstance().retrieveOrganizationPublicKey("an organization")
@@ -201,7 +205,7 @@ class RequestSessionTokenUsecaseTest extends Specification {
         TestApplicationContext.injectRegisteredImplementations()
 
         def expectedCachedKey = "DogCow"
-        cache.get(_ as String) >> expectedCachedKey
+        cache.get(_ as String, _) >> expectedCachedKey
 
         when:
         def actualKey = RequestSessionTokenUsecase.getInstance().retrieveTiPrivateKey()
@@ -210,4 +214,165 @@ class RequestSessionTokenUsecaseTest extends Specification {
         actualKey == expectedCachedKey
         0 * secrets.getKey(_ as String)
     }
+
+    def "the session token of an organization isn't reused by default"() {
+        given:
+        def authEngine = Mock(AuthEngine)
+        def secrets = Mock(Secrets)
+        def organizationsSettings = Mock(OrganizationsSettings)
+        def organization = Mock(Organization)
+
+        TestApplicationContext.register(AuthEngine, authEngine)
+        TestApplicationContext.register(Secrets, secrets)
+        TestApplicationContext.register(OrganizationsSettings, organizationsSettings)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        organization.getName() >> "flexion"
+        organizationsSettings.findOrganization(_ as String) >> Optional.of(organization)
+        secrets.getKey(_ as String) >> "KEY"
+
+        when:
+        def first = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+        def second = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+
+        then:
+        2 * authEngine.generateToken(_ as String, _ as String, "flexion", "flexion", 300, "KEY") >>> ["SESSION TOKEN 1", "SESSION TOKEN 2"]
+        first == "SESSION TOKEN 1"
+        second == "SESSION TOKEN 2"
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.isEmpty()
+    }
+
+    def "the session token of an organization is reused while it has enough time left"() {
+        given:
+        def authEngine = Mock(AuthEngine)
+        def secrets = Mock(Secrets)
+        def organizationsSettings = Mock(OrganizationsSettings)
+        def organization = Mock(Organization)
+        def otherOrganization = Mock(Organization)
+
+        TestApplicationContext.register(AuthEngine, authEngine)
+        TestApplicationContext.register(Secrets, secrets)
+        TestApplicationContext.register(OrganizationsSettings, organizationsSettings)
+        TestApplicationContext.addEnvironmentVariable("SESSION_TOKEN_MIN_REMAINING_SECONDS", "60")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        organization.getName() >> "flexion"
+        otherOrganization.getName() >> "dogcow"
+        organizationsSettings.findOrganization("flexion") >> Optional.of(organization)
+        organizationsSettings.findOrganization("dogcow") >> Optional.of(otherOrganization)
+        secrets.getKey(_ as String) >> "KEY"
+
+        when:
+        def first = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+        def second = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+        def other = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("dogcow", "AUTH TOKEN"))
+
+        then:
+        3 * authEngine.validateToken("AUTH TOKEN", "KEY")
+        1 * authEngine.generateToken(_ as String, _ as String, "flexion", "flexion", 300, "KEY") >> "FLEXION TOKEN"
+        1 * authEngine.generateToken(_ as String, _ as String, "dogcow", "dogcow", 300, "KEY") >> "DOGCOW TOKEN"
+        first == "FLEXION TOKEN"
+        second == "FLEXION TOKEN"
+        other == "DOGCOW TOKEN"
+    }
+
+    def "a new session token is generated when the reused one doesn't have enough time left"() {
+        given:
+        def authEngine = Mock(AuthEngine)
+        def secrets = Mock(Secrets)
+        def organizationsSettings = Mock(OrganizationsSettings)
+        def organization = Mock(Organization)
+
+        TestApplicationContext.register(AuthEngine, authEngine)
+        TestApplicationContext.register(Secrets, secrets)
+        TestApplicationContext.register(OrganizationsSettings, organizationsSettings)
+        TestApplicationContext.addEnvironmentVariable("SESSION_TOKEN_MIN_REMAINING_SECONDS", "60")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        organization.getName() >> "flexion"
+        organizationsSettings.findOrganization(_ as String) >> Optional.of(organization)
+        secrets.getKey(_ as String) >> "KEY"
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.put("flexion",
+                new RequestSessionTokenUsecase.IssuedToken("OLD TOKEN", Instant.now().plusSeconds(30), "KEY"))
+
+        when:
+        def actual = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+
+        then:
+        1 * authEngine.generateToken(_ as String, _ as String, "flexion", "flexion", 300, "KEY") >> "NEW TOKEN"
+        actual == "NEW TOKEN"
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.get("flexion").token() == "NEW TOKEN"
+    }
+
+    def "a new session token is generated when our private key changed"() {
+        given:
+        def authEngine = Mock(AuthEngine)
+        def secrets = Mock(Secrets)
+        def organizationsSettings = Mock(OrganizationsSettings)
+        def organization = Mock(Organization)
+
+        TestApplicationContext.register(AuthEngine, authEngine)
+        TestApplicationContext.register(Secrets, secrets)
+        TestApplicationContext.register(OrganizationsSettings, organizationsSettings)
+        TestApplicationContext.addEnvironmentVariable("SESSION_TOKEN_MIN_REMAINING_SECONDS", "60")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        organization.getName() >> "flexion"
+        organizationsSettings.findOrganization(_ as String) >> Optional.of(organization)
+        secrets.getKey(_ as String) >> "ROTATED KEY"
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.put("flexion",
+                new RequestSessionTokenUsecase.IssuedToken("OLD TOKEN", Instant.now().plusSeconds(300), "KEY"))
+
+        when:
+        def actual = RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "AUTH TOKEN"))
+
+        then:
+        1 * authEngine.generateToken(_ as String, _ as String, "flexion", "flexion", 300, "ROTATED KEY") >> "NEW TOKEN"
+        actual == "NEW TOKEN"
+    }
+
+    def "the session token isn't reused when the partner's token is invalid"() {
+        given:
+        def authEngine = Mock(AuthEngine)
+        def secrets = Mock(Secrets)
+        def organizationsSettings = Mock(OrganizationsSettings)
+        def organization = Mock(Organization)
+
+        TestApplicationContext.register(AuthEngine, authEngine)
+        TestApplicationContext.register(Secrets, secrets)
+        TestApplicationContext.register(OrganizationsSettings, organizationsSettings)
+        TestApplicationContext.addEnvironmentVariable("SESSION_TOKEN_MIN_REMAINING_SECONDS", "60")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        organization.getName() >> "flexion"
+        organizationsSettings.findOrganization(_ as String) >> Optional.of(organization)
+        secrets.getKey(_ as String) >> "KEY"
+        authEngine.validateToken(_ as String, _ as String) >> { throw new InvalidTokenException(new NullPointerException()) }
+        RequestSessionTokenUsecase.getInstance().tokensByOrganization.put("flexion",
+                new RequestSessionTokenUsecase.IssuedToken("OLD TOKEN", Instant.now().plusSeconds(300), "KEY"))
+
+        when:
+        RequestSessionTokenUsecase.getInstance().getToken(new AuthRequest("flexion", "BAD AUTH TOKEN"))
+
+        then:
+        thrown(InvalidTokenException)
+    }
+
+    def "getMinRemainingSeconds turns reuse off unless the property is between 0 and the token lifetime"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("SESSION_TOKEN_MIN_REMAINING_SECONDS", value)
+
+        expect:
+        RequestSessionTokenUsecase.getMinRemainingSeconds() == expected
+
+        where:
+        value    | expected
+        "60"     | 60
+        " 120 "  | 120
+        ""       | 0
+        "0"      | 0
+        "-5"     | 0
+        "300"    | 0
+        "dogcow" | 0
+    }
 }
@@ -41,11 +41,15 @@ class DomainsRegistrationTest extends Specification {
         def headerMap = [
             "clarus": "is a DogCow"
         ]
+        def queryParamMap = [
+            "moof": ["DogCow"]
+        ]
 
         def javalinContext = Mock(Context)
         javalinContext.body() >> bodyString
         javalinContext.url() >> urlString
         javalinContext.headerMap() >> headerMap
+        javalinContext.queryParamMap() >> queryParamMap
 
         when:
         def domainRequest = DomainsRegistration.javalinContextToDomainRequest(javalinContext)
@@ -54,6 +58,7 @@ class DomainsRegistrationTest extends Specification {
         domainRequest.getBody() == bodyString
         domainRequest.getUrl() == urlString
         domainRequest.getHeaders() == headerMap
+        domainRequest.getQueryParams() == queryParamMap
     }
 
     def "Inject values from DomainResponse into a Javalin Context correctly"() {
@@ -93,6 +98,44 @@ class DomainsRegistrationTest extends Specification {
         savedHeaders == headerMap
     }
 
+    def "domainResponseFillsInJavalinContext streams the body when the response has a body writer"() {
+        given:
+        def headerMap = ["Content-Type": "application/json"]
+        def writerCalled = false
+
+        def response = new DomainResponse(200)
+        response.setHeaders(headerMap)
+        response.setBodyWriter({ outputStream -> writerCalled = true })
+
+        def javalinContext = Mock(Context)
+
+        when:
+        DomainsRegistration.domainResponseFillsInJavalinContext(response, javalinContext)
+
+        then:
+        1 * javalinContext.status(200)
+        1 * javalinContext.header("Content-Type", "application/json")
+
+        then:
+        1 * javalinContext.outputStream()
+        0 * javalinContext.result(_ as String)
+        writerCalled
+    }
+
+    def "domainResponseFillsInJavalinContext doesn't fail when streaming the body fails"() {
+        given:
+        def response = new DomainResponse(200)
+        response.setBodyWriter({ outputStream -> throw new IOException("DogCow") })
+
+        def javalinContext = Mock(Context)
+
+        when:
+        DomainsRegistration.domainResponseFillsInJavalinContext(response, javalinContext)
+
+        then:
+        noExceptionThrown()
+    }
+
     def "createHandler successfully stitches things together"() {
         given:
         def handlerCalled = false
@@ -7,14 +7,19 @@ import gov.hhs.cdc.trustedintermediary.domainconnector.DomainResponse;
 import gov.hhs.cdc.trustedintermediary.domainconnector.DomainResponseHelper;
 import gov.hhs.cdc.trustedintermediary.domainconnector.HttpEndpoint;
 import gov.hhs.cdc.trustedintermediary.domainconnector.UnableToReadOpenApiSpecificationException;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKeyFilter;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageRequestHandler;
 import gov.hhs.cdc.trustedintermediary.etor.messages.SendMessageHelper;
 import gov.hhs.cdc.trustedintermediary.etor.messages.UnableToSendMessageException;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChangeListener;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataConverter;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataOrchestrator;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
 import gov.hhs.cdc.trustedintermediary.etor.operationoutcomes.FhirMetadata;
 import gov.hhs.cdc.trustedintermediary.etor.orders.Order;
@@ -31,13 +36,20 @@ import gov.hhs.cdc.trustedintermediary.etor.ruleengine.RuleLoader;
 import gov.hhs.cdc.trustedintermediary.etor.ruleengine.transformation.TransformationRuleEngine;
 import gov.hhs.cdc.trustedintermediary.etor.ruleengine.validation.ValidationRuleEngine;
 import gov.hhs.cdc.trustedintermediary.external.database.DatabaseMessageLinkStorage;
+import gov.hhs.cdc.trustedintermediary.external.database.DatabaseMetadataPartitionMaintenance;
+import gov.hhs.cdc.trustedintermediary.external.database.DatabasePartnerMetadataNotifications;
 import gov.hhs.cdc.trustedintermediary.external.database.DatabasePartnerMetadataStorage;
 import gov.hhs.cdc.trustedintermediary.external.database.DbDao;
+import gov.hhs.cdc.trustedintermediary.external.database.DbQueryMetrics;
 import gov.hhs.cdc.trustedintermediary.external.database.PostgresDao;
 import gov.hhs.cdc.trustedintermediary.external.hapi.HapiMessageHelper;
 import gov.hhs.cdc.trustedintermediary.external.hapi.HapiPartnerMetadataConverter;
+import gov.hhs.cdc.trustedintermediary.external.inmemory.CachingPartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.external.inmemory.InMemoryMessageLinkStorage;
+import gov.hhs.cdc.trustedintermediary.external.inmemory.InMemoryPartnerMetadataStorage;
 import gov.hhs.cdc.trustedintermediary.external.localfile.FileMessageLinkStorage;
 import gov.hhs.cdc.trustedintermediary.external.localfile.FilePartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.external.localfile.JournalingPartnerMetadataStorage;
 import gov.hhs.cdc.trustedintermediary.external.localfile.MockRSEndpointClient;
 import gov.hhs.cdc.trustedintermediary.external.openapi.OpenApiReaderImplementation;
 import gov.hhs.cdc.trustedintermediary.external.reportstream.ReportStreamEndpointClient;
@@ -47,6 +59,19 @@ import gov.hhs.cdc.trustedintermediary.external.reportstream.ReportStreamSenderH
 import gov.hhs.cdc.trustedintermediary.wrappers.FhirParseException;
 import gov.hhs.cdc.trustedintermediary.wrappers.HapiFhir;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -64,6 +89,11 @@ public class EtorDomainRegistration implements DomainConnector {
     static final String RESULTS_API_ENDPOINT = "/v1/etor/results";
 
     static final String CONSOLIDATED_SUMMARY_API_ENDPOINT = "/v1/etor/metadata/summary/{sender}";
+    static final String AGGREGATE_SUMMARY_API_ENDPOINT =
+            "/v1/etor/metadata/summary/{sender}/counts";
+    static final String NEXT_CURSOR_HEADER = "Next-Cursor";
+    static final int DEFAULT_CONSOLIDATED_SUMMARY_PAGE_SIZE = 100;
+    static final int MAX_CONSOLIDATED_SUMMARY_PAGE_SIZE = 1_000;
 
     @Inject OrderController orderController;
     @Inject SendOrderUseCase sendOrderUseCase;
@@ -79,13 +109,17 @@ public class EtorDomainRegistration implements DomainConnector {
 
     @Inject HapiFhir fhir;
 
+    @Inject Formatter formatter;
+
     private final Map<HttpEndpoint, Function<DomainRequest, DomainResponse>> endpoints =
             Map.of(
                     new HttpEndpoint("POST", ORDERS_API_ENDPOINT, true), this::handleOrders,
                     new HttpEndpoint("GET", METADATA_API_ENDPOINT, true), this::handleMetadata,
                     new HttpEndpoint("POST", RESULTS_API_ENDPOINT, true), this::handleResults,
                     new HttpEndpoint("GET", CONSOLIDATED_SUMMARY_API_ENDPOINT, true),
-                            this::handleConsolidatedSummary);
+                            this::handleConsolidatedSummary,
+                    new HttpEndpoint("GET", AGGREGATE_SUMMARY_API_ENDPOINT, true),
+                            this::handleAggregateSummary);
 
     @Override
     public Map<HttpEndpoint, Function<DomainRequest, DomainResponse>> domainRegistration() {
@@ -106,6 +140,7 @@ public class EtorDomainRegistration implements DomainConnector {
                 PartnerMetadataOrchestrator.class, PartnerMetadataOrchestrator.getInstance());
         ApplicationContext.register(
                 PartnerMetadataConverter.class, HapiPartnerMetadataConverter.getInstance());
+        ApplicationContext.register(MessageLinkKeyFilter.class, MessageLinkKeyFilter.getInstance());
         // Validation rules
         ApplicationContext.register(RuleLoader.class, RuleLoader.getInstance());
         ApplicationContext.register(
@@ -118,14 +153,34 @@ public class EtorDomainRegistration implements DomainConnector {
         ApplicationContext.register(SendMessageHelper.class, SendMessageHelper.getInstance());
 
         if (ApplicationContext.isPropertyPresent("DB_URL")) {
+            DbQueryMetrics.getInstance().configure();
+            ApplicationContext.register(DbQueryMetrics.class, DbQueryMetrics.getInstance());
             ApplicationContext.register(DbDao.class, PostgresDao.getInstance());
+            var notifications = DatabasePartnerMetadataNotifications.getInstance();
+            ApplicationContext.register(DatabasePartnerMetadataNotifications.class, notifications);
             ApplicationContext.register(
-                    PartnerMetadataStorage.class, DatabasePartnerMetadataStorage.getInstance());
+                    DatabaseMetadataPartitionMaintenance.class,
+                    DatabaseMetadataPartitionMaintenance.getInstance());
+            var storage =
+                    registerPartnerMetadataStorage(
+                            DatabasePartnerMetadataStorage.class,
+                            DatabasePartnerMetadataStorage.getInstance());
+            if (storage instanceof PartnerMetadataChangeListener listener) {
+                notifications.addListener(listener);
+            }
             ApplicationContext.register(
                     MessageLinkStorage.class, DatabaseMessageLinkStorage.getInstance());
-        } else if (ApplicationContext.getEnvironment().equalsIgnoreCase("local")) {
+        } else if (Boolean.parseBoolean(
+                ApplicationContext.getProperty("IN_MEMORY_STORAGE_ENABLED"))) {
+            // keeps disk I/O out of the way when load testing the pipeline without a database
+            registerPartnerMetadataStorage(
+                    InMemoryPartnerMetadataStorage.class,
+                    InMemoryPartnerMetadataStorage.getInstance());
             ApplicationContext.register(
-                    PartnerMetadataStorage.class, FilePartnerMetadataStorage.getInstance());
+                    MessageLinkStorage.class, InMemoryMessageLinkStorage.getInstance());
+        } else if (ApplicationContext.getEnvironment().equalsIgnoreCase("local")) {
+            registerPartnerMetadataStorage(
+                    FilePartnerMetadataStorage.class, FilePartnerMetadataStorage.getInstance());
             ApplicationContext.register(
                     MessageLinkStorage.class, FileMessageLinkStorage.getInstance());
         }
@@ -140,6 +195,39 @@ public class EtorDomainRegistration implements DomainConnector {
         return endpoints;
     }
 
+    private <T extends PartnerMetadataStorage>
+            PartnerMetadataStorage registerPartnerMetadataStorage(
+                    Class<T> storageClass, T storage) {
+        String journalPath = ApplicationContext.getProperty("PARTNER_METADATA_JOURNAL_PATH");
+        boolean journalEnabled = journalPath != null && !journalPath.isBlank();
+        String cacheEnabled = ApplicationContext.getProperty("PARTNER_METADATA_CACHE_ENABLED");
+        if (!journalEnabled && !Boolean.parseBoolean(cacheEnabled)) {
+            ApplicationContext.register(PartnerMetadataStorage.class, storage);
+            return storage;
+        }
+
+        // the underlying storages are registered under their own classes so they still get their
+        // dependencies injected
+        ApplicationContext.register(storageClass, storage);
+        PartnerMetadataStorage wrappedStorage = storage;
+
+        if (journalEnabled) {
+            var journalingStorage = JournalingPartnerMetadataStorage.getInstance();
+            journalingStorage.init(storage, Path.of(journalPath));
+            ApplicationContext.register(JournalingPartnerMetadataStorage.class, journalingStorage);
+            wrappedStorage = journalingStorage;
+        }
+
+        if (Boolean.parseBoolean(cacheEnabled)) {
+            var cachingStorage = CachingPartnerMetadataStorage.getInstance();
+            cachingStorage.init(wrappedStorage);
+            wrappedStorage = cachingStorage;
+        }
+
+        ApplicationContext.register(PartnerMetadataStorage.class, wrappedStorage);
+        return wrappedStorage;
+    }
+
     @Override
     public String openApiSpecification() throws UnableToReadOpenApiSpecificationException {
         String fileName = "openapi_etor.yaml";
@@ -200,19 +288,128 @@ public class EtorDomainRegistration implements DomainConnector {
 
     DomainResponse handleConsolidatedSummary(DomainRequest request) {
 
-        Map<String, Map<String, Object>> metadata;
+        PartnerMetadataQuery query;
         try {
-            String senderName = request.getPathParams().get("sender");
-
-            metadata = partnerMetadataOrchestrator.getConsolidatedMetadata(senderName);
+            query = consolidatedSummaryQueryFromRequest(request);
+        } catch (IllegalArgumentException e) {
+            logger.logError("Invalid consolidated summary request", e);
+            return domainResponseHelper.constructErrorResponse(400, e);
+        }
 
+        // read before anything is sent, so a database error is still answered with a 500 and the
+        // connection isn't held while the client reads the response
+        Map<String, Map<String, Object>> metadata = new LinkedHashMap<>();
+        PartnerMetadataCursor nextCursor;
+        try {
+            nextCursor = partnerMetadataOrchestrator.getConsolidatedMetadata(query, metadata::put);
         } catch (Exception e) {
             var errorString = "Unable to retrieve consolidated orders";
             logger.logError(errorString, e);
             return domainResponseHelper.constructErrorResponse(500, errorString);
         }
 
-        return domainResponseHelper.constructOkResponse(metadata);
+        // a page is bounded by its size, so it's written entry by entry instead of as one string
+        DomainResponse response =
+                domainResponseHelper.constructOkStreamingResponse(
+                        outputStream -> writeConsolidatedSummary(metadata, outputStream));
+        if (nextCursor != null) {
+            Map<String, String> headers = new HashMap<>(response.getHeaders());
+            headers.put(NEXT_CURSOR_HEADER, nextCursor.encode());
+            response.setHeaders(headers);
+        }
+
+        return response;
+    }
+
+    DomainResponse handleAggregateSummary(DomainRequest request) {
+        String senderName = request.getPathParams().get("sender");
+
+        try {
+            Map<String, Object> summary =
+                    partnerMetadataOrchestrator.getAggregateMetadataSummary(senderName);
+            return domainResponseHelper.constructOkResponse(summary);
+        } catch (Exception e) {
+            var errorString = "Unable to retrieve the aggregate summary";
+            logger.logError(errorString, e);
+            return domainResponseHelper.constructErrorResponse(500, errorString);
+        }
+    }
+
+    PartnerMetadataQuery consolidatedSummaryQueryFromRequest(DomainRequest request) {
+        String senderName = request.getPathParams().get("sender");
+        Instant since = instantFromQueryParam(request, "since");
+        Instant until = instantFromQueryParam(request, "until");
+
+        PartnerMetadataStatus status = null;
+        String statusParam = request.getQueryParam("status");
+        if (statusParam != null) {
+            try {
+                status = PartnerMetadataStatus.valueOf(statusParam.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid status: " + statusParam, e);
+            }
+        }
+
+        String cursorParam = request.getQueryParam("cursor");
+        PartnerMetadataCursor after =
+                cursorParam != null ? PartnerMetadataCursor.decode(cursorParam) : null;
+
+        // every response is a page, so a sender's whole history is never held in memory at once
+        int limit = DEFAULT_CONSOLIDATED_SUMMARY_PAGE_SIZE;
+        String limitParam = request.getQueryParam("limit");
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit: " + limitParam, e);
+            }
+
+            if (limit < 1 || limit > MAX_CONSOLIDATED_SUMMARY_PAGE_SIZE) {
+                throw new IllegalArgumentException(
+                        "The limit must be between 1 and " + MAX_CONSOLIDATED_SUMMARY_PAGE_SIZE);
+            }
+        }
+
+        return new PartnerMetadataQuery(senderName, since, until, status, after, limit);
+    }
+
+    void writeConsolidatedSummary(
+            Map<String, Map<String, Object>> metadata, OutputStream outputStream)
+            throws IOException {
+        var writer =
+                new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        boolean firstEntry = true;
+
+        try {
+            writer.write("{");
+            for (Map.Entry<String, Map<String, Object>> entry : metadata.entrySet()) {
+                if (!firstEntry) {
+                    writer.write(",");
+                }
+                firstEntry = false;
+                writer.write(formatter.convertToJsonString(entry.getKey()));
+                writer.write(":");
+                writer.write(formatter.convertToJsonString(entry.getValue()));
+            }
+            writer.write("}");
+            writer.flush();
+        } catch (FormatterProcessingException e) {
+            logger.logError("Unable to write the consolidated orders", e);
+            throw new IOException("Unable to write the consolidated orders", e);
+        }
+    }
+
+    private Instant instantFromQueryParam(DomainRequest request, String name) {
+        String value = request.getQueryParam(name);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value, e);
+        }
     }
 
     protected DomainResponse handleMessageRequest(
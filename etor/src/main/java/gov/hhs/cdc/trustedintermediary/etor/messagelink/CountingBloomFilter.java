@@ -0,0 +1,89 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A counting Bloom filter. Besides answering whether a key was possibly added, it can estimate how
+ * many times a key was added. The estimate is never lower than the real count, so when the
+ * estimate is zero (or equal to the additions we know of), the key was definitely not added (by
+ * anyone else).
+ */
+class CountingBloomFilter {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final byte[] counters;
+    private final int hashCount;
+
+    CountingBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long insertions = Math.max(1, expectedInsertions);
+        long size =
+                (long)
+                        Math.ceil(
+                                -insertions
+                                        * Math.log(falsePositiveRate)
+                                        / (Math.log(2) * Math.log(2)));
+        counters = new byte[(int) Math.min(Math.max(size, 64), Integer.MAX_VALUE - 8)];
+        hashCount =
+                Math.max(1, (int) Math.round((double) counters.length / insertions * Math.log(2)));
+    }
+
+    synchronized void add(String key) {
+        for (int index : indexes(key)) {
+            // counters saturate instead of overflowing, which can only overestimate the count
+            if (counters[index] < Byte.MAX_VALUE) {
+                counters[index]++;
+            }
+        }
+    }
+
+    synchronized int count(String key) {
+        int count = Byte.MAX_VALUE;
+        for (int index : indexes(key)) {
+            count = Math.min(count, counters[index]);
+        }
+        return count;
+    }
+
+    int size() {
+        return counters.length;
+    }
+
+    int hashCount() {
+        return hashCount;
+    }
+
+    private int[] indexes(String key) {
+        long hash = hash64(key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+
+        // double hashing, see "Less Hashing, Same Performance: Building a Better Bloom Filter"
+        int[] indexes = new int[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            int combinedHash = hash1 + ((i + 1) * hash2);
+            if (combinedHash < 0) {
+                combinedHash = ~combinedHash;
+            }
+            indexes[i] = combinedHash % counters.length;
+        }
+        return indexes;
+    }
+
+    private static long hash64(String key) {
+        // FNV-1a followed by the murmur3 finalizer so that all the bits are well mixed
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= FNV_PRIME;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,31 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink;
+
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import java.util.List;
+
+/**
+ * The fields that messages are linked on: the placer order number and one of the facilities of a
+ * message.
+ *
+ * @param placerOrderNumber The placer order number.
+ * @param facility Either the sending or receiving facility of the message.
+ */
+public record MessageLinkKey(String placerOrderNumber, MessageHdDataType facility) {
+
+    /**
+     * Returns the keys of the given metadata, one for its sending facility and one for its
+     * receiving facility. Metadata without a placer order number is never linked, so it has no
+     * keys.
+     */
+    public static List<MessageLinkKey> keysOf(PartnerMetadata metadata) {
+        if (metadata.placerOrderNumber() == null) {
+            return List.of();
+        }
+
+        return List.of(
+                new MessageLinkKey(metadata.placerOrderNumber(), metadata.sendingFacilityDetails()),
+                new MessageLinkKey(
+                        metadata.placerOrderNumber(), metadata.receivingFacilityDetails()));
+    }
+}
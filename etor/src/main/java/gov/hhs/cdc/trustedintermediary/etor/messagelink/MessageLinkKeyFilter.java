@@ -0,0 +1,237 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+
+/**
+ * Keeps an in-memory {@link CountingBloomFilter} of the {@link MessageLinkKey}s of all the stored
+ * metadata, so we can skip the message linking lookup when a message is definitely the first one
+ * seen for its placer order number and facility. The filter is seeded from the metadata storage in
+ * the background, updated every time metadata is saved, and periodically rebuilt to match the
+ * storage again. Until the filter is seeded, every message is considered as possibly having
+ * messages to link.
+ *
+ * <p>Only the metadata saved by this instance of the application reaches the filter, so it's only
+ * used with the storages that aren't shared with other instances. The storages that are shared
+ * find the messages to link themselves, see {@link PartnerMetadataStorage#linksMessagesOnSave()}.
+ */
+public class MessageLinkKeyFilter {
+
+    private static final MessageLinkKeyFilter INSTANCE = new MessageLinkKeyFilter();
+
+    static final double FALSE_POSITIVE_RATE = 0.01;
+    static final long DEFAULT_EXPECTED_KEYS = 1_000_000;
+    static final long DEFAULT_REBUILD_INTERVAL_MINUTES = 60;
+    // the keys added since the last rebuild are kept until the next one, which starts early once
+    // there are this many of them, so dropping any of them can't make a saved key go missing
+    static final int MAX_CARRIED_KEYS = 100_000;
+
+    private static final String KEY_SEPARATOR = "\u001F";
+
+    @Inject PartnerMetadataStorage partnerMetadataStorage;
+    @Inject Logger logger;
+
+    private final Object lock = new Object();
+    private CountingBloomFilter filter;
+    private CountingBloomFilter rebuildingFilter;
+    private Deque<String> keysAddedSinceLastRebuild = new ArrayDeque<>();
+    private long lastLoadedKeyCount;
+    private boolean earlyRebuildScheduled;
+    int maxCarriedKeys = MAX_CARRIED_KEYS;
+    ScheduledExecutorService scheduler;
+
+    public static MessageLinkKeyFilter getInstance() {
+        return INSTANCE;
+    }
+
+    private MessageLinkKeyFilter() {}
+
+    /**
+     * Records the link keys of the given metadata. This must be called before the metadata is
+     * saved, so a message that is being linked never misses a message that was saved before it.
+     */
+    public void add(PartnerMetadata metadata) {
+        if (metadata.placerOrderNumber() == null) {
+            return;
+        }
+
+        startIfNeeded();
+
+        // holding the lock guarantees a rebuild can't start between adding to the current filter
+        // and adding to the filter that will replace it
+        synchronized (lock) {
+            List<String> keys = keysOf(MessageLinkKey.keysOf(metadata));
+            addToFilters(keys);
+            carryOver(keys);
+
+            if (keysAddedSinceLastRebuild.size() >= maxCarriedKeys && !earlyRebuildScheduled) {
+                earlyRebuildScheduled = true;
+                scheduler.execute(this::rebuild);
+            }
+        }
+    }
+
+    /**
+     * Checks if any metadata other than the given one could share its placer order number and
+     * sending facility. The given metadata must have already been {@link #add(PartnerMetadata)
+     * added}.
+     *
+     * @return false if there are definitely no messages to link, otherwise true.
+     */
+    public boolean mightHaveMessagesToLink(PartnerMetadata metadata) {
+        if (metadata.placerOrderNumber() == null) {
+            // a null placer order number is never equal to anything when linking messages
+            return false;
+        }
+
+        startIfNeeded();
+
+        CountingBloomFilter currentFilter;
+        synchronized (lock) {
+            currentFilter = filter;
+        }
+
+        if (currentFilter == null) {
+            return true;
+        }
+
+        // the given metadata accounts for one addition of its sending facility's key, or two if
+        // its receiving facility is the same
+        int ownAdditions =
+                Objects.equals(
+                                metadata.sendingFacilityDetails(),
+                                metadata.receivingFacilityDetails())
+                        ? 2
+                        : 1;
+
+        String key = keyOf(metadata.placerOrderNumber(), metadata.sendingFacilityDetails());
+        return currentFilter.count(key) > ownAdditions;
+    }
+
+    void rebuild() {
+        CountingBloomFilter newFilter;
+        Deque<String> carriedKeys;
+        synchronized (lock) {
+            if (rebuildingFilter == null) {
+                rebuildingFilter = createFilter();
+            }
+            newFilter = rebuildingFilter;
+
+            // metadata added right before the rebuild started may not be saved yet when we read
+            // the storage, so carry those keys over to the new filter
+            carriedKeys = keysAddedSinceLastRebuild;
+            carriedKeys.forEach(newFilter::add);
+            keysAddedSinceLastRebuild = new ArrayDeque<>();
+        }
+
+        try {
+            List<MessageLinkKey> keys = partnerMetadataStorage.readMessageLinkKeys();
+            keys.forEach(key -> newFilter.add(keyOf(key.placerOrderNumber(), key.facility())));
+
+            synchronized (lock) {
+                filter = newFilter;
+                rebuildingFilter = null;
+                lastLoadedKeyCount = keys.size();
+                // after a failed rebuild, the next scheduled one is left to retry
+                earlyRebuildScheduled = false;
+            }
+
+            logger.logInfo("Loaded {} message link keys into the filter", keys.size());
+        } catch (Exception e) {
+            synchronized (lock) {
+                abandonRebuild(carriedKeys);
+            }
+            logger.logError("Unable to load the message link keys into the filter", e);
+        }
+    }
+
+    private void abandonRebuild(Deque<String> carriedKeys) {
+        Deque<String> keysAddedDuringRebuild = keysAddedSinceLastRebuild;
+        keysAddedSinceLastRebuild = carriedKeys;
+        carryOver(keysAddedDuringRebuild);
+        rebuildingFilter = null;
+    }
+
+    private void carryOver(Iterable<String> keys) {
+        for (String key : keys) {
+            keysAddedSinceLastRebuild.addLast(key);
+        }
+    }
+
+    private void startIfNeeded() {
+        synchronized (lock) {
+            if (scheduler != null) {
+                return;
+            }
+
+            // saves that happen while the filter is being seeded go into the new filter too
+            rebuildingFilter = createFilter();
+
+            scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "message-link-key-filter");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            scheduler.scheduleWithFixedDelay(
+                    this::rebuild,
+                    0,
+                    ApplicationContext.getPositiveLongProperty(
+                            "MESSAGE_LINK_FILTER_REBUILD_INTERVAL_MINUTES",
+                            DEFAULT_REBUILD_INTERVAL_MINUTES),
+                    TimeUnit.MINUTES);
+        }
+    }
+
+    private CountingBloomFilter createFilter() {
+        long expectedKeys =
+                Math.max(
+                        ApplicationContext.getPositiveLongProperty(
+                                "MESSAGE_LINK_FILTER_EXPECTED_KEYS", DEFAULT_EXPECTED_KEYS),
+                        lastLoadedKeyCount * 2);
+        return new CountingBloomFilter(expectedKeys, FALSE_POSITIVE_RATE);
+    }
+
+    private void addToFilters(List<String> keys) {
+        for (String key : keys) {
+            if (filter != null) {
+                filter.add(key);
+            }
+            if (rebuildingFilter != null) {
+                rebuildingFilter.add(key);
+            }
+        }
+    }
+
+    private List<String> keysOf(List<MessageLinkKey> messageLinkKeys) {
+        return messageLinkKeys.stream()
+                .map(key -> keyOf(key.placerOrderNumber(), key.facility()))
+                .toList();
+    }
+
+    static String keyOf(String placerOrderNumber, MessageHdDataType facility) {
+        if (facility == null) {
+            return placerOrderNumber;
+        }
+
+        return placerOrderNumber
+                + KEY_SEPARATOR
+                + facility.namespace()
+                + KEY_SEPARATOR
+                + facility.universalId()
+                + KEY_SEPARATOR
+                + facility.universalIdType();
+    }
+}
@@ -1,11 +1,9 @@
 package gov.hhs.cdc.trustedintermediary.etor.messages;
 
-import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataOrchestrator;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
-import java.util.Set;
 import javax.inject.Inject;
 
 public class SendMessageHelper {
@@ -21,6 +19,23 @@ public class SendMessageHelper {
 
     private SendMessageHelper() {}
 
+    /**
+     * Holds the metadata and message links of the message being sent in memory until {@link
+     * #commitUnitOfWork()} saves them, so the writes made after sending only go to the storage
+     * once. The metadata of the received message is saved before it begins.
+     */
+    public void beginUnitOfWork() {
+        partnerMetadataOrchestrator.beginUnitOfWork();
+    }
+
+    public void commitUnitOfWork() {
+        try {
+            partnerMetadataOrchestrator.commitUnitOfWork();
+        } catch (PartnerMetadataException e) {
+            logger.logError("Unable to save the metadata and message links of the message", e);
+        }
+    }
+
     public void savePartnerMetadataForReceivedMessage(PartnerMetadata partnerMetadata) {
         if (partnerMetadata.receivedSubmissionId() == null) {
             logger.logWarning(
@@ -57,29 +72,16 @@ public class SendMessageHelper {
         }
     }
 
-    public void linkMessage(String receivedSubmissionId) {
+    public void linkMessage(PartnerMetadata partnerMetadata) {
+        String receivedSubmissionId = partnerMetadata.receivedSubmissionId();
         if (receivedSubmissionId == null) {
             logger.logWarning("Received submissionId is null so not linking messages");
             return;
         }
 
         try {
-            Set<String> messageIdsToLink =
-                    partnerMetadataOrchestrator.findMessagesIdsToLink(receivedSubmissionId);
-
-            if (messageIdsToLink == null || messageIdsToLink.isEmpty()) {
-                return;
-            }
-
-            // Add receivedSubmissionId to complete the list of messageIds to link
-            messageIdsToLink.add(receivedSubmissionId);
-
-            logger.logInfo(
-                    "Found messages to link for receivedSubmissionId {}: {}",
-                    receivedSubmissionId,
-                    messageIdsToLink);
-            partnerMetadataOrchestrator.linkMessages(messageIdsToLink);
-        } catch (PartnerMetadataException | MessageLinkException e) {
+            partnerMetadataOrchestrator.linkMessage(partnerMetadata);
+        } catch (PartnerMetadataException e) {
             logger.logError(
                     "Unable to link messages for received submissionId " + receivedSubmissionId, e);
         }
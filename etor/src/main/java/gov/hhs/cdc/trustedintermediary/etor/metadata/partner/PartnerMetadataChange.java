@@ -0,0 +1,13 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import java.util.List;
+
+/**
+ * A change made to the partner metadata by another instance of the application.
+ *
+ * @param submissionIds The received and sent submission IDs of the changed metadata.
+ * @param messageLinkKeys The message link keys of the changed metadata.
+ */
+public record PartnerMetadataChange(
+        List<String> submissionIds, List<MessageLinkKey> messageLinkKeys) {}
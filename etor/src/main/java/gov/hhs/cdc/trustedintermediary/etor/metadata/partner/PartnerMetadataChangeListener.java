@@ -0,0 +1,13 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+/**
+ * Interface for anything that keeps partner metadata in memory and needs to know when another
+ * instance of the application changes it.
+ */
+public interface PartnerMetadataChangeListener {
+
+    void onMetadataChanged(PartnerMetadataChange change);
+
+    /** Called when changes may have been missed, so everything kept in memory is outdated. */
+    void onChangesMissed();
+}
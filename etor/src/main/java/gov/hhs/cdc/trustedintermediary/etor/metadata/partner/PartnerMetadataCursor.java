@@ -0,0 +1,78 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Comparator;
+
+/**
+ * The position of a partner metadata within metadata sorted by time received and then by received
+ * submission ID. A page of metadata continues right after the metadata at the cursor. Metadata
+ * without a time received sorts first.
+ *
+ * @param timeReceived The time the metadata at the cursor was received, if known.
+ * @param receivedSubmissionId The received submission ID of the metadata at the cursor.
+ */
+public record PartnerMetadataCursor(Instant timeReceived, String receivedSubmissionId) {
+
+    /** The order of the cursors, which is the same as the order of the metadata in a page. */
+    public static final Comparator<PartnerMetadataCursor> ORDER =
+            Comparator.comparing(
+                            PartnerMetadataCursor::timeReceived,
+                            Comparator.nullsFirst(Comparator.<Instant>naturalOrder()))
+                    .thenComparing(PartnerMetadataCursor::receivedSubmissionId);
+
+    private static final char SEPARATOR = '|';
+
+    public static PartnerMetadataCursor of(PartnerMetadata metadata) {
+        return new PartnerMetadataCursor(metadata.timeReceived(), metadata.receivedSubmissionId());
+    }
+
+    /**
+     * Decodes a cursor that was previously returned by {@link #encode()}.
+     *
+     * @param encodedCursor the encoded cursor
+     * @return the cursor
+     * @throws IllegalArgumentException if the encoded cursor isn't valid
+     */
+    public static PartnerMetadataCursor decode(String encodedCursor) {
+        String decoded;
+        try {
+            decoded =
+                    new String(
+                            Base64.getUrlDecoder().decode(encodedCursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + encodedCursor, e);
+        }
+
+        int separatorIndex = decoded.indexOf(SEPARATOR);
+        if (separatorIndex < 0 || separatorIndex == decoded.length() - 1) {
+            throw new IllegalArgumentException("Invalid cursor: " + encodedCursor);
+        }
+
+        String timeReceived = decoded.substring(0, separatorIndex);
+        try {
+            return new PartnerMetadataCursor(
+                    timeReceived.isEmpty() ? null : Instant.parse(timeReceived),
+                    decoded.substring(separatorIndex + 1));
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + encodedCursor, e);
+        }
+    }
+
+    /**
+     * Encodes the cursor into an opaque string that is safe to use in a URL.
+     *
+     * @return the encoded cursor
+     */
+    public String encode() {
+        String decoded =
+                (timeReceived == null ? "" : timeReceived.toString())
+                        + SEPARATOR
+                        + receivedSubmissionId;
+        return Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString(decoded.getBytes(StandardCharsets.UTF_8));
+    }
+}
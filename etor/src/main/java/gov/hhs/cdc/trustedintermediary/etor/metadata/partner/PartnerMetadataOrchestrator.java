@@ -3,6 +3,7 @@ package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
 import gov.hhs.cdc.trustedintermediary.etor.RSEndpointClient;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKeyFilter;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
 import gov.hhs.cdc.trustedintermediary.external.reportstream.ReportStreamEndpointClientException;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
@@ -12,12 +13,16 @@ import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import javax.inject.Inject;
 
 /**
@@ -31,16 +36,57 @@ public class PartnerMetadataOrchestrator {
 
     @Inject PartnerMetadataStorage partnerMetadataStorage;
     @Inject MessageLinkStorage messageLinkStorage;
+    @Inject MessageLinkKeyFilter messageLinkKeyFilter;
     @Inject RSEndpointClient rsclient;
     @Inject Formatter formatter;
     @Inject Logger logger;
 
+    // the unit of work of the message being processed by the current thread, if any
+    private final ThreadLocal<PartnerMetadataUnitOfWork> unitOfWork = new ThreadLocal<>();
+
     public static PartnerMetadataOrchestrator getInstance() {
         return INSTANCE;
     }
 
     private PartnerMetadataOrchestrator() {}
 
+    /**
+     * Starts holding the metadata and message links saved by the current thread in memory, instead
+     * of saving each of them to the storage right away. Metadata read by the current thread is
+     * read from what's being held first. Everything is saved together by {@link
+     * #commitUnitOfWork()}, which must be called once the message is processed.
+     */
+    public void beginUnitOfWork() {
+        unitOfWork.set(new PartnerMetadataUnitOfWork());
+    }
+
+    /**
+     * Saves everything held since {@link #beginUnitOfWork()} to the storage all at once. The
+     * messages to link are found by the storage while saving when it {@link
+     * PartnerMetadataStorage#linksMessagesOnSave() links them itself}, otherwise they're found
+     * first and saved with the rest.
+     */
+    public void commitUnitOfWork() throws PartnerMetadataException {
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork == null) {
+            return;
+        }
+
+        try {
+            if (!partnerMetadataStorage.linksMessagesOnSave()) {
+                currentUnitOfWork.metadataToLink().forEach(this::findAndLinkMessages);
+            }
+        } finally {
+            unitOfWork.remove();
+        }
+
+        if (currentUnitOfWork.isEmpty()) {
+            return;
+        }
+
+        partnerMetadataStorage.saveUnitOfWork(currentUnitOfWork);
+    }
+
     public void updateMetadataForReceivedMessage(PartnerMetadata partnerMetadata)
             throws PartnerMetadataException {
 
@@ -54,35 +100,14 @@ public class PartnerMetadataOrchestrator {
             String responseBody =
                     rsclient.requestDeliveryEndpoint(
                             partnerMetadata.receivedSubmissionId(), bearerToken);
-            Map<String, Object> responseObject =
-                    formatter.convertJsonToObject(responseBody, new TypeReference<>() {});
-
-            List<Map<String, String>> originalIngestion =
-                    (List<Map<String, String>>) responseObject.get("originalIngestion");
-
-            if (originalIngestion == null || originalIngestion.isEmpty()) {
-                throw new PartnerMetadataException(
-                        "Ingestion time not found from RS delivery API response");
-            }
-
-            if (originalIngestion.size() > 1) {
-                logger.logWarning(
-                        "More than 1 report ids found in originalIngestion,"
-                                + " check to make sure batching wasn't turned on for receiver in RS");
-            }
-
-            // We should only have 1 object in originalIngestion, it is a list to support other RS
-            // use cases
-            String timestamp = originalIngestion.get(0).get("ingestionTime");
-            timeReceived = Instant.parse(timestamp);
-
+            timeReceived = getTimeReceivedFromDelivery(responseBody);
         } catch (Exception e) {
             // write the received submission ID so that the rest of the metadata flow works even if
             // some data is missing
             logger.logWarning(
                     "Unable to retrieve metadata from RS delivery API, but writing basic metadata entry anyway for received submission ID {}",
                     partnerMetadata.receivedSubmissionId());
-            partnerMetadataStorage.saveMetadata(partnerMetadata);
+            saveMetadata(partnerMetadata);
 
             throw new PartnerMetadataException(
                     "Unable to retrieve metadata from RS delivery API", e);
@@ -90,7 +115,32 @@ public class PartnerMetadataOrchestrator {
 
         logger.logInfo("Updating metadata with timeReceived: {}", timeReceived);
         PartnerMetadata updatedPartnerMetadata = partnerMetadata.withTimeReceived(timeReceived);
-        partnerMetadataStorage.saveMetadata(updatedPartnerMetadata);
+        saveMetadata(updatedPartnerMetadata);
+    }
+
+    private Instant getTimeReceivedFromDelivery(String responseBody)
+            throws FormatterProcessingException, PartnerMetadataException {
+        Map<String, Object> responseObject =
+                formatter.convertJsonToObject(responseBody, new TypeReference<>() {});
+
+        List<Map<String, String>> originalIngestion =
+                (List<Map<String, String>>) responseObject.get("originalIngestion");
+
+        if (originalIngestion == null || originalIngestion.isEmpty()) {
+            throw new PartnerMetadataException(
+                    "Ingestion time not found from RS delivery API response");
+        }
+
+        if (originalIngestion.size() > 1) {
+            logger.logWarning(
+                    "More than 1 report ids found in originalIngestion,"
+                            + " check to make sure batching wasn't turned on for receiver in RS");
+        }
+
+        // We should only have 1 object in originalIngestion, it is a list to support other RS
+        // use cases
+        String timestamp = originalIngestion.get(0).get("ingestionTime");
+        return Instant.parse(timestamp);
     }
 
     public void updateMetadataForSentMessage(String receivedSubmissionId, String sentSubmissionId)
@@ -100,8 +150,7 @@ public class PartnerMetadataOrchestrator {
             return;
         }
 
-        Optional<PartnerMetadata> optionalPartnerMetadata =
-                partnerMetadataStorage.readMetadata(receivedSubmissionId);
+        Optional<PartnerMetadata> optionalPartnerMetadata = readMetadata(receivedSubmissionId);
         if (optionalPartnerMetadata.isEmpty()) {
             logger.logWarning(
                     "Metadata not found for receivedSubmissionId: {}", receivedSubmissionId);
@@ -116,13 +165,12 @@ public class PartnerMetadataOrchestrator {
 
         logger.logInfo("Updating metadata with sentSubmissionId: {}", sentSubmissionId);
         partnerMetadata = partnerMetadata.withSentSubmissionId(sentSubmissionId);
-        partnerMetadataStorage.saveMetadata(partnerMetadata);
+        saveMetadata(partnerMetadata);
     }
 
     public Optional<PartnerMetadata> getMetadata(String receivedSubmissionId)
             throws PartnerMetadataException {
-        Optional<PartnerMetadata> optionalPartnerMetadata =
-                partnerMetadataStorage.readMetadata(receivedSubmissionId);
+        Optional<PartnerMetadata> optionalPartnerMetadata = readMetadata(receivedSubmissionId);
         if (optionalPartnerMetadata.isEmpty()) {
             logger.logInfo("Metadata not found for receivedSubmissionId: {}", receivedSubmissionId);
             return Optional.empty();
@@ -162,7 +210,7 @@ public class PartnerMetadataOrchestrator {
                 partnerMetadata = partnerMetadata.withTimeDelivered(Instant.parse(timeDelivered));
             }
 
-            partnerMetadataStorage.saveMetadata(partnerMetadata);
+            saveMetadata(partnerMetadata);
         }
 
         return Optional.of(partnerMetadata);
@@ -174,8 +222,7 @@ public class PartnerMetadataOrchestrator {
             return;
         }
 
-        Optional<PartnerMetadata> optionalPartnerMetadata =
-                partnerMetadataStorage.readMetadata(submissionId);
+        Optional<PartnerMetadata> optionalPartnerMetadata = readMetadata(submissionId);
         PartnerMetadata partnerMetadata;
         if (optionalPartnerMetadata.isEmpty()) {
             // there wasn't any metadata given the submission ID, so make one with the status
@@ -195,30 +242,110 @@ public class PartnerMetadataOrchestrator {
                 partnerMetadata
                         .withDeliveryStatus(PartnerMetadataStatus.FAILED)
                         .withFailureMessage(errorMessage);
-        partnerMetadataStorage.saveMetadata(partnerMetadata);
+        saveMetadata(partnerMetadata);
     }
 
     public Map<String, Map<String, Object>> getConsolidatedMetadata(String senderName)
             throws PartnerMetadataException {
 
-        var metadataSet = partnerMetadataStorage.readMetadataForSender(senderName);
+        Map<String, Map<String, Object>> consolidatedMetadata = new HashMap<>();
+        getConsolidatedMetadata(
+                PartnerMetadataQuery.forSender(senderName), consolidatedMetadata::put);
+        return consolidatedMetadata;
+    }
 
-        return metadataSet.stream()
-                .collect(
-                        Collectors.toMap(
-                                PartnerMetadata::receivedSubmissionId,
-                                metadata -> {
-                                    var status = String.valueOf(metadata.deliveryStatus());
-                                    var stale = metadataIsStale(metadata);
-                                    var failureReason = metadata.failureReason();
+    /**
+     * Passes the summary of each metadata selected by the query to the consumer, keyed by its
+     * received submission ID. Only the summaries are passed on, so the metadata itself isn't kept.
+     *
+     * @param query the sender and the criteria to search for
+     * @param consumer receives the received submission ID and the summary of each metadata
+     * @return the cursor of the next page when the query is paginated and the page is full,
+     *     otherwise null
+     */
+    public PartnerMetadataCursor getConsolidatedMetadata(
+            PartnerMetadataQuery query, BiConsumer<String, Map<String, Object>> consumer)
+            throws PartnerMetadataException {
 
-                                    Map<String, Object> innerMap = new HashMap<>();
-                                    innerMap.put("status", status);
-                                    innerMap.put("stale", stale);
-                                    innerMap.put("failureReason", failureReason);
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<PartnerMetadata> last = new AtomicReference<>();
 
-                                    return innerMap;
-                                }));
+        partnerMetadataStorage.readMetadataForSender(
+                query,
+                metadata -> {
+                    var status = String.valueOf(metadata.deliveryStatus());
+                    var stale = metadataIsStale(metadata);
+                    var failureReason = metadata.failureReason();
+
+                    Map<String, Object> innerMap = new HashMap<>();
+                    innerMap.put("status", status);
+                    innerMap.put("stale", stale);
+                    innerMap.put("failureReason", failureReason);
+
+                    consumer.accept(metadata.receivedSubmissionId(), innerMap);
+                    count.incrementAndGet();
+                    last.set(metadata);
+                });
+
+        if (!query.isPaginated() || count.get() < query.limit()) {
+            return null;
+        }
+
+        return PartnerMetadataCursor.of(last.get());
+    }
+
+    /**
+     * Counts the metadata of the given sender by delivery status, along with how many of them are
+     * stale. The counts are read from the storage instead of being computed from each metadata.
+     *
+     * @param senderName the name of the sender
+     * @return a map with the "total" and "stale" counts, and the count of each status under
+     *     "statuses"
+     */
+    public Map<String, Object> getAggregateMetadataSummary(String senderName)
+            throws PartnerMetadataException {
+
+        Map<String, Long> statusCounts = new LinkedHashMap<>();
+        for (PartnerMetadataStatus status : PartnerMetadataStatus.values()) {
+            statusCounts.put(status.toString(), 0L);
+        }
+
+        long total = 0;
+        long stale = 0;
+        for (PartnerMetadataStatusCount statusCount :
+                partnerMetadataStorage.readStatusCountsForSender(senderName)) {
+            statusCounts.merge(statusCount.status().toString(), statusCount.count(), Long::sum);
+            total += statusCount.count();
+            if (isStale(statusCount.receiver(), statusCount.status())) {
+                stale += statusCount.count();
+            }
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("total", total);
+        summary.put("stale", stale);
+        summary.put("statuses", statusCounts);
+        return summary;
+    }
+
+    /**
+     * Links the message with the stored messages of the same placer order number and facility when
+     * the current unit of work is saved, or right away in a unit of work of its own when there's
+     * none.
+     */
+    public void linkMessage(PartnerMetadata partnerMetadata) throws PartnerMetadataException {
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork != null) {
+            currentUnitOfWork.linkMessages(partnerMetadata);
+            return;
+        }
+
+        beginUnitOfWork();
+        try {
+            unitOfWork.get().linkMessages(partnerMetadata);
+        } finally {
+            commitUnitOfWork();
+        }
     }
 
     public Set<String> findMessagesIdsToLink(String receivedSubmissionId)
@@ -230,7 +357,7 @@ public class PartnerMetadataOrchestrator {
     public void linkMessages(Set<String> messageIds) throws MessageLinkException {
         Optional<MessageLink> existingMessageLink = Optional.empty();
         for (String messageId : messageIds) {
-            existingMessageLink = messageLinkStorage.getMessageLink(messageId);
+            existingMessageLink = getMessageLink(messageId);
             if (existingMessageLink.isPresent()) {
                 break;
             }
@@ -238,7 +365,7 @@ public class PartnerMetadataOrchestrator {
 
         if (existingMessageLink.isEmpty()) {
             logger.logInfo("Saving new message link for messageIds: {}", messageIds);
-            messageLinkStorage.saveMessageLink(new MessageLink(UUID.randomUUID(), messageIds));
+            saveMessageLink(new MessageLink(UUID.randomUUID(), messageIds));
             return;
         }
 
@@ -248,7 +375,41 @@ public class PartnerMetadataOrchestrator {
                 "Updating existing message link {} with messageIds: {}",
                 messageLink.getLinkId(),
                 messageIds);
-        messageLinkStorage.saveMessageLink(messageLink);
+        saveMessageLink(messageLink);
+    }
+
+    private void findAndLinkMessages(PartnerMetadata partnerMetadata) {
+        String receivedSubmissionId = partnerMetadata.receivedSubmissionId();
+        if (!messageLinkKeyFilter.mightHaveMessagesToLink(partnerMetadata)) {
+            logger.logInfo(
+                    "No messages to link for receivedSubmissionId {}, skipping lookup",
+                    receivedSubmissionId);
+            return;
+        }
+
+        try {
+            // the metadata may only be held in the unit of work, so it's matched by its values
+            Set<String> messageIdsToLink =
+                    new HashSet<>(
+                            partnerMetadataStorage.readMetadataForMessageLinking(partnerMetadata));
+            if (messageIdsToLink.isEmpty()) {
+                return;
+            }
+
+            // Add receivedSubmissionId to complete the list of messageIds to link
+            messageIdsToLink.add(receivedSubmissionId);
+
+            logger.logInfo(
+                    "Found messages to link for receivedSubmissionId {}: {}",
+                    receivedSubmissionId,
+                    messageIdsToLink);
+            linkMessages(messageIdsToLink);
+        } catch (PartnerMetadataException | MessageLinkException e) {
+            // the metadata is still saved without the link
+            logger.logError(
+                    "Unable to link messages for received submissionId " + receivedSubmissionId,
+                    e);
+        }
     }
 
     String[] getDataFromReportStream(String responseBody) throws FormatterProcessingException {
@@ -319,8 +480,64 @@ public class PartnerMetadataOrchestrator {
         };
     }
 
+    private void saveMetadata(PartnerMetadata partnerMetadata) throws PartnerMetadataException {
+        // add to the filter before saving, so a message being linked concurrently can't miss this.
+        // The storages that link the messages themselves don't use the filter
+        if (!partnerMetadataStorage.linksMessagesOnSave()) {
+            messageLinkKeyFilter.add(partnerMetadata);
+        }
+
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork != null) {
+            currentUnitOfWork.saveMetadata(partnerMetadata);
+            return;
+        }
+
+        partnerMetadataStorage.saveMetadata(partnerMetadata);
+    }
+
+    private Optional<PartnerMetadata> readMetadata(String submissionId)
+            throws PartnerMetadataException {
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork != null) {
+            Optional<PartnerMetadata> heldMetadata = currentUnitOfWork.readMetadata(submissionId);
+            if (heldMetadata.isPresent()) {
+                return heldMetadata;
+            }
+        }
+
+        return partnerMetadataStorage.readMetadata(submissionId);
+    }
+
+    private Optional<MessageLink> getMessageLink(String messageId) throws MessageLinkException {
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork != null) {
+            Optional<MessageLink> heldMessageLink = currentUnitOfWork.getMessageLink(messageId);
+            if (heldMessageLink.isPresent()) {
+                return heldMessageLink;
+            }
+        }
+
+        return messageLinkStorage.getMessageLink(messageId);
+    }
+
+    private void saveMessageLink(MessageLink messageLink) throws MessageLinkException {
+        PartnerMetadataUnitOfWork currentUnitOfWork = unitOfWork.get();
+        if (currentUnitOfWork != null) {
+            currentUnitOfWork.saveMessageLink(messageLink);
+            return;
+        }
+
+        messageLinkStorage.saveMessageLink(messageLink);
+    }
+
     private boolean metadataIsStale(PartnerMetadata partnerMetadata) {
-        return partnerMetadata.receivingFacilityDetails().universalId() == null
-                || partnerMetadata.deliveryStatus() == PartnerMetadataStatus.PENDING;
+        return isStale(
+                partnerMetadata.receivingFacilityDetails().universalId(),
+                partnerMetadata.deliveryStatus());
+    }
+
+    private boolean isStale(String receiver, PartnerMetadataStatus status) {
+        return receiver == null || status == PartnerMetadataStatus.PENDING;
     }
 }
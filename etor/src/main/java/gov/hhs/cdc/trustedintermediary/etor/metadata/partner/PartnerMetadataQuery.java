@@ -0,0 +1,56 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+import java.time.Instant;
+
+/**
+ * Selects the partner metadata of a sender. The metadata is sorted by time received and then by
+ * received submission ID, so it can be read a page at a time. All the criteria except the sender
+ * are optional.
+ *
+ * @param sender The universal ID of the sending facility.
+ * @param since Only metadata received at or after this time.
+ * @param until Only metadata received before this time.
+ * @param status Only metadata with this delivery status.
+ * @param after Only metadata that sorts after this cursor.
+ * @param limit The maximum amount of metadata, or null for all of it.
+ */
+public record PartnerMetadataQuery(
+        String sender,
+        Instant since,
+        Instant until,
+        PartnerMetadataStatus status,
+        PartnerMetadataCursor after,
+        Integer limit) {
+
+    public static PartnerMetadataQuery forSender(String sender) {
+        return new PartnerMetadataQuery(sender, null, null, null, null, null);
+    }
+
+    public boolean isPaginated() {
+        return limit != null;
+    }
+
+    /**
+     * Returns whether the metadata meets all the criteria of the query except the sender, which
+     * storages select on before matching.
+     */
+    public boolean matches(PartnerMetadata metadata) {
+        Instant timeReceived = metadata.timeReceived();
+
+        if (since != null && (timeReceived == null || timeReceived.isBefore(since))) {
+            return false;
+        }
+
+        if (until != null && (timeReceived == null || !timeReceived.isBefore(until))) {
+            return false;
+        }
+
+        if (status != null && status != metadata.deliveryStatus()) {
+            return false;
+        }
+
+        return after == null
+                || PartnerMetadataCursor.ORDER.compare(PartnerMetadataCursor.of(metadata), after)
+                        > 0;
+    }
+}
@@ -0,0 +1,11 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+/**
+ * The number of metadata of a sender that were sent to a receiver and have a delivery status.
+ *
+ * @param receiver The universal ID of the receiving facility, or null if it isn't known yet.
+ * @param status The delivery status.
+ * @param count The number of metadata.
+ */
+public record PartnerMetadataStatusCount(
+        String receiver, PartnerMetadataStatus status, long count) {}
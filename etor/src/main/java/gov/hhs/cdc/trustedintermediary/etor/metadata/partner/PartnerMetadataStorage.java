@@ -1,7 +1,10 @@
 package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
 
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /** Interface to store and retrieve our partner-facing metadata. */
 public interface PartnerMetadataStorage {
@@ -23,6 +26,26 @@ public interface PartnerMetadataStorage {
      */
     void saveMetadata(PartnerMetadata metadata) throws PartnerMetadataException;
 
+    /**
+     * This method will save all the metadata and message links of the unit of work together. The
+     * metadata is upserted the same way as {@link #saveMetadata(PartnerMetadata)}. Storages that
+     * support transactions save either all or none of them.
+     *
+     * @param unitOfWork The metadata and message links to save.
+     */
+    void saveUnitOfWork(PartnerMetadataUnitOfWork unitOfWork) throws PartnerMetadataException;
+
+    /**
+     * This method will return whether {@link #saveUnitOfWork(PartnerMetadataUnitOfWork)} finds the
+     * messages to link with the metadata the unit of work asks to link, and links them. Otherwise,
+     * they are found before the unit of work is saved and added to it as message links.
+     *
+     * @return true if the storage links the messages itself, false by default.
+     */
+    default boolean linksMessagesOnSave() {
+        return false;
+    }
+
     /**
      * This method will return a set of partner metadata for the given sender.
      *
@@ -31,5 +54,46 @@ public interface PartnerMetadataStorage {
      */
     Set<PartnerMetadata> readMetadataForSender(String sender) throws PartnerMetadataException;
 
+    /**
+     * This method will pass each partner metadata selected by the query to the consumer as it is
+     * read, so the metadata of senders with a long history doesn't need to fit in memory at once.
+     * The metadata is passed in the order described by {@link PartnerMetadataQuery}.
+     *
+     * @param query the sender and the criteria to search for
+     * @param consumer receives each {@link PartnerMetadata}
+     */
+    void readMetadataForSender(PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer)
+            throws PartnerMetadataException;
+
+    /**
+     * This method will return the number of metadata of the given sender for each receiver and
+     * delivery status. The counts are kept up to date as the metadata is saved, so reading them
+     * doesn't depend on how much metadata the sender has.
+     *
+     * @param sender the name of the sender to count the metadata of
+     * @return a list of {@link PartnerMetadataStatusCount}s, without any zero counts.
+     */
+    List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender)
+            throws PartnerMetadataException;
+
     Set<String> readMetadataForMessageLinking(String submissionId) throws PartnerMetadataException;
+
+    /**
+     * This method will return the received submission IDs of the stored metadata to link with the
+     * given metadata, which doesn't need to be stored itself yet.
+     *
+     * @param metadata the metadata to find the messages to link with
+     * @return a set of received submission IDs, without the one of the given metadata.
+     */
+    Set<String> readMetadataForMessageLinking(PartnerMetadata metadata)
+            throws PartnerMetadataException;
+
+    /**
+     * This method will return the {@link MessageLinkKey}s of all the stored metadata that has a
+     * placer order number. Each metadata contributes one key for its sending facility and one for
+     * its receiving facility.
+     *
+     * @return a list of {@link MessageLinkKey}s.
+     */
+    List<MessageLinkKey> readMessageLinkKeys() throws PartnerMetadataException;
 }
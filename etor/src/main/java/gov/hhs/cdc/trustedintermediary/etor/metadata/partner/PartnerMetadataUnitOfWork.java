@@ -0,0 +1,66 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner;
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Holds the metadata and message links saved while a single message goes through the pipeline, so
+ * they can be saved to the storage all at once at the end of it. Only the last version of each
+ * metadata is kept, and reading metadata that was saved in the unit of work returns that version
+ * without going to the storage. The messages to link with the metadata it's asked to link are
+ * found when it is saved, by the storage itself when it can do so safely with the other instances
+ * of the application, see {@link PartnerMetadataStorage#linksMessagesOnSave()}.
+ */
+public class PartnerMetadataUnitOfWork {
+
+    private final Map<String, PartnerMetadata> metadata = new LinkedHashMap<>();
+    private final Map<UUID, MessageLink> messageLinks = new LinkedHashMap<>();
+    private final Map<String, PartnerMetadata> metadataToLink = new LinkedHashMap<>();
+
+    public void saveMetadata(PartnerMetadata partnerMetadata) {
+        metadata.put(partnerMetadata.receivedSubmissionId(), partnerMetadata);
+    }
+
+    public Optional<PartnerMetadata> readMetadata(String submissionId) {
+        return metadata.values().stream()
+                .filter(
+                        partnerMetadata ->
+                                submissionId.equals(partnerMetadata.receivedSubmissionId())
+                                        || submissionId.equals(partnerMetadata.sentSubmissionId()))
+                .findFirst();
+    }
+
+    public void saveMessageLink(MessageLink messageLink) {
+        messageLinks.put(messageLink.getLinkId(), messageLink);
+    }
+
+    public Optional<MessageLink> getMessageLink(String messageId) {
+        return messageLinks.values().stream()
+                .filter(messageLink -> messageLink.getMessageIds().contains(messageId))
+                .findFirst();
+    }
+
+    public void linkMessages(PartnerMetadata partnerMetadata) {
+        metadataToLink.put(partnerMetadata.receivedSubmissionId(), partnerMetadata);
+    }
+
+    public Collection<PartnerMetadata> metadata() {
+        return metadata.values();
+    }
+
+    public Collection<MessageLink> messageLinks() {
+        return messageLinks.values();
+    }
+
+    public Collection<PartnerMetadata> metadataToLink() {
+        return metadataToLink.values();
+    }
+
+    public boolean isEmpty() {
+        return metadata.isEmpty() && messageLinks.isEmpty() && metadataToLink.isEmpty();
+    }
+}
@@ -40,15 +40,24 @@ public class SendOrderUseCase implements SendMessageUseCase<Order<?>> {
                         order.getReceivingFacilityDetails(),
                         order.getPlacerOrderNumber());
 
+        // the metadata of the received message is saved right away, so it survives the instance
+        // going down while sending and its status can be looked up in the meantime
         sendMessageHelper.savePartnerMetadataForReceivedMessage(partnerMetadata);
 
-        transformationEngine.runRules(order);
+        // the later metadata and message links are saved together once the message is processed,
+        // even when sending it fails
+        sendMessageHelper.beginUnitOfWork();
+        try {
+            transformationEngine.runRules(order);
 
-        String outboundReportId = sender.send(order).orElse(null);
-        logger.logInfo("Sent order reportId: {}", outboundReportId);
+            String outboundReportId = sender.send(order).orElse(null);
+            logger.logInfo("Sent order reportId: {}", outboundReportId);
 
-        sendMessageHelper.linkMessage(receivedSubmissionId);
+            sendMessageHelper.linkMessage(partnerMetadata);
 
-        sendMessageHelper.saveSentMessageSubmissionId(receivedSubmissionId, outboundReportId);
+            sendMessageHelper.saveSentMessageSubmissionId(receivedSubmissionId, outboundReportId);
+        } finally {
+            sendMessageHelper.commitUnitOfWork();
+        }
     }
 }
@@ -41,15 +41,24 @@ public class SendResultUseCase implements SendMessageUseCase<Result<?>> {
                         result.getReceivingFacilityDetails(),
                         result.getPlacerOrderNumber());
 
+        // the metadata of the received message is saved right away, so it survives the instance
+        // going down while sending and its status can be looked up in the meantime
         sendMessageHelper.savePartnerMetadataForReceivedMessage(partnerMetadata);
 
-        transformationEngine.runRules(result);
+        // the later metadata and message links are saved together once the message is processed,
+        // even when sending it fails
+        sendMessageHelper.beginUnitOfWork();
+        try {
+            transformationEngine.runRules(result);
 
-        String outboundReportId = sender.send(result).orElse(null);
-        logger.logInfo("Sent result reportId: {}", outboundReportId);
+            String outboundReportId = sender.send(result).orElse(null);
+            logger.logInfo("Sent result reportId: {}", outboundReportId);
 
-        sendMessageHelper.linkMessage(receivedSubmissionId);
+            sendMessageHelper.linkMessage(partnerMetadata);
 
-        sendMessageHelper.saveSentMessageSubmissionId(receivedSubmissionId, outboundReportId);
+            sendMessageHelper.saveSentMessageSubmissionId(receivedSubmissionId, outboundReportId);
+        } finally {
+            sendMessageHelper.commitUnitOfWork();
+        }
     }
 }
@@ -8,7 +8,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -38,6 +40,7 @@ public class DatabaseMessageLinkStorage implements MessageLinkStorage {
         try {
             Set<Map<UUID, String>> partialMessageLinks =
                     dao.fetchManyData(
+                            "messageLink.readByMessageId",
                             connection -> {
                                 try {
                                     PreparedStatement statement =
@@ -68,23 +71,90 @@ public class DatabaseMessageLinkStorage implements MessageLinkStorage {
     public void saveMessageLink(MessageLink messageLink) throws MessageLinkException {
         logger.logInfo("Saving message links");
         try {
-            UUID linkId = messageLink.getLinkId();
-            List<DbColumn> columns;
-            for (String messageId : messageLink.getMessageIds()) {
-                columns =
-                        List.of(
-                                new DbColumn("link_id", linkId, false, Types.OTHER),
-                                new DbColumn("message_id", messageId, false, Types.VARCHAR));
+            for (DbUpsert upsert : createDbUpsertsFromMessageLink(messageLink)) {
                 dao.upsertData(
-                        "message_link",
-                        columns,
-                        "ON CONSTRAINT message_link_link_id_message_id_key");
+                        "messageLink.upsert",
+                        upsert.tableName(),
+                        upsert.values(),
+                        upsert.conflictTarget());
             }
         } catch (SQLException e) {
             throw new MessageLinkException("Error saving message links", e);
         }
     }
 
+    static List<DbUpsert> createDbUpsertsFromMessageLink(MessageLink messageLink) {
+        UUID linkId = messageLink.getLinkId();
+        List<DbUpsert> upserts = new ArrayList<>();
+        for (String messageId : messageLink.getMessageIds()) {
+            upserts.add(
+                    new DbUpsert(
+                            "message_link",
+                            List.of(
+                                    new DbColumn("link_id", linkId, false, Types.OTHER),
+                                    new DbColumn("message_id", messageId, false, Types.VARCHAR)),
+                            "ON CONSTRAINT message_link_link_id_message_id_key"));
+        }
+        return upserts;
+    }
+
+    /**
+     * Merges the message link with the links already saved for any of its message IDs, which may
+     * have been saved since it was read. Unless the message link was saved itself, the saved link
+     * with the lowest ID is kept, so two transactions merging the same links keep the same one.
+     */
+    static MessageLink mergeWithSavedMessageLinks(
+            DbTransaction transaction, MessageLink messageLink) throws SQLException {
+        Map<UUID, Set<String>> savedMessageLinks =
+                transaction.fetchManyData(
+                        connection -> {
+                            try {
+                                PreparedStatement statement =
+                                        connection.prepareStatement(
+                                                """
+                                SELECT link_id, message_id
+                                FROM message_link
+                                WHERE link_id IN (
+                                    SELECT link_id FROM message_link WHERE message_id = ANY(?))
+                                ORDER BY link_id;
+                                """);
+                                statement.setArray(
+                                        1,
+                                        connection.createArrayOf(
+                                                "varchar", messageLink.getMessageIds().toArray()));
+                                return statement;
+                            } catch (SQLException e) {
+                                throw new RuntimeException(e);
+                            }
+                        },
+                        resultSet -> {
+                            try {
+                                return Map.entry(
+                                        UUID.fromString(resultSet.getString("link_id")),
+                                        resultSet.getString("message_id"));
+                            } catch (SQLException e) {
+                                throw new RuntimeException(e);
+                            }
+                        },
+                        Collectors.groupingBy(
+                                Map.Entry::getKey,
+                                LinkedHashMap::new,
+                                Collectors.mapping(Map.Entry::getValue, Collectors.toSet())));
+
+        if (savedMessageLinks.isEmpty()) {
+            return messageLink;
+        }
+
+        UUID linkId =
+                savedMessageLinks.containsKey(messageLink.getLinkId())
+                        ? messageLink.getLinkId()
+                        : savedMessageLinks.keySet().iterator().next();
+        Set<String> messageIds = new HashSet<>(messageLink.getMessageIds());
+        savedMessageLinks.values().forEach(messageIds::addAll);
+
+        return new MessageLink(linkId, messageIds);
+    }
+
     Map<UUID, String> partialMessageLinkFromResultSet(ResultSet resultSet) {
         try {
             UUID linkId = UUID.fromString(resultSet.getString("link_id"));
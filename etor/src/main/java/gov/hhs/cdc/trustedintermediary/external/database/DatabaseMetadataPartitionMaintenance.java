@@ -0,0 +1,230 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+import javax.inject.Inject;
+
+/**
+ * Maintains the monthly partitions of the metadata table. Partitions are created ahead of time, so
+ * new metadata doesn't end up in the default partition. When a retention is configured, the
+ * partitions older than it are detached, which keeps the indexes and the vacuuming of the table
+ * limited to the retained months. The keys, message links and status counts of their metadata are
+ * removed along with them. The detached partitions are then archived to compressed files and
+ * dropped, or left detached in the database if there isn't an archive directory. The maintenance
+ * runs in the background once metadata is first saved, and then periodically. An advisory lock held
+ * for the whole run, archiving included, makes sure only one instance of the application does it at
+ * a time.
+ */
+public class DatabaseMetadataPartitionMaintenance {
+
+    private static final DatabaseMetadataPartitionMaintenance INSTANCE =
+            new DatabaseMetadataPartitionMaintenance();
+
+    static final long DEFAULT_MONTHS_AHEAD = 3;
+    static final long DEFAULT_INTERVAL_HOURS = 24;
+
+    // "PART" in the high bits keeps it apart from the message link lock keys
+    static final long MAINTENANCE_LOCK_KEY = 0x50415254L << 32;
+
+    private static final Pattern PARTITION_NAME = Pattern.compile("metadata_p[0-9]{6}");
+
+    @Inject DbDao dao;
+    @Inject Logger logger;
+
+    private final Object lock = new Object();
+    ScheduledExecutorService scheduler;
+
+    public static DatabaseMetadataPartitionMaintenance getInstance() {
+        return INSTANCE;
+    }
+
+    private DatabaseMetadataPartitionMaintenance() {}
+
+    public void startIfNeeded() {
+        synchronized (lock) {
+            if (scheduler != null) {
+                return;
+            }
+
+            scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            runnable -> {
+                                Thread thread =
+                                        new Thread(runnable, "metadata-partition-maintenance");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            scheduler.scheduleWithFixedDelay(
+                    this::maintain,
+                    0,
+                    Math.max(
+                            1,
+                            getNonNegativeProperty(
+                                    "METADATA_PARTITION_MAINTENANCE_INTERVAL_HOURS",
+                                    DEFAULT_INTERVAL_HOURS)),
+                    TimeUnit.HOURS);
+        }
+    }
+
+    void maintain() {
+        long monthsAhead =
+                getNonNegativeProperty("METADATA_PARTITION_MONTHS_AHEAD", DEFAULT_MONTHS_AHEAD);
+        Long retentionMonths = getNonNegativeProperty("METADATA_RETENTION_MONTHS", null);
+
+        try {
+            boolean maintained =
+                    dao.runWithAdvisoryLock(
+                            "metadataPartition.lock",
+                            MAINTENANCE_LOCK_KEY,
+                            () -> maintainPartitions(monthsAhead, retentionMonths));
+            if (!maintained) {
+                logger.logInfo(
+                        "Skipping the metadata partition maintenance, another instance is running it");
+            }
+        } catch (SQLException e) {
+            logger.logError("Unable to maintain the metadata partitions", e);
+        }
+    }
+
+    private void maintainPartitions(long monthsAhead, Long retentionMonths) throws SQLException {
+        List<String> detachedPartitions =
+                dao.fetchManyData(
+                        "metadataPartition.maintain",
+                        connection -> {
+                            try {
+                                var statement =
+                                        connection.prepareStatement(
+                                                "SELECT maintain_metadata_partitions(?, ?)");
+                                statement.setInt(1, (int) monthsAhead);
+                                if (retentionMonths != null) {
+                                    statement.setInt(2, retentionMonths.intValue());
+                                } else {
+                                    statement.setNull(2, Types.INTEGER);
+                                }
+                                return statement;
+                            } catch (SQLException e) {
+                                throw new RuntimeException(e);
+                            }
+                        },
+                        this::firstColumnFromResultSet,
+                        Collectors.toList());
+
+        String archiveDirectory = ApplicationContext.getProperty("METADATA_ARCHIVE_DIRECTORY");
+        for (String partition : detachedPartitions) {
+            if (archiveDirectory == null || archiveDirectory.isBlank()) {
+                logger.logWarning(
+                        "Leaving the expired metadata partition {} detached because there isn't an archive directory",
+                        partition);
+                continue;
+            }
+
+            try {
+                Path archive = archive(partition, Path.of(archiveDirectory));
+                drop(partition);
+                logger.logInfo(
+                        "Archived the expired metadata partition {} to {}", partition, archive);
+            } catch (IOException | SQLException | RuntimeException e) {
+                // the partition stays detached, so it's archived again in the next run
+                logger.logError(
+                        "Unable to archive the expired metadata partition " + partition, e);
+            }
+        }
+    }
+
+    Path archive(String partition, Path archiveDirectory) throws IOException, SQLException {
+        if (!PARTITION_NAME.matcher(partition).matches()) {
+            throw new IllegalArgumentException("Not a metadata partition: " + partition);
+        }
+
+        Files.createDirectories(archiveDirectory);
+        Path archive = archiveDirectory.resolve(partition + ".jsonl.gz");
+        // the archive only gets its final name once it's complete
+        Path partialArchive = archiveDirectory.resolve(partition + ".jsonl.gz.partial");
+
+        try (Writer writer =
+                new OutputStreamWriter(
+                        new GZIPOutputStream(Files.newOutputStream(partialArchive)),
+                        StandardCharsets.UTF_8)) {
+            dao.streamData(
+                    "metadataPartition.archive",
+                    connection -> {
+                        try {
+                            return connection.prepareStatement(
+                                    "SELECT row_to_json(p)::text FROM " + partition + " p");
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    },
+                    this::firstColumnFromResultSet,
+                    row -> {
+                        try {
+                            writer.write(row);
+                            writer.write('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        }
+
+        Files.move(partialArchive, archive, StandardCopyOption.ATOMIC_MOVE);
+        return archive;
+    }
+
+    private void drop(String partition) throws SQLException {
+        dao.fetchFirstData(
+                "metadataPartition.drop",
+                connection -> {
+                    try {
+                        var statement =
+                                connection.prepareStatement(
+                                        "SELECT drop_detached_metadata_partition(?)");
+                        statement.setString(1, partition);
+                        return statement;
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                },
+                this::firstColumnFromResultSet);
+    }
+
+    String firstColumnFromResultSet(ResultSet resultSet) {
+        try {
+            return resultSet.getString(1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the months are passed to maintain_metadata_partitions as integers
+    private Long getNonNegativeProperty(String name, Long defaultValue) {
+        if (!ApplicationContext.isPropertyPresent(name)) {
+            return defaultValue;
+        }
+
+        long value = ApplicationContext.getLongProperty(name, -1);
+        if (value >= 0 && value <= Integer.MAX_VALUE) {
+            return value;
+        }
+
+        logger.logWarning("Invalid value for {}, using the default of {}", name, defaultValue);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,140 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChange;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChangeListener;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationHandler;
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationListener;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.inject.Inject;
+
+/**
+ * Keeps the partner metadata held in memory by every instance of the application coherent. The
+ * metadata saved by a transaction is announced to the other instances through the database when it
+ * commits, and the changes announced by the other instances are passed to the registered {@link
+ * PartnerMetadataChangeListener}s. Every instance runs with the same configuration, so when none
+ * is registered here there's nobody to announce to, and nothing is sent or listened for.
+ */
+public class DatabasePartnerMetadataNotifications implements NotificationHandler {
+
+    private static final DatabasePartnerMetadataNotifications INSTANCE =
+            new DatabasePartnerMetadataNotifications();
+
+    static final String CHANNEL = "partner_metadata_changed";
+
+    // identifies the notifications sent by this instance, which it already knows about
+    static final String ORIGIN = UUID.randomUUID().toString();
+
+    @Inject NotificationListener notificationListener;
+    @Inject Formatter formatter;
+    @Inject Logger logger;
+
+    private final Set<PartnerMetadataChangeListener> listeners = new CopyOnWriteArraySet<>();
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    public static DatabasePartnerMetadataNotifications getInstance() {
+        return INSTANCE;
+    }
+
+    private DatabasePartnerMetadataNotifications() {}
+
+    public void addListener(PartnerMetadataChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    void clearListeners() {
+        listeners.clear();
+    }
+
+    /**
+     * Starts listening for the changes made by the other instances. This must be called before any
+     * metadata that could end up held in memory is read.
+     */
+    public void listenIfNeeded() {
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        if (listening.compareAndSet(false, true)) {
+            notificationListener.listen(CHANNEL, this);
+        }
+    }
+
+    /**
+     * Announces the metadata saved by the given transaction to the other instances, in a single
+     * notification sent when the transaction commits.
+     */
+    public void publish(DbTransaction transaction, Collection<PartnerMetadata> savedMetadata)
+            throws SQLException {
+        if (listeners.isEmpty() || savedMetadata.isEmpty()) {
+            return;
+        }
+
+        List<String> submissionIds = new ArrayList<>();
+        List<MessageLinkKey> messageLinkKeys = new ArrayList<>();
+        for (PartnerMetadata metadata : savedMetadata) {
+            submissionIds.add(metadata.receivedSubmissionId());
+            if (metadata.sentSubmissionId() != null) {
+                submissionIds.add(metadata.sentSubmissionId());
+            }
+            messageLinkKeys.addAll(MessageLinkKey.keysOf(metadata));
+        }
+
+        var change = new PartnerMetadataChange(submissionIds, messageLinkKeys);
+
+        String payload;
+        try {
+            payload =
+                    formatter.convertToJsonString(new PartnerMetadataNotification(ORIGIN, change));
+        } catch (FormatterProcessingException e) {
+            // the other instances eventually expire or rebuild what they hold
+            logger.logError("Unable to notify the other instances about the metadata change", e);
+            return;
+        }
+
+        transaction.sendNotification(CHANNEL, payload);
+    }
+
+    @Override
+    public void onNotification(String payload) {
+        PartnerMetadataNotification notification;
+        try {
+            notification = formatter.convertJsonToObject(payload, new TypeReference<>() {});
+        } catch (FormatterProcessingException e) {
+            logger.logError("Unable to parse the metadata change notification", e);
+            onNotificationsMissed();
+            return;
+        }
+
+        if (ORIGIN.equals(notification.origin())) {
+            return;
+        }
+
+        listeners.forEach(listener -> listener.onMetadataChanged(notification.change()));
+    }
+
+    @Override
+    public void onNotificationsMissed() {
+        listeners.forEach(PartnerMetadataChangeListener::onChangesMissed);
+    }
+
+    /**
+     * The payload of the notifications.
+     *
+     * @param origin The instance of the application that made the change.
+     * @param change The change.
+     */
+    record PartnerMetadataNotification(String origin, PartnerMetadataChange change) {}
+}
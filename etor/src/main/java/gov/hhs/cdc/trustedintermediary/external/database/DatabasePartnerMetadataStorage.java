@@ -1,23 +1,35 @@
 package gov.hhs.cdc.trustedintermediary.external.database;
 
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
 
@@ -29,11 +41,24 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
 
     private static final String METADATA_TABLE_RECEIVED_MESSAGE_ID = "received_message_id";
 
+    // the prefixes of the namespace, universal ID and universal ID type columns of each HD
+    private static final String SENDING_APPLICATION = "sending_application";
+    private static final String SENDING_FACILITY = "sending_facility";
+    private static final String RECEIVING_APPLICATION = "receiving_application";
+    private static final String RECEIVING_FACILITY = "receiving_facility";
+
+    // the placer order numbers share a fixed number of advisory locks for linking, whose keys are
+    // kept apart from any other advisory locks by their upper half, which spells LINK in ASCII
+    static final int MESSAGE_LINK_LOCK_STRIPES = 1_024;
+    private static final long MESSAGE_LINK_LOCK_NAMESPACE = 0x4C494E4BL << 32;
+
     @Inject DbDao dao;
 
     @Inject Logger logger;
 
-    @Inject Formatter formatter;
+    @Inject DatabasePartnerMetadataNotifications notifications;
+
+    @Inject DatabaseMetadataPartitionMaintenance partitionMaintenance;
 
     private DatabasePartnerMetadataStorage() {}
 
@@ -44,9 +69,12 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
     @Override
     public Optional<PartnerMetadata> readMetadata(final String uniqueId)
             throws PartnerMetadataException {
+        notifications.listenIfNeeded();
+
         try {
             PartnerMetadata metadata =
                     dao.fetchFirstData(
+                            "metadata.readById",
                             connection -> {
                                 try {
                                     PreparedStatement statement =
@@ -70,45 +98,161 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
     @Override
     public void saveMetadata(final PartnerMetadata metadata) throws PartnerMetadataException {
         logger.logInfo("saving the metadata");
+        partitionMaintenance.startIfNeeded();
 
         try {
-            List<DbColumn> columns = createDbColumnsFromMetadata(metadata);
-            dao.upsertData("metadata", columns, "(" + METADATA_TABLE_RECEIVED_MESSAGE_ID + ")");
+            dao.runInTransaction(
+                    "metadata.upsert",
+                    List.of(),
+                    transaction -> {
+                        transaction.upsertData(
+                                createDbUpsertsFromMetadata(transaction, List.of(metadata)));
+                        notifications.publish(transaction, List.of(metadata));
+                    });
         } catch (SQLException e) {
             throw new PartnerMetadataException("Error saving metadata", e);
-        } catch (FormatterProcessingException e) {
-            throw new PartnerMetadataException("Error parsing metadata", e);
         }
     }
 
     @Override
-    public Set<PartnerMetadata> readMetadataForSender(String sender)
+    public void saveUnitOfWork(final PartnerMetadataUnitOfWork unitOfWork)
             throws PartnerMetadataException {
-        Set<PartnerMetadata> consolidatedMetadata;
+        if (unitOfWork.isEmpty()) {
+            return;
+        }
+
+        logger.logInfo("saving the metadata and message links of the unit of work");
+        partitionMaintenance.startIfNeeded();
+
+        // linking is serialized per placer order number, so the messages of an order saved at the
+        // same time on different instances find each other and end up in the same link
+        List<Long> lockKeys = new ArrayList<>();
+        for (PartnerMetadata metadata : unitOfWork.metadataToLink()) {
+            if (metadata.placerOrderNumber() != null) {
+                lockKeys.add(messageLinkLockKey(metadata.placerOrderNumber()));
+            }
+        }
+
         try {
-            consolidatedMetadata =
-                    dao.fetchManyData(
-                            connection -> {
-                                try {
-                                    PreparedStatement statement =
-                                            connection.prepareStatement(
-                                                    "SELECT * FROM metadata WHERE sending_facility_details->> 'universalId' = ?");
-                                    statement.setString(1, sender);
-                                    return statement;
-                                } catch (SQLException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            },
-                            this::partnerMetadataFromResultSet,
-                            Collectors.toSet());
+            dao.runInTransaction(
+                    "metadata.saveUnitOfWork",
+                    lockKeys,
+                    transaction -> {
+                        transaction.upsertData(
+                                createDbUpsertsFromMetadata(transaction, unitOfWork.metadata()));
+
+                        // the messages to link are only looked for while holding the locks, which
+                        // sees any message of the same order saved by another instance before
+                        List<MessageLink> messageLinks =
+                                new ArrayList<>(unitOfWork.messageLinks());
+                        for (PartnerMetadata metadata : unitOfWork.metadataToLink()) {
+                            if (metadata.placerOrderNumber() == null) {
+                                continue;
+                            }
 
-            return consolidatedMetadata;
+                            Set<String> messageIds =
+                                    transaction.fetchManyData(
+                                            sqlGeneratorForMessageLinking(metadata),
+                                            this::idsFromResult,
+                                            Collectors.toCollection(HashSet::new));
+                            if (!messageIds.isEmpty()) {
+                                messageIds.add(metadata.receivedSubmissionId());
+                                messageLinks.add(new MessageLink(UUID.randomUUID(), messageIds));
+                            }
+                        }
 
+                        // each link is saved before the next one is merged, so links sharing a
+                        // message are merged into one
+                        for (MessageLink messageLink : messageLinks) {
+                            MessageLink savedMessageLink =
+                                    DatabaseMessageLinkStorage.mergeWithSavedMessageLinks(
+                                            transaction, messageLink);
+                            transaction.upsertData(
+                                    DatabaseMessageLinkStorage.createDbUpsertsFromMessageLink(
+                                            savedMessageLink));
+                        }
+
+                        notifications.publish(transaction, unitOfWork.metadata());
+                    });
+        } catch (SQLException e) {
+            throw new PartnerMetadataException("Error saving the unit of work", e);
+        }
+    }
+
+    @Override
+    public boolean linksMessagesOnSave() {
+        return true;
+    }
+
+    @Override
+    public Set<PartnerMetadata> readMetadataForSender(String sender)
+            throws PartnerMetadataException {
+        Set<PartnerMetadata> consolidatedMetadata = new HashSet<>();
+        readMetadataForSender(PartnerMetadataQuery.forSender(sender), consolidatedMetadata::add);
+        return consolidatedMetadata;
+    }
+
+    @Override
+    public void readMetadataForSender(
+            PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer)
+            throws PartnerMetadataException {
+        List<DbColumn> parameters = new ArrayList<>();
+        String sqlStatement = sqlStatementForSenderQuery(query, parameters);
+
+        try {
+            // nothing is written based on the summary of the sender, so it can be slightly stale
+            dao.streamData(
+                    "metadata.readForSender",
+                    DbReadConsistency.EVENTUAL,
+                    connection -> {
+                        try {
+                            PreparedStatement statement = connection.prepareStatement(sqlStatement);
+                            setParameters(statement, parameters);
+                            return statement;
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    },
+                    this::partnerMetadataFromResultSet,
+                    consumer);
         } catch (SQLException e) {
             throw new PartnerMetadataException("Error retrieving consolidated metadata", e);
         }
     }
 
+    @Override
+    public List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender)
+            throws PartnerMetadataException {
+        try {
+            // the rollup is kept up to date by a trigger on the metadata table, in the same
+            // transaction as each metadata change, and splits each count across several slots
+            return dao.fetchManyData(
+                    "metadata.statusCountsForSender",
+                    DbReadConsistency.EVENTUAL,
+                    connection -> {
+                        try {
+                            PreparedStatement statement =
+                                    connection.prepareStatement(
+                                            """
+                                    SELECT receiver, status, SUM(message_count) AS message_count
+                                    FROM metadata_status_rollup
+                                    WHERE sender = ?
+                                    GROUP BY receiver, status
+                                    HAVING SUM(message_count) > 0;
+                                    """);
+                            statement.setString(1, sender);
+                            return statement;
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    },
+                    this::statusCountFromResultSet,
+                    Collectors.toList());
+        } catch (SQLException e) {
+            throw new PartnerMetadataException("Error retrieving metadata status counts", e);
+        }
+    }
+
     @Override
     public Set<String> readMetadataForMessageLinking(String submissionId)
             throws PartnerMetadataException {
@@ -117,6 +261,7 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
         try {
             metadataSet =
                     dao.fetchManyData(
+                            "metadata.linking",
                             connection -> {
                                 try {
                                     PreparedStatement statement =
@@ -126,8 +271,10 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
                                     FROM metadata m1
                                     JOIN metadata m2
                                         ON m1.placer_order_number = m2.placer_order_number
-                                            AND (m1.sending_facility_details = m2.sending_facility_details
-                                                OR m1.sending_facility_details = m2.receiving_facility_details)
+                                            AND ((m1.sending_facility_namespace, m1.sending_facility_universal_id, m1.sending_facility_universal_id_type)
+                                                    IS NOT DISTINCT FROM (m2.sending_facility_namespace, m2.sending_facility_universal_id, m2.sending_facility_universal_id_type)
+                                                OR (m1.sending_facility_namespace, m1.sending_facility_universal_id, m1.sending_facility_universal_id_type)
+                                                    IS NOT DISTINCT FROM (m2.receiving_facility_namespace, m2.receiving_facility_universal_id, m2.receiving_facility_universal_id_type))
                                             AND m1.received_message_id <> m2.received_message_id
                                     WHERE m1.received_message_id = ?;
                                     """);
@@ -148,6 +295,168 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
         }
     }
 
+    @Override
+    public Set<String> readMetadataForMessageLinking(PartnerMetadata metadata)
+            throws PartnerMetadataException {
+        if (metadata.placerOrderNumber() == null) {
+            return new HashSet<>();
+        }
+
+        try {
+            return dao.fetchManyData(
+                    "metadata.linkingByValues",
+                    sqlGeneratorForMessageLinking(metadata),
+                    this::idsFromResult,
+                    Collectors.toSet());
+        } catch (SQLException e) {
+            throw new PartnerMetadataException("Error retrieving metadata", e);
+        }
+    }
+
+    private Function<Connection, PreparedStatement> sqlGeneratorForMessageLinking(
+            PartnerMetadata metadata) {
+        // the same as linking by submission ID, but with the values of the given metadata in place
+        // of its stored row
+        MessageHdDataType sendingFacility = metadata.sendingFacilityDetails();
+        List<DbColumn> parameters = new ArrayList<>();
+        parameters.add(
+                new DbColumn(
+                        "placer_order_number", metadata.placerOrderNumber(), false, Types.VARCHAR));
+        parameters.addAll(createDbColumnsFromHdDataType(SENDING_FACILITY, sendingFacility));
+        parameters.addAll(createDbColumnsFromHdDataType(SENDING_FACILITY, sendingFacility));
+        parameters.add(
+                new DbColumn(
+                        METADATA_TABLE_RECEIVED_MESSAGE_ID,
+                        metadata.receivedSubmissionId(),
+                        false,
+                        Types.VARCHAR));
+
+        return connection -> {
+            try {
+                PreparedStatement statement =
+                        connection.prepareStatement(
+                                """
+                        SELECT received_message_id
+                        FROM metadata
+                        WHERE placer_order_number = ?
+                            AND ((sending_facility_namespace, sending_facility_universal_id, sending_facility_universal_id_type)
+                                    IS NOT DISTINCT FROM (?, ?, ?)
+                                OR (receiving_facility_namespace, receiving_facility_universal_id, receiving_facility_universal_id_type)
+                                    IS NOT DISTINCT FROM (?, ?, ?))
+                            AND received_message_id <> ?;
+                        """);
+                setParameters(statement, parameters);
+                return statement;
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    @Override
+    public List<MessageLinkKey> readMessageLinkKeys() throws PartnerMetadataException {
+        notifications.listenIfNeeded();
+
+        try {
+            List<MessageLinkKey> keys = new ArrayList<>();
+            dao.streamData(
+                    "metadata.messageLinkKeys",
+                    connection -> {
+                        try {
+                            return connection.prepareStatement(
+                                    """
+                                    SELECT placer_order_number,
+                                        sending_facility_namespace, sending_facility_universal_id, sending_facility_universal_id_type,
+                                        receiving_facility_namespace, receiving_facility_universal_id, receiving_facility_universal_id_type
+                                    FROM metadata
+                                    WHERE placer_order_number IS NOT NULL;
+                                    """);
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    },
+                    this::messageLinkKeysFromResultSet,
+                    keys::addAll);
+
+            return keys;
+        } catch (SQLException e) {
+            throw new PartnerMetadataException("Error retrieving message link keys", e);
+        }
+    }
+
+    String sqlStatementForSenderQuery(PartnerMetadataQuery query, List<DbColumn> parameters) {
+        // metadata without a time received sorts first, which keeps the order total so the
+        // keyset pagination doesn't skip or repeat any metadata
+        String sortColumns = "COALESCE(time_received, '-infinity'), received_message_id";
+
+        StringBuilder sqlStatementBuilder =
+                new StringBuilder(
+                        "SELECT * FROM metadata WHERE sending_facility_universal_id = ?");
+        parameters.add(new DbColumn("sender", query.sender(), false, Types.VARCHAR));
+
+        // the metadata with a time received is in the partition of its time received, so bounding
+        // the partition time too leaves the partitions out of the range unscanned
+        if (query.since() != null) {
+            sqlStatementBuilder.append(" AND time_received >= ? AND partition_time >= ?");
+            Timestamp since = Timestamp.from(query.since());
+            parameters.add(new DbColumn("since", since, false, Types.TIMESTAMP));
+            parameters.add(new DbColumn("since_partition_time", since, false, Types.TIMESTAMP));
+        }
+
+        if (query.until() != null) {
+            sqlStatementBuilder.append(" AND time_received < ? AND partition_time < ?");
+            Timestamp until = Timestamp.from(query.until());
+            parameters.add(new DbColumn("until", until, false, Types.TIMESTAMP));
+            parameters.add(new DbColumn("until_partition_time", until, false, Types.TIMESTAMP));
+        }
+
+        if (query.status() != null) {
+            sqlStatementBuilder.append(" AND delivery_status = ?");
+            parameters.add(
+                    new DbColumn("status", query.status().toString(), false, Types.OTHER));
+        }
+
+        if (query.after() != null) {
+            sqlStatementBuilder
+                    .append(" AND (")
+                    .append(sortColumns)
+                    .append(") > (COALESCE(CAST(? AS timestamptz), '-infinity'::timestamptz), ?)");
+            Instant afterTimeReceived = query.after().timeReceived();
+            parameters.add(
+                    new DbColumn(
+                            "after_time_received",
+                            afterTimeReceived != null ? Timestamp.from(afterTimeReceived) : null,
+                            false,
+                            Types.TIMESTAMP));
+            parameters.add(
+                    new DbColumn(
+                            "after_received_message_id",
+                            query.after().receivedSubmissionId(),
+                            false,
+                            Types.VARCHAR));
+
+            // the metadata after one with a time received all have a later or equal one
+            if (afterTimeReceived != null) {
+                sqlStatementBuilder.append(" AND partition_time >= ?");
+                parameters.add(
+                        new DbColumn(
+                                "after_partition_time",
+                                Timestamp.from(afterTimeReceived),
+                                false,
+                                Types.TIMESTAMP));
+            }
+        }
+
+        sqlStatementBuilder.append(" ORDER BY ").append(sortColumns);
+
+        if (query.isPaginated()) {
+            sqlStatementBuilder.append(" LIMIT ?");
+            parameters.add(new DbColumn("limit", query.limit(), false, Types.INTEGER));
+        }
+
+        return sqlStatementBuilder.toString();
+    }
+
     PartnerMetadata partnerMetadataFromResultSet(ResultSet resultSet) {
         try {
             Instant timeReceived = null;
@@ -171,24 +480,55 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
                     PartnerMetadataStatus.valueOf(resultSet.getString("delivery_status")),
                     resultSet.getString("failure_reason"),
                     PartnerMetadataMessageType.valueOf(resultSet.getString("message_type")),
-                    formatter.convertJsonToObject(
-                            resultSet.getString("sending_application_details"),
-                            new TypeReference<>() {}),
-                    formatter.convertJsonToObject(
-                            resultSet.getString("sending_facility_details"),
-                            new TypeReference<>() {}),
-                    formatter.convertJsonToObject(
-                            resultSet.getString("receiving_application_details"),
-                            new TypeReference<>() {}),
-                    formatter.convertJsonToObject(
-                            resultSet.getString("receiving_facility_details"),
-                            new TypeReference<>() {}),
+                    hdDataTypeFromResultSet(resultSet, SENDING_APPLICATION),
+                    hdDataTypeFromResultSet(resultSet, SENDING_FACILITY),
+                    hdDataTypeFromResultSet(resultSet, RECEIVING_APPLICATION),
+                    hdDataTypeFromResultSet(resultSet, RECEIVING_FACILITY),
                     resultSet.getString("placer_order_number"));
-        } catch (SQLException | FormatterProcessingException e) {
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    List<MessageLinkKey> messageLinkKeysFromResultSet(ResultSet resultSet) {
+        try {
+            String placerOrderNumber = resultSet.getString("placer_order_number");
+            return List.of(
+                    new MessageLinkKey(
+                            placerOrderNumber,
+                            hdDataTypeFromResultSet(resultSet, SENDING_FACILITY)),
+                    new MessageLinkKey(
+                            placerOrderNumber,
+                            hdDataTypeFromResultSet(resultSet, RECEIVING_FACILITY)));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    PartnerMetadataStatusCount statusCountFromResultSet(ResultSet resultSet) {
+        try {
+            // the rollup stores an unknown receiver as an empty string because it's part of the key
+            String receiver = resultSet.getString("receiver");
+            return new PartnerMetadataStatusCount(
+                    receiver == null || receiver.isEmpty() ? null : receiver,
+                    PartnerMetadataStatus.valueOf(resultSet.getString("status")),
+                    resultSet.getLong("message_count"));
+        } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    MessageHdDataType hdDataTypeFromResultSet(ResultSet resultSet, String columnPrefix)
+            throws SQLException {
+        String namespace = resultSet.getString(columnPrefix + "_namespace");
+        String universalId = resultSet.getString(columnPrefix + "_universal_id");
+        String universalIdType = resultSet.getString(columnPrefix + "_universal_id_type");
+
+        // the details are always read back as saved from the message, even when all their
+        // components are empty, so the facilities and link keys are the same after a reload
+        return new MessageHdDataType(namespace, universalId, universalIdType);
+    }
+
     String idsFromResult(ResultSet resultSet) {
 
         try {
@@ -198,59 +538,225 @@ public class DatabasePartnerMetadataStorage implements PartnerMetadataStorage {
         }
     }
 
-    private List<DbColumn> createDbColumnsFromMetadata(PartnerMetadata metadata)
-            throws FormatterProcessingException {
-        return List.of(
+    static long messageLinkLockKey(String placerOrderNumber) {
+        return MESSAGE_LINK_LOCK_NAMESPACE
+                | Math.floorMod(placerOrderNumber.hashCode(), MESSAGE_LINK_LOCK_STRIPES);
+    }
+
+    private void setParameters(PreparedStatement statement, List<DbColumn> parameters)
+            throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            DbColumn parameter = parameters.get(i);
+            if (parameter.value() != null) {
+                statement.setObject(i + 1, parameter.value(), parameter.type());
+            } else {
+                statement.setNull(i + 1, parameter.type());
+            }
+        }
+    }
+
+    private List<DbUpsert> createDbUpsertsFromMetadata(
+            DbTransaction transaction, Collection<PartnerMetadata> metadataCollection)
+            throws SQLException {
+        // the metadata table is partitioned by the time each metadata was received, which has to
+        // be part of the conflict target. Metadata saved before its time received is known goes in
+        // the partition of the time it was first saved, and is moved once its time received is
+        // known, so the metadata with a time received can be found by its partition
+        Map<String, Timestamp> partitionTimes = upsertMetadataKeys(transaction, metadataCollection);
+
+        List<DbUpsert> upserts = new ArrayList<>();
+        for (PartnerMetadata metadata : metadataCollection) {
+            Timestamp partitionTime = partitionTimes.get(metadata.receivedSubmissionId());
+            if (partitionTime != null && metadata.timeReceived() != null) {
+                // the database keeps microseconds
+                Instant timeReceived = metadata.timeReceived().truncatedTo(ChronoUnit.MICROS);
+                if (!partitionTime.toInstant().equals(timeReceived)) {
+                    Timestamp newPartitionTime = Timestamp.from(timeReceived);
+                    movePartitionTime(
+                            transaction,
+                            metadata.receivedSubmissionId(),
+                            partitionTime,
+                            newPartitionTime);
+                    partitionTime = newPartitionTime;
+                }
+            }
+
+            List<DbColumn> columns = createDbColumnsFromMetadata(metadata);
+            columns.add(new DbColumn("partition_time", partitionTime, false, Types.TIMESTAMP));
+            upserts.add(
+                    new DbUpsert(
+                            "metadata",
+                            columns,
+                            "(" + METADATA_TABLE_RECEIVED_MESSAGE_ID + ", partition_time)"));
+        }
+        return upserts;
+    }
+
+    /**
+     * Records the partition time of each metadata saved for the first time, and returns the
+     * partition time of all the given metadata, in a single round trip.
+     */
+    private Map<String, Timestamp> upsertMetadataKeys(
+            DbTransaction transaction, Collection<PartnerMetadata> metadataCollection)
+            throws SQLException {
+        Object[] receivedMessageIds =
+                metadataCollection.stream().map(PartnerMetadata::receivedSubmissionId).toArray();
+        Object[] timesReceived =
+                metadataCollection.stream()
+                        .map(
+                                metadata ->
+                                        metadata.timeReceived() != null
+                                                ? Timestamp.from(metadata.timeReceived())
+                                                : null)
+                        .toArray();
+
+        return transaction.fetchManyData(
+                connection -> {
+                    try {
+                        // the update doesn't change the existing keys, it only makes them returned
+                        PreparedStatement statement =
+                                connection.prepareStatement(
+                                        """
+                                        INSERT INTO metadata_key AS k (received_message_id, partition_time)
+                                        SELECT received_message_id, COALESCE(time_received, now())
+                                        FROM unnest(?::varchar[], ?::timestamptz[]) AS saved (received_message_id, time_received)
+                                        ON CONFLICT (received_message_id) DO UPDATE SET partition_time = k.partition_time
+                                        RETURNING received_message_id, partition_time
+                                        """);
+                        statement.setArray(
+                                1, connection.createArrayOf("varchar", receivedMessageIds));
+                        statement.setArray(
+                                2, connection.createArrayOf("timestamptz", timesReceived));
+                        return statement;
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                },
+                this::partitionTimeFromResultSet,
+                Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    private void movePartitionTime(
+            DbTransaction transaction,
+            String receivedMessageId,
+            Timestamp partitionTime,
+            Timestamp newPartitionTime)
+            throws SQLException {
+        logger.logInfo(
+                "Moving the metadata of received submission ID {} to the partition of its time received",
+                receivedMessageId);
+
+        transaction.fetchManyData(
+                connection -> {
+                    try {
+                        PreparedStatement statement =
+                                connection.prepareStatement(
+                                        """
+                                        WITH moved_key AS (
+                                            UPDATE metadata_key SET partition_time = ? WHERE received_message_id = ?
+                                        )
+                                        UPDATE metadata SET partition_time = ?
+                                        WHERE received_message_id = ? AND partition_time = ?
+                                        RETURNING received_message_id
+                                        """);
+                        statement.setTimestamp(1, newPartitionTime);
+                        statement.setString(2, receivedMessageId);
+                        statement.setTimestamp(3, newPartitionTime);
+                        statement.setString(4, receivedMessageId);
+                        statement.setTimestamp(5, partitionTime);
+                        return statement;
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                },
+                this::idsFromResult,
+                Collectors.toList());
+    }
+
+    Map.Entry<String, Timestamp> partitionTimeFromResultSet(ResultSet resultSet) {
+        try {
+            return Map.entry(
+                    resultSet.getString(METADATA_TABLE_RECEIVED_MESSAGE_ID),
+                    resultSet.getTimestamp("partition_time"));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<DbColumn> createDbColumnsFromMetadata(PartnerMetadata metadata) {
+        List<DbColumn> columns = new ArrayList<>();
+        columns.add(
                 new DbColumn(
                         METADATA_TABLE_RECEIVED_MESSAGE_ID,
                         metadata.receivedSubmissionId(),
                         false,
-                        Types.VARCHAR),
-                new DbColumn("sent_message_id", metadata.sentSubmissionId(), true, Types.VARCHAR),
-                new DbColumn("hash_of_message", metadata.hash(), false, Types.VARCHAR),
+                        Types.VARCHAR));
+        columns.add(
+                new DbColumn("sent_message_id", metadata.sentSubmissionId(), true, Types.VARCHAR));
+        columns.add(new DbColumn("hash_of_message", metadata.hash(), false, Types.VARCHAR));
+        columns.add(
                 new DbColumn(
                         "time_received",
                         metadata.timeReceived() != null
                                 ? Timestamp.from(metadata.timeReceived())
                                 : null,
                         false,
-                        Types.TIMESTAMP),
+                        Types.TIMESTAMP));
+        columns.add(
                 new DbColumn(
                         "time_delivered",
                         metadata.timeDelivered() != null
                                 ? Timestamp.from(metadata.timeDelivered())
                                 : null,
                         true,
-                        Types.TIMESTAMP),
+                        Types.TIMESTAMP));
+        columns.add(
                 new DbColumn(
-                        "delivery_status", metadata.deliveryStatus().toString(), true, Types.OTHER),
-                new DbColumn("failure_reason", metadata.failureReason(), true, Types.VARCHAR),
+                        "delivery_status",
+                        metadata.deliveryStatus().toString(),
+                        true,
+                        Types.OTHER));
+        columns.add(new DbColumn("failure_reason", metadata.failureReason(), true, Types.VARCHAR));
+        columns.add(
                 new DbColumn(
                         "message_type",
                         metadata.messageType() != null ? metadata.messageType().toString() : null,
                         false,
-                        Types.OTHER),
-                new DbColumn(
-                        "placer_order_number", metadata.placerOrderNumber(), false, Types.VARCHAR),
+                        Types.OTHER));
+        columns.add(
                 new DbColumn(
-                        "sending_application_details",
-                        formatter.convertToJsonString(metadata.sendingApplicationDetails()),
-                        false,
-                        Types.OTHER),
+                        "placer_order_number", metadata.placerOrderNumber(), false, Types.VARCHAR));
+        columns.addAll(
+                createDbColumnsFromHdDataType(
+                        SENDING_APPLICATION, metadata.sendingApplicationDetails()));
+        columns.addAll(
+                createDbColumnsFromHdDataType(SENDING_FACILITY, metadata.sendingFacilityDetails()));
+        columns.addAll(
+                createDbColumnsFromHdDataType(
+                        RECEIVING_APPLICATION, metadata.receivingApplicationDetails()));
+        columns.addAll(
+                createDbColumnsFromHdDataType(
+                        RECEIVING_FACILITY, metadata.receivingFacilityDetails()));
+        return columns;
+    }
+
+    private List<DbColumn> createDbColumnsFromHdDataType(
+            String columnPrefix, MessageHdDataType hdDataType) {
+        return List.of(
                 new DbColumn(
-                        "sending_facility_details",
-                        formatter.convertToJsonString(metadata.sendingFacilityDetails()),
+                        columnPrefix + "_namespace",
+                        hdDataType != null ? hdDataType.namespace() : null,
                         false,
-                        Types.OTHER),
+                        Types.VARCHAR),
                 new DbColumn(
-                        "receiving_application_details",
-                        formatter.convertToJsonString(metadata.receivingApplicationDetails()),
+                        columnPrefix + "_universal_id",
+                        hdDataType != null ? hdDataType.universalId() : null,
                         false,
-                        Types.OTHER),
+                        Types.VARCHAR),
                 new DbColumn(
-                        "receiving_facility_details",
-                        formatter.convertToJsonString(metadata.receivingFacilityDetails()),
+                        columnPrefix + "_universal_id_type",
+                        hdDataType != null ? hdDataType.universalIdType() : null,
                         false,
-                        Types.OTHER));
+                        Types.VARCHAR));
     }
 }
@@ -1,4 +1,4 @@
 package gov.hhs.cdc.trustedintermediary.external.database;
 
-/** Represents a database column for upserting data. */
+/** Represents a database column for upserting data, or a typed parameter of a query. */
 public record DbColumn(String name, Object value, boolean upsertOverwrite, int type) {}
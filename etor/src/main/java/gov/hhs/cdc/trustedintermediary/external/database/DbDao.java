@@ -4,22 +4,106 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collector;
 
-/** Interface for accessing the database for metadata */
+/**
+ * Interface for accessing the database for metadata. Each query is given a logical name, like
+ * metadata.readById, that its timing is recorded and logged under.
+ */
 public interface DbDao {
-    void upsertData(String tableName, List<DbColumn> values, String conflictTarget)
+    void upsertData(
+            String queryName, String tableName, List<DbColumn> values, String conflictTarget)
+            throws SQLException;
+
+    /**
+     * Runs the work on one connection and in one transaction, so either all or none of its writes
+     * are saved. Before the work starts, the transaction waits for the advisory lock of each key,
+     * which it holds until it ends. So transactions that share a lock key run one after the other,
+     * while the others still run in parallel. The time spent waiting for the locks is recorded
+     * under the query name followed by .lockWait.
+     *
+     * @param queryName The logical name of the query.
+     * @param lockKeys The keys of the advisory locks to hold, none if empty.
+     * @param work The reads and writes to do within the transaction.
+     */
+    void runInTransaction(String queryName, Collection<Long> lockKeys, DbTransactionWork work)
+            throws SQLException;
+
+    /**
+     * Runs the work while holding the advisory lock of the key, unless another session already
+     * holds it. Unlike {@link #runInTransaction}, the lock is held by its own connection for the
+     * whole run, so the work can make any number of queries and transactions, each on their own
+     * connection. The time spent holding the lock is recorded under the query name.
+     *
+     * @param queryName The logical name of the query.
+     * @param lockKey The key of the advisory lock to hold.
+     * @param work The queries to make while holding the lock.
+     * @return Whether the lock was taken and the work was run.
+     */
+    boolean runWithAdvisoryLock(String queryName, long lockKey, DbLockedWork work)
             throws SQLException;
 
     <T> T fetchFirstData(
-            Function<Connection, PreparedStatement> sqlGenerator, Function<ResultSet, T> converter)
+            String queryName,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter)
             throws SQLException;
 
     <T, S> S fetchManyData(
+            String queryName,
             Function<Connection, PreparedStatement> sqlGenerator,
             Function<ResultSet, T> converter,
             Collector<? super T, ?, S> collector)
             throws SQLException;
+
+    /**
+     * The same as {@link #fetchManyData(String, Function, Function, Collector)}, but the query is
+     * only made on the primary database when the consistency requires it.
+     *
+     * @param queryName The logical name of the query.
+     * @param consistency How up to date the rows need to be.
+     */
+    <T, S> S fetchManyData(
+            String queryName,
+            DbReadConsistency consistency,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Collector<? super T, ?, S> collector)
+            throws SQLException;
+
+    /**
+     * Passes each row of the query to the consumer as it is read, instead of collecting all of
+     * them first. The rows are fetched from the database in batches, so only the current batch is
+     * held in memory regardless of how many rows the query returns.
+     *
+     * @param queryName The logical name of the query.
+     * @param sqlGenerator Creates the query statement on the given connection.
+     * @param converter Converts the current row of the result set.
+     * @param consumer Receives each converted row, in the order of the result set.
+     */
+    <T> void streamData(
+            String queryName,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Consumer<? super T> consumer)
+            throws SQLException;
+
+    /**
+     * The same as {@link #streamData(String, Function, Function, Consumer)}, but the query is only
+     * made on the primary database when the consistency requires it.
+     *
+     * @param queryName The logical name of the query.
+     * @param consistency How up to date the rows need to be.
+     */
+    <T> void streamData(
+            String queryName,
+            DbReadConsistency consistency,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Consumer<? super T> consumer)
+            throws SQLException;
 }
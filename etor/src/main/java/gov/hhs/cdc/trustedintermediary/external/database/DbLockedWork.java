@@ -0,0 +1,9 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import java.sql.SQLException;
+
+/** The work done while holding the advisory lock taken by {@link DbDao#runWithAdvisoryLock}. */
+@FunctionalInterface
+public interface DbLockedWork {
+    void run() throws SQLException;
+}
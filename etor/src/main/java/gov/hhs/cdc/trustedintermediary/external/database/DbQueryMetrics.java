@@ -0,0 +1,175 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.external.inmemory.Histogram;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
+
+/**
+ * Records how long each database query took to get a connection and to execute, and how many rows
+ * it returned or changed, by the logical name of the query. The histograms of each query are logged
+ * periodically, and any query slower than DB_SLOW_QUERY_THRESHOLD_MILLIS is logged right away.
+ */
+public class DbQueryMetrics {
+
+    private static final DbQueryMetrics INSTANCE = new DbQueryMetrics();
+
+    static final long DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 1_000;
+    static final long STATISTICS_LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    @Inject Logger logger;
+
+    private final Map<String, QueryStatistics> statistics = new ConcurrentHashMap<>();
+    private final AtomicLong lastLoggedAt = new AtomicLong();
+    private volatile long slowQueryThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS);
+    LongSupplier nanoTime = System::nanoTime;
+
+    public static DbQueryMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private DbQueryMetrics() {}
+
+    /**
+     * Reads the slow query threshold and starts the statistics over. Called once when the database
+     * is registered, so looking up the metrics doesn't reset what's been recorded.
+     */
+    public void configure() {
+        slowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(getSlowQueryThresholdMillis());
+        statistics.clear();
+        lastLoggedAt.set(nanoTime.getAsLong());
+    }
+
+    /**
+     * Starts timing an execution of the query. The time to get a connection lasts until {@link
+     * Execution#connectionAcquired()} is called, and the rest of the time until {@link
+     * Execution#finish()}.
+     *
+     * @param queryName the logical name of the query, like metadata.readById
+     */
+    public Execution start(String queryName) {
+        return new Execution(queryName, nanoTime.getAsLong());
+    }
+
+    void record(String queryName, long acquireNanos, long executeNanos, long rows, boolean failed) {
+        statistics
+                .computeIfAbsent(queryName, name -> new QueryStatistics())
+                .record(acquireNanos, executeNanos, rows, failed);
+
+        if (acquireNanos + executeNanos >= slowQueryThresholdNanos) {
+            Map<String, Object> slowQueryMap = new LinkedHashMap<>();
+            slowQueryMap.put("Query", queryName);
+            slowQueryMap.put("Acquire Millis", TimeUnit.NANOSECONDS.toMillis(acquireNanos));
+            slowQueryMap.put("Execute Millis", TimeUnit.NANOSECONDS.toMillis(executeNanos));
+            slowQueryMap.put("Rows", rows);
+            slowQueryMap.put("Failed", failed);
+            logger.logMap("Slow database query:", slowQueryMap);
+        }
+
+        long now = nanoTime.getAsLong();
+        long lastLogged = lastLoggedAt.get();
+        if (now - lastLogged >= STATISTICS_LOG_INTERVAL_NANOS
+                && lastLoggedAt.compareAndSet(lastLogged, now)) {
+            logStatistics();
+        }
+    }
+
+    private void logStatistics() {
+        statistics.forEach(
+                (queryName, queryStatistics) -> {
+                    Map<String, Object> statisticsMap = new LinkedHashMap<>();
+                    statisticsMap.put("Query", queryName);
+                    statisticsMap.putAll(queryStatistics.snapshotThenReset());
+                    if ((long) statisticsMap.get("Executions") == 0) {
+                        return;
+                    }
+
+                    logger.logMap("Database query statistics:", statisticsMap);
+                });
+    }
+
+    // a threshold of 0 logs every query
+    private static long getSlowQueryThresholdMillis() {
+        long threshold =
+                ApplicationContext.getLongProperty(
+                        "DB_SLOW_QUERY_THRESHOLD_MILLIS", DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS);
+        return threshold >= 0 ? threshold : DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS;
+    }
+
+    /** The timing of a single execution of a query. */
+    public final class Execution {
+
+        private final String queryName;
+        private final long startedAt;
+        private long acquiredAt;
+        private boolean acquired;
+        private long rows;
+        private boolean failed;
+
+        private Execution(String queryName, long startedAt) {
+            this.queryName = queryName;
+            this.startedAt = startedAt;
+        }
+
+        public String queryName() {
+            return queryName;
+        }
+
+        public void connectionAcquired() {
+            acquiredAt = nanoTime.getAsLong();
+            acquired = true;
+        }
+
+        public void addRows(long count) {
+            rows += count;
+        }
+
+        public void failed() {
+            failed = true;
+        }
+
+        public void finish() {
+            long finishedAt = nanoTime.getAsLong();
+            // an execution that never got a connection spent all its time trying to get one
+            long connectedAt = acquired ? acquiredAt : finishedAt;
+            record(queryName, connectedAt - startedAt, finishedAt - connectedAt, rows, failed);
+        }
+    }
+
+    private static final class QueryStatistics {
+
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final Histogram acquireMillis = new Histogram();
+        private final Histogram executeMillis = new Histogram();
+        private final Histogram rows = new Histogram();
+
+        void record(long acquireNanos, long executeNanos, long rowCount, boolean failed) {
+            executions.increment();
+            if (failed) {
+                failures.increment();
+            }
+            acquireMillis.record(TimeUnit.NANOSECONDS.toMillis(acquireNanos));
+            executeMillis.record(TimeUnit.NANOSECONDS.toMillis(executeNanos));
+            rows.record(rowCount);
+        }
+
+        Map<String, Object> snapshotThenReset() {
+            Map<String, Object> statisticsMap = new LinkedHashMap<>();
+            statisticsMap.put("Executions", executions.sumThenReset());
+            statisticsMap.put("Failures", failures.sumThenReset());
+            statisticsMap.put("Acquire Millis", acquireMillis.snapshotThenReset(""));
+            statisticsMap.put("Execute Millis", executeMillis.snapshotThenReset(""));
+            statisticsMap.put("Rows", rows.snapshotThenReset(""));
+            return statisticsMap;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+/** How up to date the data returned by a read from the database needs to be. */
+public enum DbReadConsistency {
+    /** The read sees every write committed before it, so it's made on the primary database. */
+    STRONG,
+    /**
+     * The read may miss the most recent writes, so it can be made on a read replica. Only reads
+     * whose result isn't used to decide what to write can accept this.
+     */
+    EVENTUAL
+}
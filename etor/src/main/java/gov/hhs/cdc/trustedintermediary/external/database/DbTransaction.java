@@ -0,0 +1,36 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * The reads and writes of a transaction run by {@link DbDao#runInTransaction}. They all use the
+ * connection of the transaction, so the reads see the writes made earlier in it.
+ */
+public interface DbTransaction {
+
+    /**
+     * Upserts the rows in order. Consecutive rows upserted with the same statement are sent to the
+     * database as a single batch.
+     *
+     * @param upserts The rows to upsert, in order.
+     */
+    void upsertData(List<DbUpsert> upserts) throws SQLException;
+
+    <T, S> S fetchManyData(
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Collector<? super T, ?, S> collector)
+            throws SQLException;
+
+    /**
+     * Sends the notification when the transaction commits. It's never sent if the transaction is
+     * rolled back.
+     */
+    void sendNotification(String channel, String payload) throws SQLException;
+}
@@ -0,0 +1,9 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import java.sql.SQLException;
+
+/** The work done within a transaction run by {@link DbDao#runInTransaction}. */
+@FunctionalInterface
+public interface DbTransactionWork {
+    void run(DbTransaction transaction) throws SQLException;
+}
@@ -0,0 +1,6 @@
+package gov.hhs.cdc.trustedintermediary.external.database;
+
+import java.util.List;
+
+/** Represents the upsert of one row, as done by {@link DbDao#upsertData}. */
+public record DbUpsert(String tableName, List<DbColumn> values, String conflictTarget) {}
@@ -6,9 +6,13 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collector;
 import java.util.stream.Stream;
@@ -20,10 +24,14 @@ public class PostgresDao implements DbDao {
 
     private static final PostgresDao INSTANCE = new PostgresDao();
 
+    static final int STREAMING_FETCH_SIZE = 1_000;
+
     @Inject ConnectionPool connectionPool;
 
     @Inject Formatter formatter;
 
+    @Inject DbQueryMetrics queryMetrics;
+
     private PostgresDao() {}
 
     public static PostgresDao getInstance() {
@@ -31,103 +39,242 @@ public class PostgresDao implements DbDao {
     }
 
     @Override
-    public void upsertData(String tableName, List<DbColumn> values, String conflictTarget)
+    public void upsertData(
+            String queryName, String tableName, List<DbColumn> values, String conflictTarget)
             throws SQLException {
-        // example SQL statement generated here:
-        // INSERT INTO metadata_table (column_one, column_three, column_two, column_four)
-        // VALUES (?, ?, ?, ?)
-        // ON CONFLICT (column_one) DO UPDATE SET column_three = EXCLUDED.column_three, column_two =
-        // EXCLUDED.column_two
-
-        StringBuilder sqlStatementBuilder =
-                new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        String sqlStatement = upsertSqlStatement(tableName, values, conflictTarget);
 
-        values.forEach(dbColumn -> sqlStatementBuilder.append(dbColumn.name()).append(", "));
-        removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, DbReadConsistency.STRONG);
+                PreparedStatement statement = conn.prepareStatement(sqlStatement)) {
 
-        sqlStatementBuilder.append(") VALUES (");
+            setParameters(statement, values);
+            execution.addRows(statement.executeUpdate());
+        } catch (SQLException | RuntimeException e) {
+            execution.failed();
+            throw e;
+        } finally {
+            execution.finish();
+        }
+    }
 
-        sqlStatementBuilder.append("?, ".repeat(values.size()));
-        removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
-        sqlStatementBuilder.append(")");
+    @Override
+    public void runInTransaction(
+            String queryName, Collection<Long> lockKeys, DbTransactionWork work)
+            throws SQLException {
 
-        if (conflictTarget != null) {
-            sqlStatementBuilder.append(" ON CONFLICT ").append(conflictTarget);
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, DbReadConsistency.STRONG)) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+
+            try {
+                takeAdvisoryLocks(conn, queryName, lockKeys);
+                work.run(new PostgresTransaction(conn, execution));
+
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException | RuntimeException e) {
+            execution.failed();
+            throw e;
+        } finally {
+            execution.finish();
+        }
+    }
 
-            boolean overwriteOnConflict = values.stream().anyMatch(DbColumn::upsertOverwrite);
-            if (overwriteOnConflict) {
-                sqlStatementBuilder.append(" DO UPDATE SET ");
+    @Override
+    public boolean runWithAdvisoryLock(String queryName, long lockKey, DbLockedWork work)
+            throws SQLException {
 
-                for (DbColumn column : values) {
-                    if (!column.upsertOverwrite()) {
-                        continue;
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, DbReadConsistency.STRONG)) {
+            try (PreparedStatement statement =
+                            conn.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+                statement.setLong(1, lockKey);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                        return false;
                     }
-
-                    sqlStatementBuilder.append(column.name()).append(" = EXCLUDED.");
-                    sqlStatementBuilder.append(column.name());
-                    sqlStatementBuilder.append(", ");
                 }
-
-                removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
-            } else {
-                sqlStatementBuilder.append(" DO NOTHING");
             }
-        }
-
-        String sqlStatement = sqlStatementBuilder.toString();
-
-        try (Connection conn = connectionPool.getConnection();
-                PreparedStatement statement = conn.prepareStatement(sqlStatement)) {
-
-            for (int i = 0; i < values.size(); i++) {
-                DbColumn column = values.get(i);
-                Object value = column.value();
-                int type = column.type();
 
-                if (value != null) {
-                    statement.setObject(i + 1, value, type);
-                } else {
-                    statement.setNull(i + 1, type);
+            try {
+                work.run();
+                execution.addRows(1);
+                return true;
+            } finally {
+                // a session lock outlives any transaction, so it is always released before the
+                // connection goes back to the pool
+                try (PreparedStatement statement =
+                                conn.prepareStatement("SELECT pg_advisory_unlock(?)")) {
+                    statement.setLong(1, lockKey);
+                    statement.execute();
                 }
             }
-
-            statement.executeUpdate();
+        } catch (SQLException | RuntimeException e) {
+            execution.failed();
+            throw e;
+        } finally {
+            execution.finish();
         }
     }
 
     @Override
     public <T> T fetchFirstData(
-            Function<Connection, PreparedStatement> sqlGenerator, Function<ResultSet, T> converter)
+            String queryName,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter)
             throws SQLException {
 
-        try (Connection conn = connectionPool.getConnection();
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, DbReadConsistency.STRONG);
                 PreparedStatement statement = sqlGenerator.apply(conn);
                 ResultSet resultSet = statement.executeQuery()) {
 
-            return dataStreamFromResultSet(resultSet, converter).findFirst().orElse(null);
+            T first = dataStreamFromResultSet(resultSet, converter).findFirst().orElse(null);
+            execution.addRows(first != null ? 1 : 0);
+            return first;
         } catch (Exception e) {
+            execution.failed();
             throw new SQLException(
-                    "Some exception occurred while fetching the first data element from the database",
+                    "Some exception occurred while fetching the first data element from the database for "
+                            + queryName,
                     e);
+        } finally {
+            execution.finish();
         }
     }
 
     @Override
     public <T, S> S fetchManyData(
+            String queryName,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Collector<? super T, ?, S> collector)
+            throws SQLException {
+        return fetchManyData(
+                queryName, DbReadConsistency.STRONG, sqlGenerator, converter, collector);
+    }
+
+    @Override
+    public <T, S> S fetchManyData(
+            String queryName,
+            DbReadConsistency consistency,
             Function<Connection, PreparedStatement> sqlGenerator,
             Function<ResultSet, T> converter,
             Collector<? super T, ?, S> collector)
             throws SQLException {
 
-        try (Connection conn = connectionPool.getConnection();
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, consistency);
                 PreparedStatement statement = sqlGenerator.apply(conn);
                 ResultSet resultSet = statement.executeQuery()) {
 
-            return dataStreamFromResultSet(resultSet, converter).collect(collector);
+            return dataStreamFromResultSet(resultSet, converter)
+                    .peek(row -> execution.addRows(1))
+                    .collect(collector);
         } catch (Exception e) {
+            execution.failed();
             throw new SQLException(
-                    "Some exception occurred while fetching many data elements from the database",
+                    "Some exception occurred while fetching many data elements from the database for "
+                            + queryName,
                     e);
+        } finally {
+            execution.finish();
+        }
+    }
+
+    @Override
+    public <T> void streamData(
+            String queryName,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Consumer<? super T> consumer)
+            throws SQLException {
+        streamData(queryName, DbReadConsistency.STRONG, sqlGenerator, converter, consumer);
+    }
+
+    @Override
+    public <T> void streamData(
+            String queryName,
+            DbReadConsistency consistency,
+            Function<Connection, PreparedStatement> sqlGenerator,
+            Function<ResultSet, T> converter,
+            Consumer<? super T> consumer)
+            throws SQLException {
+
+        DbQueryMetrics.Execution execution = queryMetrics.start(queryName);
+        try (Connection conn = acquireConnection(execution, consistency)) {
+            boolean autoCommit = conn.getAutoCommit();
+            // the driver only uses a cursor to fetch the rows in batches within a transaction,
+            // otherwise it reads the whole result set into memory
+            conn.setAutoCommit(false);
+
+            try (PreparedStatement statement = sqlGenerator.apply(conn)) {
+                statement.setFetchSize(STREAMING_FETCH_SIZE);
+
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    dataStreamFromResultSet(resultSet, converter)
+                            .peek(row -> execution.addRows(1))
+                            .forEach(consumer);
+                }
+
+                conn.commit();
+            } catch (Exception e) {
+                conn.rollback();
+                throw new SQLException(
+                        "Some exception occurred while streaming data from the database for "
+                                + queryName,
+                        e);
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException | RuntimeException e) {
+            execution.failed();
+            throw e;
+        } finally {
+            execution.finish();
+        }
+    }
+
+    private Connection acquireConnection(
+            DbQueryMetrics.Execution execution, DbReadConsistency consistency)
+            throws SQLException {
+        Connection conn =
+                consistency == DbReadConsistency.EVENTUAL
+                        ? connectionPool.getReadConnection()
+                        : connectionPool.getConnection();
+        execution.connectionAcquired();
+        return conn;
+    }
+
+    private void takeAdvisoryLocks(Connection conn, String queryName, Collection<Long> lockKeys)
+            throws SQLException {
+        if (lockKeys.isEmpty()) {
+            return;
+        }
+
+        DbQueryMetrics.Execution lockWait = queryMetrics.start(queryName + ".lockWait");
+        lockWait.connectionAcquired();
+        // the locks are always taken in the order of their keys, so two transactions can't each
+        // hold a lock the other is waiting for
+        try (PreparedStatement statement =
+                conn.prepareStatement("SELECT pg_advisory_xact_lock(?)")) {
+            for (long lockKey : new TreeSet<>(lockKeys)) {
+                statement.setLong(1, lockKey);
+                statement.execute();
+                lockWait.addRows(1);
+            }
+        } catch (SQLException | RuntimeException e) {
+            lockWait.failed();
+            throw e;
+        } finally {
+            lockWait.finish();
         }
     }
 
@@ -144,7 +291,143 @@ public class PostgresDao implements DbDao {
         return stream.map(converter);
     }
 
+    private String upsertSqlStatement(
+            String tableName, List<DbColumn> values, String conflictTarget) {
+        // example SQL statement generated here:
+        // INSERT INTO metadata_table (column_one, column_three, column_two, column_four)
+        // VALUES (?, ?, ?, ?)
+        // ON CONFLICT (column_one) DO UPDATE SET column_three = EXCLUDED.column_three, column_two =
+        // EXCLUDED.column_two
+
+        StringBuilder sqlStatementBuilder =
+                new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+
+        values.forEach(dbColumn -> sqlStatementBuilder.append(dbColumn.name()).append(", "));
+        removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
+
+        sqlStatementBuilder.append(") VALUES (");
+
+        sqlStatementBuilder.append("?, ".repeat(values.size()));
+        removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
+        sqlStatementBuilder.append(")");
+
+        if (conflictTarget != null) {
+            sqlStatementBuilder.append(" ON CONFLICT ").append(conflictTarget);
+
+            boolean overwriteOnConflict = values.stream().anyMatch(DbColumn::upsertOverwrite);
+            if (overwriteOnConflict) {
+                sqlStatementBuilder.append(" DO UPDATE SET ");
+
+                for (DbColumn column : values) {
+                    if (!column.upsertOverwrite()) {
+                        continue;
+                    }
+
+                    sqlStatementBuilder.append(column.name()).append(" = EXCLUDED.");
+                    sqlStatementBuilder.append(column.name());
+                    sqlStatementBuilder.append(", ");
+                }
+
+                removeLastTwoCharacters(sqlStatementBuilder); // remove the last unused ", "
+            } else {
+                sqlStatementBuilder.append(" DO NOTHING");
+            }
+        }
+
+        return sqlStatementBuilder.toString();
+    }
+
+    private void setParameters(PreparedStatement statement, List<DbColumn> values)
+            throws SQLException {
+        for (int i = 0; i < values.size(); i++) {
+            DbColumn column = values.get(i);
+            Object value = column.value();
+            int type = column.type();
+
+            if (value != null) {
+                statement.setObject(i + 1, value, type);
+            } else {
+                statement.setNull(i + 1, type);
+            }
+        }
+    }
+
     private void removeLastTwoCharacters(StringBuilder stringBuilder) {
         stringBuilder.delete(stringBuilder.length() - 2, stringBuilder.length());
     }
+
+    private record UpsertBatch(String sqlStatement, List<List<DbColumn>> rows) {}
+
+    private final class PostgresTransaction implements DbTransaction {
+
+        private final Connection conn;
+        private final DbQueryMetrics.Execution execution;
+
+        private PostgresTransaction(Connection conn, DbQueryMetrics.Execution execution) {
+            this.conn = conn;
+            this.execution = execution;
+        }
+
+        @Override
+        public void upsertData(List<DbUpsert> upserts) throws SQLException {
+            // consecutive upserts with the same statement are batched, and the driver sends all
+            // the rows of a batch in one round trip
+            List<UpsertBatch> batches = new ArrayList<>();
+            for (DbUpsert upsert : upserts) {
+                String sqlStatement =
+                        upsertSqlStatement(
+                                upsert.tableName(), upsert.values(), upsert.conflictTarget());
+                UpsertBatch lastBatch = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+                if (lastBatch == null || !lastBatch.sqlStatement().equals(sqlStatement)) {
+                    lastBatch = new UpsertBatch(sqlStatement, new ArrayList<>());
+                    batches.add(lastBatch);
+                }
+                lastBatch.rows().add(upsert.values());
+            }
+
+            for (UpsertBatch batch : batches) {
+                try (PreparedStatement statement = conn.prepareStatement(batch.sqlStatement())) {
+                    for (List<DbColumn> row : batch.rows()) {
+                        setParameters(statement, row);
+                        statement.addBatch();
+                    }
+                    for (int count : statement.executeBatch()) {
+                        // the driver may not know how many rows a statement of the batch
+                        // changed, and then each one is counted as one row
+                        execution.addRows(count >= 0 ? count : 1);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public <T, S> S fetchManyData(
+                Function<Connection, PreparedStatement> sqlGenerator,
+                Function<ResultSet, T> converter,
+                Collector<? super T, ?, S> collector)
+                throws SQLException {
+
+            try (PreparedStatement statement = sqlGenerator.apply(conn);
+                    ResultSet resultSet = statement.executeQuery()) {
+
+                return dataStreamFromResultSet(resultSet, converter)
+                        .peek(row -> execution.addRows(1))
+                        .collect(collector);
+            } catch (Exception e) {
+                throw new SQLException(
+                        "Some exception occurred while fetching many data elements within the transaction",
+                        e);
+            }
+        }
+
+        @Override
+        public void sendNotification(String channel, String payload) throws SQLException {
+            // Postgres holds the notification until the transaction commits
+            try (PreparedStatement statement = conn.prepareStatement("SELECT pg_notify(?, ?)")) {
+                statement.setString(1, channel);
+                statement.setString(2, payload);
+                statement.execute();
+            }
+        }
+    }
 }
@@ -0,0 +1,303 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChange;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChangeListener;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
+
+/**
+ * Implements the {@link PartnerMetadataStorage} by caching the metadata read from another {@link
+ * PartnerMetadataStorage}. The cache is keyed by the submission ID the metadata was read with,
+ * which can be either the received or the sent submission ID. Entries expire after a configurable
+ * time and the oldest entries are evicted once the cache is full. Saving metadata invalidates its
+ * entries, so the next read goes to the underlying storage. Changes made by other instances of the
+ * application invalidate the cache in the same way. All the other reads are passed through.
+ */
+public class CachingPartnerMetadataStorage
+        implements PartnerMetadataStorage, PartnerMetadataChangeListener {
+
+    private static final CachingPartnerMetadataStorage INSTANCE =
+            new CachingPartnerMetadataStorage();
+
+    static final long DEFAULT_MAX_SIZE = 10_000;
+    static final long DEFAULT_TTL_SECONDS = 30;
+    static final long STATISTICS_LOG_INTERVAL = 10_000;
+
+    @Inject Logger logger;
+
+    private PartnerMetadataStorage storage;
+    private final Map<String, CachedMetadata> cache = new ConcurrentHashMap<>();
+    private final Queue<CachedMetadata> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger insertionOrderSize = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private long maxSize;
+    private long ttlNanos;
+    LongSupplier nanoTime = System::nanoTime;
+
+    public static CachingPartnerMetadataStorage getInstance() {
+        return INSTANCE;
+    }
+
+    private CachingPartnerMetadataStorage() {}
+
+    /**
+     * Sets the storage the metadata is read from and starts with an empty cache. Called once when
+     * the storages are registered.
+     */
+    public void init(PartnerMetadataStorage storage) {
+        this.storage = storage;
+        maxSize =
+                Math.min(
+                        ApplicationContext.getPositiveLongProperty(
+                                "PARTNER_METADATA_CACHE_MAX_SIZE", DEFAULT_MAX_SIZE),
+                        Integer.MAX_VALUE);
+        ttlNanos =
+                TimeUnit.SECONDS.toNanos(
+                        ApplicationContext.getPositiveLongProperty(
+                                "PARTNER_METADATA_CACHE_TTL_SECONDS", DEFAULT_TTL_SECONDS));
+        clear();
+    }
+
+    @Override
+    public Optional<PartnerMetadata> readMetadata(final String submissionId)
+            throws PartnerMetadataException {
+        CachedMetadata cached = cache.get(submissionId);
+        if (cached != null && cached.isLoaded() && !cached.isExpired(nanoTime.getAsLong())) {
+            recordLookup(hits);
+            return Optional.of(cached.metadata());
+        }
+
+        recordLookup(misses);
+
+        // the placeholder is removed by any save that happens while we are reading from the
+        // storage, which stops us from caching what could now be outdated metadata
+        CachedMetadata placeholder = new CachedMetadata(submissionId, null, 0);
+        boolean cacheable =
+                cached == null
+                        ? cache.putIfAbsent(submissionId, placeholder) == null
+                        : cache.replace(submissionId, cached, placeholder);
+
+        try {
+            Optional<PartnerMetadata> metadata = storage.readMetadata(submissionId);
+
+            if (cacheable && metadata.isPresent()) {
+                CachedMetadata loaded =
+                        new CachedMetadata(
+                                submissionId, metadata.get(), nanoTime.getAsLong() + ttlNanos);
+                if (cache.replace(submissionId, placeholder, loaded)) {
+                    insertionOrder.add(loaded);
+                    insertionOrderSize.incrementAndGet();
+                    evictIfNeeded();
+                }
+            }
+
+            return metadata;
+        } finally {
+            cache.remove(submissionId, placeholder);
+        }
+    }
+
+    @Override
+    public void saveMetadata(final PartnerMetadata metadata) throws PartnerMetadataException {
+        try {
+            storage.saveMetadata(metadata);
+        } finally {
+            // the saved metadata isn't cached directly because the storage may not overwrite all of
+            // the existing data, so the next read goes to the storage instead
+            invalidate(metadata.receivedSubmissionId());
+            invalidate(metadata.sentSubmissionId());
+        }
+    }
+
+    @Override
+    public void saveUnitOfWork(final PartnerMetadataUnitOfWork unitOfWork)
+            throws PartnerMetadataException {
+        try {
+            storage.saveUnitOfWork(unitOfWork);
+        } finally {
+            for (PartnerMetadata metadata : unitOfWork.metadata()) {
+                invalidate(metadata.receivedSubmissionId());
+                invalidate(metadata.sentSubmissionId());
+            }
+        }
+    }
+
+    @Override
+    public boolean linksMessagesOnSave() {
+        return storage.linksMessagesOnSave();
+    }
+
+    @Override
+    public Set<PartnerMetadata> readMetadataForSender(String sender)
+            throws PartnerMetadataException {
+        return storage.readMetadataForSender(sender);
+    }
+
+    @Override
+    public void readMetadataForSender(
+            PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer)
+            throws PartnerMetadataException {
+        storage.readMetadataForSender(query, consumer);
+    }
+
+    @Override
+    public List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender)
+            throws PartnerMetadataException {
+        return storage.readStatusCountsForSender(sender);
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(String submissionId)
+            throws PartnerMetadataException {
+        return storage.readMetadataForMessageLinking(submissionId);
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(PartnerMetadata metadata)
+            throws PartnerMetadataException {
+        return storage.readMetadataForMessageLinking(metadata);
+    }
+
+    @Override
+    public List<MessageLinkKey> readMessageLinkKeys() throws PartnerMetadataException {
+        return storage.readMessageLinkKeys();
+    }
+
+    @Override
+    public void onMetadataChanged(PartnerMetadataChange change) {
+        change.submissionIds().forEach(this::invalidate);
+    }
+
+    @Override
+    public void onChangesMissed() {
+        cache.clear();
+        insertionOrder.clear();
+        insertionOrderSize.set(0);
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    void clear() {
+        onChangesMissed();
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    private void invalidate(String submissionId) {
+        if (submissionId == null) {
+            return;
+        }
+
+        CachedMetadata cached = cache.remove(submissionId);
+        if (cached == null || !cached.isLoaded()) {
+            return;
+        }
+
+        // the metadata may also be cached under its other submission ID
+        removeIfNotNull(cached.metadata().receivedSubmissionId());
+        removeIfNotNull(cached.metadata().sentSubmissionId());
+    }
+
+    private void removeIfNotNull(String submissionId) {
+        if (submissionId != null) {
+            cache.remove(submissionId);
+        }
+    }
+
+    private void evictIfNeeded() {
+        // the insertion order can contain entries that were already invalidated or replaced, so
+        // it's also trimmed when it grows well beyond the size of the cache
+        while (cache.size() > maxSize || insertionOrderSize.get() > 2 * maxSize) {
+            CachedMetadata oldest = insertionOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            insertionOrderSize.decrementAndGet();
+
+            if (cache.remove(oldest.submissionId(), oldest)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void recordLookup(AtomicLong counter) {
+        counter.incrementAndGet();
+
+        long currentHits = hits.get();
+        long lookups = currentHits + misses.get();
+        if (lookups % STATISTICS_LOG_INTERVAL == 0) {
+            var statisticsMap =
+                    Map.<String, Object>of(
+                            "Lookups",
+                            lookups,
+                            "Hits",
+                            currentHits,
+                            "Hit Ratio",
+                            (double) currentHits / lookups,
+                            "Evictions",
+                            evictions.get(),
+                            "Size",
+                            cache.size());
+
+            logger.logMap("Partner metadata cache statistics:", statisticsMap);
+        }
+    }
+
+    /**
+     * A cache entry. It isn't a record because entries are compared by identity when they are
+     * conditionally replaced or removed.
+     */
+    private static final class CachedMetadata {
+
+        private final String submissionId;
+        private final PartnerMetadata metadata;
+        private final long expiresAt;
+
+        CachedMetadata(String submissionId, PartnerMetadata metadata, long expiresAt) {
+            this.submissionId = submissionId;
+            this.metadata = metadata;
+            this.expiresAt = expiresAt;
+        }
+
+        String submissionId() {
+            return submissionId;
+        }
+
+        PartnerMetadata metadata() {
+            return metadata;
+        }
+
+        boolean isLoaded() {
+            return metadata != null;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
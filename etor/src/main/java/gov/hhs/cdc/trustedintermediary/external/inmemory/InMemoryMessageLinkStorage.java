@@ -0,0 +1,63 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory;
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Implements the {@link MessageLinkStorage} in memory, for load testing the pipeline without a
+ * database. The message IDs are kept by link ID, along with an index of the link ID by message ID.
+ * Like the database, saving a link with an existing link ID adds its message IDs to that link.
+ */
+public class InMemoryMessageLinkStorage implements MessageLinkStorage {
+
+    private static final InMemoryMessageLinkStorage INSTANCE = new InMemoryMessageLinkStorage();
+
+    private final Map<UUID, Set<String>> messageIdsByLinkId = new ConcurrentHashMap<>();
+    private final Map<String, UUID> linkIdByMessageId = new ConcurrentHashMap<>();
+
+    public static InMemoryMessageLinkStorage getInstance() {
+        return INSTANCE;
+    }
+
+    private InMemoryMessageLinkStorage() {}
+
+    @Override
+    public Optional<MessageLink> getMessageLink(String messageId) {
+        UUID linkId = linkIdByMessageId.get(messageId);
+        if (linkId == null) {
+            return Optional.empty();
+        }
+
+        Set<String> messageIds = messageIdsByLinkId.get(linkId);
+        if (messageIds == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new MessageLink(linkId, messageIds));
+    }
+
+    @Override
+    public void saveMessageLink(MessageLink messageLink) {
+        UUID linkId = messageLink.getLinkId();
+        messageIdsByLinkId.compute(
+                linkId,
+                (key, messageIds) -> {
+                    Set<String> updatedMessageIds =
+                            messageIds != null ? messageIds : ConcurrentHashMap.newKeySet();
+                    updatedMessageIds.addAll(messageLink.getMessageIds());
+                    messageLink.getMessageIds()
+                            .forEach(messageId -> linkIdByMessageId.put(messageId, linkId));
+                    return updatedMessageIds;
+                });
+    }
+
+    void clear() {
+        messageIdsByLinkId.clear();
+        linkIdByMessageId.clear();
+    }
+}
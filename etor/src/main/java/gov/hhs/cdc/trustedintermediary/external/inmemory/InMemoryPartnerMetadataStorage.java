@@ -0,0 +1,260 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory;
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.inject.Inject;
+
+/**
+ * Implements the {@link PartnerMetadataStorage} in memory, for load testing the pipeline without
+ * a database. Besides the metadata by received submission ID, it keeps an index of the received
+ * submission ID by sent submission ID, of the metadata of each sender in page order, and of the
+ * received submission IDs by {@link MessageLinkKey}, so none of the reads scan all the metadata
+ * except {@link #readMessageLinkKeys()}. The indexes of a metadata are updated while the entry of
+ * its received submission ID is locked, so saves of different metadata don't wait on each other.
+ */
+public class InMemoryPartnerMetadataStorage implements PartnerMetadataStorage {
+
+    private static final InMemoryPartnerMetadataStorage INSTANCE =
+            new InMemoryPartnerMetadataStorage();
+
+    @Inject MessageLinkStorage messageLinkStorage;
+
+    private final Map<String, PartnerMetadata> metadataByReceivedId = new ConcurrentHashMap<>();
+    private final Map<String, String> receivedIdBySentId = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<PartnerMetadataCursor>> cursorsBySender =
+            new ConcurrentHashMap<>();
+    private final Map<MessageLinkKey, Set<String>> receivedIdsByLinkKey =
+            new ConcurrentHashMap<>();
+
+    public static InMemoryPartnerMetadataStorage getInstance() {
+        return INSTANCE;
+    }
+
+    private InMemoryPartnerMetadataStorage() {}
+
+    @Override
+    public Optional<PartnerMetadata> readMetadata(final String submissionId) {
+        PartnerMetadata metadata = metadataByReceivedId.get(submissionId);
+        if (metadata != null) {
+            return Optional.of(metadata);
+        }
+
+        String receivedSubmissionId = receivedIdBySentId.get(submissionId);
+        if (receivedSubmissionId == null) {
+            return Optional.empty();
+        }
+
+        return Optional.ofNullable(metadataByReceivedId.get(receivedSubmissionId));
+    }
+
+    @Override
+    public void saveMetadata(final PartnerMetadata metadata) {
+        metadataByReceivedId.compute(
+                metadata.receivedSubmissionId(),
+                (receivedSubmissionId, previous) -> {
+                    if (previous != null) {
+                        unindex(previous);
+                    }
+                    index(metadata);
+                    return metadata;
+                });
+    }
+
+    @Override
+    public void saveUnitOfWork(final PartnerMetadataUnitOfWork unitOfWork)
+            throws PartnerMetadataException {
+        // memory doesn't support transactions, so everything is saved one by one
+        for (PartnerMetadata metadata : unitOfWork.metadata()) {
+            saveMetadata(metadata);
+        }
+
+        try {
+            for (MessageLink messageLink : unitOfWork.messageLinks()) {
+                messageLinkStorage.saveMessageLink(messageLink);
+            }
+        } catch (MessageLinkException e) {
+            throw new PartnerMetadataException("Error saving the message links", e);
+        }
+    }
+
+    @Override
+    public Set<PartnerMetadata> readMetadataForSender(String sender) {
+        Set<PartnerMetadata> metadataSet = new HashSet<>();
+        readMetadataForSender(PartnerMetadataQuery.forSender(sender), metadataSet::add);
+        return metadataSet;
+    }
+
+    @Override
+    public void readMetadataForSender(
+            PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer) {
+        NavigableSet<PartnerMetadataCursor> cursors = cursorsBySender.get(query.sender());
+        if (cursors == null) {
+            return;
+        }
+
+        if (query.after() != null) {
+            cursors = cursors.tailSet(query.after(), false);
+        }
+
+        int count = 0;
+        for (PartnerMetadataCursor cursor : cursors) {
+            if (query.isPaginated() && count >= query.limit()) {
+                return;
+            }
+
+            PartnerMetadata metadata = metadataByReceivedId.get(cursor.receivedSubmissionId());
+            // the metadata may have been saved again since the cursor was read
+            if (metadata == null
+                    || !cursor.equals(PartnerMetadataCursor.of(metadata))
+                    || !query.matches(metadata)) {
+                continue;
+            }
+
+            consumer.accept(metadata);
+            count++;
+        }
+    }
+
+    @Override
+    public List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender) {
+        Map<PartnerMetadataStatusCount, Long> counts =
+                readMetadataForSender(sender).stream()
+                        .filter(metadata -> metadata.deliveryStatus() != null)
+                        .collect(
+                                Collectors.groupingBy(
+                                        metadata ->
+                                                new PartnerMetadataStatusCount(
+                                                        metadata.receivingFacilityDetails()
+                                                                .universalId(),
+                                                        metadata.deliveryStatus(),
+                                                        0),
+                                        Collectors.counting()));
+
+        return counts.entrySet().stream()
+                .map(
+                        entry ->
+                                new PartnerMetadataStatusCount(
+                                        entry.getKey().receiver(),
+                                        entry.getKey().status(),
+                                        entry.getValue()))
+                .toList();
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(String receivedSubmissionId) {
+        PartnerMetadata metadata = metadataByReceivedId.get(receivedSubmissionId);
+        if (metadata == null) {
+            return Set.of();
+        }
+
+        return readMetadataForMessageLinking(metadata);
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(PartnerMetadata metadata) {
+        if (metadata.placerOrderNumber() == null) {
+            return Set.of();
+        }
+
+        // the index holds the metadata under both its sending and its receiving facility, so this
+        // finds the metadata sent by or to the sending facility of the given metadata
+        Set<String> receivedSubmissionIds =
+                receivedIdsByLinkKey.get(
+                        new MessageLinkKey(
+                                metadata.placerOrderNumber(), metadata.sendingFacilityDetails()));
+        if (receivedSubmissionIds == null) {
+            return Set.of();
+        }
+
+        Set<String> linkedSubmissionIds = new HashSet<>(receivedSubmissionIds);
+        linkedSubmissionIds.remove(metadata.receivedSubmissionId());
+        return linkedSubmissionIds;
+    }
+
+    @Override
+    public List<MessageLinkKey> readMessageLinkKeys() {
+        return metadataByReceivedId.values().stream()
+                .flatMap(metadata -> MessageLinkKey.keysOf(metadata).stream())
+                .toList();
+    }
+
+    void clear() {
+        metadataByReceivedId.clear();
+        receivedIdBySentId.clear();
+        cursorsBySender.clear();
+        receivedIdsByLinkKey.clear();
+    }
+
+    private void index(PartnerMetadata metadata) {
+        String receivedSubmissionId = metadata.receivedSubmissionId();
+
+        if (metadata.sentSubmissionId() != null) {
+            receivedIdBySentId.put(metadata.sentSubmissionId(), receivedSubmissionId);
+        }
+
+        String sender = senderOf(metadata);
+        if (sender != null) {
+            cursorsBySender
+                    .computeIfAbsent(
+                            sender,
+                            key -> new ConcurrentSkipListSet<>(PartnerMetadataCursor.ORDER))
+                    .add(PartnerMetadataCursor.of(metadata));
+        }
+
+        for (MessageLinkKey key : MessageLinkKey.keysOf(metadata)) {
+            receivedIdsByLinkKey
+                    .computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
+                    .add(receivedSubmissionId);
+        }
+    }
+
+    private void unindex(PartnerMetadata metadata) {
+        String receivedSubmissionId = metadata.receivedSubmissionId();
+
+        if (metadata.sentSubmissionId() != null) {
+            receivedIdBySentId.remove(metadata.sentSubmissionId(), receivedSubmissionId);
+        }
+
+        String sender = senderOf(metadata);
+        if (sender != null) {
+            Set<PartnerMetadataCursor> cursors = cursorsBySender.get(sender);
+            if (cursors != null) {
+                cursors.remove(PartnerMetadataCursor.of(metadata));
+            }
+        }
+
+        for (MessageLinkKey key : MessageLinkKey.keysOf(metadata)) {
+            Set<String> receivedSubmissionIds = receivedIdsByLinkKey.get(key);
+            if (receivedSubmissionIds != null) {
+                receivedSubmissionIds.remove(receivedSubmissionId);
+            }
+        }
+    }
+
+    private static String senderOf(PartnerMetadata metadata) {
+        if (metadata.sendingFacilityDetails() == null) {
+            return null;
+        }
+
+        return metadata.sendingFacilityDetails().universalId();
+    }
+}
@@ -5,103 +5,349 @@ import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException;
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 import javax.inject.Inject;
 
-/** Implements the {@link MessageLinkStorage} using local files. */
+/**
+ * Implements the {@link MessageLinkStorage} using a local file. Each save appends the message IDs
+ * it adds to a link as a record to a memory-mapped file, and the links are kept in memory by link
+ * ID, along with the link ID of each message ID. So reading a link doesn't touch the file, and
+ * saving one copies a small record into the mapped file however many links there are. Saves only
+ * wait on each other when their link IDs share a lock stripe. The file is replayed into memory the
+ * first time the storage is used, and the records after space left unwritten by a crash are still
+ * replayed. A message ID saved to another link moves to it, and its record moves it again when
+ * replayed, so it's only ever in the link it was saved to last.
+ */
 public class FileMessageLinkStorage implements MessageLinkStorage {
 
     private static final FileMessageLinkStorage INSTANCE = new FileMessageLinkStorage();
 
-    @Inject Formatter formatter;
+    static final int DEFAULT_REGION_BYTES = 4 * 1024 * 1024;
+    static final int LOCK_STRIPES = 64;
+
+    // each record starts with the length and the CRC32 of its body, the body holds the link ID
+    // followed by the count and then the length and bytes of each message ID
+    static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int BODY_FIXED_BYTES = 2 * Long.BYTES + Integer.BYTES;
+
     @Inject Logger logger;
 
-    static final String MESSAGE_LINK_FILE_NAME = "cdctimetadata.json";
+    static final String MESSAGE_LINK_FILE_NAME = "cdctimessagelinks.log";
     static final Path MESSAGE_LINK_FILE_PATH;
 
     static {
         try {
             MESSAGE_LINK_FILE_PATH = ApplicationContext.createTempFile(MESSAGE_LINK_FILE_NAME);
-            Files.writeString(
-                    MESSAGE_LINK_FILE_PATH,
-                    "[]",
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private FileMessageLinkStorage() {}
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object openLock = new Object();
+    private final Map<UUID, Set<String>> messageIdsByLinkId = new ConcurrentHashMap<>();
+    private final Map<String, UUID> linkIdByMessageId = new ConcurrentHashMap<>();
+    // the file is mapped a region at a time, records never cross from one region to the next
+    private final List<MappedByteBuffer> regions = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextPosition = new AtomicLong();
+    private FileChannel channel;
+    private volatile boolean opened;
+    int regionBytes = DEFAULT_REGION_BYTES;
+
+    private FileMessageLinkStorage() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
 
     public static FileMessageLinkStorage getInstance() {
         return INSTANCE;
     }
 
     @Override
-    public synchronized Optional<MessageLink> getMessageLink(String messageId)
-            throws MessageLinkException {
-        try {
-            Set<MessageLink> messageLinks = readMessageLinks();
-            List<MessageLink> foundMessageLinks =
-                    messageLinks.stream()
-                            .filter(link -> link.getMessageIds().contains(messageId))
+    public Optional<MessageLink> getMessageLink(String messageId) throws MessageLinkException {
+        openIfNeeded();
+
+        UUID linkId = linkIdByMessageId.get(messageId);
+        if (linkId == null) {
+            return Optional.empty();
+        }
+
+        Set<String> messageIds = messageIdsByLinkId.get(linkId);
+        if (messageIds == null) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new MessageLink(linkId, messageIds));
+    }
+
+    @Override
+    public void saveMessageLink(MessageLink messageLink) throws MessageLinkException {
+        openIfNeeded();
+
+        UUID linkId = messageLink.getLinkId();
+        synchronized (locks[Math.floorMod(linkId.hashCode(), LOCK_STRIPES)]) {
+            Set<String> savedMessageIds = messageIdsByLinkId.getOrDefault(linkId, Set.of());
+            List<String> addedMessageIds =
+                    messageLink.getMessageIds().stream()
+                            .filter(messageId -> !savedMessageIds.contains(messageId))
                             .toList();
+            if (addedMessageIds.isEmpty()) {
+                return;
+            }
 
-            if (foundMessageLinks.size() > 1) {
-                logger.logWarning("More than one message link found for messageId: {}", messageId);
+            try {
+                append(linkId, addedMessageIds);
+            } catch (IOException e) {
+                throw new MessageLinkException("Error saving message links", e);
             }
 
-            return foundMessageLinks.stream().findFirst();
-        } catch (IOException | FormatterProcessingException e) {
-            throw new MessageLinkException("Error retrieving message links", e);
+            // the message IDs are added to the link before they point to it, so the link is never
+            // read without them
+            messageIdsByLinkId
+                    .computeIfAbsent(linkId, key -> ConcurrentHashMap.newKeySet())
+                    .addAll(addedMessageIds);
+            for (String messageId : addedMessageIds) {
+                if (pointToLink(messageId, linkId)) {
+                    logger.logWarning(
+                            "More than one message link found for messageId: {}", messageId);
+                }
+            }
         }
     }
 
-    @Override
-    public synchronized void saveMessageLink(MessageLink messageLink) throws MessageLinkException {
+    /** Unmaps the file and empties the links in memory, which are replayed the next time. */
+    void close() {
+        synchronized (openLock) {
+            opened = false;
+            messageIdsByLinkId.clear();
+            linkIdByMessageId.clear();
+            regions.clear();
+            nextPosition.set(0);
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // the mapped regions are written back by the operating system
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private void openIfNeeded() throws MessageLinkException {
+        if (opened) {
+            return;
+        }
+
+        synchronized (openLock) {
+            if (opened) {
+                return;
+            }
+
+            try {
+                channel =
+                        FileChannel.open(
+                                MESSAGE_LINK_FILE_PATH,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+                replay();
+                opened = true;
+            } catch (IOException e) {
+                close();
+                throw new MessageLinkException("Unable to open the message link file", e);
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        long regionCount = (channel.size() + regionBytes - 1) / regionBytes;
+        long end = 0;
+
+        for (int index = 0; index < regionCount; index++) {
+            MappedByteBuffer region = region(index);
+            long regionStart = (long) index * regionBytes;
+            int offset = 0;
+            // where the space that was reserved but never written starts, if we're in one
+            int holeStart = -1;
+            while (offset + HEADER_BYTES <= regionBytes) {
+                int length = region.getInt(offset);
+                // the rest of a region that a record didn't fit in is left empty, and so is the
+                // space of a record that a crash stopped before it was written, while the records
+                // reserved after it may have been written. So the region is scanned past it.
+                if (length <= 0 || (long) offset + HEADER_BYTES + length > regionBytes) {
+                    holeStart = holeStart < 0 ? offset : holeStart;
+                    offset++;
+                    continue;
+                }
+
+                byte[] body = new byte[length];
+                region.get(offset + HEADER_BYTES, body);
+                if (region.getInt(offset + Integer.BYTES) == checksum(body)) {
+                    if (holeStart >= 0) {
+                        logger.logWarning(
+                                "Skipping {} bytes of the message link file at {} that were never written",
+                                offset - holeStart,
+                                regionStart + holeStart);
+                        holeStart = -1;
+                    }
+                    replayRecord(body);
+                } else if (holeStart >= 0) {
+                    // only a record that passes its checksum is trusted to end a hole
+                    offset++;
+                    continue;
+                } else {
+                    // a crash while appending can leave a record half written
+                    logger.logWarning(
+                            "Skipping the message link record at {} that can't be read",
+                            regionStart + offset);
+                }
+
+                offset += HEADER_BYTES + length;
+                end = regionStart + offset;
+            }
+        }
+
+        nextPosition.set(end);
+    }
+
+    private void replayRecord(byte[] body) {
         try {
-            Set<MessageLink> messageLinks = readMessageLinks();
-            Optional<MessageLink> existingLink =
-                    messageLinks.stream()
-                            .filter(
-                                    link ->
-                                            Objects.equals(
-                                                    link.getLinkId(), messageLink.getLinkId()))
-                            .findFirst();
-            if (existingLink.isPresent()) {
-                MessageLink existing = existingLink.get();
-                existing.addMessageIds(messageLink.getMessageIds());
-            } else {
-                messageLinks.add(messageLink);
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            UUID linkId = new UUID(buffer.getLong(), buffer.getLong());
+            int count = buffer.getInt();
+            Set<String> messageIds =
+                    messageIdsByLinkId.computeIfAbsent(
+                            linkId, key -> ConcurrentHashMap.newKeySet());
+            for (int i = 0; i < count; i++) {
+                byte[] messageId = new byte[buffer.getInt()];
+                buffer.get(messageId);
+                String decoded = new String(messageId, StandardCharsets.UTF_8);
+                messageIds.add(decoded);
+                pointToLink(decoded, linkId);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            logger.logWarning("Skipping a message link record that can't be read");
+        }
+    }
+
+    /**
+     * Points the message ID to the link, and takes it out of the link it was in before. Returns
+     * whether it was in another link.
+     */
+    private boolean pointToLink(String messageId, UUID linkId) {
+        UUID previousLinkId = linkIdByMessageId.put(messageId, linkId);
+        if (previousLinkId == null || previousLinkId.equals(linkId)) {
+            return false;
+        }
+
+        // an emptied link is kept, a save of it could be adding to it at the same time
+        Set<String> previousMessageIds = messageIdsByLinkId.get(previousLinkId);
+        if (previousMessageIds != null) {
+            previousMessageIds.remove(messageId);
+        }
+        return true;
+    }
+
+    private void append(UUID linkId, List<String> messageIds) throws IOException {
+        int maxBodyBytes = regionBytes - HEADER_BYTES;
+
+        // a link with too many message IDs for one region is split over several records
+        List<byte[]> chunk = new ArrayList<>();
+        int chunkBytes = BODY_FIXED_BYTES;
+        for (String messageId : messageIds) {
+            byte[] encoded = messageId.getBytes(StandardCharsets.UTF_8);
+            int encodedBytes = Integer.BYTES + encoded.length;
+            if (BODY_FIXED_BYTES + encodedBytes > maxBodyBytes) {
+                throw new IOException("The message ID " + messageId + " is too long to save");
+            }
+
+            if (chunkBytes + encodedBytes > maxBodyBytes) {
+                appendRecord(linkId, chunk, chunkBytes);
+                chunk = new ArrayList<>();
+                chunkBytes = BODY_FIXED_BYTES;
+            }
+            chunk.add(encoded);
+            chunkBytes += encodedBytes;
+        }
+
+        appendRecord(linkId, chunk, chunkBytes);
+    }
+
+    private void appendRecord(UUID linkId, List<byte[]> messageIds, int bodyBytes)
+            throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(bodyBytes);
+        body.putLong(linkId.getMostSignificantBits());
+        body.putLong(linkId.getLeastSignificantBits());
+        body.putInt(messageIds.size());
+        for (byte[] messageId : messageIds) {
+            body.putInt(messageId.length);
+            body.put(messageId);
+        }
+
+        long position = reserve(HEADER_BYTES + bodyBytes);
+        MappedByteBuffer region = region((int) (position / regionBytes));
+        int offset = (int) (position % regionBytes);
+
+        // the length goes first, so a half written record is skipped by its checksum on replay
+        // instead of hiding the records after it
+        region.putInt(offset, bodyBytes);
+        region.putInt(offset + Integer.BYTES, checksum(body.array()));
+        region.put(offset + HEADER_BYTES, body.array());
+    }
+
+    /** Reserves the space of a record, in the next region if it doesn't fit in the current one. */
+    private long reserve(int recordBytes) {
+        while (true) {
+            long position = nextPosition.get();
+            long regionEnd = (position / regionBytes + 1) * regionBytes;
+            long start = position + recordBytes <= regionEnd ? position : regionEnd;
+            if (nextPosition.compareAndSet(position, start + recordBytes)) {
+                return start;
             }
-            writeMessageLinks(messageLinks);
-        } catch (IOException | FormatterProcessingException e) {
-            throw new MessageLinkException("Error saving message links", e);
         }
     }
 
-    private Set<MessageLink> readMessageLinks() throws IOException, FormatterProcessingException {
-        String messageLinkContent = Files.readString(MESSAGE_LINK_FILE_PATH);
-        Set<MessageLink> messageLinks =
-                formatter.convertJsonToObject(messageLinkContent, new TypeReference<>() {});
-        return messageLinks != null ? messageLinks : new HashSet<>();
+    private MappedByteBuffer region(int index) throws IOException {
+        if (index < regions.size()) {
+            return regions.get(index);
+        }
+
+        synchronized (openLock) {
+            while (regions.size() <= index) {
+                // mapping past the end of the file grows it
+                regions.add(
+                        channel.map(
+                                FileChannel.MapMode.READ_WRITE,
+                                (long) regions.size() * regionBytes,
+                                regionBytes));
+            }
+            return regions.get(index);
+        }
     }
 
-    private void writeMessageLinks(Set<MessageLink> messageLinks)
-            throws IOException, FormatterProcessingException {
-        String json = formatter.convertToJsonString(messageLinks);
-        Files.writeString(MESSAGE_LINK_FILE_PATH, json, StandardOpenOption.TRUNCATE_EXISTING);
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
     }
 }
@@ -1,29 +1,75 @@
 package gov.hhs.cdc.trustedintermediary.external.localfile;
 
 import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount;
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.inject.Inject;
 
-/** Implements the {@link PartnerMetadataStorage} using local files. */
+/**
+ * Implements the {@link PartnerMetadataStorage} using local files. Each save appends the metadata
+ * to a log that is split into segment files, and an index in memory holds where the latest version
+ * of each metadata is in the log, along with the IDs and keys it's looked up by. So reading a
+ * metadata is a single positional read, and saving one is a sequential append. The index is
+ * rebuilt from the segments the first time the storage is used. Once a segment is full a new one
+ * is started, and the full segments are compacted in the background once most of what they hold
+ * has been saved again since.
+ */
 public class FilePartnerMetadataStorage implements PartnerMetadataStorage {
 
     private static final FilePartnerMetadataStorage INSTANCE = new FilePartnerMetadataStorage();
 
+    static final long DEFAULT_SEGMENT_MAX_BYTES = 8 * 1024 * 1024;
+    static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    static final long COMPACTION_INTERVAL_SECONDS = 60;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String COMPACTING_SUFFIX = ".compacting";
+
+    // a read can race with the compaction that moves the metadata it's reading to another segment
+    private static final int MAX_READ_ATTEMPTS = 3;
+
     @Inject Formatter formatter;
     @Inject Logger logger;
+    @Inject MessageLinkStorage messageLinkStorage;
 
     static final String SUBDIRECTORY_NAME = "cdctimetadata";
     static final Path METADATA_DIRECTORY;
@@ -36,6 +82,19 @@ public class FilePartnerMetadataStorage implements PartnerMetadataStorage {
         }
     }
 
+    // appends, index updates and changes to the segments all happen while holding the write lock,
+    // reads only use the concurrent maps
+    private final Object writeLock = new Object();
+    private final Map<String, IndexEntry> index = new ConcurrentHashMap<>();
+    private final Map<String, String> receivedIdBySentId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> receivedIdsBySender = new ConcurrentHashMap<>();
+    private final Map<MessageLinkKey, Set<String>> receivedIdsByLinkKey =
+            new ConcurrentHashMap<>();
+    private final List<Segment> sealedSegments = new CopyOnWriteArrayList<>();
+    private volatile Segment activeSegment;
+    private ScheduledExecutorService compactionScheduler;
+    long segmentMaxBytes = DEFAULT_SEGMENT_MAX_BYTES;
+
     private FilePartnerMetadataStorage() {}
 
     public static FilePartnerMetadataStorage getInstance() {
@@ -45,153 +104,615 @@ public class FilePartnerMetadataStorage implements PartnerMetadataStorage {
     @Override
     public Optional<PartnerMetadata> readMetadata(final String submissionId)
             throws PartnerMetadataException {
-        try {
-            Path filePath = searchFilePath(submissionId);
-            if (filePath == null || !Files.exists(filePath)) {
-                logger.logWarning("Metadata file not found: {}", filePath);
-                return Optional.empty();
-            }
-            String content = Files.readString(filePath);
-            PartnerMetadata metadata =
-                    formatter.convertJsonToObject(content, new TypeReference<>() {});
-            return Optional.ofNullable(metadata);
-        } catch (IOException | FormatterProcessingException e) {
-            throw new PartnerMetadataException("Unable to read the metadata file", e);
+        openIfNeeded();
+
+        String receivedSubmissionId =
+                index.containsKey(submissionId)
+                        ? submissionId
+                        : receivedIdBySentId.get(submissionId);
+        PartnerMetadata metadata =
+                receivedSubmissionId != null ? read(receivedSubmissionId) : null;
+        if (metadata == null) {
+            logger.logWarning("Metadata not found: {}", submissionId);
         }
+
+        return Optional.ofNullable(metadata);
     }
 
     @Override
     public void saveMetadata(final PartnerMetadata metadata) throws PartnerMetadataException {
+        openIfNeeded();
+
+        byte[] record;
         try {
-            Path previousMetadataFilePath = searchFilePath(metadata.receivedSubmissionId());
-            if (previousMetadataFilePath != null) {
-                // delete the pre-existing metadata file so that we don't find the old file when we
-                // search for a given metadata ID
-                Files.delete(previousMetadataFilePath);
-            }
-        } catch (IOException e) {
+            record =
+                    (formatter.convertToJsonString(metadata) + "\n")
+                            .getBytes(StandardCharsets.UTF_8);
+        } catch (FormatterProcessingException e) {
             throw new PartnerMetadataException(
-                    "Error deleting previous metadata file for " + metadata.receivedSubmissionId(),
-                    e);
+                    "Error saving metadata for " + metadata.receivedSubmissionId(), e);
+        }
+
+        Segment segment;
+        synchronized (writeLock) {
+            segment = activeSegment;
+            long offset;
+            try {
+                offset = segment.append(record);
+            } catch (IOException e) {
+                throw new PartnerMetadataException(
+                        "Error saving metadata for " + metadata.receivedSubmissionId(), e);
+            }
+
+            put(metadata, segment, offset, record.length - 1);
+
+            if (segment.size() >= segmentMaxBytes) {
+                startNextSegment(segment);
+            }
+        }
+
+        logger.logInfo(
+                "Saved metadata for {} to {}", metadata.receivedSubmissionId(), segment.path());
+    }
+
+    @Override
+    public void saveUnitOfWork(final PartnerMetadataUnitOfWork unitOfWork)
+            throws PartnerMetadataException {
+        // local files don't support transactions, so everything is saved one by one
+        for (PartnerMetadata metadata : unitOfWork.metadata()) {
+            saveMetadata(metadata);
         }
 
-        Path metadataFilePath =
-                getFilePath(metadata.receivedSubmissionId() + "-" + metadata.sentSubmissionId());
         try {
-            String content = formatter.convertToJsonString(metadata);
-            Files.writeString(metadataFilePath, content);
-            logger.logInfo(
-                    "Saved metadata for {} to {}",
-                    metadata.receivedSubmissionId(),
-                    metadataFilePath);
-        } catch (IOException | FormatterProcessingException e) {
-            throw new PartnerMetadataException(
-                    "Error saving metadata for " + metadata.receivedSubmissionId(), e);
+            for (MessageLink messageLink : unitOfWork.messageLinks()) {
+                messageLinkStorage.saveMessageLink(messageLink);
+            }
+        } catch (MessageLinkException e) {
+            throw new PartnerMetadataException("Error saving the message links", e);
         }
     }
 
     @Override
     public Set<PartnerMetadata> readMetadataForSender(String senderUniversalId)
             throws PartnerMetadataException {
+        openIfNeeded();
+
+        Set<String> receivedSubmissionIds = receivedIdsBySender.get(senderUniversalId);
+        if (receivedSubmissionIds == null) {
+            return new HashSet<>();
+        }
+
         try {
-            return getPartnerMetadata().stream()
-                    .filter(
-                            metadata ->
-                                    metadata.sendingFacilityDetails()
-                                            .universalId()
-                                            .equals(senderUniversalId))
-                    .collect(Collectors.toSet());
-        } catch (Exception e) {
+            Set<PartnerMetadata> metadataSet = new HashSet<>();
+            for (String receivedSubmissionId : receivedSubmissionIds) {
+                PartnerMetadata metadata = read(receivedSubmissionId);
+                // the metadata may have been saved for another sender since the ID was read
+                if (metadata != null && senderUniversalId.equals(senderOf(metadata))) {
+                    metadataSet.add(metadata);
+                }
+            }
+            return metadataSet;
+        } catch (PartnerMetadataException e) {
             throw new PartnerMetadataException(
                     "Failed reading metadata for sender: " + senderUniversalId, e);
         }
     }
 
+    @Override
+    public void readMetadataForSender(
+            PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer)
+            throws PartnerMetadataException {
+        Stream<PartnerMetadata> metadataStream =
+                readMetadataForSender(query.sender()).stream()
+                        .filter(query::matches)
+                        .sorted(
+                                Comparator.comparing(
+                                        PartnerMetadataCursor::of, PartnerMetadataCursor.ORDER));
+
+        if (query.isPaginated()) {
+            metadataStream = metadataStream.limit(query.limit());
+        }
+
+        metadataStream.forEachOrdered(consumer);
+    }
+
+    @Override
+    public List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender)
+            throws PartnerMetadataException {
+        // local files are only used for development, so the counts are computed on each read
+        // instead of being kept up to date like in the database
+        Map<PartnerMetadataStatusCount, Long> counts =
+                readMetadataForSender(sender).stream()
+                        .filter(metadata -> metadata.deliveryStatus() != null)
+                        .collect(
+                                Collectors.groupingBy(
+                                        metadata ->
+                                                new PartnerMetadataStatusCount(
+                                                        metadata.receivingFacilityDetails()
+                                                                .universalId(),
+                                                        metadata.deliveryStatus(),
+                                                        0),
+                                        Collectors.counting()));
+
+        return counts.entrySet().stream()
+                .map(
+                        entry ->
+                                new PartnerMetadataStatusCount(
+                                        entry.getKey().receiver(),
+                                        entry.getKey().status(),
+                                        entry.getValue()))
+                .toList();
+    }
+
     @Override
     public Set<String> readMetadataForMessageLinking(String receivedSubmissionId)
             throws PartnerMetadataException {
+        openIfNeeded();
+
+        PartnerMetadata match;
         try {
-            Set<PartnerMetadata> existingMetadata = getPartnerMetadata();
-            PartnerMetadata match =
-                    existingMetadata.stream()
-                            .filter(
-                                    metadata ->
-                                            metadata.receivedSubmissionId()
-                                                    .equals(receivedSubmissionId))
-                            .findFirst()
-                            .orElse(null);
-
-            if (match == null) {
-                logger.logWarning(
-                        "Matching metadata not found for receivedSubmissionId: {}",
-                        receivedSubmissionId);
-                return Set.of();
-            }
-
-            return existingMetadata.stream()
-                    .filter(
-                            metadata ->
-                                    metadata.placerOrderNumber().equals(match.placerOrderNumber())
-                                            && (metadata.sendingFacilityDetails()
-                                                            .equals(match.sendingFacilityDetails())
-                                                    || metadata.sendingFacilityDetails()
-                                                            .equals(
-                                                                    match
-                                                                            .receivingFacilityDetails()))
-                                            && !metadata.receivedSubmissionId()
-                                                    .equals(receivedSubmissionId))
-                    .map(PartnerMetadata::receivedSubmissionId)
-                    .collect(Collectors.toSet());
-        } catch (Exception e) {
+            match = read(receivedSubmissionId);
+        } catch (PartnerMetadataException e) {
             throw new PartnerMetadataException(
                     "Failed reading metadata for submissionId: " + receivedSubmissionId, e);
         }
+
+        if (match == null) {
+            logger.logWarning(
+                    "Matching metadata not found for receivedSubmissionId: {}",
+                    receivedSubmissionId);
+            return Set.of();
+        }
+
+        return readMetadataForMessageLinking(match);
     }
 
-    private Set<PartnerMetadata> getPartnerMetadata() throws IOException {
-        try (Stream<Path> fileList = Files.list(METADATA_DIRECTORY)) {
-            return fileList.map(
-                            fileName -> {
-                                try {
-                                    return Files.readString(fileName);
-                                } catch (IOException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            })
-                    .map(
-                            metadataContent -> {
-                                try {
-                                    return formatter.convertJsonToObject(
-                                            metadataContent,
-                                            new TypeReference<PartnerMetadata>() {});
-                                } catch (FormatterProcessingException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            })
-                    .collect(Collectors.toSet());
+    @Override
+    public Set<String> readMetadataForMessageLinking(PartnerMetadata metadata)
+            throws PartnerMetadataException {
+        if (metadata.placerOrderNumber() == null) {
+            return Set.of();
+        }
+
+        openIfNeeded();
+
+        // the metadata is indexed under both its sending and its receiving facility, so this finds
+        // the metadata sent by or to the sending facility of the given metadata, like the database
+        Set<String> receivedSubmissionIds =
+                receivedIdsByLinkKey.get(
+                        new MessageLinkKey(
+                                metadata.placerOrderNumber(), metadata.sendingFacilityDetails()));
+        if (receivedSubmissionIds == null) {
+            return Set.of();
+        }
+
+        Set<String> linkedSubmissionIds = new HashSet<>(receivedSubmissionIds);
+        linkedSubmissionIds.remove(metadata.receivedSubmissionId());
+        return linkedSubmissionIds;
+    }
+
+    @Override
+    public List<MessageLinkKey> readMessageLinkKeys() throws PartnerMetadataException {
+        openIfNeeded();
+
+        return index.values().stream().flatMap(entry -> entry.linkKeys().stream()).toList();
+    }
+
+    /**
+     * Rewrites the live metadata of the full segments into a single segment, if at least half of
+     * what they hold has been saved again since. The new segment takes the place of the newest of
+     * them, so when the index is rebuilt it still comes before any segment with a later version.
+     */
+    void compact() throws IOException {
+        List<Segment> segments = List.copyOf(sealedSegments);
+        long totalBytes = segments.stream().mapToLong(Segment::size).sum();
+        long liveBytes = segments.stream().mapToLong(Segment::liveBytes).sum();
+        if (totalBytes == 0 || totalBytes - liveBytes < totalBytes * COMPACTION_GARBAGE_RATIO) {
+            return;
+        }
+
+        Segment newest = segments.get(segments.size() - 1);
+        Path compactingPath =
+                METADATA_DIRECTORY.resolve(newest.path().getFileName() + COMPACTING_SUFFIX);
+
+        // the full segments are never written to again, so they are copied without the lock
+        List<Move> moves = new ArrayList<>();
+        long offset = 0;
+        try (FileChannel compacting =
+                FileChannel.open(
+                        compactingPath,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, IndexEntry> indexed : index.entrySet()) {
+                IndexEntry entry = indexed.getValue();
+                if (!segments.contains(entry.segment())) {
+                    continue;
+                }
+
+                ByteBuffer record = entry.segment().read(entry.offset(), entry.length() + 1);
+                writeFully(compacting, record, offset);
+                moves.add(new Move(indexed.getKey(), entry, offset));
+                offset += entry.length() + 1;
+            }
+            compacting.force(true);
+        }
+
+        synchronized (writeLock) {
+            Files.move(
+                    compactingPath,
+                    newest.path(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Segment compacted = Segment.open(newest.path(), newest.id());
+            compacted.size = offset;
+
+            for (Move move : moves) {
+                // the metadata may have been saved again while it was copied
+                IndexEntry moved = move.moved(compacted);
+                if (index.replace(move.receivedSubmissionId(), move.entry(), moved)) {
+                    compacted.liveBytes.addAndGet(move.entry().length() + 1);
+                }
+            }
+
+            sealedSegments.removeAll(segments);
+            sealedSegments.add(0, compacted);
+        }
+
+        for (Segment segment : segments) {
+            segment.close();
+            if (segment != newest) {
+                Files.deleteIfExists(segment.path());
+            }
+        }
+
+        logger.logInfo(
+                "Compacted {} metadata segments from {} to {} bytes",
+                segments.size(),
+                totalBytes,
+                offset);
+    }
+
+    /** Closes the segments and empties the index, which is rebuilt the next time it's used. */
+    void close() {
+        synchronized (writeLock) {
+            if (compactionScheduler != null) {
+                compactionScheduler.shutdownNow();
+                compactionScheduler = null;
+            }
+
+            if (activeSegment != null) {
+                activeSegment.close();
+                activeSegment = null;
+            }
+            sealedSegments.forEach(Segment::close);
+            sealedSegments.clear();
+            clearIndex();
+        }
+    }
+
+    private void openIfNeeded() throws PartnerMetadataException {
+        if (activeSegment != null) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            if (activeSegment != null) {
+                return;
+            }
+
+            clearIndex();
+            List<Segment> segments = new ArrayList<>();
+            try {
+                for (Path path : listSegmentPaths()) {
+                    Segment segment = Segment.open(path, idOf(path));
+                    segments.add(segment);
+                    load(segment);
+                }
+
+                Segment active =
+                        segments.isEmpty()
+                                ? Segment.open(segmentPath(1), 1)
+                                : segments.remove(segments.size() - 1);
+                sealedSegments.addAll(segments);
+                startCompaction();
+                // set last, so the storage isn't used before the whole index is loaded
+                activeSegment = active;
+            } catch (IOException e) {
+                segments.forEach(Segment::close);
+                sealedSegments.clear();
+                clearIndex();
+                throw new PartnerMetadataException("Unable to open the metadata log", e);
+            }
+        }
+    }
+
+    private void load(Segment segment) throws IOException {
+        byte[] content = Files.readAllBytes(segment.path());
+
+        int start = 0;
+        for (int end = 0; end < content.length; end++) {
+            if (content[end] != '\n') {
+                continue;
+            }
+
+            String record = new String(content, start, end - start, StandardCharsets.UTF_8);
+            try {
+                PartnerMetadata metadata =
+                        formatter.convertJsonToObject(record, new TypeReference<>() {});
+                put(metadata, segment, start, end - start);
+            } catch (FormatterProcessingException e) {
+                logger.logWarning(
+                        "Skipping metadata at {} in {} that can't be read", start, segment.path());
+            }
+            start = end + 1;
+        }
+
+        if (start < content.length) {
+            // a crash while appending can leave the last record half written
+            logger.logWarning(
+                    "Truncating the half written metadata at {} in {}", start, segment.path());
+            segment.truncate(start);
         }
+        segment.size = start;
     }
 
-    private Path getFilePath(String metadataId) {
-        return METADATA_DIRECTORY.resolve(metadataId + ".json");
+    /** Only called while holding the write lock. */
+    private void startNextSegment(Segment full) {
+        long id = full.id() + 1;
+        try {
+            activeSegment = Segment.open(segmentPath(id), id);
+            sealedSegments.add(full);
+        } catch (IOException e) {
+            // the metadata was already saved, so the full segment is just used for longer
+            logger.logError("Unable to start the metadata segment " + segmentPath(id), e);
+        }
     }
 
-    private Path searchFilePath(String metadataId) throws IOException {
+    private void startCompaction() {
+        compactionScheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "metadata-log-compaction");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        compactionScheduler.scheduleWithFixedDelay(
+                () -> {
+                    try {
+                        compact();
+                    } catch (IOException | RuntimeException e) {
+                        logger.logError("Unable to compact the metadata segments", e);
+                    }
+                },
+                COMPACTION_INTERVAL_SECONDS,
+                COMPACTION_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
 
-        Path path = null;
+    private PartnerMetadata read(String receivedSubmissionId) throws PartnerMetadataException {
+        for (int attempt = 1; ; attempt++) {
+            IndexEntry entry = index.get(receivedSubmissionId);
+            if (entry == null) {
+                return null;
+            }
+
+            try {
+                ByteBuffer record = entry.segment().read(entry.offset(), entry.length());
+                return formatter.convertJsonToObject(
+                        StandardCharsets.UTF_8.decode(record).toString(),
+                        new TypeReference<>() {});
+            } catch (ClosedChannelException e) {
+                if (attempt >= MAX_READ_ATTEMPTS) {
+                    throw new PartnerMetadataException("Unable to read the metadata log", e);
+                }
+            } catch (IOException | FormatterProcessingException e) {
+                throw new PartnerMetadataException("Unable to read the metadata log", e);
+            }
+        }
+    }
+
+    private void put(PartnerMetadata metadata, Segment segment, long offset, int length) {
+        String receivedSubmissionId = metadata.receivedSubmissionId();
+        IndexEntry entry =
+                new IndexEntry(
+                        segment,
+                        offset,
+                        length,
+                        metadata.sentSubmissionId(),
+                        senderOf(metadata),
+                        MessageLinkKey.keysOf(metadata));
+
+        IndexEntry previous = index.put(receivedSubmissionId, entry);
+        segment.liveBytes.addAndGet(length + 1);
+
+        if (previous != null) {
+            previous.segment().liveBytes.addAndGet(-(previous.length() + 1));
+            if (previous.sentSubmissionId() != null) {
+                receivedIdBySentId.remove(previous.sentSubmissionId(), receivedSubmissionId);
+            }
+            if (previous.sender() != null) {
+                removeFromSet(receivedIdsBySender, previous.sender(), receivedSubmissionId);
+            }
+            for (MessageLinkKey key : previous.linkKeys()) {
+                removeFromSet(receivedIdsByLinkKey, key, receivedSubmissionId);
+            }
+        }
+
+        if (entry.sentSubmissionId() != null) {
+            receivedIdBySentId.put(entry.sentSubmissionId(), receivedSubmissionId);
+        }
+        if (entry.sender() != null) {
+            receivedIdsBySender
+                    .computeIfAbsent(entry.sender(), key -> ConcurrentHashMap.newKeySet())
+                    .add(receivedSubmissionId);
+        }
+        for (MessageLinkKey key : entry.linkKeys()) {
+            receivedIdsByLinkKey
+                    .computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
+                    .add(receivedSubmissionId);
+        }
+    }
+
+    private void clearIndex() {
+        index.clear();
+        receivedIdBySentId.clear();
+        receivedIdsBySender.clear();
+        receivedIdsByLinkKey.clear();
+    }
+
+    private static <K> void removeFromSet(
+            Map<K, Set<String>> map, K key, String receivedSubmissionId) {
+        Set<String> receivedSubmissionIds = map.get(key);
+        if (receivedSubmissionIds != null) {
+            receivedSubmissionIds.remove(receivedSubmissionId);
+        }
+    }
 
+    private static String senderOf(PartnerMetadata metadata) {
+        if (metadata.sendingFacilityDetails() == null) {
+            return null;
+        }
+
+        return metadata.sendingFacilityDetails().universalId();
+    }
+
+    private static List<Path> listSegmentPaths() throws IOException {
         try (Stream<Path> fileList = Files.list(METADATA_DIRECTORY)) {
-            path =
-                    fileList.filter(
-                                    metadataPath -> {
-                                        String fileName = metadataPath.getFileName().toString();
-                                        return fileName.startsWith(metadataId)
-                                                || fileName.endsWith(metadataId + ".json");
-                                    })
-                            .findFirst()
-                            .orElse(null);
-        }
-
-        return path;
+            List<Path> paths = new ArrayList<>();
+            for (Path path : fileList.toList()) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(COMPACTING_SUFFIX)) {
+                    // left over from a compaction that didn't finish
+                    Files.deleteIfExists(path);
+                } else if (fileName.startsWith(SEGMENT_PREFIX)
+                        && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    paths.add(path);
+                }
+            }
+            paths.sort(Comparator.comparingLong(FilePartnerMetadataStorage::idOf));
+            return paths;
+        }
+    }
+
+    private static long idOf(Path segmentPath) {
+        String fileName = segmentPath.getFileName().toString();
+        return Long.parseLong(
+                fileName.substring(
+                        SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    static Path segmentPath(long id) {
+        return METADATA_DIRECTORY.resolve(
+                String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    /**
+     * Where the latest version of a metadata is in the log, and the IDs and keys it was indexed
+     * under, so they can be removed from the index when it's saved again.
+     */
+    private record IndexEntry(
+            Segment segment,
+            long offset,
+            int length,
+            String sentSubmissionId,
+            String sender,
+            List<MessageLinkKey> linkKeys) {}
+
+    private record Move(String receivedSubmissionId, IndexEntry entry, long offset) {
+        IndexEntry moved(Segment segment) {
+            return new IndexEntry(
+                    segment,
+                    offset,
+                    entry.length(),
+                    entry.sentSubmissionId(),
+                    entry.sender(),
+                    entry.linkKeys());
+        }
+    }
+
+    /**
+     * A segment file of the log. It isn't a record because the index compares segments by
+     * identity, a compacted segment has the same ID and path as the one it replaces.
+     */
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long size;
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        static Segment open(Path path, long id) throws IOException {
+            FileChannel channel =
+                    FileChannel.open(
+                            path,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, path, channel);
+            segment.size = channel.size();
+            return segment;
+        }
+
+        long id() {
+            return id;
+        }
+
+        Path path() {
+            return path;
+        }
+
+        long size() {
+            return size;
+        }
+
+        long liveBytes() {
+            return liveBytes.get();
+        }
+
+        /** Only called while holding the write lock of the storage. */
+        long append(byte[] record) throws IOException {
+            long offset = size;
+            writeFully(channel, ByteBuffer.wrap(record), offset);
+            size = offset + record.length;
+            return offset;
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of the metadata segment " + path);
+                }
+            }
+            return buffer.flip();
+        }
+
+        void truncate(long size) throws IOException {
+            channel.truncate(size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was left to write to it
+            }
+        }
     }
 }
@@ -0,0 +1,574 @@
+package gov.hhs.cdc.trustedintermediary.external.localfile;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink;
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage;
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
+
+/**
+ * Implements the {@link PartnerMetadataStorage} by writing the metadata and message links to save
+ * to a local append-only journal, and saving them to another {@link PartnerMetadataStorage} in the
+ * background. A save only waits for the journal to be flushed to disk, and one flush covers all the
+ * saves that are waiting at the same time, so saving doesn't depend on how fast the other storage
+ * is or whether it's up. The journaled entries are saved in batches, and retried with a growing
+ * delay while the other storage fails. While retrying, the entries are saved one at a time, and an
+ * entry that still fails after the maximum number of attempts is moved aside to a rejected file
+ * next to the journal, so it doesn't hold up the entries after it. Metadata that is still waiting
+ * to be saved is read from the journal, and is also matched when looking up the messages to link.
+ * All the other reads are passed through. The entries left in the journal by a previous run are
+ * replayed when the storage is first used.
+ */
+public class JournalingPartnerMetadataStorage implements PartnerMetadataStorage {
+
+    private static final JournalingPartnerMetadataStorage INSTANCE =
+            new JournalingPartnerMetadataStorage();
+
+    static final int DEFAULT_BATCH_SIZE = 100;
+    static final int DEFAULT_MAX_ATTEMPTS = 20;
+    static final long DRAIN_INTERVAL_MILLIS = 100;
+    static final long INITIAL_RETRY_DELAY_MILLIS = 1_000;
+    static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+
+    // each line of the journal is either an entry, or a checkpoint with the sequence of the last
+    // entry that was saved to the other storage
+    static final String ENTRY_PREFIX = "E ";
+    static final String CHECKPOINT_PREFIX = "C ";
+    static final String REJECTED_SUFFIX = ".rejected";
+
+    @Inject Formatter formatter;
+    @Inject Logger logger;
+
+    private PartnerMetadataStorage storage;
+    private Path journalPath;
+    private int batchSize;
+    private int maxAttempts;
+
+    private final Object startLock = new Object();
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    // counts every byte ever appended, unlike the size of the journal it doesn't go back to zero
+    // when the journal is truncated
+    private long appendedBytes;
+    private long syncedBytes;
+    private long nextSequence;
+    private final Deque<JournalEntry> pending = new ArrayDeque<>();
+    private final Map<String, PartnerMetadata> pendingMetadata = new ConcurrentHashMap<>();
+    private long retryDelayMillis;
+    private long retryAt;
+    private boolean retrying;
+    // the failed attempts to save the entry at the head of the pending entries on its own
+    private int headAttempts;
+    private volatile boolean started;
+    ScheduledExecutorService scheduler;
+    LongSupplier nanoTime = System::nanoTime;
+
+    public static JournalingPartnerMetadataStorage getInstance() {
+        return INSTANCE;
+    }
+
+    private JournalingPartnerMetadataStorage() {}
+
+    /**
+     * Sets the storage the journaled entries are saved to and the path of the journal. Called once
+     * when the storages are registered, before the journal is first used.
+     */
+    public void init(PartnerMetadataStorage storage, Path journalPath) {
+        synchronized (startLock) {
+            if (started) {
+                throw new IllegalStateException("The metadata journal is already in use");
+            }
+
+            this.storage = storage;
+            this.journalPath = journalPath;
+            batchSize =
+                    ApplicationContext.getPositiveIntProperty(
+                            "PARTNER_METADATA_JOURNAL_BATCH_SIZE", DEFAULT_BATCH_SIZE);
+            maxAttempts =
+                    ApplicationContext.getPositiveIntProperty(
+                            "PARTNER_METADATA_JOURNAL_MAX_ATTEMPTS", DEFAULT_MAX_ATTEMPTS);
+        }
+    }
+
+    @Override
+    public Optional<PartnerMetadata> readMetadata(final String submissionId)
+            throws PartnerMetadataException {
+        startIfNeeded();
+
+        PartnerMetadata metadata = pendingMetadata.get(submissionId);
+        if (metadata != null) {
+            return Optional.of(metadata);
+        }
+
+        return storage.readMetadata(submissionId);
+    }
+
+    @Override
+    public void saveMetadata(final PartnerMetadata metadata) throws PartnerMetadataException {
+        append(List.of(metadata), List.of());
+    }
+
+    @Override
+    public void saveUnitOfWork(final PartnerMetadataUnitOfWork unitOfWork)
+            throws PartnerMetadataException {
+        if (unitOfWork.metadata().isEmpty() && unitOfWork.messageLinks().isEmpty()) {
+            return;
+        }
+
+        append(List.copyOf(unitOfWork.metadata()), List.copyOf(unitOfWork.messageLinks()));
+    }
+
+    @Override
+    public boolean linksMessagesOnSave() {
+        // the journal doesn't know which metadata was asked to be linked, so all of it is linked
+        // again when it's written to a storage that links the messages itself
+        return storage.linksMessagesOnSave();
+    }
+
+    @Override
+    public Set<PartnerMetadata> readMetadataForSender(String sender)
+            throws PartnerMetadataException {
+        return storage.readMetadataForSender(sender);
+    }
+
+    @Override
+    public void readMetadataForSender(
+            PartnerMetadataQuery query, Consumer<PartnerMetadata> consumer)
+            throws PartnerMetadataException {
+        storage.readMetadataForSender(query, consumer);
+    }
+
+    @Override
+    public List<PartnerMetadataStatusCount> readStatusCountsForSender(String sender)
+            throws PartnerMetadataException {
+        return storage.readStatusCountsForSender(sender);
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(String submissionId)
+            throws PartnerMetadataException {
+        startIfNeeded();
+
+        PartnerMetadata metadata = pendingMetadata.get(submissionId);
+        if (metadata != null) {
+            return readMetadataForMessageLinking(metadata);
+        }
+
+        Set<String> linkedSubmissionIds =
+                new HashSet<>(storage.readMetadataForMessageLinking(submissionId));
+        if (!pendingMetadata.isEmpty()) {
+            Optional<PartnerMetadata> savedMetadata = storage.readMetadata(submissionId);
+            if (savedMetadata.isPresent()) {
+                linkedSubmissionIds.addAll(pendingMetadataToLink(savedMetadata.get()));
+            }
+        }
+        return linkedSubmissionIds;
+    }
+
+    @Override
+    public Set<String> readMetadataForMessageLinking(PartnerMetadata metadata)
+            throws PartnerMetadataException {
+        startIfNeeded();
+
+        Set<String> linkedSubmissionIds =
+                new HashSet<>(storage.readMetadataForMessageLinking(metadata));
+        linkedSubmissionIds.addAll(pendingMetadataToLink(metadata));
+        return linkedSubmissionIds;
+    }
+
+    @Override
+    public List<MessageLinkKey> readMessageLinkKeys() throws PartnerMetadataException {
+        return storage.readMessageLinkKeys();
+    }
+
+    void startIfNeeded() throws PartnerMetadataException {
+        if (started) {
+            return;
+        }
+
+        synchronized (startLock) {
+            if (channel == null) {
+                try {
+                    replay();
+                    channel =
+                            FileChannel.open(
+                                    journalPath,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    throw new PartnerMetadataException(
+                            "Unable to open the metadata journal " + journalPath, e);
+                }
+            }
+
+            if (scheduler == null) {
+                scheduler =
+                        Executors.newSingleThreadScheduledExecutor(
+                                runnable -> {
+                                    Thread thread = new Thread(runnable, "metadata-journal");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                });
+                scheduler.scheduleWithFixedDelay(
+                        this::drain, 0, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            started = true;
+        }
+    }
+
+    /**
+     * Saves the pending entries to the other storage in batches, until there are none left or a
+     * batch fails. After a failure, nothing is saved until the retry delay passes.
+     */
+    void drain() {
+        if (retrying && nanoTime.getAsLong() - retryAt < 0) {
+            return;
+        }
+
+        while (true) {
+            List<JournalEntry> batch;
+            synchronized (appendLock) {
+                // after a failure the entries are saved one at a time, which isolates an entry
+                // that can't be saved from the ones after it
+                batch = pending.stream().limit(retrying ? 1 : batchSize).toList();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                storage.saveUnitOfWork(mergeEntries(batch));
+            } catch (PartnerMetadataException | RuntimeException e) {
+                if (batch.size() == 1 && ++headAttempts >= maxAttempts) {
+                    reject(batch.get(0), e);
+                }
+
+                if (!retrying) {
+                    retrying = true;
+                    retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+                } else {
+                    retryDelayMillis = Math.min(retryDelayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+                }
+                retryAt = nanoTime.getAsLong() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+                logger.logError(
+                        "Unable to save "
+                                + batch.size()
+                                + " entries of the metadata journal, retrying in "
+                                + retryDelayMillis
+                                + " ms",
+                        e);
+                return;
+            }
+
+            if (retrying) {
+                retrying = false;
+                logger.logInfo("Saving the entries of the metadata journal again");
+            }
+
+            headAttempts = 0;
+            release(batch);
+        }
+    }
+
+    int pendingCount() {
+        synchronized (appendLock) {
+            return pending.size();
+        }
+    }
+
+    private void append(List<PartnerMetadata> metadata, List<MessageLink> messageLinks)
+            throws PartnerMetadataException {
+        startIfNeeded();
+
+        long appendedUpTo;
+        synchronized (appendLock) {
+            JournalEntry entry = new JournalEntry(nextSequence, metadata, messageLinks);
+            try {
+                write(ENTRY_PREFIX + formatter.convertToJsonString(entry) + "\n");
+            } catch (IOException | FormatterProcessingException e) {
+                throw new PartnerMetadataException("Unable to write to the metadata journal", e);
+            }
+            nextSequence++;
+            appendedUpTo = appendedBytes;
+            hold(entry);
+        }
+
+        sync(appendedUpTo);
+    }
+
+    /** Flushes the journal to disk, unless another save already flushed it past the given byte. */
+    private void sync(long appendedUpTo) throws PartnerMetadataException {
+        synchronized (syncLock) {
+            if (syncedBytes >= appendedUpTo) {
+                return;
+            }
+
+            long syncingUpTo;
+            synchronized (appendLock) {
+                syncingUpTo = appendedBytes;
+            }
+
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new PartnerMetadataException("Unable to flush the metadata journal", e);
+            }
+            syncedBytes = syncingUpTo;
+        }
+    }
+
+    private void write(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            appendedBytes += channel.write(buffer);
+        }
+    }
+
+    private void hold(JournalEntry entry) {
+        pending.add(entry);
+        for (PartnerMetadata metadata : entry.metadata()) {
+            putIfNotNull(metadata.receivedSubmissionId(), metadata);
+            putIfNotNull(metadata.sentSubmissionId(), metadata);
+        }
+    }
+
+    private void putIfNotNull(String submissionId, PartnerMetadata metadata) {
+        if (submissionId != null) {
+            pendingMetadata.put(submissionId, metadata);
+        }
+    }
+
+    private void release(List<JournalEntry> batch) {
+        synchronized (appendLock) {
+            for (JournalEntry entry : batch) {
+                // the batch was taken from the head of the pending entries, which are only ever
+                // added to the tail while it was saved
+                pending.pollFirst();
+                for (PartnerMetadata metadata : entry.metadata()) {
+                    // a later version that is still pending stays readable
+                    removeIfNotNull(metadata.receivedSubmissionId(), metadata);
+                    removeIfNotNull(metadata.sentSubmissionId(), metadata);
+                }
+            }
+
+            // the checkpoint isn't flushed, if it's lost the saved entries are just saved again
+            try {
+                if (pending.isEmpty()) {
+                    channel.truncate(0);
+                } else {
+                    write(CHECKPOINT_PREFIX + batch.get(batch.size() - 1).sequence() + "\n");
+                }
+            } catch (IOException e) {
+                logger.logWarning(
+                        "Unable to checkpoint the metadata journal: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Moves the entry aside to the rejected file, where it can be looked into and saved by hand,
+     * and releases it from the journal. The entry is kept in the journal if it can't be moved.
+     */
+    private void reject(JournalEntry entry, Exception cause) {
+        Path rejectedPath =
+                journalPath.resolveSibling(journalPath.getFileName() + REJECTED_SUFFIX);
+        try {
+            Files.writeString(
+                    rejectedPath,
+                    ENTRY_PREFIX + formatter.convertToJsonString(entry) + "\n",
+                    StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException | FormatterProcessingException e) {
+            logger.logError("Unable to move aside the entry " + entry.sequence(), e);
+            return;
+        }
+
+        logger.logError(
+                "Moved the entry "
+                        + entry.sequence()
+                        + " of the metadata journal aside to "
+                        + rejectedPath
+                        + " after "
+                        + headAttempts
+                        + " failed attempts to save it",
+                cause);
+        headAttempts = 0;
+        release(List.of(entry));
+    }
+
+    /**
+     * Finds the pending metadata of the same placer order number that was sent by or to the sending
+     * facility of the given metadata, the same way the other storage matches the saved metadata.
+     */
+    private Set<String> pendingMetadataToLink(PartnerMetadata metadata) {
+        if (metadata.placerOrderNumber() == null) {
+            return Set.of();
+        }
+
+        MessageLinkKey key =
+                new MessageLinkKey(metadata.placerOrderNumber(), metadata.sendingFacilityDetails());
+        Set<String> linkedSubmissionIds = new HashSet<>();
+        for (PartnerMetadata pendingMetadata : pendingMetadata.values()) {
+            if (!pendingMetadata.receivedSubmissionId().equals(metadata.receivedSubmissionId())
+                    && MessageLinkKey.keysOf(pendingMetadata).contains(key)) {
+                linkedSubmissionIds.add(pendingMetadata.receivedSubmissionId());
+            }
+        }
+        return linkedSubmissionIds;
+    }
+
+    private void removeIfNotNull(String submissionId, PartnerMetadata metadata) {
+        if (submissionId != null) {
+            pendingMetadata.remove(submissionId, metadata);
+        }
+    }
+
+    /**
+     * Merges the entries into a single unit of work. The last version of each metadata is kept, and
+     * the message links with the same ID are merged into one with all of their message IDs. The
+     * metadata with a placer order number is asked to be linked, for the storages that link the
+     * messages themselves.
+     */
+    static PartnerMetadataUnitOfWork mergeEntries(List<JournalEntry> entries) {
+        PartnerMetadataUnitOfWork unitOfWork = new PartnerMetadataUnitOfWork();
+        Map<UUID, MessageLink> messageLinks = new LinkedHashMap<>();
+
+        for (JournalEntry entry : entries) {
+            for (PartnerMetadata metadata : entry.metadata()) {
+                unitOfWork.saveMetadata(metadata);
+                if (metadata.placerOrderNumber() != null) {
+                    unitOfWork.linkMessages(metadata);
+                }
+            }
+            for (MessageLink messageLink : entry.messageLinks()) {
+                messageLinks.merge(
+                        messageLink.getLinkId(),
+                        messageLink,
+                        (saved, added) -> {
+                            MessageLink merged =
+                                    new MessageLink(saved.getLinkId(), saved.getMessageIds());
+                            merged.addMessageIds(added.getMessageIds());
+                            return merged;
+                        });
+            }
+        }
+
+        messageLinks.values().forEach(unitOfWork::saveMessageLink);
+        return unitOfWork;
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+
+        List<JournalEntry> entries = new ArrayList<>();
+        long checkpoint = -1;
+        for (String line : Files.readAllLines(journalPath, StandardCharsets.UTF_8)) {
+            try {
+                if (line.startsWith(CHECKPOINT_PREFIX)) {
+                    checkpoint = Long.parseLong(line.substring(CHECKPOINT_PREFIX.length()));
+                } else if (line.startsWith(ENTRY_PREFIX)) {
+                    entries.add(
+                            formatter.convertJsonToObject(
+                                    line.substring(ENTRY_PREFIX.length()),
+                                    new TypeReference<>() {}));
+                }
+            } catch (NumberFormatException | FormatterProcessingException e) {
+                // a crash while appending can leave the last line half written
+                logger.logWarning("Skipping a line of the metadata journal that can't be read");
+            }
+        }
+
+        synchronized (appendLock) {
+            // in case an earlier start replayed the journal but then failed to open it
+            pending.clear();
+            pendingMetadata.clear();
+            for (JournalEntry entry : entries) {
+                if (entry.sequence() > checkpoint) {
+                    hold(entry);
+                }
+                nextSequence = Math.max(nextSequence, entry.sequence() + 1);
+            }
+
+            if (!pending.isEmpty()) {
+                logger.logInfo(
+                        "Replaying {} entries of the metadata journal {}",
+                        pending.size(),
+                        journalPath);
+            }
+        }
+    }
+
+    /** Stops draining the journal and forgets its entries, which are replayed when it's reused. */
+    void stop() {
+        synchronized (startLock) {
+            started = false;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // nothing left to write to it
+                }
+                channel = null;
+            }
+
+            synchronized (appendLock) {
+                pending.clear();
+                pendingMetadata.clear();
+                appendedBytes = 0;
+                nextSequence = 0;
+                retrying = false;
+                headAttempts = 0;
+            }
+            synchronized (syncLock) {
+                syncedBytes = 0;
+            }
+        }
+    }
+
+    record JournalEntry(
+            long sequence, List<PartnerMetadata> metadata, List<MessageLink> messageLinks) {}
+}
@@ -0,0 +1,100 @@
+package gov.hhs.cdc.trustedintermediary.external.reportstream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Stops sending requests to a ReportStream endpoint after it fails too many times in a row. Once
+ * the breaker has been open for a while, a single probe request is let through: the breaker closes
+ * if the probe succeeds, and opens again if it fails.
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String endpoint;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtMillis;
+    private boolean probeInFlight;
+
+    private long successes;
+    private long failures;
+    private long rejections;
+    private long retries;
+
+    CircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    String endpoint() {
+        return endpoint;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    /** Returns whether a request can be sent, letting through one probe once the breaker can be */
+    synchronized boolean tryAcquire(long openMillis) {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAtMillis >= openMillis) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+
+        if (state == State.CLOSED || (state == State.HALF_OPEN && !probeInFlight)) {
+            probeInFlight = state == State.HALF_OPEN;
+            return true;
+        }
+
+        rejections++;
+        return false;
+    }
+
+    /** Returns whether the success closed the breaker */
+    synchronized boolean onSuccess() {
+        successes++;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state == State.CLOSED) {
+            return false;
+        }
+
+        state = State.CLOSED;
+        return true;
+    }
+
+    /** Returns whether the failure opened the breaker */
+    synchronized boolean onFailure(int failureThreshold) {
+        failures++;
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == State.OPEN
+                || (state == State.CLOSED && consecutiveFailures < failureThreshold)) {
+            return false;
+        }
+
+        state = State.OPEN;
+        openedAtMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    synchronized void onRetry() {
+        retries++;
+    }
+
+    synchronized Map<String, Object> statistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("Endpoint", endpoint);
+        statistics.put("State", state.name());
+        statistics.put("Successes", successes);
+        statistics.put("Failures", failures);
+        statistics.put("Rejections", rejections);
+        statistics.put("Retries", retries);
+        return statistics;
+    }
+}
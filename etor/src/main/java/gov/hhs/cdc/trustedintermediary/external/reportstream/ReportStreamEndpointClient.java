@@ -11,16 +11,36 @@ import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import gov.hhs.cdc.trustedintermediary.wrappers.MetricMetadata;
 import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException;
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets;
+import gov.hhs.cdc.trustedintermediary.wrappers.TokenGenerationException;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException;
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference;
+import java.net.ConnectException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 import javax.inject.Inject;
 
-/** Implementation of the RSEndpointClient interface for interacting with ReportStream endpoints */
+/**
+ * Implementation of the RSEndpointClient interface for interacting with ReportStream endpoints.
+ * Only one request for a new ReportStream token is made at a time, the callers that need a token
+ * while it's being requested wait for that same request. Once a token is received, a new one is
+ * requested in the background when a fraction of its lifetime has passed (set with
+ * REPORT_STREAM_TOKEN_REFRESH_FRACTION), so the callers normally find a valid token in the cache.
+ * The background refresh runs on its own thread, so no caller waits on it.
+ */
 public class ReportStreamEndpointClient implements RSEndpointClient {
     private static final String RS_URL_PREFIX =
             ApplicationContext.getProperty("REPORT_STREAM_URL_PREFIX");
@@ -52,6 +72,32 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
 
     @Inject MetricMetadata metadata;
 
+    static final double DEFAULT_TOKEN_REFRESH_FRACTION = 0.75;
+
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    static final int DEFAULT_RETRY_BASE_MILLIS = 200;
+    static final int DEFAULT_RETRY_MAX_MILLIS = 2000;
+    // the same as the default response timeout of the HTTP client, so all the attempts of a
+    // request together take about as long as a single attempt is allowed to
+    static final int DEFAULT_RETRY_BUDGET_MILLIS = 30000;
+    static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+    static final int DEFAULT_BREAKER_OPEN_MILLIS = 30000;
+
+    static final String AUTH_ENDPOINT = "auth";
+    static final String WATERS_ENDPOINT = "waters";
+    static final String HISTORY_ENDPOINT = "history";
+    static final String DELIVERY_ENDPOINT = "delivery";
+
+    // one breaker per endpoint, so a failing endpoint doesn't stop the requests to the others
+    final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    // the token request in flight, if any, which the callers that need a token share
+    private final AtomicReference<CompletableFuture<String>> tokenRequest =
+            new AtomicReference<>();
+    private ScheduledFuture<?> scheduledTokenRefresh;
+    ScheduledExecutorService scheduler;
+    LongSupplier nanoTime = System::nanoTime;
+
     private static final ReportStreamEndpointClient INSTANCE = new ReportStreamEndpointClient();
 
     public static ReportStreamEndpointClient getInstance() {
@@ -62,28 +108,31 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
 
     protected String requestAuthEndpoint() throws ReportStreamEndpointClientException {
         logger.logInfo("Requesting token from ReportStream");
-        String ourPrivateKey;
-        String response;
         try {
-            ourPrivateKey = retrievePrivateKey();
-            String senderToken =
-                    jwt.generateToken(
-                            CLIENT_NAME,
-                            CLIENT_NAME,
-                            CLIENT_NAME,
-                            RS_DOMAIN_NAME,
-                            300,
-                            ourPrivateKey);
-            String body = composeAuthRequestBody(senderToken);
-            response = client.post(RS_AUTH_API_URL, RS_AUTH_API_HEADERS, body);
+            String body = composeAuthRequestBody(generateSenderToken(retrievePrivateKey()));
+            return sendWithRetries(
+                    AUTH_ENDPOINT,
+                    true,
+                    () -> client.post(RS_AUTH_API_URL, RS_AUTH_API_HEADERS, body));
         } catch (Exception e) {
+            evictPrivateKeyIfRejected(e);
             throw new ReportStreamEndpointClientException(
                     "Error getting the API token from ReportStream", e);
         }
-        // only cache our private key if we successfully authenticate to RS
-        cacheOurPrivateKeyIfNotCachedAlready(ourPrivateKey);
+    }
 
-        return response;
+    /**
+     * Removes our private key from the cache when ReportStream rejected the sender token signed
+     * with it, so the next token request retrieves the key again instead of waiting for the cached
+     * one to expire after the key was rotated
+     */
+    private void evictPrivateKeyIfRejected(Throwable failure) {
+        if (failure instanceof HttpClientException httpClientException
+                && httpClientException.getStatusCode() == 401) {
+            logger.logWarning(
+                    "ReportStream rejected our sender token, retrieving our private key again");
+            cache.remove(OUR_PRIVATE_KEY_ID);
+        }
     }
 
     @Override
@@ -91,17 +140,13 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
             throws ReportStreamEndpointClientException {
         logger.logInfo("Sending payload to ReportStream");
 
-        Map<String, String> headers =
-                Map.of(
-                        "Authorization",
-                        "Bearer " + bearerToken,
-                        "client",
-                        CLIENT_NAME,
-                        "Content-Type",
-                        "application/fhir+ndjson");
-
         try {
-            return client.post(RS_WATERS_API_URL, headers, body);
+            // the payload may have been received when there's no response, so it's only sent
+            // again when ReportStream couldn't have taken it
+            return sendWithRetries(
+                    WATERS_ENDPOINT,
+                    false,
+                    () -> client.post(RS_WATERS_API_URL, watersHeaders(bearerToken), body));
         } catch (HttpClientException e) {
             throw new ReportStreamEndpointClientException(
                     "Error POSTing the payload to ReportStream", e);
@@ -117,7 +162,7 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
 
         try {
             String url = RS_HISTORY_API_URL.replace("{id}", submissionId);
-            return client.get(url, headers);
+            return sendWithRetries(HISTORY_ENDPOINT, true, () -> client.get(url, headers));
         } catch (HttpClientException e) {
             throw new ReportStreamEndpointClientException(
                     "Error GETting the history from ReportStream", e);
@@ -133,7 +178,7 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
 
         try {
             String url = RS_DELIVERY_API_URL.replace("{id}", reportId);
-            return client.get(url, headers);
+            return sendWithRetries(DELIVERY_ENDPOINT, true, () -> client.get(url, headers));
         } catch (HttpClientException e) {
             throw new ReportStreamEndpointClientException(
                     "Error GETting deliveries from ReportStream", e);
@@ -143,7 +188,10 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
     protected String requestToken() throws ReportStreamEndpointClientException {
         logger.logInfo("Requesting token from ReportStream");
 
-        String response = requestAuthEndpoint();
+        return extractAccessToken(requestAuthEndpoint());
+    }
+
+    private String extractAccessToken(String response) throws ReportStreamEndpointClientException {
         try {
             Map<String, String> responseObject =
                     formatter.convertJsonToObject(response, new TypeReference<>() {});
@@ -165,11 +213,108 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
             return token;
         }
 
-        token = requestToken();
+        try {
+            return refreshToken().join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof ReportStreamEndpointClientException clientException) {
+                throw clientException;
+            }
+            throw new ReportStreamEndpointClientException(
+                    "Error getting the API token from ReportStream", cause);
+        }
+    }
 
-        cache.put(RS_TOKEN_CACHE_ID, token);
+    /**
+     * Requests a new token unless a request is already in flight, in which case its future is
+     * returned instead. The new token is cached and its refresh is scheduled before the future
+     * completes.
+     */
+    private CompletableFuture<String> refreshToken() {
+        CompletableFuture<String> refresh = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = tokenRequest.compareAndExchange(null, refresh);
+        if (inFlight != null) {
+            logger.logDebug("Waiting for the ReportStream token already being requested");
+            return inFlight;
+        }
+
+        String newToken;
+        try {
+            newToken = requestToken();
+            cache.put(RS_TOKEN_CACHE_ID, newToken);
+            scheduleTokenRefresh(newToken);
+        } catch (ReportStreamEndpointClientException | RuntimeException e) {
+            // cleared first, so a caller after a failure makes a new request
+            tokenRequest.set(null);
+            refresh.completeExceptionally(e);
+            return refresh;
+        }
 
-        return token;
+        tokenRequest.set(null);
+        refresh.complete(newToken);
+        return refresh;
+    }
+
+    void scheduleTokenRefresh(String token) {
+        long delayMillis;
+        try {
+            LocalDateTime expirationDate = jwt.getExpirationDate(token);
+            if (expirationDate == null) {
+                return;
+            }
+            long lifetimeMillis =
+                    Duration.between(LocalDateTime.now(), expirationDate).toMillis();
+            if (lifetimeMillis <= 0) {
+                return;
+            }
+            delayMillis = (long) (lifetimeMillis * getTokenRefreshFraction());
+        } catch (RuntimeException e) {
+            logger.logWarning(
+                    "Unable to read the expiration of the ReportStream token to refresh it: {}",
+                    e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (scheduler == null) {
+                scheduler =
+                        Executors.newSingleThreadScheduledExecutor(
+                                runnable -> {
+                                    Thread thread = new Thread(runnable, "rs-token-refresh");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                });
+            }
+
+            if (scheduledTokenRefresh != null) {
+                scheduledTokenRefresh.cancel(false);
+            }
+            scheduledTokenRefresh =
+                    scheduler.schedule(
+                            this::refreshTokenInBackground, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void refreshTokenInBackground() {
+        logger.logInfo("Refreshing the ReportStream token in the background");
+
+        refreshToken()
+                .whenComplete(
+                        (newToken, throwable) -> {
+                            if (throwable != null) {
+                                // the next caller without a valid token requests one instead
+                                logger.logError(
+                                        "Unable to refresh the ReportStream token in the background",
+                                        throwable);
+                            }
+                        });
+    }
+
+    static double getTokenRefreshFraction() {
+        double fraction =
+                ApplicationContext.getDoubleProperty(
+                        "REPORT_STREAM_TOKEN_REFRESH_FRACTION", DEFAULT_TOKEN_REFRESH_FRACTION);
+        return fraction > 0 && fraction < 1 ? fraction : DEFAULT_TOKEN_REFRESH_FRACTION;
     }
 
     protected boolean isValidToken(String token) {
@@ -179,23 +324,227 @@ public class ReportStreamEndpointClient implements RSEndpointClient {
     }
 
     protected String retrievePrivateKey() throws SecretRetrievalException {
-        String key = cache.get(OUR_PRIVATE_KEY_ID);
-        if (key != null) {
-            return key;
+        return cache.get(OUR_PRIVATE_KEY_ID, secrets);
+    }
+
+    private String generateSenderToken(String ourPrivateKey) throws TokenGenerationException {
+        return jwt.generateToken(
+                CLIENT_NAME, CLIENT_NAME, CLIENT_NAME, RS_DOMAIN_NAME, 300, ourPrivateKey);
+    }
+
+    private static Map<String, String> watersHeaders(String bearerToken) {
+        return Map.of(
+                "Authorization",
+                "Bearer " + bearerToken,
+                "client",
+                CLIENT_NAME,
+                "Content-Type",
+                "application/fhir+ndjson");
+    }
+
+    /** Returns the failure of a future without the CompletionException its stages wrap it in */
+    static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause()
+                : throwable;
+    }
+
+    /**
+     * Sends the request through the circuit breaker of the endpoint, and sends it again after a
+     * growing, randomized delay while it fails in a way that can be retried. The retries stop
+     * before the time since the first attempt would go over REPORT_STREAM_RETRY_BUDGET_MILLIS, so
+     * the calling thread isn't held much longer than by a single request that times out.
+     */
+    String sendWithRetries(String endpoint, boolean idempotent, Request request)
+            throws HttpClientException {
+        CircuitBreaker breaker = circuitBreaker(endpoint);
+        int maxAttempts =
+                ApplicationContext.getPositiveIntProperty(
+                        "REPORT_STREAM_MAX_ATTEMPTS", DEFAULT_MAX_ATTEMPTS);
+        long budgetMillis =
+                ApplicationContext.getPositiveIntProperty(
+                        "REPORT_STREAM_RETRY_BUDGET_MILLIS", DEFAULT_RETRY_BUDGET_MILLIS);
+        long startedAt = nanoTime.getAsLong();
+        long totalDelayMillis = 0;
+
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.tryAcquire(getBreakerOpenMillis())) {
+                throw circuitOpen(breaker);
+            }
+
+            try {
+                String response = request.send();
+                recordSuccess(breaker);
+                if (attempt > 1) {
+                    logger.logInfo(
+                            "The ReportStream {} request succeeded on attempt {} after {} ms of retry delays",
+                            endpoint,
+                            attempt,
+                            totalDelayMillis);
+                }
+                return response;
+            } catch (HttpClientException e) {
+                recordFailure(breaker, e);
+                if (attempt >= maxAttempts || !isRetryable(e, idempotent)) {
+                    logGivingUp(endpoint, attempt, totalDelayMillis);
+                    throw e;
+                }
+
+                long delayMillis = backoffMillis(attempt);
+                long elapsedMillis =
+                        TimeUnit.NANOSECONDS.toMillis(nanoTime.getAsLong() - startedAt);
+                if (elapsedMillis + delayMillis > budgetMillis) {
+                    logger.logWarning(
+                            "Not retrying the ReportStream {} request, waiting {} ms more would go over its {} ms retry budget",
+                            endpoint,
+                            delayMillis,
+                            budgetMillis);
+                    logGivingUp(endpoint, attempt, totalDelayMillis);
+                    throw e;
+                }
+
+                logRetry(breaker, attempt, delayMillis, e);
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                totalDelayMillis += delayMillis;
+            } catch (RuntimeException e) {
+                recordFailure(breaker, e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the failure is likely to go away by itself. A request that isn't idempotent
+     * is only sent again when ReportStream couldn't have received it, or told us it didn't take it.
+     */
+    static boolean isRetryable(Throwable failure, boolean idempotent) {
+        if (!(failure instanceof HttpClientException httpClientException)) {
+            return false;
+        }
+
+        int statusCode = httpClientException.getStatusCode();
+        if (statusCode == 0) {
+            return idempotent || causedBy(failure, ConnectException.class);
+        }
+
+        if (statusCode == 429 || statusCode == 503) {
+            return true;
         }
 
-        key = secrets.getKey(OUR_PRIVATE_KEY_ID);
+        return idempotent
+                && (statusCode == 408
+                        || statusCode == 500
+                        || statusCode == 502
+                        || statusCode == 504);
+    }
+
+    /** Returns whether the failure says ReportStream is unhealthy, instead of the request is bad */
+    static boolean isEndpointFailure(Throwable failure) {
+        if (!(failure instanceof HttpClientException httpClientException)) {
+            return true;
+        }
+
+        int statusCode = httpClientException.getStatusCode();
+        return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /** A capped exponential delay with full jitter, so the retries of many callers spread out */
+    static long backoffMillis(int attempt) {
+        long base =
+                ApplicationContext.getPositiveIntProperty(
+                        "REPORT_STREAM_RETRY_BASE_MILLIS", DEFAULT_RETRY_BASE_MILLIS);
+        long max =
+                ApplicationContext.getPositiveIntProperty(
+                        "REPORT_STREAM_RETRY_MAX_MILLIS", DEFAULT_RETRY_MAX_MILLIS);
+        long cap = Math.min(max, base << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    CircuitBreaker circuitBreaker(String endpoint) {
+        return circuitBreakers.computeIfAbsent(endpoint, CircuitBreaker::new);
+    }
 
-        return key;
+    private void logRetry(
+            CircuitBreaker breaker, int attempt, long delayMillis, Throwable failure) {
+        breaker.onRetry();
+        logger.logWarning(
+                "Attempt {} of the ReportStream {} request failed, retrying in {} ms: {}",
+                attempt,
+                breaker.endpoint(),
+                delayMillis,
+                failure.getMessage());
     }
 
-    void cacheOurPrivateKeyIfNotCachedAlready(String privateKey) {
-        String key = cache.get(OUR_PRIVATE_KEY_ID);
-        if (key != null) {
+    private void logGivingUp(String endpoint, int attempts, long totalDelayMillis) {
+        if (attempts > 1) {
+            logger.logWarning(
+                    "The ReportStream {} request failed after {} attempts and {} ms of retry delays",
+                    endpoint,
+                    attempts,
+                    totalDelayMillis);
+        }
+    }
+
+    private void recordSuccess(CircuitBreaker breaker) {
+        if (breaker.onSuccess()) {
+            logger.logInfo(
+                    "The circuit breaker of the ReportStream {} endpoint closed",
+                    breaker.endpoint());
+            logger.logMap("ReportStream circuit breaker statistics:", breaker.statistics());
+        }
+    }
+
+    private void recordFailure(CircuitBreaker breaker, Throwable failure) {
+        // ReportStream answered, so a rejected request doesn't count against the endpoint
+        if (!isEndpointFailure(failure)) {
+            recordSuccess(breaker);
             return;
         }
 
-        cache.put(OUR_PRIVATE_KEY_ID, privateKey);
+        int failureThreshold =
+                ApplicationContext.getPositiveIntProperty(
+                        "REPORT_STREAM_BREAKER_FAILURE_THRESHOLD",
+                        DEFAULT_BREAKER_FAILURE_THRESHOLD);
+        if (breaker.onFailure(failureThreshold)) {
+            logger.logWarning(
+                    "The circuit breaker of the ReportStream {} endpoint opened for {} ms",
+                    breaker.endpoint(),
+                    getBreakerOpenMillis());
+            logger.logMap("ReportStream circuit breaker statistics:", breaker.statistics());
+        }
+    }
+
+    private static HttpClientException circuitOpen(CircuitBreaker breaker) {
+        return new HttpClientException(
+                "Not sending the request, the circuit breaker of the ReportStream "
+                        + breaker.endpoint()
+                        + " endpoint is open",
+                null);
+    }
+
+    private static int getBreakerOpenMillis() {
+        return ApplicationContext.getPositiveIntProperty(
+                "REPORT_STREAM_BREAKER_OPEN_MILLIS", DEFAULT_BREAKER_OPEN_MILLIS);
+    }
+
+    private static boolean causedBy(Throwable failure, Class<? extends Throwable> type) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A blocking request to ReportStream */
+    @FunctionalInterface
+    interface Request {
+        String send() throws HttpClientException;
     }
 
     protected String composeAuthRequestBody(String senderToken) {
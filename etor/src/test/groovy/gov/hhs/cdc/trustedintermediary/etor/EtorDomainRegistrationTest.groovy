@@ -6,16 +6,22 @@ import gov.hhs.cdc.trustedintermediary.context.ApplicationContext
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
 import gov.hhs.cdc.trustedintermediary.domainconnector.DomainRequest
 import gov.hhs.cdc.trustedintermediary.domainconnector.DomainResponse
+import gov.hhs.cdc.trustedintermediary.domainconnector.DomainResponseBodyWriter
 import gov.hhs.cdc.trustedintermediary.domainconnector.DomainResponseHelper
 import gov.hhs.cdc.trustedintermediary.domainconnector.HttpEndpoint
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageRequestHandler
 import gov.hhs.cdc.trustedintermediary.etor.messages.UnableToSendMessageException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataConverter
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataOrchestrator
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage
 import gov.hhs.cdc.trustedintermediary.etor.operationoutcomes.FhirMetadata
 import gov.hhs.cdc.trustedintermediary.etor.orders.OrderController
 import gov.hhs.cdc.trustedintermediary.etor.orders.OrderResponse
@@ -23,11 +29,23 @@ import gov.hhs.cdc.trustedintermediary.etor.orders.SendOrderUseCase
 import gov.hhs.cdc.trustedintermediary.etor.results.ResultController
 import gov.hhs.cdc.trustedintermediary.etor.results.ResultResponse
 import gov.hhs.cdc.trustedintermediary.etor.results.SendResultUseCase
+import gov.hhs.cdc.trustedintermediary.external.inmemory.CachingPartnerMetadataStorage
+import gov.hhs.cdc.trustedintermediary.external.inmemory.InMemoryMessageLinkStorage
+import gov.hhs.cdc.trustedintermediary.external.inmemory.InMemoryPartnerMetadataStorage
+import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
+import gov.hhs.cdc.trustedintermediary.external.localfile.FilePartnerMetadataStorage
+import gov.hhs.cdc.trustedintermediary.external.localfile.JournalingPartnerMetadataStorage
 import gov.hhs.cdc.trustedintermediary.external.localfile.MockRSEndpointClient
 import gov.hhs.cdc.trustedintermediary.external.reportstream.ReportStreamEndpointClient
 import gov.hhs.cdc.trustedintermediary.wrappers.FhirParseException
 import gov.hhs.cdc.trustedintermediary.wrappers.HapiFhir
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
+import java.nio.file.Files
+import java.time.Instant
+import java.util.function.BiConsumer
 import spock.lang.Specification
 
 class EtorDomainRegistrationTest extends Specification {
@@ -49,6 +67,7 @@ class EtorDomainRegistrationTest extends Specification {
         def ordersEndpoint = new HttpEndpoint("POST", EtorDomainRegistration.ORDERS_API_ENDPOINT, true)
         def metadataEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.METADATA_API_ENDPOINT, true)
         def consolidatedOrdersEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.CONSOLIDATED_SUMMARY_API_ENDPOINT, true)
+        def aggregateSummaryEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.AGGREGATE_SUMMARY_API_ENDPOINT, true)
 
         when:
         def endpoints = domainRegistration.domainRegistration()
@@ -58,6 +77,7 @@ class EtorDomainRegistrationTest extends Specification {
         endpoints.get(ordersEndpoint) != null
         endpoints.get(metadataEndpoint) != null
         endpoints.get(consolidatedOrdersEndpoint) != null
+        endpoints.get(aggregateSummaryEndpoint) != null
     }
 
     def "domain registration has endpoints when DB_URL is not found"() {
@@ -66,6 +86,7 @@ class EtorDomainRegistrationTest extends Specification {
         def ordersEndpoint = new HttpEndpoint("POST", EtorDomainRegistration.ORDERS_API_ENDPOINT, true)
         def metadataEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.METADATA_API_ENDPOINT, true)
         def consolidatedOrdersEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.CONSOLIDATED_SUMMARY_API_ENDPOINT, true)
+        def aggregateSummaryEndpoint = new HttpEndpoint("GET", EtorDomainRegistration.AGGREGATE_SUMMARY_API_ENDPOINT, true)
         TestApplicationContext.addEnvironmentVariable("DB_URL", "")
 
         when:
@@ -76,6 +97,7 @@ class EtorDomainRegistrationTest extends Specification {
         endpoints.get(ordersEndpoint) != null
         endpoints.get(metadataEndpoint) != null
         endpoints.get(consolidatedOrdersEndpoint) != null
+        endpoints.get(aggregateSummaryEndpoint) != null
     }
 
     def "RSEndpointClient uses the right implementation depending if REPORT_STREAM_URL_PREFIX is present or not"() {
@@ -99,6 +121,69 @@ class EtorDomainRegistrationTest extends Specification {
         ReportStreamEndpointClient.isInstance(implementation)
     }
 
+    def "PartnerMetadataStorage is cached depending if PARTNER_METADATA_CACHE_ENABLED is true or not"() {
+        given:
+        def domainRegistration = new EtorDomainRegistration()
+        TestApplicationContext.addEnvironmentVariable("DB_URL", "")
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_ENABLED", "")
+        domainRegistration.domainRegistration()
+        def uncachedImplementation = ApplicationContext.getImplementation(PartnerMetadataStorage.class)
+
+        then:
+        FilePartnerMetadataStorage.isInstance(uncachedImplementation)
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_ENABLED", "true")
+        domainRegistration.domainRegistration()
+        def cachedImplementation = ApplicationContext.getImplementation(PartnerMetadataStorage.class)
+
+        then:
+        CachingPartnerMetadataStorage.isInstance(cachedImplementation)
+        ApplicationContext.getImplementation(FilePartnerMetadataStorage.class) == FilePartnerMetadataStorage.getInstance()
+    }
+
+    def "the storages are in memory when IN_MEMORY_STORAGE_ENABLED is true and DB_URL is not found"() {
+        given:
+        def domainRegistration = new EtorDomainRegistration()
+        TestApplicationContext.addEnvironmentVariable("DB_URL", "")
+        TestApplicationContext.addEnvironmentVariable("IN_MEMORY_STORAGE_ENABLED", "true")
+
+        when:
+        domainRegistration.domainRegistration()
+
+        then:
+        ApplicationContext.getImplementation(PartnerMetadataStorage.class) == InMemoryPartnerMetadataStorage.getInstance()
+        ApplicationContext.getImplementation(MessageLinkStorage.class) == InMemoryMessageLinkStorage.getInstance()
+    }
+
+    def "PartnerMetadataStorage is journaled when PARTNER_METADATA_JOURNAL_PATH is set"() {
+        given:
+        def domainRegistration = new EtorDomainRegistration()
+        TestApplicationContext.addEnvironmentVariable("DB_URL", "")
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_JOURNAL_PATH", Files.createTempDirectory("journal").resolve("metadata.journal").toString())
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_ENABLED", "")
+        domainRegistration.domainRegistration()
+        def journaledImplementation = ApplicationContext.getImplementation(PartnerMetadataStorage.class)
+
+        then:
+        JournalingPartnerMetadataStorage.isInstance(journaledImplementation)
+        ApplicationContext.getImplementation(JournalingPartnerMetadataStorage.class) == journaledImplementation
+        ApplicationContext.getImplementation(FilePartnerMetadataStorage.class) == FilePartnerMetadataStorage.getInstance()
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_ENABLED", "true")
+        domainRegistration.domainRegistration()
+        def cachedImplementation = ApplicationContext.getImplementation(PartnerMetadataStorage.class)
+
+        then:
+        CachingPartnerMetadataStorage.isInstance(cachedImplementation)
+        JournalingPartnerMetadataStorage.isInstance(ApplicationContext.getImplementation(JournalingPartnerMetadataStorage.class))
+    }
+
     def "has an OpenAPI specification"() {
         given:
         def domainRegistration = new EtorDomainRegistration()
@@ -306,35 +391,97 @@ class EtorDomainRegistrationTest extends Specification {
     }
 
 
-    def "Consolidated metadata endpoint happy path"() {
+    def "Consolidated metadata endpoint returns the first page when no page is requested"() {
+        given:
+        def expectedStatusCode = 200
+        def expectedResultMap = ["12345678": ["status": "FAILED", "stale": true, "failureReason": "you done goof"]]
+
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+
+        def mockResponseHelper = Mock(DomainResponseHelper)
+        TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
+
+        def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
+        mockOrchestrator.getConsolidatedMetadata(new PartnerMetadataQuery("testSender", null, null, null, null, EtorDomainRegistration.DEFAULT_CONSOLIDATED_SUMMARY_PAGE_SIZE), _ as BiConsumer) >> { PartnerMetadataQuery query, BiConsumer consumer ->
+            expectedResultMap.each { id, summary -> consumer.accept(id, summary) }
+            return null
+        }
+        TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def res = connector.handleConsolidatedSummary(request)
+
+        then:
+        res.statusCode == expectedStatusCode
+        1 * mockResponseHelper.constructOkStreamingResponse(_ as DomainResponseBodyWriter) >> new DomainResponse(expectedStatusCode)
+        0 * mockResponseHelper.constructOkResponse(_)
+    }
+
+    def "Consolidated metadata endpoint returns a page and the cursor of the next one"() {
         given:
         def expectedStatusCode = 200
 
         def expectedResultMap = ["12345678": ["status": "FAILED", "stale": true, "failureReason": "you done goof"]]
+        def nextCursor = new PartnerMetadataCursor(Instant.now(), "12345678")
 
         def request = new DomainRequest()
         request.setPathParams(["sender": "testSender"])
+        request.setQueryParams(["limit": ["1"]])
 
         def connector = new EtorDomainRegistration()
         TestApplicationContext.register(EtorDomainRegistration, connector)
 
+        def mockResponseHelper = Mock(DomainResponseHelper)
+        TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
+
+        def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
+        mockOrchestrator.getConsolidatedMetadata(new PartnerMetadataQuery("testSender", null, null, null, null, 1), _ as BiConsumer) >> { PartnerMetadataQuery query, BiConsumer consumer ->
+            expectedResultMap.each { id, summary -> consumer.accept(id, summary) }
+            return nextCursor
+        }
+        TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def res = connector.handleConsolidatedSummary(request)
+
+        then:
+        res.statusCode == expectedStatusCode
+        res.headers[EtorDomainRegistration.NEXT_CURSOR_HEADER] == nextCursor.encode()
+        1 * mockResponseHelper.constructOkStreamingResponse(_ as DomainResponseBodyWriter) >> new DomainResponse(expectedStatusCode)
+    }
+
+    def "Consolidated metadata endpoint doesn't return a cursor after the last page"() {
+        given:
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+        request.setQueryParams(["limit": ["10"]])
+
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
 
         def mockResponseHelper = Mock(DomainResponseHelper)
+        mockResponseHelper.constructOkStreamingResponse(_) >> new DomainResponse(200)
         TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
 
         def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
-        mockOrchestrator.getConsolidatedMetadata(_ as String) >> expectedResultMap
+        mockOrchestrator.getConsolidatedMetadata(_ as PartnerMetadataQuery, _ as BiConsumer) >> null
         TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
 
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
         def res = connector.handleConsolidatedSummary(request)
-        def actualStatusCode = res.statusCode
 
         then:
-        actualStatusCode == expectedStatusCode
-        1 * mockResponseHelper.constructOkResponse(expectedResultMap) >> new DomainResponse(expectedStatusCode)
+        !res.headers.containsKey(EtorDomainRegistration.NEXT_CURSOR_HEADER)
     }
 
     def "Consolidated metadata endpoint fails with a 500"() {
@@ -343,6 +490,7 @@ class EtorDomainRegistrationTest extends Specification {
 
         def request = new DomainRequest()
         request.setPathParams(["sender": "testSender"])
+        request.setQueryParams(queryParams)
 
         def connector = new EtorDomainRegistration()
         TestApplicationContext.register(EtorDomainRegistration, connector)
@@ -351,7 +499,7 @@ class EtorDomainRegistrationTest extends Specification {
         TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
 
         def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
-        mockOrchestrator.getConsolidatedMetadata(_ as String) >> { throw new PartnerMetadataException("woops") }
+        mockOrchestrator.getConsolidatedMetadata(_ as PartnerMetadataQuery, _ as BiConsumer) >> { throw new PartnerMetadataException("woops") }
         TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
 
         TestApplicationContext.injectRegisteredImplementations()
@@ -362,6 +510,189 @@ class EtorDomainRegistrationTest extends Specification {
         then:
         response.statusCode == 500
         1 * mockResponseHelper.constructErrorResponse(expectedStatusCode, _ as String) >> new DomainResponse(expectedStatusCode)
+        0 * mockResponseHelper.constructOkStreamingResponse(_)
+
+        where:
+        queryParams << [[:], ["limit": ["10"]]]
+    }
+
+    def "Consolidated metadata endpoint fails with a 400 when a query parameter is invalid"() {
+        given:
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+        request.setQueryParams([(name): [value]])
+
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+
+        def mockResponseHelper = Mock(DomainResponseHelper)
+        TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
+
+        def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
+        TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def response = connector.handleConsolidatedSummary(request)
+
+        then:
+        response.statusCode == 400
+        1 * mockResponseHelper.constructErrorResponse(400, _ as IllegalArgumentException) >> new DomainResponse(400)
+        0 * mockOrchestrator.getConsolidatedMetadata(_, _)
+
+        where:
+        name     | value
+        "since"  | "yesterday"
+        "until"  | "2024-13-01T00:00:00Z"
+        "status" | "BONKED"
+        "limit"  | "lots"
+        "limit"  | "0"
+        "limit"  | String.valueOf(EtorDomainRegistration.MAX_CONSOLIDATED_SUMMARY_PAGE_SIZE + 1)
+        "cursor" | "not a cursor"
+    }
+
+    def "Aggregate summary endpoint returns the counts of the sender"() {
+        given:
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+        def summary = ["total": 1L, "stale": 1L, "statuses": ["PENDING": 1L, "DELIVERED": 0L, "FAILED": 0L]]
+
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+
+        def mockResponseHelper = Mock(DomainResponseHelper)
+        TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
+
+        def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
+        TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def response = connector.handleAggregateSummary(request)
+
+        then:
+        response.statusCode == 200
+        1 * mockOrchestrator.getAggregateMetadataSummary("testSender") >> summary
+        1 * mockResponseHelper.constructOkResponse(summary) >> new DomainResponse(200)
+    }
+
+    def "Aggregate summary endpoint fails with a 500"() {
+        given:
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+
+        def mockResponseHelper = Mock(DomainResponseHelper)
+        TestApplicationContext.register(DomainResponseHelper, mockResponseHelper)
+
+        def mockOrchestrator = Mock(PartnerMetadataOrchestrator)
+        mockOrchestrator.getAggregateMetadataSummary(_ as String) >> { throw new PartnerMetadataException("woops") }
+        TestApplicationContext.register(PartnerMetadataOrchestrator, mockOrchestrator)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def response = connector.handleAggregateSummary(request)
+
+        then:
+        response.statusCode == 500
+        1 * mockResponseHelper.constructErrorResponse(500, _ as String) >> new DomainResponse(500)
+    }
+
+    def "consolidatedSummaryQueryFromRequest reads the criteria from the query parameters"() {
+        given:
+        def cursor = new PartnerMetadataCursor(Instant.parse("2024-01-15T00:00:00Z"), "afterId")
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+        request.setQueryParams([
+            "since" : ["2024-01-01T00:00:00Z"],
+            "until" : ["2024-02-01T00:00:00Z"],
+            "status": ["failed"],
+            "cursor": [cursor.encode()],
+            "limit" : ["25"]
+        ])
+
+        when:
+        def query = new EtorDomainRegistration().consolidatedSummaryQueryFromRequest(request)
+
+        then:
+        query == new PartnerMetadataQuery("testSender", Instant.parse("2024-01-01T00:00:00Z"), Instant.parse("2024-02-01T00:00:00Z"), PartnerMetadataStatus.FAILED, cursor, 25)
+    }
+
+    def "consolidatedSummaryQueryFromRequest uses the default page size when there is no limit"() {
+        given:
+        def request = new DomainRequest()
+        request.setPathParams(["sender": "testSender"])
+        request.setQueryParams(queryParams)
+
+        when:
+        def query = new EtorDomainRegistration().consolidatedSummaryQueryFromRequest(request)
+
+        then:
+        query.limit() == EtorDomainRegistration.DEFAULT_CONSOLIDATED_SUMMARY_PAGE_SIZE
+
+        where:
+        queryParams << [[:], ["cursor": [new PartnerMetadataCursor(null, "afterId").encode()]]]
+    }
+
+    def "writeConsolidatedSummary writes the summaries as a JSON object"() {
+        given:
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def metadata = [
+            "1": ["status": "DELIVERED", "stale": false, "failureReason": null],
+            "2": ["status": "FAILED", "stale": true, "failureReason": "you \"done\" goof"]
+        ]
+        def outputStream = new ByteArrayOutputStream()
+
+        when:
+        connector.writeConsolidatedSummary(metadata, outputStream)
+        def written = Jackson.getInstance().convertJsonToObject(outputStream.toString("UTF-8"), new TypeReference<Map<String, Map<String, Object>>>() {})
+
+        then:
+        written == metadata
+    }
+
+    def "writeConsolidatedSummary writes an empty JSON object when there are no summaries"() {
+        given:
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def outputStream = new ByteArrayOutputStream()
+
+        when:
+        connector.writeConsolidatedSummary([:], outputStream)
+
+        then:
+        outputStream.toString("UTF-8") == "{}"
+    }
+
+    def "writeConsolidatedSummary fails when a summary can't be converted to JSON"() {
+        given:
+        def connector = new EtorDomainRegistration()
+        TestApplicationContext.register(EtorDomainRegistration, connector)
+
+        def mockFormatter = Mock(Formatter)
+        mockFormatter.convertToJsonString(_) >> { throw new FormatterProcessingException("woops", new Exception()) }
+        TestApplicationContext.register(Formatter, mockFormatter)
+
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        connector.writeConsolidatedSummary(["1": ["status": "DELIVERED"]], new ByteArrayOutputStream())
+
+        then:
+        def exception = thrown(IOException)
+        exception.cause instanceof FormatterProcessingException
     }
 
     def "handleMessageRequest happy path"() {
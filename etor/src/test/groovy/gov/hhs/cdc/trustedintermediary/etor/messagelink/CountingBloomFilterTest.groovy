@@ -0,0 +1,61 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink
+
+import spock.lang.Specification
+
+class CountingBloomFilterTest extends Specification {
+
+    def "count is zero for keys that were never added"() {
+        given:
+        def filter = new CountingBloomFilter(1000, 0.01)
+
+        expect:
+        filter.count("DogCow") == 0
+    }
+
+    def "count is never lower than the number of times a key was added"() {
+        given:
+        def filter = new CountingBloomFilter(1000, 0.01)
+
+        when:
+        filter.add("DogCow")
+        filter.add("DogCow")
+        filter.add("Moof")
+
+        then:
+        filter.count("DogCow") >= 2
+        filter.count("Moof") >= 1
+    }
+
+    def "count saturates instead of overflowing"() {
+        given:
+        def filter = new CountingBloomFilter(10, 0.01)
+
+        when:
+        200.times { filter.add("DogCow") }
+
+        then:
+        filter.count("DogCow") == Byte.MAX_VALUE
+    }
+
+    def "false positive rate stays around the requested rate"() {
+        given:
+        def expectedInsertions = 10000
+        def filter = new CountingBloomFilter(expectedInsertions, 0.01)
+        expectedInsertions.times { filter.add("added-" + it) }
+
+        when:
+        def falsePositives = (0..<expectedInsertions).count { filter.count("not-added-" + it) > 0 }
+
+        then:
+        falsePositives < expectedInsertions * 0.02
+    }
+
+    def "filter is sized from the expected insertions and false positive rate"() {
+        when:
+        def filter = new CountingBloomFilter(1000, 0.01)
+
+        then:
+        filter.size() == 9586
+        filter.hashCount() == 7
+    }
+}
@@ -0,0 +1,175 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage
+import java.util.concurrent.ScheduledExecutorService
+import spock.lang.Specification
+
+class MessageLinkKeyFilterTest extends Specification {
+
+    def mockStorage = Mock(PartnerMetadataStorage)
+    def mockScheduler = Mock(ScheduledExecutorService)
+
+    def sendingApp = new MessageHdDataType("sending_app_name", "sending_app_id", "sending_app_type")
+    def sendingFacility = new MessageHdDataType("sending_facility_name", "sending_facility_id", "sending_facility_type")
+    def receivingApp = new MessageHdDataType("receiving_app_name", "receiving_app_id", "receiving_app_type")
+    def receivingFacility = new MessageHdDataType("receiving_facility_name", "receiving_facility_id", "receiving_facility_type")
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(MessageLinkKeyFilter, MessageLinkKeyFilter.getInstance())
+        TestApplicationContext.register(PartnerMetadataStorage, mockStorage)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        // rebuilds are triggered explicitly in these tests instead of in the background
+        MessageLinkKeyFilter.getInstance().scheduler = mockScheduler
+        MessageLinkKeyFilter.getInstance().maxCarriedKeys = MessageLinkKeyFilter.MAX_CARRIED_KEYS
+    }
+
+    def "mightHaveMessagesToLink is false when the placer order number is null"() {
+        given:
+        def metadata = metadata("1", null, sendingFacility, receivingFacility)
+
+        expect:
+        !MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(metadata)
+    }
+
+    def "mightHaveMessagesToLink is false for the first message seen for its link key"() {
+        given:
+        mockStorage.readMessageLinkKeys() >> []
+        def metadata = metadata("1", UUID.randomUUID().toString(), sendingFacility, receivingFacility)
+        MessageLinkKeyFilter.getInstance().rebuild()
+
+        when:
+        MessageLinkKeyFilter.getInstance().add(metadata)
+
+        then:
+        !MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(metadata)
+    }
+
+    def "mightHaveMessagesToLink is true when another message has the same sending facility"() {
+        given:
+        mockStorage.readMessageLinkKeys() >> []
+        def placerOrderNumber = UUID.randomUUID().toString()
+        def order = metadata("1", placerOrderNumber, sendingFacility, receivingFacility)
+        def otherOrder = metadata("2", placerOrderNumber, sendingFacility, receivingFacility)
+        MessageLinkKeyFilter.getInstance().rebuild()
+
+        when:
+        MessageLinkKeyFilter.getInstance().add(order)
+        MessageLinkKeyFilter.getInstance().add(otherOrder)
+
+        then:
+        MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(otherOrder)
+    }
+
+    def "mightHaveMessagesToLink is true when another message's receiving facility is this message's sending facility"() {
+        given:
+        def placerOrderNumber = UUID.randomUUID().toString()
+        mockStorage.readMessageLinkKeys() >> [
+            new MessageLinkKey(placerOrderNumber, receivingFacility),
+            new MessageLinkKey(placerOrderNumber, sendingFacility)
+        ]
+        def result = metadata("2", placerOrderNumber, receivingFacility, sendingFacility)
+        MessageLinkKeyFilter.getInstance().rebuild()
+
+        when:
+        MessageLinkKeyFilter.getInstance().add(result)
+
+        then:
+        MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(result)
+    }
+
+    def "mightHaveMessagesToLink accounts for a message whose sending and receiving facilities are the same"() {
+        given:
+        mockStorage.readMessageLinkKeys() >> []
+        def metadata = metadata("1", UUID.randomUUID().toString(), sendingFacility, sendingFacility)
+        MessageLinkKeyFilter.getInstance().rebuild()
+
+        when:
+        MessageLinkKeyFilter.getInstance().add(metadata)
+
+        then:
+        !MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(metadata)
+    }
+
+    def "keys added while the filter is being rebuilt are kept in the new filter"() {
+        given:
+        def placerOrderNumber = UUID.randomUUID().toString()
+        def order = metadata("1", placerOrderNumber, sendingFacility, receivingFacility)
+        def otherOrder = metadata("2", placerOrderNumber, sendingFacility, receivingFacility)
+        mockStorage.readMessageLinkKeys() >> {
+            // saved after the rebuild started, but before the storage was read
+            MessageLinkKeyFilter.getInstance().add(order)
+            return []
+        }
+
+        when:
+        MessageLinkKeyFilter.getInstance().rebuild()
+        MessageLinkKeyFilter.getInstance().add(otherOrder)
+
+        then:
+        MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(otherOrder)
+    }
+
+    def "a failed rebuild keeps the previous filter"() {
+        given:
+        def placerOrderNumber = UUID.randomUUID().toString()
+        def order = metadata("1", placerOrderNumber, sendingFacility, receivingFacility)
+        def otherOrder = metadata("2", placerOrderNumber, sendingFacility, receivingFacility)
+        mockStorage.readMessageLinkKeys() >> [] >> { throw new PartnerMetadataException("DogCow") }
+        MessageLinkKeyFilter.getInstance().rebuild()
+        MessageLinkKeyFilter.getInstance().add(order)
+
+        when:
+        MessageLinkKeyFilter.getInstance().rebuild()
+        MessageLinkKeyFilter.getInstance().add(otherOrder)
+
+        then:
+        MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(otherOrder)
+        noExceptionThrown()
+    }
+
+    def "a rebuild starts early once enough keys were added since the last one, without dropping any of them"() {
+        given:
+        def placerOrderNumber = UUID.randomUUID().toString()
+        def order = metadata("1", placerOrderNumber, sendingFacility, receivingFacility)
+        def otherOrder = metadata("2", placerOrderNumber, sendingFacility, receivingFacility)
+        mockStorage.readMessageLinkKeys() >> []
+        MessageLinkKeyFilter.getInstance().rebuild()
+        MessageLinkKeyFilter.getInstance().maxCarriedKeys = 3
+
+        when:
+        MessageLinkKeyFilter.getInstance().add(order)
+        3.times {
+            MessageLinkKeyFilter.getInstance().add(metadata("3", UUID.randomUUID().toString(), sendingFacility, receivingFacility))
+        }
+
+        then:
+        1 * mockScheduler.execute(_ as Runnable)
+
+        when:
+        // the order isn't saved yet when the storage is read
+        MessageLinkKeyFilter.getInstance().rebuild()
+        MessageLinkKeyFilter.getInstance().add(otherOrder)
+
+        then:
+        MessageLinkKeyFilter.getInstance().mightHaveMessagesToLink(otherOrder)
+    }
+
+    def "keyOf includes the placer order number and all the facility fields"() {
+        expect:
+        MessageLinkKeyFilter.keyOf("123", sendingFacility) != MessageLinkKeyFilter.keyOf("123", receivingFacility)
+        MessageLinkKeyFilter.keyOf("123", sendingFacility) != MessageLinkKeyFilter.keyOf("1234", sendingFacility)
+        MessageLinkKeyFilter.keyOf("123", null) == "123"
+    }
+
+    private PartnerMetadata metadata(String receivedSubmissionId, String placerOrderNumber, MessageHdDataType sending, MessageHdDataType receiving) {
+        return new PartnerMetadata(receivedSubmissionId, "hash", PartnerMetadataMessageType.ORDER, sendingApp, sending, receivingApp, receiving, placerOrderNumber)
+    }
+}
@@ -0,0 +1,42 @@
+package gov.hhs.cdc.trustedintermediary.etor.messagelink
+
+import gov.hhs.cdc.trustedintermediary.PojoTestUtils
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import spock.lang.Specification
+
+class MessageLinkKeyTest extends Specification {
+    def "test getters and setters"() {
+        when:
+        PojoTestUtils.validateGettersAndSetters(MessageLinkKey)
+
+        then:
+        noExceptionThrown()
+    }
+
+    def "keysOf returns a key for the sending and receiving facilities"() {
+        given:
+        def sendingFacility = new MessageHdDataType("sending_facility_name", "sending_facility_id", "sending_facility_type")
+        def receivingFacility = new MessageHdDataType("receiving_facility_name", "receiving_facility_id", "receiving_facility_type")
+        def metadata = new PartnerMetadata("receivedId", "hash", PartnerMetadataMessageType.ORDER, null, sendingFacility, null, receivingFacility, "placerOrderNumber")
+
+        when:
+        def keys = MessageLinkKey.keysOf(metadata)
+
+        then:
+        keys == [
+            new MessageLinkKey("placerOrderNumber", sendingFacility),
+            new MessageLinkKey("placerOrderNumber", receivingFacility)
+        ]
+    }
+
+    def "keysOf returns no keys when there is no placer order number"() {
+        given:
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+
+        expect:
+        MessageLinkKey.keysOf(metadata).isEmpty()
+    }
+}
@@ -1,7 +1,6 @@
 package gov.hhs.cdc.trustedintermediary.etor.messages
 
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
-import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
@@ -112,62 +111,68 @@ class SendMessageHelperTest extends Specification {
     }
 
     def "linkMessage logs warning and ends silently when passed a null id"() {
+        given:
+        def nullIdMetadata = new PartnerMetadata(
+                null,
+                new Random().nextInt().toString(),
+                PartnerMetadataMessageType.RESULT,
+                sendingApp,
+                sendingFacility,
+                receivingApp,
+                receivingFacility,
+                placerOrderNumber)
+
         when:
-        SendMessageHelper.getInstance().linkMessage(null)
+        SendMessageHelper.getInstance().linkMessage(nullIdMetadata)
 
         then:
         1 * mockLogger.logWarning(_, _)
+        0 * mockOrchestrator.linkMessage(_)
         notThrown(Exception)
     }
 
-    def "linkMessage logs error when there's a PartnerMetadataException"() {
-        given:
-        mockOrchestrator.findMessagesIdsToLink(_ as String) >> {throw new PartnerMetadataException("")}
-
+    def "linkMessage hands the message to the orchestrator to link"() {
         when:
-        SendMessageHelper.getInstance().linkMessage("1")
+        SendMessageHelper.getInstance().linkMessage(partnerMetadata)
 
         then:
-        1 * mockLogger.logError(_, _)
-        notThrown(PartnerMetadataException)
+        1 * mockOrchestrator.linkMessage(partnerMetadata)
+        0 * mockLogger.logError(_, _)
     }
 
-    def "linkMessage logs error when there's a MessageLinkException"() {
+    def "linkMessage logs error when there's a PartnerMetadataException"() {
         given:
-        mockOrchestrator.findMessagesIdsToLink(_ as String) >> ["1"]
-        mockOrchestrator.linkMessages(_ as Set<String>) >> {throw new MessageLinkException("", new Exception())}
+        mockOrchestrator.linkMessage(partnerMetadata) >> { throw new PartnerMetadataException("") }
 
         when:
-        SendMessageHelper.getInstance().linkMessage("1")
+        SendMessageHelper.getInstance().linkMessage(partnerMetadata)
 
         then:
         1 * mockLogger.logError(_, _)
-        notThrown(MessageLinkException)
+        notThrown(PartnerMetadataException)
     }
 
-    def "linkMessage finishes silently if the list of message ids is null"() {
-        given:
-        mockOrchestrator.findMessagesIdsToLink(_ as String) >> null
-
+    def "beginUnitOfWork and commitUnitOfWork delegate to the orchestrator"() {
         when:
-        SendMessageHelper.getInstance().linkMessage("1")
+        SendMessageHelper.getInstance().beginUnitOfWork()
+        SendMessageHelper.getInstance().commitUnitOfWork()
 
         then:
-        0 * mockLogger.logWarning(_, _)
-        0 * mockLogger.logError(_, _)
-        notThrown(Exception)
+        1 * mockOrchestrator.beginUnitOfWork()
+
+        then:
+        1 * mockOrchestrator.commitUnitOfWork()
     }
 
-    def "linkMessage finishes silently if the list of message ids is empty"() {
+    def "commitUnitOfWork logs error and continues when commitUnitOfWork throws error"() {
         given:
-        mockOrchestrator.findMessagesIdsToLink(_ as String) >> []
+        mockOrchestrator.commitUnitOfWork() >> { throw new PartnerMetadataException("Error") }
 
         when:
-        SendMessageHelper.getInstance().linkMessage("1")
+        SendMessageHelper.getInstance().commitUnitOfWork()
 
         then:
-        0 * mockLogger.logWarning(_, _)
-        0 * mockLogger.logError(_, _)
-        notThrown(Exception)
+        1 * mockLogger.logError(_, _)
+        noExceptionThrown()
     }
 }
@@ -0,0 +1,57 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner
+
+import java.time.Instant
+import spock.lang.Specification
+
+class PartnerMetadataCursorTest extends Specification {
+
+    def "a cursor survives being encoded and decoded"() {
+        given:
+        def cursor = new PartnerMetadataCursor(timeReceived, "received|Id")
+
+        when:
+        def decoded = PartnerMetadataCursor.decode(cursor.encode())
+
+        then:
+        decoded == cursor
+
+        where:
+        timeReceived << [
+            Instant.parse("2024-05-01T12:34:56.789Z"),
+            null
+        ]
+    }
+
+    def "the encoded cursor is safe to use in a URL"() {
+        when:
+        def encoded = new PartnerMetadataCursor(Instant.now(), "receivedId?&=/+").encode()
+
+        then:
+        encoded ==~ /[A-Za-z0-9_-]+/
+    }
+
+    def "of uses the time received and received submission ID of the metadata"() {
+        given:
+        def timeReceived = Instant.now()
+        def metadata = new PartnerMetadata("receivedId", "sentId", timeReceived, null, "hash", PartnerMetadataStatus.PENDING, null, PartnerMetadataMessageType.ORDER, null, null, null, null, null)
+
+        expect:
+        PartnerMetadataCursor.of(metadata) == new PartnerMetadataCursor(timeReceived, "receivedId")
+    }
+
+    def "decode rejects invalid cursors"() {
+        when:
+        PartnerMetadataCursor.decode(encodedCursor)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        encodedCursor << [
+            "not base64!",
+            Base64.getUrlEncoder().encodeToString("no separator".getBytes()),
+            Base64.getUrlEncoder().encodeToString("2024-05-01T12:34:56Z|".getBytes()),
+            Base64.getUrlEncoder().encodeToString("not a time|receivedId".getBytes())
+        ]
+    }
+}
@@ -3,6 +3,7 @@ package gov.hhs.cdc.trustedintermediary.etor.metadata.partner
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
 import gov.hhs.cdc.trustedintermediary.etor.RSEndpointClient
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKeyFilter
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
 import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
@@ -11,12 +12,14 @@ import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
 import java.time.Instant
+import java.util.function.Consumer
 import spock.lang.Specification
 
 class PartnerMetadataOrchestratorTest extends Specification {
 
     def mockPartnerMetadataStorage
     def mockMessageLinkStorage
+    def mockMessageLinkKeyFilter
     def mockClient
     def mockFormatter
     def receivedSubmissionId = "receivedSubmissionId"
@@ -40,6 +43,7 @@ class PartnerMetadataOrchestratorTest extends Specification {
         TestApplicationContext.init()
         mockPartnerMetadataStorage = Mock(PartnerMetadataStorage)
         mockMessageLinkStorage = Mock(MessageLinkStorage)
+        mockMessageLinkKeyFilter = Mock(MessageLinkKeyFilter)
         mockFormatter = Mock(Formatter)
         mockClient = Mock(RSEndpointClient)
 
@@ -65,6 +69,7 @@ class PartnerMetadataOrchestratorTest extends Specification {
 
         TestApplicationContext.register(PartnerMetadataOrchestrator, PartnerMetadataOrchestrator.getInstance())
         TestApplicationContext.register(MessageLinkStorage, mockMessageLinkStorage)
+        TestApplicationContext.register(MessageLinkKeyFilter, mockMessageLinkKeyFilter)
         TestApplicationContext.register(PartnerMetadataStorage, mockPartnerMetadataStorage)
 
         TestApplicationContext.register(RSEndpointClient, mockClient)
@@ -699,7 +704,9 @@ class PartnerMetadataOrchestratorTest extends Specification {
             placerOrderNumber
             )
         ]
-        mockPartnerMetadataStorage.readMetadataForSender(_ as String) >> mockMetadata
+        mockPartnerMetadataStorage.readMetadataForSender(PartnerMetadataQuery.forSender("sender"), _ as Consumer) >> { PartnerMetadataQuery query, Consumer consumer ->
+            mockMetadata.each { consumer.accept(it) }
+        }
 
         when:
         def result = PartnerMetadataOrchestrator.getInstance().getConsolidatedMetadata("sender")
@@ -711,6 +718,64 @@ class PartnerMetadataOrchestratorTest extends Specification {
         result["123456789"]["failureReason"] == failure
     }
 
+    def "getConsolidatedMetadata returns the cursor of the next page only when the page is full"() {
+        given:
+        def timeReceived = Instant.now()
+        def metadata = [
+            new PartnerMetadata("1", null, timeReceived.minusSeconds(1), null, null, PartnerMetadataStatus.DELIVERED, null, PartnerMetadataMessageType.ORDER, sendingApp, sendingFacility, receivingApp, receivingFacility, placerOrderNumber),
+            new PartnerMetadata("2", null, timeReceived, null, null, PartnerMetadataStatus.FAILED, "bonked", PartnerMetadataMessageType.ORDER, sendingApp, sendingFacility, receivingApp, receivingFacility, placerOrderNumber)
+        ]
+        mockPartnerMetadataStorage.readMetadataForSender(_ as PartnerMetadataQuery, _ as Consumer) >> { PartnerMetadataQuery query, Consumer consumer ->
+            metadata.each { consumer.accept(it) }
+        }
+        def summaries = [:]
+
+        when:
+        def nextCursor = PartnerMetadataOrchestrator.getInstance().getConsolidatedMetadata(new PartnerMetadataQuery("sender", null, null, null, null, limit), { id, summary -> summaries.put(id, summary) })
+
+        then:
+        summaries.keySet() == ["1", "2"] as Set
+        summaries["2"]["failureReason"] == "bonked"
+        nextCursor == (hasNextPage ? new PartnerMetadataCursor(timeReceived, "2") : null)
+
+        where:
+        limit | hasNextPage
+        2     | true
+        3     | false
+        null  | false
+    }
+
+    def "getAggregateMetadataSummary adds up the status counts of the sender"() {
+        given:
+        mockPartnerMetadataStorage.readStatusCountsForSender("sender") >> [
+            new PartnerMetadataStatusCount("receiver1", PartnerMetadataStatus.DELIVERED, 5),
+            new PartnerMetadataStatusCount("receiver2", PartnerMetadataStatus.DELIVERED, 2),
+            new PartnerMetadataStatusCount("receiver1", PartnerMetadataStatus.PENDING, 3),
+            new PartnerMetadataStatusCount(null, PartnerMetadataStatus.FAILED, 1)
+        ]
+
+        when:
+        def summary = PartnerMetadataOrchestrator.getInstance().getAggregateMetadataSummary("sender")
+
+        then:
+        summary["total"] == 11
+        summary["stale"] == 4
+        summary["statuses"] == ["PENDING": 3L, "DELIVERED": 7L, "FAILED": 1L]
+    }
+
+    def "getAggregateMetadataSummary counts zero for every status when the sender has no metadata"() {
+        given:
+        mockPartnerMetadataStorage.readStatusCountsForSender("sender") >> []
+
+        when:
+        def summary = PartnerMetadataOrchestrator.getInstance().getAggregateMetadataSummary("sender")
+
+        then:
+        summary["total"] == 0
+        summary["stale"] == 0
+        summary["statuses"] == ["PENDING": 0L, "DELIVERED": 0L, "FAILED": 0L]
+    }
+
     def "findMessagesIdsToLink returns a list of message ids"() {
         given:
         def placerOrderNumber = "placerOrderNumber"
@@ -732,6 +797,33 @@ class PartnerMetadataOrchestratorTest extends Specification {
         result == Set.of(receivedSubmissionId1, receivedSubmissionId2)
     }
 
+    def "saving metadata adds it to the message link key filter before saving it"() {
+        when:
+        PartnerMetadataOrchestrator.getInstance().setMetadataStatusToFailed(receivedSubmissionId, "error")
+
+        then:
+        1 * mockPartnerMetadataStorage.readMetadata(receivedSubmissionId) >> Optional.of(testMetadata)
+
+        then:
+        1 * mockMessageLinkKeyFilter.add({ PartnerMetadata metadata -> metadata.receivedSubmissionId() == receivedSubmissionId })
+
+        then:
+        1 * mockPartnerMetadataStorage.saveMetadata({ PartnerMetadata metadata -> metadata.deliveryStatus() == PartnerMetadataStatus.FAILED })
+    }
+
+    def "saving metadata doesn't add it to the message link key filter when the storage links the messages itself"() {
+        given:
+        mockPartnerMetadataStorage.linksMessagesOnSave() >> true
+        mockPartnerMetadataStorage.readMetadata(receivedSubmissionId) >> Optional.of(testMetadata)
+
+        when:
+        PartnerMetadataOrchestrator.getInstance().setMetadataStatusToFailed(receivedSubmissionId, "error")
+
+        then:
+        0 * mockMessageLinkKeyFilter.add(_)
+        1 * mockPartnerMetadataStorage.saveMetadata(_ as PartnerMetadata)
+    }
+
     def "linkMessages links messages successfully"() {
         given:
         def matchingMessageId = "matchingMessageId"
@@ -787,4 +879,169 @@ class PartnerMetadataOrchestratorTest extends Specification {
             ml.getLinkId() == existingLinkId && ml.getMessageIds() == Set.of(matchingMessageId, additionalMessageId, newMessageId)
         })
     }
+
+    def "metadata saved during a unit of work is read from it and only saved to the storage when it's committed"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.updateMetadataForSentMessage(receivedSubmissionId, "newSentSubmissionId")
+        orchestrator.setMetadataStatusToFailed(receivedSubmissionId, "error")
+
+        then:
+        1 * mockPartnerMetadataStorage.readMetadata(receivedSubmissionId) >> Optional.of(testMetadata)
+        0 * mockPartnerMetadataStorage.saveMetadata(_)
+        0 * mockPartnerMetadataStorage.saveUnitOfWork(_)
+
+        when:
+        orchestrator.commitUnitOfWork()
+
+        then:
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork ->
+            unitOfWork.metadata().size() == 1
+                    && unitOfWork.metadata().first().sentSubmissionId() == "newSentSubmissionId"
+                    && unitOfWork.metadata().first().deliveryStatus() == PartnerMetadataStatus.FAILED
+        })
+    }
+
+    def "committing the unit of work ends it"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        mockPartnerMetadataStorage.readMetadata(receivedSubmissionId) >> Optional.empty()
+        orchestrator.beginUnitOfWork()
+        orchestrator.commitUnitOfWork()
+
+        when:
+        orchestrator.setMetadataStatusToFailed(receivedSubmissionId, "error")
+
+        then:
+        1 * mockPartnerMetadataStorage.saveMetadata(_ as PartnerMetadata)
+        0 * mockPartnerMetadataStorage.saveUnitOfWork(_)
+    }
+
+    def "committing an empty unit of work doesn't save anything"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.commitUnitOfWork()
+
+        then:
+        0 * mockPartnerMetadataStorage.saveUnitOfWork(_)
+    }
+
+    def "linkMessages holds the message link in the unit of work until it's committed"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        def messageIdsToLink = Set.of("messageId1", "messageId2")
+        mockMessageLinkStorage.getMessageLink(_ as String) >> Optional.empty()
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.linkMessages(messageIdsToLink)
+
+        then:
+        0 * mockMessageLinkStorage.saveMessageLink(_)
+
+        when:
+        orchestrator.commitUnitOfWork()
+
+        then:
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork ->
+            unitOfWork.messageLinks().size() == 1
+                    && unitOfWork.messageLinks().first().getMessageIds() == messageIdsToLink
+        })
+    }
+
+    def "linkMessage leaves finding the messages to link to a storage that links them itself"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        mockPartnerMetadataStorage.linksMessagesOnSave() >> true
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.linkMessage(testMetadata)
+        orchestrator.commitUnitOfWork()
+
+        then:
+        0 * mockMessageLinkKeyFilter.mightHaveMessagesToLink(_)
+        0 * mockPartnerMetadataStorage.readMetadataForMessageLinking(_)
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork ->
+            unitOfWork.metadataToLink() as List == [testMetadata] && unitOfWork.messageLinks().isEmpty()
+        })
+    }
+
+    def "linkMessage finds the messages to link when the unit of work is committed for the other storages"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        mockMessageLinkKeyFilter.mightHaveMessagesToLink(testMetadata) >> true
+        mockMessageLinkStorage.getMessageLink(_ as String) >> Optional.empty()
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.linkMessage(testMetadata)
+
+        then:
+        0 * mockPartnerMetadataStorage.readMetadataForMessageLinking(_)
+
+        when:
+        orchestrator.commitUnitOfWork()
+
+        then:
+        1 * mockPartnerMetadataStorage.readMetadataForMessageLinking(testMetadata) >> Set.of("linkedSubmissionId")
+
+        then:
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork ->
+            unitOfWork.messageLinks().size() == 1
+                    && unitOfWork.messageLinks().first().getMessageIds() == Set.of("linkedSubmissionId", receivedSubmissionId)
+        })
+    }
+
+    def "linkMessage skips the lookup when there are definitely no messages to link"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        mockMessageLinkKeyFilter.mightHaveMessagesToLink(testMetadata) >> false
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.linkMessage(testMetadata)
+        orchestrator.commitUnitOfWork()
+
+        then:
+        0 * mockPartnerMetadataStorage.readMetadataForMessageLinking(_)
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork -> unitOfWork.messageLinks().isEmpty() })
+    }
+
+    def "the unit of work is still saved when finding the messages to link fails"() {
+        given:
+        def orchestrator = PartnerMetadataOrchestrator.getInstance()
+        mockMessageLinkKeyFilter.mightHaveMessagesToLink(testMetadata) >> true
+        mockPartnerMetadataStorage.readMetadataForMessageLinking(testMetadata) >> { throw new PartnerMetadataException("error") }
+        mockPartnerMetadataStorage.readMetadata(receivedSubmissionId) >> Optional.of(testMetadata)
+
+        when:
+        orchestrator.beginUnitOfWork()
+        orchestrator.setMetadataStatusToFailed(receivedSubmissionId, "error")
+        orchestrator.linkMessage(testMetadata)
+        orchestrator.commitUnitOfWork()
+
+        then:
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork -> unitOfWork.metadata().size() == 1 })
+        noExceptionThrown()
+    }
+
+    def "linkMessage links the message right away when there's no unit of work"() {
+        given:
+        mockPartnerMetadataStorage.linksMessagesOnSave() >> true
+
+        when:
+        PartnerMetadataOrchestrator.getInstance().linkMessage(testMetadata)
+
+        then:
+        1 * mockPartnerMetadataStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork unitOfWork ->
+            unitOfWork.metadataToLink() as List == [testMetadata]
+        })
+    }
 }
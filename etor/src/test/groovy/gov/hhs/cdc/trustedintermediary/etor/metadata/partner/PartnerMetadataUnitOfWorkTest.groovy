@@ -0,0 +1,56 @@
+package gov.hhs.cdc.trustedintermediary.etor.metadata.partner
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import spock.lang.Specification
+
+class PartnerMetadataUnitOfWorkTest extends Specification {
+
+    def "a new unit of work is empty"() {
+        expect:
+        new PartnerMetadataUnitOfWork().isEmpty()
+    }
+
+    def "readMetadata finds the metadata by its received or sent submission ID"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING).withSentSubmissionId("sentId")
+        unitOfWork.saveMetadata(metadata)
+
+        expect:
+        unitOfWork.readMetadata("receivedId") == Optional.of(metadata)
+        unitOfWork.readMetadata("sentId") == Optional.of(metadata)
+        unitOfWork.readMetadata("otherId").isEmpty()
+        !unitOfWork.isEmpty()
+    }
+
+    def "saveMetadata only keeps the last version of each metadata"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+        def failedMetadata = metadata.withDeliveryStatus(PartnerMetadataStatus.FAILED)
+
+        when:
+        unitOfWork.saveMetadata(metadata)
+        unitOfWork.saveMetadata(failedMetadata)
+
+        then:
+        unitOfWork.metadata().toList() == [failedMetadata]
+        unitOfWork.readMetadata("receivedId") == Optional.of(failedMetadata)
+    }
+
+    def "getMessageLink finds the message link of any of its message IDs"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
+
+        when:
+        unitOfWork.saveMessageLink(messageLink)
+
+        then:
+        unitOfWork.getMessageLink("messageId1") == Optional.of(messageLink)
+        unitOfWork.getMessageLink("messageId2") == Optional.of(messageLink)
+        unitOfWork.getMessageLink("messageId3").isEmpty()
+        unitOfWork.messageLinks().toList() == [messageLink]
+        !unitOfWork.isEmpty()
+    }
+}
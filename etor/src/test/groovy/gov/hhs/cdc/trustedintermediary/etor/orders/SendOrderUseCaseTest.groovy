@@ -36,7 +36,6 @@ class SendOrderUseCaseTest extends Specification {
         given:
         def receivedSubmissionId = "receivedId"
         def sentSubmissionId = "sentId"
-        def messagesIdsToLink = new HashSet<>(Set.of("messageId1", "messageId2"))
         def mockOrder = new OrderMock(null, null, null, null, null, null, null, null)
 
         TestApplicationContext.injectRegisteredImplementations()
@@ -49,8 +48,8 @@ class SendOrderUseCaseTest extends Specification {
         1 * mockSender.send(mockOrder) >> Optional.of(sentSubmissionId)
         1 * mockOrchestrator.updateMetadataForReceivedMessage(_ as PartnerMetadata)
         1 * mockOrchestrator.updateMetadataForSentMessage(receivedSubmissionId, sentSubmissionId)
-        1 * mockOrchestrator.findMessagesIdsToLink(receivedSubmissionId) >> messagesIdsToLink
-        1 * mockOrchestrator.linkMessages(messagesIdsToLink + receivedSubmissionId)
+        1 * mockOrchestrator.linkMessage({ PartnerMetadata metadata -> metadata.receivedSubmissionId() == receivedSubmissionId })
+        0 * mockOrchestrator.findMessagesIdsToLink(_)
     }
 
     def "send fails to send"() {
@@ -92,7 +91,6 @@ class SendOrderUseCaseTest extends Specification {
         then:
         1 * mockLogger.logError(_, _)
         1 * mockEngine.runRules(order)
-        1 * mockOrchestrator.findMessagesIdsToLink(receivedSubmissionId) >> Set.of()
         1 * mockSender.send(order) >> Optional.of("sentId")
     }
 
@@ -108,7 +106,6 @@ class SendOrderUseCaseTest extends Specification {
 
         then:
         1 * mockEngine.runRules(order)
-        1 * mockOrchestrator.findMessagesIdsToLink(_ as String) >> Set.of()
         1 * mockSender.send(order) >> Optional.of("sentId")
         1 * mockLogger.logError(_, partnerMetadataException)
     }
@@ -125,7 +122,25 @@ class SendOrderUseCaseTest extends Specification {
 
         then:
         1 * mockLogger.logWarning(_)
-        1 * mockOrchestrator.findMessagesIdsToLink(_ as String) >> Set.of()
         0 * mockOrchestrator.updateMetadataForSentMessage(_ as String, _ as String)
     }
+
+    def "convertAndSend saves the received metadata before sending and the rest together even when sending fails"() {
+        given:
+        mockSender.send(_) >> { throw new UnableToSendMessageException("DogCow", new NullPointerException()) }
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        SendOrderUseCase.getInstance().convertAndSend(Mock(Order), "receivedId")
+
+        then:
+        1 * mockOrchestrator.updateMetadataForReceivedMessage(_ as PartnerMetadata)
+        thrown(UnableToSendMessageException)
+
+        then:
+        1 * mockOrchestrator.beginUnitOfWork()
+
+        then:
+        1 * mockOrchestrator.commitUnitOfWork()
+    }
 }
@@ -89,4 +89,23 @@ class SendResultUseCaseTest extends Specification {
         1 * mockSender.send(result) >> Optional.of("sentId")
         1 * mockLogger.logError(_, _)
     }
+
+    def "convertAndSend saves the received metadata before sending and the rest together even when sending fails"() {
+        given:
+        mockSender.send(_) >> { throw new UnableToSendMessageException("DogCow", new NullPointerException()) }
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        SendResultUseCase.getInstance().convertAndSend(Mock(Result), "receivedId")
+
+        then:
+        1 * mockOrchestrator.updateMetadataForReceivedMessage(_ as PartnerMetadata)
+        thrown(UnableToSendMessageException)
+
+        then:
+        1 * mockOrchestrator.beginUnitOfWork()
+
+        then:
+        1 * mockOrchestrator.commitUnitOfWork()
+    }
 }
@@ -34,7 +34,7 @@ class DatabaseMessageLinkStorageTest extends Specification {
         def additionalMessageId = "additionalMessageId"
         def messageLink = new MessageLink(linkId, Set.of(getMessageId, additionalMessageId))
 
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> [
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> [
             [(linkId): getMessageId],
             [(linkId): additionalMessageId]
         ].toSet()
@@ -48,7 +48,7 @@ class DatabaseMessageLinkStorageTest extends Specification {
 
     def "getMessageLink returns empty optional when not exist"() {
         given:
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> [].toSet()
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> [].toSet()
 
         when:
         def actual = DatabaseMessageLinkStorage.getInstance().getMessageLink("mock_lookup")
@@ -59,7 +59,7 @@ class DatabaseMessageLinkStorageTest extends Specification {
 
     def "getMessageLink throws MessageLinkException if something goes wrong"() {
         given:
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> { throw new SQLException("Something went wrong!") }
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, Map<UUID, String>>, _) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabaseMessageLinkStorage.getInstance().getMessageLink("TestSubmissionId")
@@ -90,12 +90,12 @@ class DatabaseMessageLinkStorageTest extends Specification {
         DatabaseMessageLinkStorage.getInstance().saveMessageLink(mockMessageLinkData)
 
         then:
-        messageIdCount * mockDao.upsertData("message_link", _ as List<DbColumn>, _ as String)
+        messageIdCount * mockDao.upsertData("messageLink.upsert", "message_link", _ as List<DbColumn>, _ as String)
     }
 
     def "saveMessageLink unhappy path works"() {
         given:
-        mockDao.upsertData("message_link", _ as List<DbColumn>, _ as String) >> { throw new SQLException("Something went wrong!") }
+        mockDao.upsertData("messageLink.upsert", "message_link", _ as List<DbColumn>, _ as String) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabaseMessageLinkStorage.getInstance().saveMessageLink(mockMessageLinkData)
@@ -103,4 +103,78 @@ class DatabaseMessageLinkStorageTest extends Specification {
         then:
         thrown(MessageLinkException)
     }
+
+    def "mergeWithSavedMessageLinks keeps the message link when none of its message IDs are linked yet"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [:]
+
+        when:
+        def merged = DatabaseMessageLinkStorage.mergeWithSavedMessageLinks(mockTransaction, mockMessageLinkData)
+
+        then:
+        merged == mockMessageLinkData
+    }
+
+    def "mergeWithSavedMessageLinks reads the saved links of all the message IDs within the transaction"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        def mockConnection = Mock(Connection)
+        def mockStatement = Mock(PreparedStatement)
+        def mockArray = Mock(java.sql.Array)
+        def mockResultSet = Mock(ResultSet)
+        def savedLinkId = UUID.randomUUID()
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
+        mockResultSet.getString("link_id") >> savedLinkId.toString()
+        mockResultSet.getString("message_id") >> "messageId1"
+
+        when:
+        DatabaseMessageLinkStorage.mergeWithSavedMessageLinks(mockTransaction, messageLink)
+
+        then:
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> { Function<Connection, PreparedStatement> sqlGenerator, Function converter, collector ->
+            assert sqlGenerator.apply(mockConnection) == mockStatement
+            assert converter.apply(mockResultSet) == Map.entry(savedLinkId, "messageId1")
+            return [:]
+        }
+        1 * mockConnection.prepareStatement({ it.contains("message_id = ANY(?)") }) >> mockStatement
+        1 * mockConnection.createArrayOf("varchar", { it.toList().toSet() == Set.of("messageId1", "messageId2") }) >> mockArray
+        1 * mockStatement.setArray(1, mockArray)
+    }
+
+    def "mergeWithSavedMessageLinks merges the saved links into the one with the lowest ID"() {
+        given:
+        def firstSavedLinkId = new UUID(0, 1)
+        def secondSavedLinkId = new UUID(0, 2)
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [
+            (firstSavedLinkId): Set.of("messageId1", "messageId3"),
+            (secondSavedLinkId): Set.of("messageId2"),
+        ]
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
+
+        when:
+        def merged = DatabaseMessageLinkStorage.mergeWithSavedMessageLinks(mockTransaction, messageLink)
+
+        then:
+        merged.getLinkId() == firstSavedLinkId
+        merged.getMessageIds() == Set.of("messageId1", "messageId2", "messageId3")
+    }
+
+    def "mergeWithSavedMessageLinks keeps the ID of the message link when it was already saved"() {
+        given:
+        def messageLink = new MessageLink(new UUID(0, 2), Set.of("messageId1", "messageId2"))
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [
+            (new UUID(0, 1)): Set.of("messageId3"),
+            (messageLink.getLinkId()): Set.of("messageId1"),
+        ]
+
+        when:
+        def merged = DatabaseMessageLinkStorage.mergeWithSavedMessageLinks(mockTransaction, messageLink)
+
+        then:
+        merged.getLinkId() == messageLink.getLinkId()
+        merged.getMessageIds() == Set.of("messageId1", "messageId2", "messageId3")
+    }
 }
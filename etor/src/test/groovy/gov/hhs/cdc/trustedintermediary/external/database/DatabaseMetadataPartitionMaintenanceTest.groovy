@@ -0,0 +1,168 @@
+package gov.hhs.cdc.trustedintermediary.external.database
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import java.nio.file.Files
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.SQLException
+import java.sql.Types
+import java.util.concurrent.ScheduledExecutorService
+import java.util.function.Consumer
+import java.util.function.Function
+import java.util.zip.GZIPInputStream
+import spock.lang.Specification
+
+class DatabaseMetadataPartitionMaintenanceTest extends Specification {
+
+    def mockDao = Mock(DbDao)
+    def mockLogger = Mock(Logger)
+    def mockConnection = Mock(Connection)
+    def mockStatement = Mock(PreparedStatement)
+    def archiveDirectory = Files.createTempDirectory("metadata-archive")
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(DbDao, mockDao)
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(DatabaseMetadataPartitionMaintenance, DatabaseMetadataPartitionMaintenance.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        mockConnection.prepareStatement(_ as String) >> mockStatement
+        mockDao.runWithAdvisoryLock(_ as String, _ as Long, _ as DbLockedWork) >> { String queryName, long lockKey, DbLockedWork work ->
+            work.run()
+            true
+        }
+    }
+
+    def cleanup() {
+        archiveDirectory.toFile().deleteDir()
+    }
+
+    def "startIfNeeded only starts the maintenance once"() {
+        given:
+        def maintenance = DatabaseMetadataPartitionMaintenance.getInstance()
+        def mockScheduler = Mock(ScheduledExecutorService)
+        maintenance.scheduler = mockScheduler
+
+        when:
+        maintenance.startIfNeeded()
+
+        then:
+        maintenance.scheduler == mockScheduler
+        0 * mockScheduler._
+    }
+
+    def "maintain creates the partitions ahead without a retention by default"() {
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        1 * mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> { queryName, Function<Connection, PreparedStatement> sqlGenerator, converter, collector ->
+            sqlGenerator.apply(mockConnection)
+            []
+        }
+        1 * mockStatement.setInt(1, DatabaseMetadataPartitionMaintenance.DEFAULT_MONTHS_AHEAD as int)
+        1 * mockStatement.setNull(2, Types.INTEGER)
+    }
+
+    def "maintain passes the configured months ahead and retention"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("METADATA_PARTITION_MONTHS_AHEAD", "6")
+        TestApplicationContext.addEnvironmentVariable("METADATA_RETENTION_MONTHS", "12")
+
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        1 * mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> { queryName, Function<Connection, PreparedStatement> sqlGenerator, converter, collector ->
+            sqlGenerator.apply(mockConnection)
+            []
+        }
+        1 * mockStatement.setInt(1, 6)
+        1 * mockStatement.setInt(2, 12)
+    }
+
+    def "maintain archives and drops the detached partitions"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("METADATA_ARCHIVE_DIRECTORY", archiveDirectory.toString())
+        mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> ["metadata_p202401"]
+        mockDao.streamData(_ as String, _ as Function, _ as Function, _ as Consumer) >> { queryName, Function sqlGenerator, Function converter, Consumer consumer ->
+            consumer.accept('{"received_message_id":"1"}')
+            consumer.accept('{"received_message_id":"2"}')
+        }
+
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        1 * mockDao.fetchFirstData(_ as String, _ as Function, _ as Function) >> { queryName, Function<Connection, PreparedStatement> sqlGenerator, converter ->
+            sqlGenerator.apply(mockConnection)
+            "metadata_p202401"
+        }
+        1 * mockStatement.setString(1, "metadata_p202401")
+        def archive = archiveDirectory.resolve("metadata_p202401.jsonl.gz")
+        new GZIPInputStream(Files.newInputStream(archive)).text == '{"received_message_id":"1"}\n{"received_message_id":"2"}\n'
+        !Files.exists(archiveDirectory.resolve("metadata_p202401.jsonl.gz.partial"))
+    }
+
+    def "maintain leaves the detached partitions in the database when there isn't an archive directory"() {
+        given:
+        mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> ["metadata_p202401"]
+
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        0 * mockDao.streamData(_ as String, _, _, _)
+        0 * mockDao.fetchFirstData(_ as String, _, _)
+        1 * mockLogger.logWarning(_ as String, "metadata_p202401")
+    }
+
+    def "maintain doesn't drop a partition that couldn't be archived"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("METADATA_ARCHIVE_DIRECTORY", archiveDirectory.toString())
+        mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> ["metadata_p202401"]
+        mockDao.streamData(_ as String, _ as Function, _ as Function, _ as Consumer) >> { throw new SQLException("DogCow") }
+
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        0 * mockDao.fetchFirstData(_ as String, _, _)
+        1 * mockLogger.logError(_ as String, _ as SQLException)
+        !Files.exists(archiveDirectory.resolve("metadata_p202401.jsonl.gz"))
+    }
+
+    def "maintain logs an error when the partitions can't be maintained"() {
+        given:
+        mockDao.fetchManyData(_ as String, _ as Function, _ as Function, _) >> { throw new SQLException("DogCow") }
+
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        noExceptionThrown()
+        1 * mockLogger.logError(_ as String, _ as SQLException)
+    }
+
+    def "maintain skips the run while another instance holds the maintenance lock"() {
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().maintain()
+
+        then:
+        1 * mockDao.runWithAdvisoryLock(_ as String, DatabaseMetadataPartitionMaintenance.MAINTENANCE_LOCK_KEY, _ as DbLockedWork) >> false
+        0 * mockDao.fetchManyData(_ as String, _, _, _)
+        0 * mockLogger.logError(_ as String, _)
+    }
+
+    def "archive refuses anything that isn't a metadata partition"() {
+        when:
+        DatabaseMetadataPartitionMaintenance.getInstance().archive("metadata; DROP TABLE metadata", archiveDirectory)
+
+        then:
+        thrown(IllegalArgumentException)
+        0 * mockDao.streamData(_ as String, _, _, _)
+    }
+}
@@ -0,0 +1,185 @@
+package gov.hhs.cdc.trustedintermediary.external.database
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChange
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChangeListener
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationHandler
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationListener
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
+import java.sql.SQLException
+import spock.lang.Specification
+
+class DatabasePartnerMetadataNotificationsTest extends Specification {
+
+    def mockNotificationListener = Mock(NotificationListener)
+    def mockLogger = Mock(Logger)
+    def mockChangeListener = Mock(PartnerMetadataChangeListener)
+
+    def sendingFacility = new MessageHdDataType("sending_facility_name", "sending_facility_id", "sending_facility_type")
+    def receivingFacility = new MessageHdDataType("receiving_facility_name", "receiving_facility_id", "receiving_facility_type")
+    def metadata = new PartnerMetadata("receivedId", "hash", PartnerMetadataMessageType.ORDER, null, sendingFacility, null, receivingFacility, "placerOrderNumber").withSentSubmissionId("sentId")
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(NotificationListener, mockNotificationListener)
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(DatabasePartnerMetadataNotifications, DatabasePartnerMetadataNotifications.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        DatabasePartnerMetadataNotifications.getInstance().clearListeners()
+        DatabasePartnerMetadataNotifications.getInstance().addListener(mockChangeListener)
+    }
+
+    def "publish sends the changed submission IDs and message link keys within the transaction"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        def expectedChange = new PartnerMetadataChange(["receivedId", "sentId"], MessageLinkKey.keysOf(metadata))
+        String sentPayload = null
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().publish(mockTransaction, [metadata])
+
+        then:
+        1 * mockTransaction.sendNotification(DatabasePartnerMetadataNotifications.CHANNEL, _ as String) >> { String channel, String payload ->
+            sentPayload = payload
+        }
+        sentPayload.contains(DatabasePartnerMetadataNotifications.ORIGIN)
+        Jackson.getInstance().convertJsonToObject(sentPayload, new TypeReference<DatabasePartnerMetadataNotifications.PartnerMetadataNotification>() {}).change() == expectedChange
+    }
+
+    def "publish sends all the metadata saved by the transaction in one notification"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        def otherMetadata = new PartnerMetadata("otherReceivedId", PartnerMetadataStatus.FAILED)
+        String sentPayload = null
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().publish(mockTransaction, [metadata, otherMetadata])
+
+        then:
+        1 * mockTransaction.sendNotification(_ as String, _ as String) >> { String channel, String payload ->
+            sentPayload = payload
+        }
+        def change = Jackson.getInstance().convertJsonToObject(sentPayload, new TypeReference<DatabasePartnerMetadataNotifications.PartnerMetadataNotification>() {}).change()
+        change.submissionIds() == ["receivedId", "sentId", "otherReceivedId"]
+        change.messageLinkKeys() == MessageLinkKey.keysOf(metadata)
+    }
+
+    def "publish leaves out the sent submission ID when there isn't one"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        String sentPayload = null
+        mockTransaction.sendNotification(_ as String, _ as String) >> { String channel, String payload ->
+            sentPayload = payload
+        }
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().publish(mockTransaction, [new PartnerMetadata("receivedId", PartnerMetadataStatus.FAILED)])
+
+        then:
+        def change = Jackson.getInstance().convertJsonToObject(sentPayload, new TypeReference<DatabasePartnerMetadataNotifications.PartnerMetadataNotification>() {}).change()
+        change.submissionIds() == ["receivedId"]
+        change.messageLinkKeys().isEmpty()
+    }
+
+    def "publish fails the transaction when the notification can't be sent"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.sendNotification(_ as String, _ as String) >> { throw new SQLException("DogCow") }
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().publish(mockTransaction, [metadata])
+
+        then:
+        thrown(SQLException)
+    }
+
+    def "publish doesn't send anything when nothing listens for the changes"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        DatabasePartnerMetadataNotifications.getInstance().clearListeners()
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().publish(mockTransaction, [metadata])
+
+        then:
+        0 * mockTransaction.sendNotification(_ as String, _ as String)
+    }
+
+    def "listenIfNeeded doesn't listen when nothing listens for the changes"() {
+        given:
+        DatabasePartnerMetadataNotifications.getInstance().clearListeners()
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().listenIfNeeded()
+
+        then:
+        0 * mockNotificationListener.listen(_ as String, _ as NotificationHandler)
+    }
+
+    def "listenIfNeeded only starts listening once"() {
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().listenIfNeeded()
+
+        then:
+        // the instance is a singleton, so another test may have already started listening
+        (0..1) * mockNotificationListener.listen(DatabasePartnerMetadataNotifications.CHANNEL, DatabasePartnerMetadataNotifications.getInstance())
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().listenIfNeeded()
+
+        then:
+        0 * mockNotificationListener.listen(_ as String, _ as NotificationHandler)
+    }
+
+    def "notifications from other instances are passed to the listeners"() {
+        given:
+        def change = new PartnerMetadataChange(["receivedId", "sentId"], MessageLinkKey.keysOf(metadata))
+        def payload = Jackson.getInstance().convertToJsonString(new DatabasePartnerMetadataNotifications.PartnerMetadataNotification("another instance", change))
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().onNotification(payload)
+
+        then:
+        1 * mockChangeListener.onMetadataChanged(change)
+    }
+
+    def "notifications from this instance are ignored"() {
+        given:
+        def change = new PartnerMetadataChange(["receivedId"], [])
+        def payload = Jackson.getInstance().convertToJsonString(new DatabasePartnerMetadataNotifications.PartnerMetadataNotification(DatabasePartnerMetadataNotifications.ORIGIN, change))
+
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().onNotification(payload)
+
+        then:
+        0 * mockChangeListener.onMetadataChanged(_)
+    }
+
+    def "an unreadable notification is treated as a missed change"() {
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().onNotification("DogCow")
+
+        then:
+        1 * mockChangeListener.onChangesMissed()
+        1 * mockLogger.logError(_ as String, _ as Exception)
+    }
+
+    def "missed notifications are passed to the listeners"() {
+        when:
+        DatabasePartnerMetadataNotifications.getInstance().onNotificationsMissed()
+
+        then:
+        1 * mockChangeListener.onChangesMissed()
+    }
+}
@@ -1,17 +1,19 @@
 package gov.hhs.cdc.trustedintermediary.external.database
 
-import com.fasterxml.jackson.databind.ObjectMapper
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage
-import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork
+import java.sql.Array
 import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
@@ -19,13 +21,16 @@ import java.sql.SQLException
 import java.sql.Timestamp
 import java.sql.Types
 import java.time.Instant
+import java.time.temporal.ChronoUnit
+import java.util.function.Consumer
 import java.util.function.Function
 import spock.lang.Specification
 
 class DatabasePartnerMetadataStorageTest extends Specification {
 
     private def mockDao
-    private def mockFormatter
+    private def mockNotifications
+    private def mockPartitionMaintenance
 
     def sendingAppDetails = new MessageHdDataType("sending_app_name", "sending_app_id", "sending_app_type")
     def sendingFacilityDetails = new MessageHdDataType("sending_facility_name", "sending_facility_id", "sending_facility_type")
@@ -38,9 +43,12 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         TestApplicationContext.init()
 
         mockDao = Mock(DbDao)
-        mockFormatter = Mock(Formatter)
+        mockNotifications = Mock(DatabasePartnerMetadataNotifications)
+        mockPartitionMaintenance = Mock(DatabaseMetadataPartitionMaintenance)
 
         TestApplicationContext.register(DbDao, mockDao)
+        TestApplicationContext.register(DatabasePartnerMetadataNotifications, mockNotifications)
+        TestApplicationContext.register(DatabaseMetadataPartitionMaintenance, mockPartitionMaintenance)
         TestApplicationContext.register(PartnerMetadataStorage, DatabasePartnerMetadataStorage.getInstance())
         TestApplicationContext.injectRegisteredImplementations()
     }
@@ -49,7 +57,7 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         given:
         def expectedResult = Optional.of(mockMetadata)
 
-        mockDao.fetchFirstData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>) >> mockMetadata
+        mockDao.fetchFirstData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>) >> mockMetadata
 
         when:
         def actualResult = DatabasePartnerMetadataStorage.getInstance().readMetadata(mockMetadata.receivedSubmissionId())
@@ -60,7 +68,7 @@ class DatabasePartnerMetadataStorageTest extends Specification {
 
     def "readMetadata unhappy path works"() {
         given:
-        mockDao.fetchFirstData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>) >> { throw new SQLException("Something went wrong!") }
+        mockDao.fetchFirstData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().readMetadata("receivedSubmissionId")
@@ -71,7 +79,7 @@ class DatabasePartnerMetadataStorageTest extends Specification {
 
     def "readMetadataForSender unhappy path triggers SQLException"() {
         given:
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> { throw new SQLException("Database error has occur") }
+        mockDao.streamData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _ as Consumer) >> { throw new SQLException("Database error has occur") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().readMetadataForSender("testSender")
@@ -88,7 +96,9 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         expectedMetadataSet.add(metadata1)
         expectedMetadataSet.add(metadata2)
 
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> expectedMetadataSet
+        mockDao.streamData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _ as Consumer) >> { queryName, consistency, sqlGenerator, converter, Consumer consumer ->
+            expectedMetadataSet.each { consumer.accept(it) }
+        }
 
         when:
         def actualMetadataSet = DatabasePartnerMetadataStorage.getInstance().readMetadataForSender("testSender")
@@ -98,9 +108,115 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         actualMetadataSet.containsAll(expectedMetadataSet)
     }
 
+    def "readMetadataForSender passes each metadata to the consumer as it is streamed"() {
+        given:
+        def otherMetadata = mockMetadata.withSentSubmissionId("otherSentSubmissionId")
+        def consumed = []
+        mockDao.streamData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _ as Consumer) >> { queryName, consistency, sqlGenerator, converter, Consumer consumer ->
+            consumer.accept(mockMetadata)
+            consumer.accept(otherMetadata)
+        }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().readMetadataForSender(PartnerMetadataQuery.forSender("testSender"), { consumed.add(it) })
+
+        then:
+        consumed == [mockMetadata, otherMetadata]
+    }
+
+    def "sqlStatementForSenderQuery only selects the sender when there are no other criteria"() {
+        given:
+        def parameters = []
+
+        when:
+        def sqlStatement = DatabasePartnerMetadataStorage.getInstance().sqlStatementForSenderQuery(PartnerMetadataQuery.forSender("testSender"), parameters)
+
+        then:
+        sqlStatement == "SELECT * FROM metadata WHERE sending_facility_universal_id = ? ORDER BY COALESCE(time_received, '-infinity'), received_message_id"
+        parameters == [
+            new DbColumn("sender", "testSender", false, Types.VARCHAR)
+        ]
+    }
+
+    def "sqlStatementForSenderQuery pushes all the criteria into the query"() {
+        given:
+        def since = Instant.parse("2024-01-01T00:00:00Z")
+        def until = Instant.parse("2024-02-01T00:00:00Z")
+        def afterTimeReceived = Instant.parse("2024-01-15T00:00:00Z")
+        def query = new PartnerMetadataQuery("testSender", since, until, PartnerMetadataStatus.FAILED, new PartnerMetadataCursor(afterTimeReceived, "afterId"), 50)
+        def parameters = []
+
+        when:
+        def sqlStatement = DatabasePartnerMetadataStorage.getInstance().sqlStatementForSenderQuery(query, parameters)
+
+        then:
+        sqlStatement == "SELECT * FROM metadata WHERE sending_facility_universal_id = ?" +
+                " AND time_received >= ? AND partition_time >= ?" +
+                " AND time_received < ? AND partition_time < ?" +
+                " AND delivery_status = ?" +
+                " AND (COALESCE(time_received, '-infinity'), received_message_id) > (COALESCE(CAST(? AS timestamptz), '-infinity'::timestamptz), ?)" +
+                " AND partition_time >= ?" +
+                " ORDER BY COALESCE(time_received, '-infinity'), received_message_id" +
+                " LIMIT ?"
+        parameters == [
+            new DbColumn("sender", "testSender", false, Types.VARCHAR),
+            new DbColumn("since", Timestamp.from(since), false, Types.TIMESTAMP),
+            new DbColumn("since_partition_time", Timestamp.from(since), false, Types.TIMESTAMP),
+            new DbColumn("until", Timestamp.from(until), false, Types.TIMESTAMP),
+            new DbColumn("until_partition_time", Timestamp.from(until), false, Types.TIMESTAMP),
+            new DbColumn("status", "FAILED", false, Types.OTHER),
+            new DbColumn("after_time_received", Timestamp.from(afterTimeReceived), false, Types.TIMESTAMP),
+            new DbColumn("after_received_message_id", "afterId", false, Types.VARCHAR),
+            new DbColumn("after_partition_time", Timestamp.from(afterTimeReceived), false, Types.TIMESTAMP),
+            new DbColumn("limit", 50, false, Types.INTEGER)
+        ]
+    }
+
+    def "sqlStatementForSenderQuery continues after a cursor without a time received"() {
+        given:
+        def query = new PartnerMetadataQuery("testSender", null, null, null, new PartnerMetadataCursor(null, "afterId"), 50)
+        def parameters = []
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().sqlStatementForSenderQuery(query, parameters)
+
+        then:
+        parameters.find { it.name() == "after_time_received" }.value() == null
+        // the metadata without a time received can be in any partition
+        parameters.find { it.name() == "after_partition_time" } == null
+    }
+
+    def "readMetadataForSender binds the parameters of the query"() {
+        given:
+        def since = Instant.parse("2024-01-01T00:00:00Z")
+        def query = new PartnerMetadataQuery("testSender", since, null, null, new PartnerMetadataCursor(null, "afterId"), 50)
+        def mockConnection = Mock(Connection)
+        def mockStatement = Mock(PreparedStatement)
+        mockConnection.prepareStatement(_ as String) >> mockStatement
+        mockDao.streamData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _ as Consumer) >> { queryName, consistency, Function<Connection, PreparedStatement> sqlGenerator, converter, consumer ->
+            sqlGenerator.apply(mockConnection)
+        }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().readMetadataForSender(query, { })
+
+        then:
+        1 * mockStatement.setObject(1, "testSender", Types.VARCHAR)
+        1 * mockStatement.setObject(2, Timestamp.from(since), Types.TIMESTAMP)
+        1 * mockStatement.setObject(3, Timestamp.from(since), Types.TIMESTAMP)
+        1 * mockStatement.setNull(4, Types.TIMESTAMP)
+        1 * mockStatement.setObject(5, "afterId", Types.VARCHAR)
+        1 * mockStatement.setObject(6, 50, Types.INTEGER)
+    }
+
     def "saveMetadata happy path works"() {
         given:
-        def testMapper = new ObjectMapper()
+        def mockTransaction = Mock(DbTransaction)
+        def partitionTime = Timestamp.from(mockMetadata.timeReceived().truncatedTo(ChronoUnit.MICROS))
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [(mockMetadata.receivedSubmissionId()): partitionTime]
+        mockDao.runInTransaction("metadata.upsert", [], _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
         List<DbColumn> columns =
                 List.of(
                 new DbColumn("received_message_id", mockMetadata.receivedSubmissionId(), false, Types.VARCHAR),
@@ -111,83 +227,160 @@ class DatabasePartnerMetadataStorageTest extends Specification {
                 new DbColumn("delivery_status", mockMetadata.deliveryStatus().toString(),true,Types.OTHER),
                 new DbColumn("failure_reason", mockMetadata.failureReason(), true, Types.VARCHAR),
                 new DbColumn("message_type", mockMetadata.messageType().toString(), false, Types.OTHER),
-                new DbColumn("placer_order_number", mockMetadata.placerOrderNumber(), false, Types.VARCHAR),
-                new DbColumn("sending_application_details", testMapper.writeValueAsString(mockMetadata.sendingApplicationDetails()), false, Types.OTHER),
-                new DbColumn("sending_facility_details", testMapper.writeValueAsString(mockMetadata.sendingFacilityDetails()), false, Types.OTHER),
-                new DbColumn("receiving_application_details", testMapper.writeValueAsString(mockMetadata.receivingApplicationDetails()), false, Types.OTHER),
-                new DbColumn("receiving_facility_details", testMapper.writeValueAsString(mockMetadata.receivingFacilityDetails()), false, Types.OTHER)
-                )
-        TestApplicationContext.register(Formatter, Jackson.getInstance())
-        TestApplicationContext.injectRegisteredImplementations()
+                new DbColumn("placer_order_number", mockMetadata.placerOrderNumber(), false, Types.VARCHAR)
+                ) + hdColumns(mockMetadata)
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
         then:
-        1 * mockDao.upsertData("metadata", columns, "(received_message_id)")
+        1 * mockTransaction.upsertData([
+            new DbUpsert("metadata", columns + [
+                new DbColumn("partition_time", partitionTime, false, Types.TIMESTAMP)
+            ], "(received_message_id, partition_time)")
+        ])
     }
 
-    def "saveMetadata unhappy path works"() {
+    def "saveMetadata upserts the row of the partition time the metadata was first saved with until its time received is known"() {
         given:
-        mockDao.upsertData(_ as String, _ as List, _ as String) >> { throw new SQLException("Something went wrong!") }
-        TestApplicationContext.register(Formatter, Jackson.getInstance())
-        TestApplicationContext.injectRegisteredImplementations()
+        def metadata = new PartnerMetadata("receivedSubmissionId", "hash", PartnerMetadataMessageType.ORDER, sendingAppDetails, sendingFacilityDetails, receivingAppDetails, receivingFacilityDetails, "placer_order_number")
+        def mockTransaction = Mock(DbTransaction)
+        def firstPartitionTime = Timestamp.from(Instant.parse("2024-01-31T23:59:59Z"))
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
 
         when:
-        DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
+        DatabasePartnerMetadataStorage.getInstance().saveMetadata(metadata)
 
         then:
-        thrown(PartnerMetadataException)
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [(metadata.receivedSubmissionId()): firstPartitionTime]
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts.size() == 1
+                    && upserts[0].tableName() == "metadata"
+                    && upserts[0].values().find { it.name() == "partition_time" }.value() == firstPartitionTime
+        })
     }
 
-    def "saveMetadata unhappy path first format call triggers FormatterProcessingException"() {
+    def "saveMetadata moves the metadata to the partition of its time received once it's known"() {
         given:
-        mockFormatter.convertToJsonString(_ as MessageHdDataType) >> { throw new FormatterProcessingException('error', new Throwable()) }
+        def mockTransaction = Mock(DbTransaction)
+        def mockConnection = Mock(Connection)
+        def mockStatement = Mock(PreparedStatement)
+        def firstPartitionTime = Timestamp.from(Instant.parse("2024-01-31T23:59:59Z"))
+        def partitionTime = Timestamp.from(mockMetadata.timeReceived().truncatedTo(ChronoUnit.MICROS))
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
 
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
+
+        then:
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [(mockMetadata.receivedSubmissionId()): firstPartitionTime]
+
+        then:
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> { Function<Connection, PreparedStatement> sqlGenerator, converter, collector ->
+            sqlGenerator.apply(mockConnection)
+            [mockMetadata.receivedSubmissionId()]
+        }
+        1 * mockConnection.prepareStatement({ it.contains("UPDATE metadata SET partition_time") }) >> mockStatement
+        1 * mockStatement.setTimestamp(1, partitionTime)
+        1 * mockStatement.setTimestamp(5, firstPartitionTime)
+
+        then:
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts[0].values().find { it.name() == "partition_time" }.value() == partitionTime
+        })
+    }
+
+    def "saveMetadata upserts the keys of the metadata being saved and reads back their partition times at once"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        def mockConnection = Mock(Connection)
+        def mockStatement = Mock(PreparedStatement)
+        def mockIdArray = Mock(Array)
+        def mockTimeArray = Mock(Array)
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> { Function<Connection, PreparedStatement> sqlGenerator, converter, collector ->
+            sqlGenerator.apply(mockConnection)
+            [:]
+        }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
         then:
-        thrown(PartnerMetadataException)
+        1 * mockConnection.prepareStatement({ it.contains("INSERT INTO metadata_key") && it.contains("RETURNING received_message_id, partition_time") }) >> mockStatement
+        1 * mockConnection.createArrayOf("varchar", [mockMetadata.receivedSubmissionId()] as Object[]) >> mockIdArray
+        1 * mockConnection.createArrayOf("timestamptz", [Timestamp.from(mockMetadata.timeReceived())] as Object[]) >> mockTimeArray
+        1 * mockStatement.setArray(1, mockIdArray)
+        1 * mockStatement.setArray(2, mockTimeArray)
+        0 * mockTransaction.upsertData({ List<DbUpsert> upserts -> upserts.any { it.tableName() == "metadata_key" } })
     }
 
-    def "saveMetadata second unhappy path format call triggers FormatterProcessingException"() {
+    def "partitionTimeFromResultSet returns the partition time of the received message"() {
         given:
-        mockFormatter.convertToJsonString(_ as MessageHdDataType) >> "ok" >> { throw new FormatterProcessingException('error', new Throwable()) }
+        def partitionTime = Timestamp.from(Instant.now())
+        def mockResultSet = Mock(ResultSet)
+        mockResultSet.getString("received_message_id") >> "receivedSubmissionId"
+        mockResultSet.getTimestamp("partition_time") >> partitionTime
 
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        expect:
+        DatabasePartnerMetadataStorage.getInstance().partitionTimeFromResultSet(mockResultSet) == Map.entry("receivedSubmissionId", partitionTime)
+    }
+
+    def "saveMetadata notifies the other instances within its transaction"() {
+        given:
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [:]
+        mockDao.runInTransaction("metadata.upsert", [], _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
         then:
-        thrown(PartnerMetadataException)
+        1 * mockTransaction.upsertData(_ as List)
+
+        then:
+        1 * mockNotifications.publish(mockTransaction, [mockMetadata])
     }
 
-    def "saveMetadata third unhappy path format call triggers FormatterProcessingException"() {
+    def "saveMetadata doesn't notify the other instances when saving fails"() {
         given:
-        mockFormatter.convertToJsonString(_ as MessageHdDataType) >> ["ok", "ok"] >> { throw new FormatterProcessingException('error', new Throwable()) }
-
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
         then:
         thrown(PartnerMetadataException)
+        0 * mockNotifications.publish(_, _)
     }
 
-    def "saveMetadata fourth unhappy path format call triggers FormatterProcessingException"() {
-        given:
-        mockFormatter.convertToJsonString(_ as MessageHdDataType) >> ["ok", "ok" , "ok"] >> { throw new FormatterProcessingException('error', new Throwable()) }
+    def "saveMetadata starts maintaining the partitions of the metadata table"() {
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        then:
+        1 * mockPartitionMaintenance.startIfNeeded()
+    }
+
+    def "readMetadata starts listening for the changes made by other instances"() {
+        when:
+        DatabasePartnerMetadataStorage.getInstance().readMetadata(mockMetadata.receivedSubmissionId())
+
+        then:
+        1 * mockNotifications.listenIfNeeded()
+    }
+
+    def "saveMetadata unhappy path works"() {
+        given:
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
@@ -198,7 +391,6 @@ class DatabasePartnerMetadataStorageTest extends Specification {
 
     def "saveMetadata writes null timestamp"() {
         given:
-        def testMapper = new ObjectMapper()
         def mockMetadata = new PartnerMetadata(
                 "receivedSubmissionId",
                 "sentSubmissionId",
@@ -214,6 +406,10 @@ class DatabasePartnerMetadataStorageTest extends Specification {
                 receivingFacilityDetails,
                 "placer_order_number"
                 )
+        def mockTransaction = Mock(DbTransaction)
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
 
         List<DbColumn> columns =
                 List.of(
@@ -225,27 +421,201 @@ class DatabasePartnerMetadataStorageTest extends Specification {
                 new DbColumn("delivery_status", mockMetadata.deliveryStatus().toString(), true,Types.OTHER),
                 new DbColumn("failure_reason", mockMetadata.failureReason(), true, Types.VARCHAR),
                 new DbColumn("message_type", null, false, Types.OTHER),
-                new DbColumn("placer_order_number", mockMetadata.placerOrderNumber(), false, Types.VARCHAR),
-                new DbColumn("sending_application_details", testMapper.writeValueAsString(mockMetadata.sendingApplicationDetails()), false, Types.OTHER),
-                new DbColumn("sending_facility_details", testMapper.writeValueAsString(mockMetadata.sendingFacilityDetails()), false, Types.OTHER),
-                new DbColumn("receiving_application_details", testMapper.writeValueAsString(mockMetadata.receivingApplicationDetails()), false, Types.OTHER),
-                new DbColumn("receiving_facility_details", testMapper.writeValueAsString(mockMetadata.receivingFacilityDetails()), false, Types.OTHER)
-                )
-        TestApplicationContext.register(Formatter, Jackson.getInstance())
-        TestApplicationContext.injectRegisteredImplementations()
+                new DbColumn("placer_order_number", mockMetadata.placerOrderNumber(), false, Types.VARCHAR)
+                ) + hdColumns(mockMetadata)
 
         when:
         DatabasePartnerMetadataStorage.getInstance().saveMetadata(mockMetadata)
 
         then:
-        1 * mockDao.upsertData("metadata", columns, "(received_message_id)")
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts[0].tableName() == "metadata" && upserts[0].values().subList(0, columns.size()) == columns
+        })
+    }
+
+    def "saveUnitOfWork upserts the metadata and message links in one transaction and then notifies the other instances"() {
+        given:
+        def messageLink = new MessageLink(UUID.randomUUID(), "receivedSubmissionId")
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        unitOfWork.linkMessages(mockMetadata)
+        unitOfWork.saveMessageLink(messageLink)
+        def mockTransaction = Mock(DbTransaction)
+        // the partition times, the messages to link and the saved message links
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >>> [[:], [] as Set, [:]]
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockPartitionMaintenance.startIfNeeded()
+        1 * mockDao.runInTransaction("metadata.saveUnitOfWork", _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts.size() == 1
+                    && upserts[0].tableName() == "metadata"
+                    && upserts[0].conflictTarget() == "(received_message_id, partition_time)"
+        })
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts.size() == 1
+                    && upserts[0].tableName() == "message_link"
+                    && upserts[0].values()[0].value() == messageLink.getLinkId()
+        })
+        0 * mockDao.upsertData(_ as String, _ as String, _ as List, _ as String)
+
+        then:
+        1 * mockNotifications.publish(mockTransaction, unitOfWork.metadata())
+    }
+
+    def "saveUnitOfWork locks the placer order number of the message while linking it"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        unitOfWork.linkMessages(mockMetadata)
+        unitOfWork.saveMessageLink(new MessageLink(UUID.randomUUID(), "receivedSubmissionId"))
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockDao.runInTransaction(_ as String, [
+            DatabasePartnerMetadataStorage.messageLinkLockKey(mockMetadata.placerOrderNumber())
+        ], _ as DbTransactionWork)
+    }
+
+    def "saveUnitOfWork locks the placer order number of the message even without message links to save"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.linkMessages(mockMetadata)
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockDao.runInTransaction(_ as String, [
+            DatabasePartnerMetadataStorage.messageLinkLockKey(mockMetadata.placerOrderNumber())
+        ], _ as DbTransactionWork)
+    }
+
+    def "saveUnitOfWork only looks for the messages to link of the metadata it's asked to link"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        def mockTransaction = Mock(DbTransaction)
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockDao.runInTransaction(_ as String, [], _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+        // only the partition times are read
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [:]
+    }
+
+    def "saveUnitOfWork doesn't lock anything for metadata without a placer order number"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        def metadataWithoutOrder = new PartnerMetadata("receivedSubmissionId", PartnerMetadataStatus.FAILED)
+        unitOfWork.saveMetadata(metadataWithoutOrder)
+        unitOfWork.linkMessages(metadataWithoutOrder)
+        def mockTransaction = Mock(DbTransaction)
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockDao.runInTransaction(_ as String, [], _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+        // only the partition times are read, the metadata can't be linked
+        1 * mockTransaction.fetchManyData(_ as Function, _ as Function, _) >> [:]
+    }
+
+    def "saveUnitOfWork links the messages of the order found while holding the lock"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        unitOfWork.linkMessages(mockMetadata)
+        def mockTransaction = Mock(DbTransaction)
+        // the partition times, the messages to link and the saved message links
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >>> [[:], ["orderSubmissionId"] as Set, [:]]
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            upserts.every { it.tableName() == "message_link" }
+                    && upserts.collect { it.values()[0].value() }.toSet().size() == 1
+                    && upserts.collect { it.values()[1].value() }.toSet() == Set.of("receivedSubmissionId", "orderSubmissionId")
+        })
+    }
+
+    def "saveUnitOfWork merges the message links with the ones saved since they were read"() {
+        given:
+        def savedLinkId = UUID.randomUUID()
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        unitOfWork.linkMessages(mockMetadata)
+        unitOfWork.saveMessageLink(new MessageLink(UUID.randomUUID(), Set.of("receivedSubmissionId", "orderSubmissionId")))
+        def mockTransaction = Mock(DbTransaction)
+        mockTransaction.fetchManyData(_ as Function, _ as Function, _) >>> [[:], [] as Set, [(savedLinkId): Set.of("orderSubmissionId", "otherResultSubmissionId")]]
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { String queryName, Collection lockKeys, DbTransactionWork work ->
+            work.run(mockTransaction)
+        }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockTransaction.upsertData({ List<DbUpsert> upserts ->
+            def linkUpserts = upserts.findAll { it.tableName() == "message_link" }
+            linkUpserts.every { it.values()[0].value() == savedLinkId }
+                    && linkUpserts.collect { it.values()[1].value() }.toSet() == Set.of("receivedSubmissionId", "orderSubmissionId", "otherResultSubmissionId")
+        })
+    }
+
+    def "the message link lock keys are striped and kept apart from other advisory locks"() {
+        expect:
+        DatabasePartnerMetadataStorage.messageLinkLockKey("placer") == DatabasePartnerMetadataStorage.messageLinkLockKey(new String("placer"))
+        (DatabasePartnerMetadataStorage.messageLinkLockKey("placer") >>> 32) == 0x4C494E4BL
+        (0..5000).collect { DatabasePartnerMetadataStorage.messageLinkLockKey("order" + it) & 0xFFFFFFFFL }.every { it < DatabasePartnerMetadataStorage.MESSAGE_LINK_LOCK_STRIPES }
+    }
+
+    def "saveUnitOfWork doesn't notify the other instances when saving fails"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(mockMetadata)
+        mockDao.runInTransaction(_ as String, _ as Collection, _ as DbTransactionWork) >> { throw new SQLException("Something went wrong!") }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        thrown(PartnerMetadataException)
+        0 * mockNotifications.publish(_, _)
+    }
+
+    def "saveUnitOfWork doesn't use the database when the unit of work is empty"() {
+        when:
+        DatabasePartnerMetadataStorage.getInstance().saveUnitOfWork(new PartnerMetadataUnitOfWork())
+
+        then:
+        0 * mockDao._
+        0 * mockNotifications._
     }
 
     def "readMetadataForMessageLinking happy path works"() {
         given:
         def expectedResult = Set.of(mockMetadata)
 
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> expectedResult
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> expectedResult
 
         when:
         def actualResult = DatabasePartnerMetadataStorage.getInstance().readMetadataForMessageLinking(mockMetadata.receivedSubmissionId())
@@ -256,7 +626,7 @@ class DatabasePartnerMetadataStorageTest extends Specification {
 
     def "readMetadataForMessageLinking unhappy path works"() {
         given:
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> { throw new SQLException("Something went wrong!") }
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().readMetadataForMessageLinking("receivedSubmissionId")
@@ -265,9 +635,91 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         thrown(PartnerMetadataException)
     }
 
+    def "readMetadataForMessageLinking binds the values of metadata that isn't saved yet"() {
+        given:
+        def expectedResult = Set.of("linkedSubmissionId")
+        def mockConnection = Mock(Connection)
+        def mockStatement = Mock(PreparedStatement)
+        mockConnection.prepareStatement(_ as String) >> mockStatement
+        mockDao.fetchManyData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, String>, _) >> { queryName, Function<Connection, PreparedStatement> sqlGenerator, converter, collector ->
+            sqlGenerator.apply(mockConnection)
+            return expectedResult
+        }
+
+        when:
+        def actualResult = DatabasePartnerMetadataStorage.getInstance().readMetadataForMessageLinking(mockMetadata)
+
+        then:
+        actualResult == expectedResult
+        1 * mockStatement.setObject(1, "placer_order_number", Types.VARCHAR)
+        1 * mockStatement.setObject(2, "sending_facility_name", Types.VARCHAR)
+        1 * mockStatement.setObject(3, "sending_facility_id", Types.VARCHAR)
+        1 * mockStatement.setObject(4, "sending_facility_type", Types.VARCHAR)
+        1 * mockStatement.setObject(5, "sending_facility_name", Types.VARCHAR)
+        1 * mockStatement.setObject(6, "sending_facility_id", Types.VARCHAR)
+        1 * mockStatement.setObject(7, "sending_facility_type", Types.VARCHAR)
+        1 * mockStatement.setObject(8, "receivedSubmissionId", Types.VARCHAR)
+    }
+
+    def "readMetadataForMessageLinking doesn't query metadata without a placer order number"() {
+        given:
+        def metadata = new PartnerMetadata("receivedSubmissionId", null, null, null, null, null, null, null, null, sendingFacilityDetails, null, receivingFacilityDetails, null)
+
+        when:
+        def actualResult = DatabasePartnerMetadataStorage.getInstance().readMetadataForMessageLinking(metadata)
+
+        then:
+        actualResult.isEmpty()
+        0 * mockDao.fetchManyData(_ as String, _, _, _)
+    }
+
+    def "readStatusCountsForSender happy path works"() {
+        given:
+        def expectedResult = [
+            new PartnerMetadataStatusCount("receiver", PartnerMetadataStatus.DELIVERED, 3)
+        ]
+        mockDao.fetchManyData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadataStatusCount>, _) >> expectedResult
+
+        when:
+        def actualResult = DatabasePartnerMetadataStorage.getInstance().readStatusCountsForSender("sender")
+
+        then:
+        actualResult == expectedResult
+    }
+
+    def "readStatusCountsForSender unhappy path works"() {
+        given:
+        mockDao.fetchManyData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadataStatusCount>, _) >> { throw new SQLException("Something went wrong!") }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().readStatusCountsForSender("sender")
+
+        then:
+        thrown(PartnerMetadataException)
+    }
+
+    def "statusCountFromResultSet returns the status count"() {
+        given:
+        def mockResultSet = Mock(ResultSet)
+        mockResultSet.getString("receiver") >> receiver
+        mockResultSet.getString("status") >> "PENDING"
+        mockResultSet.getLong("message_count") >> 42L
+
+        when:
+        def actual = DatabasePartnerMetadataStorage.getInstance().statusCountFromResultSet(mockResultSet)
+
+        then:
+        actual == new PartnerMetadataStatusCount(expectedReceiver, PartnerMetadataStatus.PENDING, 42)
+
+        where:
+        receiver   | expectedReceiver
+        "receiver" | "receiver"
+        ""         | null
+    }
+
     def "readMetadataForSender unhappy path works"() {
         given:
-        mockDao.fetchManyData(_ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _) >> { throw new SQLException("Something went wrong!") }
+        mockDao.streamData(_ as String, DbReadConsistency.EVENTUAL, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, PartnerMetadata>, _ as Consumer) >> { throw new SQLException("Something went wrong!") }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().readMetadataForSender("TestSender")
@@ -276,19 +728,16 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         thrown(PartnerMetadataException)
     }
 
-    def "partnerMetadataFromResultSet throws exception due to FormatterProcessingException"() {
+    def "partnerMetadataFromResultSet throws exception due to SQLException"() {
         given:
         def mockResultSet = Mock(ResultSet)
         mockResultSet.next() >> true
         mockResultSet.getString("delivery_status") >> "DELIVERED"
         mockResultSet.getString("message_type") >> "RESULT"
-        mockResultSet.getString("sending_application_details") >> "TEST"
 
-        def innerThrownException = new FormatterProcessingException('error', new Throwable())
+        def innerThrownException = new SQLException("error")
 
-        mockFormatter.convertJsonToObject(_ as String, _ as TypeReference) >> { throw innerThrownException }
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        mockResultSet.getString("sending_application_namespace") >> { throw innerThrownException }
 
         when:
         DatabasePartnerMetadataStorage.getInstance().partnerMetadataFromResultSet(mockResultSet)
@@ -327,19 +776,9 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         mockResultSet.getString("delivery_status") >> status.toString()
         mockResultSet.getString("failure_reason") >> reason
         mockResultSet.getString("message_type") >> messageType.toString()
-        mockResultSet.getString("receiving_facility_details") >> "receiving_facility_details"
-        mockResultSet.getString("sending_application_details") >> "sending_application_details"
-        mockResultSet.getString("sending_facility_details") >> "sending_facility_details"
-        mockResultSet.getString("receiving_application_details") >> "receiving_application_details"
         mockResultSet.getString("placer_order_number") >> placerOrderNumber
-
-        mockFormatter.convertJsonToObject("receiving_facility_details", _ as TypeReference) >> receivingFacilityDetails
-        mockFormatter.convertJsonToObject("sending_application_details", _ as TypeReference) >> sendingAppDetails
-        mockFormatter.convertJsonToObject("sending_facility_details", _ as TypeReference) >> sendingFacilityDetails
-        mockFormatter.convertJsonToObject("receiving_application_details", _ as TypeReference) >> receivingAppDetails
-
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        def hdValues = hdDataTypeValues("sending_application", sendingAppDetails) + hdDataTypeValues("sending_facility", sendingFacilityDetails) + hdDataTypeValues("receiving_application", receivingAppDetails) + hdDataTypeValues("receiving_facility", receivingFacilityDetails)
+        mockResultSet.getString(_ as String) >> { String column -> hdValues.get(column) }
 
         when:
         def actual = DatabasePartnerMetadataStorage.getInstance().partnerMetadataFromResultSet(mockResultSet)
@@ -357,13 +796,123 @@ class DatabasePartnerMetadataStorageTest extends Specification {
         mockResultSet.getString("delivery_status") >> "DELIVERED"
         mockResultSet.getString("message_type") >> "RESULT"
 
-        TestApplicationContext.register(Formatter, Mock(Formatter))
-        TestApplicationContext.injectRegisteredImplementations()
-
         when:
         def actual = DatabasePartnerMetadataStorage.getInstance().partnerMetadataFromResultSet(mockResultSet)
 
         then:
         actual.timeReceived() == null
     }
+
+    def "partnerMetadataFromResultSet reads empty HD columns as details without any components"() {
+        given:
+        def mockResultSet = Mock(ResultSet)
+        mockResultSet.next() >> true
+        mockResultSet.getString("delivery_status") >> "DELIVERED"
+        mockResultSet.getString("message_type") >> "RESULT"
+        mockResultSet.getString("sending_facility_universal_id") >> "sending_facility_id"
+
+        when:
+        def actual = DatabasePartnerMetadataStorage.getInstance().partnerMetadataFromResultSet(mockResultSet)
+
+        then:
+        actual.sendingApplicationDetails() == new MessageHdDataType(null, null, null)
+        actual.sendingFacilityDetails() == new MessageHdDataType(null, "sending_facility_id", null)
+        actual.receivingApplicationDetails() == new MessageHdDataType(null, null, null)
+        actual.receivingFacilityDetails() == new MessageHdDataType(null, null, null)
+    }
+
+    def "readMessageLinkKeys happy path works"() {
+        given:
+        def sendingKey = new MessageLinkKey("placer_order_number", sendingFacilityDetails)
+        def receivingKey = new MessageLinkKey("placer_order_number", receivingFacilityDetails)
+        mockDao.streamData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, List<MessageLinkKey>>, _ as Consumer) >> { queryName, sqlGenerator, converter, Consumer consumer ->
+            consumer.accept([sendingKey, receivingKey])
+        }
+
+        when:
+        def actual = DatabasePartnerMetadataStorage.getInstance().readMessageLinkKeys()
+
+        then:
+        actual == [sendingKey, receivingKey]
+    }
+
+    def "readMessageLinkKeys unhappy path works"() {
+        given:
+        mockDao.streamData(_ as String, _ as Function<Connection, PreparedStatement>, _ as Function<ResultSet, List<MessageLinkKey>>, _ as Consumer) >> { throw new SQLException("Something went wrong!") }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().readMessageLinkKeys()
+
+        then:
+        thrown(PartnerMetadataException)
+    }
+
+    def "messageLinkKeysFromResultSet returns a key for the sending and receiving facilities"() {
+        given:
+        def mockResultSet = Mock(ResultSet)
+        mockResultSet.getString("placer_order_number") >> "placer_order_number"
+        def hdValues = hdDataTypeValues("sending_facility", sendingFacilityDetails) + hdDataTypeValues("receiving_facility", receivingFacilityDetails)
+        mockResultSet.getString(_ as String) >> { String column -> hdValues.get(column) }
+
+        when:
+        def actual = DatabasePartnerMetadataStorage.getInstance().messageLinkKeysFromResultSet(mockResultSet)
+
+        then:
+        actual == [
+            new MessageLinkKey("placer_order_number", sendingFacilityDetails),
+            new MessageLinkKey("placer_order_number", receivingFacilityDetails)
+        ]
+    }
+
+    def "messageLinkKeysFromResultSet returns the same key as saved for a facility without any components"() {
+        given:
+        def emptyFacilityDetails = new MessageHdDataType(null, null, null)
+        def mockResultSet = Mock(ResultSet)
+        mockResultSet.getString("placer_order_number") >> "placer_order_number"
+        def hdValues = hdDataTypeValues("sending_facility", sendingFacilityDetails)
+        mockResultSet.getString(_ as String) >> { String column -> hdValues.get(column) }
+
+        when:
+        def actual = DatabasePartnerMetadataStorage.getInstance().messageLinkKeysFromResultSet(mockResultSet)
+
+        then:
+        actual[1] == new MessageLinkKey("placer_order_number", emptyFacilityDetails)
+    }
+
+    def "messageLinkKeysFromResultSet throws exception due to SQLException"() {
+        given:
+        def mockResultSet = Mock(ResultSet)
+        def innerThrownException = new SQLException("error")
+        mockResultSet.getString(_ as String) >> { throw innerThrownException }
+
+        when:
+        DatabasePartnerMetadataStorage.getInstance().messageLinkKeysFromResultSet(mockResultSet)
+
+        then:
+        def thrownException = thrown(RuntimeException)
+        thrownException.getCause() == innerThrownException
+    }
+
+    def hdColumns(PartnerMetadata metadata) {
+        return [
+            "sending_application": metadata.sendingApplicationDetails(),
+            "sending_facility": metadata.sendingFacilityDetails(),
+            "receiving_application": metadata.receivingApplicationDetails(),
+            "receiving_facility": metadata.receivingFacilityDetails()
+        ].collectMany { prefix, hd ->
+            [
+                new DbColumn(prefix + "_namespace", hd?.namespace(), false, Types.VARCHAR),
+                new DbColumn(prefix + "_universal_id", hd?.universalId(), false, Types.VARCHAR),
+                new DbColumn(prefix + "_universal_id_type", hd?.universalIdType(), false, Types.VARCHAR)
+            ]
+        }
+    }
+
+    def hdDataTypeValues(String prefix, MessageHdDataType hd) {
+        return [
+            (prefix + "_namespace"): hd.namespace(),
+            (prefix + "_universal_id"): hd.universalId(),
+            (prefix + "_universal_id_type"): hd.universalIdType()
+        ]
+    }
 }
@@ -0,0 +1,174 @@
+package gov.hhs.cdc.trustedintermediary.external.database
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+import spock.lang.Specification
+
+class DbQueryMetricsTest extends Specification {
+
+    def mockLogger = Mock(Logger)
+    long now = 0
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Logger, mockLogger)
+    }
+
+    def cleanup() {
+        DbQueryMetrics.getInstance().nanoTime = { System.nanoTime() } as LongSupplier
+    }
+
+    private DbQueryMetrics createMetrics() {
+        def metrics = DbQueryMetrics.getInstance()
+        metrics.nanoTime = { now } as LongSupplier
+        // configured after stubbing the time, so the statistics start from it
+        metrics.configure()
+        TestApplicationContext.register(DbQueryMetrics, metrics)
+        TestApplicationContext.injectRegisteredImplementations()
+        return metrics
+    }
+
+    def "a query slower than the threshold is logged with its acquire and execute times"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "500")
+        def metrics = createMetrics()
+
+        when:
+        def execution = metrics.start("metadata.readById")
+        now += TimeUnit.MILLISECONDS.toNanos(200)
+        execution.connectionAcquired()
+        now += TimeUnit.MILLISECONDS.toNanos(400)
+        execution.addRows(1)
+        execution.finish()
+
+        then:
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query["Query"] == "metadata.readById"
+                    && query["Acquire Millis"] == 200L
+                    && query["Execute Millis"] == 400L
+                    && query["Rows"] == 1L
+                    && query["Failed"] == false
+        })
+    }
+
+    def "a query faster than the threshold isn't logged"() {
+        given:
+        def metrics = createMetrics()
+
+        when:
+        def execution = metrics.start("metadata.readById")
+        execution.connectionAcquired()
+        now += TimeUnit.MILLISECONDS.toNanos(DbQueryMetrics.DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS - 1)
+        execution.finish()
+
+        then:
+        0 * mockLogger.logMap(_, _)
+    }
+
+    def "an execution that never got a connection counts all its time as acquire time"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "0")
+        def metrics = createMetrics()
+
+        when:
+        def execution = metrics.start("messageLink.upsert")
+        now += TimeUnit.MILLISECONDS.toNanos(30)
+        execution.failed()
+        execution.finish()
+
+        then:
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query["Acquire Millis"] == 30L && query["Execute Millis"] == 0L && query["Failed"] == true
+        })
+    }
+
+    def "the histograms of each query are logged once the interval passes and then start over"() {
+        given:
+        def metrics = createMetrics()
+
+        when:
+        [0, 5, 50].each { executeMillis ->
+            def execution = metrics.start("metadata.linking")
+            execution.connectionAcquired()
+            now += TimeUnit.MILLISECONDS.toNanos(executeMillis)
+            execution.addRows(executeMillis)
+            execution.finish()
+        }
+        def failedExecution = metrics.start("metadata.upsert")
+        failedExecution.connectionAcquired()
+        failedExecution.failed()
+        failedExecution.finish()
+
+        then:
+        0 * mockLogger.logMap(_, _)
+
+        when:
+        now += DbQueryMetrics.STATISTICS_LOG_INTERVAL_NANOS
+        def execution = metrics.start("metadata.linking")
+        execution.connectionAcquired()
+        execution.finish()
+
+        then:
+        1 * mockLogger.logMap("Database query statistics:", { Map<String, Object> statistics ->
+            statistics["Query"] == "metadata.linking"
+                    && statistics["Executions"] == 4L
+                    && statistics["Failures"] == 0L
+                    && statistics["Acquire Millis"] == ["Under 1": 4L, "Under 10": 0L, "Under 100": 0L, "Under 1000": 0L, "Over 1000": 0L]
+                    && statistics["Execute Millis"] == ["Under 1": 2L, "Under 10": 1L, "Under 100": 1L, "Under 1000": 0L, "Over 1000": 0L]
+                    && statistics["Rows"] == ["Under 1": 2L, "Under 10": 1L, "Under 100": 1L, "Under 1000": 0L, "Over 1000": 0L]
+        })
+        1 * mockLogger.logMap("Database query statistics:", { Map<String, Object> statistics ->
+            statistics["Query"] == "metadata.upsert" && statistics["Executions"] == 1L && statistics["Failures"] == 1L
+        })
+
+        when:
+        now += DbQueryMetrics.STATISTICS_LOG_INTERVAL_NANOS
+        def lastExecution = metrics.start("metadata.upsert")
+        lastExecution.connectionAcquired()
+        lastExecution.finish()
+
+        then:
+        1 * mockLogger.logMap("Database query statistics:", { Map<String, Object> statistics ->
+            statistics["Query"] == "metadata.upsert" && statistics["Executions"] == 1L && statistics["Failures"] == 0L
+        })
+        0 * mockLogger.logMap("Database query statistics:", { it["Query"] == "metadata.linking" })
+    }
+
+    def "an invalid slow query threshold uses the default"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "DogCow")
+        def metrics = createMetrics()
+
+        when:
+        def execution = metrics.start("metadata.readById")
+        execution.connectionAcquired()
+        now += TimeUnit.MILLISECONDS.toNanos(DbQueryMetrics.DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS)
+        execution.finish()
+
+        then:
+        1 * mockLogger.logMap("Slow database query:", _ as Map)
+    }
+
+    def "getting the instance again keeps the statistics recorded so far"() {
+        given:
+        def metrics = createMetrics()
+        def execution = metrics.start("metadata.readById")
+        execution.connectionAcquired()
+        execution.finish()
+
+        when:
+        DbQueryMetrics.getInstance()
+        now += DbQueryMetrics.STATISTICS_LOG_INTERVAL_NANOS
+        def nextExecution = metrics.start("metadata.readById")
+        nextExecution.connectionAcquired()
+        nextExecution.finish()
+
+        then:
+        1 * mockLogger.logMap("Database query statistics:", { Map<String, Object> statistics ->
+            statistics["Query"] == "metadata.readById" && statistics["Executions"] == 2L
+        })
+    }
+}
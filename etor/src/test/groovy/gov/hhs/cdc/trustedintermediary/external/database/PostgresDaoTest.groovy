@@ -2,6 +2,7 @@ package gov.hhs.cdc.trustedintermediary.external.database
 
 
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
 import gov.hhs.cdc.trustedintermediary.wrappers.database.ConnectionPool
 import gov.hhs.cdc.trustedintermediary.wrappers.database.DatabaseCredentialsProvider
 import java.sql.Connection
@@ -33,6 +34,7 @@ class PostgresDaoTest extends Specification {
         mockCredentialsProvider.getPassword() >> "DogCow password"
 
         TestApplicationContext.register(DatabaseCredentialsProvider, mockCredentialsProvider)
+        TestApplicationContext.register(DbQueryMetrics, DbQueryMetrics.getInstance())
         TestApplicationContext.register(PostgresDao, PostgresDao.getInstance())
     }
 
@@ -54,7 +56,7 @@ class PostgresDaoTest extends Specification {
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
-        PostgresDao.getInstance().upsertData(tableName, columns, conflictTarget)
+        PostgresDao.getInstance().upsertData("dogcow.upsert", tableName, columns, conflictTarget)
 
         then:
         mockConn.prepareStatement(_ as String) >> { String sqlStatement ->
@@ -106,7 +108,7 @@ class PostgresDaoTest extends Specification {
 
         when:
         conflictTarget = null
-        PostgresDao.getInstance().upsertData(tableName, columns, conflictTarget)
+        PostgresDao.getInstance().upsertData("dogcow.upsert", tableName, columns, conflictTarget)
 
         then:
         mockConn.prepareStatement(_ as String) >> { String sqlStatement ->
@@ -121,7 +123,7 @@ class PostgresDaoTest extends Specification {
 
         when:
         conflictTarget = "ON CONSTRAINT key"
-        PostgresDao.getInstance().upsertData(tableName, columns, conflictTarget)
+        PostgresDao.getInstance().upsertData("dogcow.upsert", tableName, columns, conflictTarget)
 
         then:
         mockConn.prepareStatement(_ as String) >> { String sqlStatement ->
@@ -146,7 +148,7 @@ class PostgresDaoTest extends Specification {
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
-        PostgresDao.getInstance().upsertData("DogCow", [
+        PostgresDao.getInstance().upsertData("dogcow.upsert", "DogCow", [
             new DbColumn("", "", false, Types.VARCHAR),
         ], null)
 
@@ -154,6 +156,262 @@ class PostgresDaoTest extends Specification {
         thrown(SQLException)
     }
 
+    def "runInTransaction batches consecutive upserts with the same statement within a transaction"() {
+        given:
+        def firstStatement = Mock(PreparedStatement)
+        def secondStatement = Mock(PreparedStatement)
+        def upserts = [
+            new DbUpsert("DogCow", [
+                new DbColumn("Moof", "Clarus", true, Types.VARCHAR)
+            ], "(Moof)"),
+            new DbUpsert("DogCow", [
+                new DbColumn("Moof", "Dogcow", true, Types.VARCHAR)
+            ], "(Moof)"),
+            new DbUpsert("Link", [
+                new DbColumn("link_id", "1234", false, Types.VARCHAR)
+            ], "ON CONSTRAINT key"),
+        ]
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.getAutoCommit() >> true
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.upsert", [], { transaction -> transaction.upsertData(upserts) })
+
+        then:
+        1 * mockConn.setAutoCommit(false)
+
+        then:
+        1 * mockConn.prepareStatement({ it.startsWith("INSERT INTO DogCow") }) >> firstStatement
+        1 * firstStatement.setObject(1, "Clarus", Types.VARCHAR)
+        1 * firstStatement.setObject(1, "Dogcow", Types.VARCHAR)
+        2 * firstStatement.addBatch()
+        1 * firstStatement.executeBatch() >> ([1, 1] as int[])
+
+        then:
+        1 * mockConn.prepareStatement({ it.startsWith("INSERT INTO Link") }) >> secondStatement
+        1 * secondStatement.addBatch()
+        1 * secondStatement.executeBatch() >> ([1] as int[])
+
+        then:
+        1 * mockConn.commit()
+
+        then:
+        1 * mockConn.setAutoCommit(true)
+        0 * mockConn.rollback()
+        0 * mockConn.prepareStatement({ it.contains("pg_advisory_xact_lock") })
+    }
+
+    def "runInTransaction rolls back and fails when an upsert fails"() {
+        given:
+        mockConnPool.getConnection() >> mockConn
+        mockConn.getAutoCommit() >> true
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeBatch() >> { throw new SQLException("oh no!") }
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.upsert", [], { transaction ->
+            transaction.upsertData([
+                new DbUpsert("DogCow", [
+                    new DbColumn("Moof", "Clarus", false, Types.VARCHAR)
+                ], null)
+            ])
+        })
+
+        then:
+        thrown(SQLException)
+        0 * mockConn.commit()
+        1 * mockConn.rollback()
+        1 * mockConn.setAutoCommit(true)
+    }
+
+    def "runInTransaction takes each advisory lock once and in order before the work starts"() {
+        given:
+        def lockStatement = Mock(PreparedStatement)
+        def workRan = false
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.getAutoCommit() >> true
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.link", [42L, 7L, 42L], { transaction -> workRan = true })
+
+        then:
+        1 * mockConn.setAutoCommit(false)
+
+        then:
+        1 * mockConn.prepareStatement("SELECT pg_advisory_xact_lock(?)") >> lockStatement
+
+        then:
+        1 * lockStatement.setLong(1, 7L)
+
+        then:
+        1 * lockStatement.execute()
+
+        then:
+        1 * lockStatement.setLong(1, 42L)
+
+        then:
+        1 * lockStatement.execute()
+
+        then:
+        1 * mockConn.commit()
+        workRan
+    }
+
+    def "runInTransaction times the wait for the advisory locks under its own name"() {
+        given:
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "0")
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(DbQueryMetrics, DbQueryMetrics.getInstance())
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.link", [7L, 42L], { transaction -> })
+
+        then:
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query.get("Query") == "dogcow.link.lockWait" && query.get("Rows") == 2L
+        })
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query.get("Query") == "dogcow.link"
+        })
+    }
+
+    def "runInTransaction reads within the transaction"() {
+        given:
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >>> [true, true, false]
+        mockResultSet.getString("id") >>> ["1234", "5678"]
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+        def actual = null
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.read", [], { transaction ->
+            actual = transaction.fetchManyData(sqlGenerator, converter, Collectors.toList())
+        })
+
+        then:
+        actual == ["1234", "5678"]
+        1 * mockConnPool.getConnection() >> mockConn
+        1 * mockConn.commit()
+    }
+
+    def "runInTransaction sends the notifications within the transaction"() {
+        given:
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement("SELECT pg_notify(?, ?)") >> mockPreparedStatement
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runInTransaction("dogcow.notify", [], { transaction ->
+            transaction.sendNotification("dogcow_channel", "Moof!")
+        })
+
+        then:
+        1 * mockPreparedStatement.setString(1, "dogcow_channel")
+        1 * mockPreparedStatement.setString(2, "Moof!")
+        1 * mockPreparedStatement.execute()
+
+        then:
+        1 * mockConn.commit()
+    }
+
+    def "runWithAdvisoryLock runs the work while holding the lock and then releases it"() {
+        given:
+        def lockStatement = Mock(PreparedStatement)
+        def unlockStatement = Mock(PreparedStatement)
+        def workRan = false
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement("SELECT pg_try_advisory_lock(?)") >> lockStatement
+        mockConn.prepareStatement("SELECT pg_advisory_unlock(?)") >> unlockStatement
+        lockStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >> true
+        mockResultSet.getBoolean(1) >> true
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def ran = PostgresDao.getInstance().runWithAdvisoryLock("dogcow.lock", 42L, { workRan = true })
+
+        then:
+        ran
+        workRan
+        1 * lockStatement.setLong(1, 42L)
+        1 * unlockStatement.setLong(1, 42L)
+        1 * unlockStatement.execute()
+    }
+
+    def "runWithAdvisoryLock doesn't run the work when another session holds the lock"() {
+        given:
+        def workRan = false
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >> true
+        mockResultSet.getBoolean(1) >> false
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def ran = PostgresDao.getInstance().runWithAdvisoryLock("dogcow.lock", 42L, { workRan = true })
+
+        then:
+        !ran
+        !workRan
+        0 * mockConn.prepareStatement("SELECT pg_advisory_unlock(?)")
+    }
+
+    def "runWithAdvisoryLock releases the lock when the work fails"() {
+        given:
+        def lockStatement = Mock(PreparedStatement)
+        def unlockStatement = Mock(PreparedStatement)
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement("SELECT pg_try_advisory_lock(?)") >> lockStatement
+        mockConn.prepareStatement("SELECT pg_advisory_unlock(?)") >> unlockStatement
+        lockStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >> true
+        mockResultSet.getBoolean(1) >> true
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().runWithAdvisoryLock("dogcow.lock", 42L, { throw new SQLException("DogCow") })
+
+        then:
+        thrown(SQLException)
+        1 * unlockStatement.execute()
+    }
+
     def "fetchFirstData retrieves data"() {
         given:
         mockConnPool.getConnection() >> mockConn
@@ -177,7 +435,7 @@ class PostgresDaoTest extends Specification {
         }
 
         when:
-        def result = PostgresDao.getInstance().fetchFirstData(sqlGenerator, converter)
+        def result = PostgresDao.getInstance().fetchFirstData("dogcow.read", sqlGenerator, converter)
 
         then:
         result.get("id") == "1234"
@@ -203,7 +461,7 @@ class PostgresDaoTest extends Specification {
         }
 
         when:
-        PostgresDao.getInstance().fetchFirstData(sqlGenerator, converter)
+        PostgresDao.getInstance().fetchFirstData("dogcow.read", sqlGenerator, converter)
 
         then:
         def thrownException = thrown(SQLException)
@@ -229,7 +487,7 @@ class PostgresDaoTest extends Specification {
         def converter = { resultSet -> throw originalException }
 
         when:
-        PostgresDao.getInstance().fetchFirstData(sqlGenerator, converter)
+        PostgresDao.getInstance().fetchFirstData("dogcow.read", sqlGenerator, converter)
 
         then:
         def thrownException = thrown(SQLException)
@@ -259,7 +517,7 @@ class PostgresDaoTest extends Specification {
         }
 
         when:
-        def result = PostgresDao.getInstance().fetchFirstData(sqlGenerator, converter)
+        def result = PostgresDao.getInstance().fetchFirstData("dogcow.read", sqlGenerator, converter)
 
         then:
         result == null
@@ -308,7 +566,7 @@ class PostgresDaoTest extends Specification {
         }
 
         when:
-        def actual = PostgresDao.getInstance().fetchManyData(sqlGenerator, converter, Collectors.toSet())
+        def actual = PostgresDao.getInstance().fetchManyData("dogcow.read", sqlGenerator, converter, Collectors.toSet())
 
         then:
         actual instanceof Set
@@ -334,10 +592,161 @@ class PostgresDaoTest extends Specification {
         def converter = { resultSet -> throw originalException }
 
         when:
-        PostgresDao.getInstance().fetchManyData(sqlGenerator, converter, Collectors.toSet())
+        PostgresDao.getInstance().fetchManyData("dogcow.read", sqlGenerator, converter, Collectors.toSet())
+
+        then:
+        def thrownException = thrown(SQLException)
+        thrownException.getCause() == originalException
+    }
+
+    def "streamData passes each row to the consumer while fetching in batches within a transaction"() {
+        given:
+        mockConnPool.getConnection() >> mockConn
+        mockConn.getAutoCommit() >> true
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >>> [true, true, false]
+        mockResultSet.getString("id") >>> ["1234", "5678"]
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+        def consumed = []
+
+        when:
+        PostgresDao.getInstance().streamData("dogcow.read", sqlGenerator, converter, { consumed.add(it) })
+
+        then:
+        1 * mockConn.setAutoCommit(false)
+        1 * mockPreparedStatement.setFetchSize(PostgresDao.STREAMING_FETCH_SIZE)
+
+        then:
+        1 * mockConn.commit()
+
+        then:
+        1 * mockConn.setAutoCommit(true)
+        consumed == ["1234", "5678"]
+    }
+
+    def "streamData rolls back and fails when a row can't be consumed"() {
+        given:
+        mockConnPool.getConnection() >> mockConn
+        mockConn.getAutoCommit() >> true
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >>> [true, false]
+        mockResultSet.getString("id") >> "1234"
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+        def originalException = new RuntimeException("oh no!")
+
+        when:
+        PostgresDao.getInstance().streamData("dogcow.read", sqlGenerator, converter, { throw originalException })
 
         then:
         def thrownException = thrown(SQLException)
         thrownException.getCause() == originalException
+        0 * mockConn.commit()
+        1 * mockConn.rollback()
+        1 * mockConn.setAutoCommit(true)
+    }
+
+    def "fetchManyData and streamData read from the read connection when they don't need the latest data"() {
+        given:
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >> false
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+
+        when:
+        PostgresDao.getInstance().fetchManyData("dogcow.read", DbReadConsistency.EVENTUAL, sqlGenerator, converter, Collectors.toSet())
+        PostgresDao.getInstance().streamData("dogcow.read", DbReadConsistency.EVENTUAL, sqlGenerator, converter, { })
+
+        then:
+        2 * mockConnPool.getReadConnection() >> mockConn
+        0 * mockConnPool.getConnection()
+    }
+
+    def "fetchManyData and streamData read from the primary connection when they need the latest data"() {
+        given:
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >> false
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+
+        when:
+        PostgresDao.getInstance().fetchManyData("dogcow.read", DbReadConsistency.STRONG, sqlGenerator, converter, Collectors.toSet())
+        PostgresDao.getInstance().streamData("dogcow.read", sqlGenerator, converter, { })
+
+        then:
+        2 * mockConnPool.getConnection() >> mockConn
+        0 * mockConnPool.getReadConnection()
+    }
+
+    def "each query is timed under its name with the rows it returned"() {
+        given:
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "0")
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(DbQueryMetrics, DbQueryMetrics.getInstance())
+
+        mockConnPool.getConnection() >> mockConn
+        mockConn.prepareStatement(_ as String) >> mockPreparedStatement
+        mockPreparedStatement.executeQuery() >> mockResultSet
+        mockResultSet.next() >>> [true, true, false]
+        mockResultSet.getString("id") >>> ["1234", "5678"]
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def sqlGenerator = { connection -> connection.prepareStatement("SELECT * FROM table") }
+        def converter = { resultSet -> resultSet.getString("id") }
+
+        when:
+        PostgresDao.getInstance().fetchManyData("dogcow.read", sqlGenerator, converter, Collectors.toList())
+
+        then:
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query.get("Query") == "dogcow.read" && query.get("Rows") == 2L && !query.get("Failed")
+        })
+    }
+
+    def "a failed query is timed as failed and named in the exception"() {
+        given:
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.addEnvironmentVariable("DB_SLOW_QUERY_THRESHOLD_MILLIS", "0")
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(DbQueryMetrics, DbQueryMetrics.getInstance())
+
+        mockConnPool.getConnection() >> { throw new SQLException("oh no!") }
+
+        TestApplicationContext.register(ConnectionPool, mockConnPool)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        PostgresDao.getInstance().fetchFirstData("dogcow.read", { connection -> connection.prepareStatement("SELECT 1") }, { resultSet -> 1 })
+
+        then:
+        def thrownException = thrown(SQLException)
+        thrownException.getMessage().contains("dogcow.read")
+        1 * mockLogger.logMap("Slow database query:", { Map<String, Object> query ->
+            query.get("Query") == "dogcow.read" && query.get("Rows") == 0L && query.get("Failed")
+        })
     }
 }
@@ -0,0 +1,284 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataChange
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+class CachingPartnerMetadataStorageTest extends Specification {
+
+    def mockStorage = Mock(PartnerMetadataStorage)
+    def mockLogger = Mock(Logger)
+    def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING).withSentSubmissionId("sentId")
+    def now = 0L
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_MAX_SIZE", "2")
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_CACHE_TTL_SECONDS", "10")
+        TestApplicationContext.register(Logger, mockLogger)
+        CachingPartnerMetadataStorage.getInstance().init(mockStorage)
+        TestApplicationContext.register(PartnerMetadataStorage, CachingPartnerMetadataStorage.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        CachingPartnerMetadataStorage.getInstance().nanoTime = { now }
+    }
+
+    def "readMetadata only reads from the underlying storage the first time"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+
+        when:
+        def first = cachingStorage.readMetadata("receivedId")
+        def second = cachingStorage.readMetadata("receivedId")
+
+        then:
+        1 * mockStorage.readMetadata("receivedId") >> Optional.of(metadata)
+        first.get() == metadata
+        second.get() == metadata
+    }
+
+    def "readMetadata doesn't cache missing metadata"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+
+        when:
+        def first = cachingStorage.readMetadata("receivedId")
+        def second = cachingStorage.readMetadata("receivedId")
+
+        then:
+        2 * mockStorage.readMetadata("receivedId") >>> [
+            Optional.empty(),
+            Optional.of(metadata)
+        ]
+        first.isEmpty()
+        second.get() == metadata
+        cachingStorage.size() == 1
+    }
+
+    def "readMetadata reads from the underlying storage again once the entry expires"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+
+        when:
+        cachingStorage.readMetadata("receivedId")
+        now = TimeUnit.SECONDS.toNanos(9)
+        cachingStorage.readMetadata("receivedId")
+        now = TimeUnit.SECONDS.toNanos(10)
+        cachingStorage.readMetadata("receivedId")
+
+        then:
+        2 * mockStorage.readMetadata("receivedId") >> Optional.of(metadata)
+    }
+
+    def "readMetadata evicts the oldest entries when the cache is full"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata(_ as String) >> { String id -> Optional.of(new PartnerMetadata(id, PartnerMetadataStatus.PENDING)) }
+
+        when:
+        cachingStorage.readMetadata("first")
+        cachingStorage.readMetadata("second")
+        cachingStorage.readMetadata("third")
+
+        then:
+        cachingStorage.size() == 2
+
+        when:
+        cachingStorage.readMetadata("second")
+        cachingStorage.readMetadata("third")
+
+        then:
+        0 * mockStorage.readMetadata(_ as String)
+
+        when:
+        cachingStorage.readMetadata("first")
+
+        then:
+        1 * mockStorage.readMetadata("first") >> Optional.of(metadata)
+    }
+
+    def "readMetadata rethrows the exception of the underlying storage and doesn't leave anything in the cache"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata("receivedId") >> { throw new PartnerMetadataException("DogCow") }
+
+        when:
+        cachingStorage.readMetadata("receivedId")
+
+        then:
+        thrown(PartnerMetadataException)
+        cachingStorage.size() == 0
+    }
+
+    def "readMetadata doesn't cache metadata that was saved while it was being read"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+
+        when:
+        cachingStorage.readMetadata("receivedId")
+        cachingStorage.readMetadata("receivedId")
+
+        then:
+        2 * mockStorage.readMetadata("receivedId") >> {
+            cachingStorage.saveMetadata(metadata)
+            Optional.of(metadata)
+        }
+        cachingStorage.size() == 0
+    }
+
+    def "saveMetadata saves to the underlying storage and invalidates both the received and sent submission IDs"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata(_ as String) >> Optional.of(metadata)
+        cachingStorage.readMetadata("receivedId")
+        cachingStorage.readMetadata("sentId")
+
+        when:
+        cachingStorage.saveMetadata(new PartnerMetadata("receivedId", PartnerMetadataStatus.DELIVERED))
+
+        then:
+        1 * mockStorage.saveMetadata(_ as PartnerMetadata)
+        cachingStorage.size() == 0
+    }
+
+    def "saveMetadata invalidates the cache even when the underlying storage fails"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata("receivedId") >> Optional.of(metadata)
+        mockStorage.saveMetadata(_ as PartnerMetadata) >> { throw new PartnerMetadataException("DogCow") }
+        cachingStorage.readMetadata("receivedId")
+
+        when:
+        cachingStorage.saveMetadata(metadata)
+
+        then:
+        thrown(PartnerMetadataException)
+        cachingStorage.size() == 0
+    }
+
+    def "saveUnitOfWork saves to the underlying storage and invalidates the submission IDs of all the metadata"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata(_ as String) >> Optional.of(metadata)
+        cachingStorage.readMetadata("receivedId")
+        cachingStorage.readMetadata("sentId")
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(metadata)
+
+        when:
+        cachingStorage.saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockStorage.saveUnitOfWork(unitOfWork)
+        cachingStorage.size() == 0
+    }
+
+    def "saveUnitOfWork invalidates the cache even when the underlying storage fails"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata("receivedId") >> Optional.of(metadata)
+        mockStorage.saveUnitOfWork(_ as PartnerMetadataUnitOfWork) >> { throw new PartnerMetadataException("DogCow") }
+        cachingStorage.readMetadata("receivedId")
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(metadata)
+
+        when:
+        cachingStorage.saveUnitOfWork(unitOfWork)
+
+        then:
+        thrown(PartnerMetadataException)
+        cachingStorage.size() == 0
+    }
+
+    def "changes made by another instance invalidate the changed submission IDs"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata(_ as String) >> { String id -> Optional.of(new PartnerMetadata(id, PartnerMetadataStatus.PENDING)) }
+        cachingStorage.readMetadata("changedId")
+        cachingStorage.readMetadata("unchangedId")
+
+        when:
+        cachingStorage.onMetadataChanged(new PartnerMetadataChange(["changedId"], []))
+
+        then:
+        cachingStorage.size() == 1
+
+        when:
+        cachingStorage.readMetadata("unchangedId")
+        cachingStorage.readMetadata("changedId")
+
+        then:
+        1 * mockStorage.readMetadata("changedId") >> Optional.of(metadata)
+        0 * mockStorage.readMetadata("unchangedId")
+    }
+
+    def "missed changes invalidate everything"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata(_ as String) >> Optional.of(metadata)
+        cachingStorage.readMetadata("receivedId")
+        cachingStorage.readMetadata("sentId")
+
+        when:
+        cachingStorage.onChangesMissed()
+
+        then:
+        cachingStorage.size() == 0
+    }
+
+    def "the other reads are passed through to the underlying storage"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        def expectedMetadataSet = Set.of(metadata)
+        def expectedIds = Set.of("linkedId")
+        def expectedKeys = List.of(new MessageLinkKey("placerOrderNumber", null))
+        def expectedCounts = List.of(new PartnerMetadataStatusCount("receiver", PartnerMetadataStatus.PENDING, 1))
+
+        when:
+        def actualMetadataSet = cachingStorage.readMetadataForSender("sender")
+        def actualIds = cachingStorage.readMetadataForMessageLinking("receivedId")
+        def actualIdsForMetadata = cachingStorage.readMetadataForMessageLinking(metadata)
+        def actualKeys = cachingStorage.readMessageLinkKeys()
+        def actualCounts = cachingStorage.readStatusCountsForSender("sender")
+        def consumer = { metadata -> }
+        cachingStorage.readMetadataForSender(PartnerMetadataQuery.forSender("sender"), consumer)
+
+        then:
+        1 * mockStorage.readMetadataForSender("sender") >> expectedMetadataSet
+        1 * mockStorage.readMetadataForSender(PartnerMetadataQuery.forSender("sender"), consumer)
+        1 * mockStorage.readMetadataForMessageLinking("receivedId") >> expectedIds
+        1 * mockStorage.readMetadataForMessageLinking(metadata) >> expectedIds
+        1 * mockStorage.readMessageLinkKeys() >> expectedKeys
+        1 * mockStorage.readStatusCountsForSender("sender") >> expectedCounts
+        actualMetadataSet == expectedMetadataSet
+        actualIds == expectedIds
+        actualIdsForMetadata == expectedIds
+        actualKeys == expectedKeys
+        actualCounts == expectedCounts
+    }
+
+    def "the hit ratio is logged periodically"() {
+        given:
+        def cachingStorage = CachingPartnerMetadataStorage.getInstance()
+        mockStorage.readMetadata("receivedId") >> Optional.of(metadata)
+
+        when:
+        CachingPartnerMetadataStorage.STATISTICS_LOG_INTERVAL.times {
+            cachingStorage.readMetadata("receivedId")
+        }
+
+        then:
+        1 * mockLogger.logMap(_ as String, { it.get("Hits") == CachingPartnerMetadataStorage.STATISTICS_LOG_INTERVAL - 1 })
+    }
+}
@@ -0,0 +1,53 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory
+
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import spock.lang.Specification
+
+class InMemoryMessageLinkStorageTest extends Specification {
+
+    def setup() {
+        InMemoryMessageLinkStorage.getInstance().clear()
+    }
+
+    def "a saved message link is read by any of its message IDs"() {
+        given:
+        def storage = InMemoryMessageLinkStorage.getInstance()
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("first", "second"))
+
+        when:
+        storage.saveMessageLink(messageLink)
+
+        then:
+        storage.getMessageLink("first").get() == messageLink
+        storage.getMessageLink("second").get() == messageLink
+        storage.getMessageLink("unknown").isEmpty()
+    }
+
+    def "saving a message link with an existing link ID adds its message IDs to the link"() {
+        given:
+        def storage = InMemoryMessageLinkStorage.getInstance()
+        def linkId = UUID.randomUUID()
+
+        when:
+        storage.saveMessageLink(new MessageLink(linkId, "first"))
+        storage.saveMessageLink(new MessageLink(linkId, "second"))
+
+        then:
+        storage.getMessageLink("first").get() == new MessageLink(linkId, Set.of("first", "second"))
+        storage.getMessageLink("second").get() == new MessageLink(linkId, Set.of("first", "second"))
+    }
+
+    def "the returned message link is a copy"() {
+        given:
+        def storage = InMemoryMessageLinkStorage.getInstance()
+        def linkId = UUID.randomUUID()
+        storage.saveMessageLink(new MessageLink(linkId, "first"))
+
+        when:
+        storage.getMessageLink("first").get().addMessageId("second")
+
+        then:
+        storage.getMessageLink("first").get() == new MessageLink(linkId, "first")
+        storage.getMessageLink("second").isEmpty()
+    }
+}
@@ -0,0 +1,184 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkKey
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork
+import java.time.Instant
+import spock.lang.Specification
+
+class InMemoryPartnerMetadataStorageTest extends Specification {
+
+    def senderFacility = new MessageHdDataType("sender_name", "sender_id", "sender_type")
+    def receiverFacility = new MessageHdDataType("receiver_name", "receiver_id", "receiver_type")
+    def otherFacility = new MessageHdDataType("other_name", "other_id", "other_type")
+    def mockMessageLinkStorage = Mock(MessageLinkStorage)
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(MessageLinkStorage, mockMessageLinkStorage)
+        TestApplicationContext.register(InMemoryPartnerMetadataStorage, InMemoryPartnerMetadataStorage.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        InMemoryPartnerMetadataStorage.getInstance().clear()
+    }
+
+    private PartnerMetadata metadata(String receivedId, String sentId, Instant timeReceived, PartnerMetadataStatus status, MessageHdDataType sendingFacility, MessageHdDataType receivingFacility, String placerOrderNumber) {
+        return new PartnerMetadata(receivedId, sentId, timeReceived, null, "hash", status, null, PartnerMetadataMessageType.ORDER, null, sendingFacility, null, receivingFacility, placerOrderNumber)
+    }
+
+    def "metadata is read by either its received or its sent submission ID"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        def saved = metadata("receivedId", "sentId", null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+
+        when:
+        storage.saveMetadata(saved)
+
+        then:
+        storage.readMetadata("receivedId").get() == saved
+        storage.readMetadata("sentId").get() == saved
+        storage.readMetadata("unknownId").isEmpty()
+    }
+
+    def "saving metadata again replaces it and its old sent submission ID"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        def first = metadata("receivedId", "oldSentId", null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+        def second = metadata("receivedId", "newSentId", null, PartnerMetadataStatus.DELIVERED, senderFacility, receiverFacility, null)
+
+        when:
+        storage.saveMetadata(first)
+        storage.saveMetadata(second)
+
+        then:
+        storage.readMetadata("receivedId").get() == second
+        storage.readMetadata("newSentId").get() == second
+        storage.readMetadata("oldSentId").isEmpty()
+        storage.readMetadataForSender("sender_id") == [second] as Set
+    }
+
+    def "readMetadataForSender pages through the metadata of the sender in cursor order"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        def noTime = metadata("noTime", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+        def early = metadata("early", null, Instant.parse("2024-01-01T00:00:00Z"), PartnerMetadataStatus.DELIVERED, senderFacility, receiverFacility, null)
+        def lateB = metadata("lateB", null, Instant.parse("2024-02-01T00:00:00Z"), PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+        def lateA = metadata("lateA", null, Instant.parse("2024-02-01T00:00:00Z"), PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+        def otherSender = metadata("otherSender", null, Instant.parse("2024-01-15T00:00:00Z"), PartnerMetadataStatus.PENDING, otherFacility, receiverFacility, null)
+        [lateB, early, otherSender, noTime, lateA].each { storage.saveMetadata(it) }
+
+        when:
+        def firstPage = []
+        storage.readMetadataForSender(new PartnerMetadataQuery("sender_id", null, null, null, null, 2), firstPage::add)
+        def secondPage = []
+        storage.readMetadataForSender(new PartnerMetadataQuery("sender_id", null, null, null, PartnerMetadataCursor.of(firstPage.last()), 2), secondPage::add)
+        def pending = []
+        storage.readMetadataForSender(new PartnerMetadataQuery("sender_id", Instant.parse("2024-01-01T00:00:00Z"), null, PartnerMetadataStatus.PENDING, null, null), pending::add)
+
+        then:
+        firstPage == [noTime, early]
+        secondPage == [lateA, lateB]
+        pending == [lateA, lateB]
+    }
+
+    def "the status counts of a sender are grouped by receiver and status"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        storage.saveMetadata(metadata("1", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null))
+        storage.saveMetadata(metadata("2", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null))
+        storage.saveMetadata(metadata("3", null, null, PartnerMetadataStatus.FAILED, senderFacility, otherFacility, null))
+        storage.saveMetadata(metadata("4", null, null, PartnerMetadataStatus.PENDING, otherFacility, receiverFacility, null))
+
+        when:
+        def counts = storage.readStatusCountsForSender("sender_id")
+
+        then:
+        counts as Set == [
+            new PartnerMetadataStatusCount("receiver_id", PartnerMetadataStatus.PENDING, 2),
+            new PartnerMetadataStatusCount("other_id", PartnerMetadataStatus.FAILED, 1)
+        ] as Set
+    }
+
+    def "metadata is linked on the placer order number and the sending facility"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        def order = metadata("order", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "placer")
+        def result = metadata("result", null, null, PartnerMetadataStatus.PENDING, receiverFacility, senderFacility, "placer")
+        def sameSender = metadata("sameSender", null, null, PartnerMetadataStatus.PENDING, senderFacility, otherFacility, "placer")
+        def otherOrder = metadata("otherOrder", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "other")
+        def unrelated = metadata("unrelated", null, null, PartnerMetadataStatus.PENDING, otherFacility, receiverFacility, "placer")
+        [order, result, sameSender, otherOrder, unrelated].each { storage.saveMetadata(it) }
+
+        expect:
+        storage.readMetadataForMessageLinking("order") == ["result", "sameSender"] as Set
+        storage.readMetadataForMessageLinking(metadata("new", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "placer")) == ["order", "result", "sameSender"] as Set
+        storage.readMetadataForMessageLinking(metadata("new", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)).isEmpty()
+        storage.readMetadataForMessageLinking("unknownId").isEmpty()
+    }
+
+    def "metadata saved again with another placer order number is no longer linked on the old one"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        storage.saveMetadata(metadata("order", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "placer"))
+        storage.saveMetadata(metadata("order", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "changed"))
+
+        expect:
+        storage.readMetadataForMessageLinking(metadata("new", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "placer")).isEmpty()
+        storage.readMetadataForMessageLinking(metadata("new", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "changed")) == ["order"] as Set
+    }
+
+    def "readMessageLinkKeys returns the keys of the metadata with a placer order number"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        storage.saveMetadata(metadata("order", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, "placer"))
+        storage.saveMetadata(metadata("noPlacer", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null))
+
+        expect:
+        storage.readMessageLinkKeys() as Set == [
+            new MessageLinkKey("placer", senderFacility),
+            new MessageLinkKey("placer", receiverFacility)
+        ] as Set
+    }
+
+    def "saveUnitOfWork saves the metadata and the message links"() {
+        given:
+        def storage = InMemoryPartnerMetadataStorage.getInstance()
+        def saved = metadata("receivedId", null, null, PartnerMetadataStatus.PENDING, senderFacility, receiverFacility, null)
+        def messageLink = new MessageLink(UUID.randomUUID(), "receivedId")
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(saved)
+        unitOfWork.saveMessageLink(messageLink)
+
+        when:
+        storage.saveUnitOfWork(unitOfWork)
+
+        then:
+        1 * mockMessageLinkStorage.saveMessageLink(messageLink)
+        storage.readMetadata("receivedId").get() == saved
+    }
+
+    def "saveUnitOfWork throws a PartnerMetadataException when the message links can't be saved"() {
+        given:
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMessageLink(new MessageLink(UUID.randomUUID(), "receivedId"))
+        mockMessageLinkStorage.saveMessageLink(_) >> { throw new MessageLinkException("DogCow", new Exception()) }
+
+        when:
+        InMemoryPartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        thrown(PartnerMetadataException)
+    }
+}
@@ -3,11 +3,9 @@ package gov.hhs.cdc.trustedintermediary.external.localfile
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
 import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException
-import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
-import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
+import java.nio.ByteBuffer
+import java.nio.file.Files
 import spock.lang.Specification
 
 class FileMessageLinkStorageTest extends Specification {
@@ -16,17 +14,18 @@ class FileMessageLinkStorageTest extends Specification {
     def mockLogger = Mock(Logger)
 
     def setup() {
+        messageLinkStorage.close()
+        messageLinkStorage.regionBytes = FileMessageLinkStorage.DEFAULT_REGION_BYTES
+        Files.deleteIfExists(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH)
+
         TestApplicationContext.reset()
         TestApplicationContext.init()
         TestApplicationContext.register(FileMessageLinkStorage, messageLinkStorage)
         TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.injectRegisteredImplementations()
     }
 
     def "save and read message links successfully"() {
-        given:
-        TestApplicationContext.register(Formatter, Jackson.getInstance())
-        TestApplicationContext.injectRegisteredImplementations()
-
         when:
         def messageId1 = "messageId1"
         var expectedMessageLink1 = new MessageLink(UUID.randomUUID(), Set.of(messageId1, "additionalMessageId1"))
@@ -54,59 +53,39 @@ class FileMessageLinkStorageTest extends Specification {
             messageIds.containsAll(expectedMessageLink2.messageIds) && expectedMessageLink2.messageIds.containsAll(messageIds)
         }
         0 * mockLogger.logWarning(_ as String)
+        messageLinkStorage.getMessageLink("unknownMessageId").isEmpty()
     }
 
-    def "getMessageLink throws MessageLinkException when unable to parse file"() {
-        given:
-        def mockFormatter = Mock(Formatter)
-        mockFormatter.convertToJsonString(_) >> "[]"
-        mockFormatter.convertJsonToObject(_ as String, _ as TypeReference) >> null >> {throw new FormatterProcessingException("error", new Exception())}
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
-
-        def submissionId = "submissionId"
-        def messageLink = new MessageLink(UUID.randomUUID(), Set.of(submissionId, "messageId2"))
-        messageLinkStorage.saveMessageLink(messageLink)
-
-        when:
-        messageLinkStorage.getMessageLink(submissionId)
-
-        then:
-        thrown(MessageLinkException)
-    }
-
-    def "getMessageLink logs a warning when more than one message link is found for a message id"() {
+    def "saveMessageLink logs a warning when a message id is moved to another message link"() {
         given:
         def repeatedMessageId = "messageId1"
         def messageLink1 = new MessageLink(UUID.randomUUID(), Set.of(repeatedMessageId, "messageId2"))
         def messageLink2 = new MessageLink(UUID.randomUUID(), Set.of(repeatedMessageId, "messageId3"))
-
-        def mockFormatter = Mock(Formatter)
-        mockFormatter.convertJsonToObject(_ as String, _ as TypeReference) >> Set.of(messageLink1, messageLink2)
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        messageLinkStorage.saveMessageLink(messageLink1)
 
         when:
-        messageLinkStorage.getMessageLink(repeatedMessageId)
+        messageLinkStorage.saveMessageLink(messageLink2)
 
         then:
         1 * mockLogger.logWarning(_ as String, repeatedMessageId)
+        messageLinkStorage.getMessageLink(repeatedMessageId).get().linkId == messageLink2.linkId
+        messageLinkStorage.getMessageLink("messageId2").get() == new MessageLink(messageLink1.linkId, "messageId2")
     }
 
-    def "saveMessageLink throws MessageLinkException when unable to save file"() {
+    def "a message id moved to another message link is only in that link when the file is replayed"() {
         given:
-        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
-
-        def mockFormatter = Mock(Formatter)
-        mockFormatter.convertToJsonString(Set.of(messageLink)) >> {throw new FormatterProcessingException("error", new Exception())}
-        TestApplicationContext.register(Formatter, mockFormatter)
-        TestApplicationContext.injectRegisteredImplementations()
+        def messageLink1 = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
+        def messageLink2 = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId3"))
+        messageLinkStorage.saveMessageLink(messageLink1)
+        messageLinkStorage.saveMessageLink(messageLink2)
 
         when:
-        messageLinkStorage.saveMessageLink(messageLink)
+        messageLinkStorage.close()
 
         then:
-        thrown(MessageLinkException)
+        messageLinkStorage.getMessageLink("messageId1").get() == messageLink2
+        messageLinkStorage.getMessageLink("messageId2").get() == new MessageLink(messageLink1.linkId, "messageId2")
+        0 * mockLogger.logWarning(_ as String, _)
     }
 
     def "saveMessageLink adds messageIds to existing message link"() {
@@ -118,9 +97,6 @@ class FileMessageLinkStorageTest extends Specification {
         def newMessageIds = Set.of(messageId, "messageId3")
         def newMessageLink = new MessageLink(linkId, newMessageIds)
 
-        TestApplicationContext.register(Formatter, Jackson.getInstance())
-        TestApplicationContext.injectRegisteredImplementations()
-
         messageLinkStorage.saveMessageLink(existingMessageLink)
 
         when:
@@ -133,5 +109,147 @@ class FileMessageLinkStorageTest extends Specification {
             linkId == linkId
             messageIds.containsAll(existingMessageLink.messageIds) && messageIds.containsAll(newMessageLink.messageIds)
         }
+        0 * mockLogger.logWarning(_ as String, _)
+    }
+
+    def "saving a message link that adds no messageIds doesn't grow the file"() {
+        given:
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("messageId1", "messageId2"))
+        messageLinkStorage.saveMessageLink(messageLink)
+        messageLinkStorage.close()
+        def recordBytes = Files.readAllBytes(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH)
+
+        when:
+        messageLinkStorage.saveMessageLink(new MessageLink(messageLink.linkId, "messageId1"))
+        messageLinkStorage.close()
+
+        then:
+        Files.readAllBytes(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH) == recordBytes
+    }
+
+    def "the message links are replayed from the file when it's opened again"() {
+        given:
+        def linkId = UUID.randomUUID()
+        messageLinkStorage.saveMessageLink(new MessageLink(linkId, "messageId1"))
+        messageLinkStorage.saveMessageLink(new MessageLink(linkId, "messageId2"))
+        def otherMessageLink = new MessageLink(UUID.randomUUID(), "messageId3")
+        messageLinkStorage.saveMessageLink(otherMessageLink)
+
+        when:
+        messageLinkStorage.close()
+
+        then:
+        messageLinkStorage.getMessageLink("messageId1").get() == new MessageLink(linkId, Set.of("messageId1", "messageId2"))
+        messageLinkStorage.getMessageLink("messageId3").get() == otherMessageLink
+
+        when:
+        def appendedMessageLink = new MessageLink(UUID.randomUUID(), "messageId4")
+        messageLinkStorage.saveMessageLink(appendedMessageLink)
+        messageLinkStorage.close()
+
+        then:
+        messageLinkStorage.getMessageLink("messageId2").get() == new MessageLink(linkId, Set.of("messageId1", "messageId2"))
+        messageLinkStorage.getMessageLink("messageId4").get() == appendedMessageLink
+    }
+
+    def "a record that doesn't fit in a region goes to the next one"() {
+        given:
+        // a record with one single character message ID takes 33 bytes
+        messageLinkStorage.regionBytes = 64
+        def messageLink1 = new MessageLink(UUID.randomUUID(), "a")
+        def messageLink2 = new MessageLink(UUID.randomUUID(), "b")
+
+        when:
+        messageLinkStorage.saveMessageLink(messageLink1)
+        messageLinkStorage.saveMessageLink(messageLink2)
+        messageLinkStorage.close()
+
+        then:
+        Files.size(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH) == 128
+        messageLinkStorage.getMessageLink("a").get() == messageLink1
+        messageLinkStorage.getMessageLink("b").get() == messageLink2
+    }
+
+    def "a message link with more messageIds than fit in a region is split over several records"() {
+        given:
+        messageLinkStorage.regionBytes = 64
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("a", "b", "c", "d", "e", "f", "g", "h"))
+
+        when:
+        messageLinkStorage.saveMessageLink(messageLink)
+        messageLinkStorage.close()
+
+        then:
+        Files.size(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH) > 64
+        messageLinkStorage.getMessageLink("h").get() == messageLink
+    }
+
+    def "saveMessageLink throws MessageLinkException when a messageId is too long to fit in a region"() {
+        given:
+        messageLinkStorage.regionBytes = 64
+
+        when:
+        messageLinkStorage.saveMessageLink(new MessageLink(UUID.randomUUID(), "x" * 64))
+
+        then:
+        thrown(MessageLinkException)
+    }
+
+    def "a record that can't be read is skipped when the file is replayed"() {
+        given:
+        def messageLink1 = new MessageLink(UUID.randomUUID(), "messageId1")
+        def messageLink2 = new MessageLink(UUID.randomUUID(), "messageId2")
+        messageLinkStorage.saveMessageLink(messageLink1)
+        messageLinkStorage.saveMessageLink(messageLink2)
+        messageLinkStorage.close()
+
+        def bytes = Files.readAllBytes(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH)
+        def corrupted = FileMessageLinkStorage.HEADER_BYTES
+        bytes[corrupted] = (byte) (bytes[corrupted] ^ 1)
+        Files.write(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH, bytes)
+
+        when:
+        def skipped = messageLinkStorage.getMessageLink("messageId1")
+
+        then:
+        1 * mockLogger.logWarning(_ as String, 0L)
+        skipped.isEmpty()
+        messageLinkStorage.getMessageLink("messageId2").get() == messageLink2
+    }
+
+    def "the records after a record that was reserved but never written are still replayed"() {
+        given:
+        def messageLink1 = new MessageLink(UUID.randomUUID(), "messageId1")
+        def messageLink2 = new MessageLink(UUID.randomUUID(), "messageId2")
+        def messageLink3 = new MessageLink(UUID.randomUUID(), "messageId3")
+        messageLinkStorage.saveMessageLink(messageLink1)
+        messageLinkStorage.saveMessageLink(messageLink2)
+        messageLinkStorage.saveMessageLink(messageLink3)
+        messageLinkStorage.close()
+
+        // the second record is zeroed, like when a crash stops it from being written after the
+        // third one was
+        def bytes = Files.readAllBytes(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH)
+        def buffer = ByteBuffer.wrap(bytes)
+        def second = FileMessageLinkStorage.HEADER_BYTES + buffer.getInt(0)
+        def secondBytes = FileMessageLinkStorage.HEADER_BYTES + buffer.getInt(second)
+        Arrays.fill(bytes, second, second + secondBytes, (byte) 0)
+        Files.write(FileMessageLinkStorage.MESSAGE_LINK_FILE_PATH, bytes)
+
+        when:
+        def replayed = messageLinkStorage.getMessageLink("messageId3")
+        def messageLink4 = new MessageLink(UUID.randomUUID(), "messageId4")
+        messageLinkStorage.saveMessageLink(messageLink4)
+        messageLinkStorage.close()
+        def reopened = ["messageId1", "messageId2", "messageId3", "messageId4"].collect { messageLinkStorage.getMessageLink(it) }
+
+        then:
+        // the hole is skipped again when the file is replayed the second time
+        2 * mockLogger.logWarning(_ as String, secondBytes, (long) second)
+        replayed.get() == messageLink3
+        reopened[0].get() == messageLink1
+        reopened[1].isEmpty()
+        reopened[2].get() == messageLink3
+        reopened[3].get() == messageLink4
     }
 }
@@ -1,17 +1,25 @@
 package gov.hhs.cdc.trustedintermediary.external.localfile
 
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkException
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLinkStorage
 import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataCursor
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataQuery
 import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatusCount
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork
 import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
 
 import java.nio.file.Files
+import java.nio.file.StandardOpenOption
 import java.time.Instant
 import spock.lang.Specification
 
@@ -25,10 +33,17 @@ class FilePartnerMetadataStorageTest extends Specification {
         TestApplicationContext.reset()
         TestApplicationContext.init()
         TestApplicationContext.register(FilePartnerMetadataStorage, FilePartnerMetadataStorage.getInstance())
+        TestApplicationContext.register(MessageLinkStorage, Mock(MessageLinkStorage))
 
+        FilePartnerMetadataStorage.getInstance().close()
+        FilePartnerMetadataStorage.getInstance().segmentMaxBytes = FilePartnerMetadataStorage.DEFAULT_SEGMENT_MAX_BYTES
         Files.list(FilePartnerMetadataStorage.METADATA_DIRECTORY).forEach {Files.delete(it) }
     }
 
+    private PartnerMetadata metadataWithStatus(String receivedSubmissionId, PartnerMetadataStatus status) {
+        return new PartnerMetadata(receivedSubmissionId, "sent-" + receivedSubmissionId, null, null, null, status, null, null, sendingAppDetails, sendingFacilityDetails, receivingAppDetails, receivingFacilityDetails, "placer_order_number")
+    }
+
     def "save and read metadata successfully"() {
         given:
         def expectedReceivedSubmissionId = "receivedSubmissionId"
@@ -128,6 +143,72 @@ class FilePartnerMetadataStorageTest extends Specification {
         metadataSet.containsAll(Set.of(metadata1, metadata2))
     }
 
+    def "readMetadataForSender passes each PartnerMetadata to the consumer"() {
+        given:
+        PartnerMetadata metadata1 = new PartnerMetadata("123456789", null, null, null, null, null, null, null, sendingAppDetails, sendingFacilityDetails, receivingAppDetails, receivingFacilityDetails, "placer_order_number")
+        def consumed = []
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        FilePartnerMetadataStorage.getInstance().saveMetadata(metadata1)
+        FilePartnerMetadataStorage.getInstance().readMetadataForSender(PartnerMetadataQuery.forSender(sendingFacilityDetails.universalId()), { consumed.add(it) })
+
+        then:
+        consumed.contains(metadata1)
+    }
+
+    def "readMetadataForSender filters, sorts and pages the PartnerMetadata like the database"() {
+        given:
+        def sender = new MessageHdDataType("paging_sender_name", "paging_sender_id", "paging_sender_type")
+        def noTime = new PartnerMetadata("paging-0", null, null, null, null, PartnerMetadataStatus.FAILED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+        def first = new PartnerMetadata("paging-1", null, Instant.parse("2024-01-01T00:00:00Z"), null, null, PartnerMetadataStatus.FAILED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+        def second = new PartnerMetadata("paging-2", null, Instant.parse("2024-01-02T00:00:00Z"), null, null, PartnerMetadataStatus.DELIVERED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+        def third = new PartnerMetadata("paging-3", null, Instant.parse("2024-01-03T00:00:00Z"), null, null, PartnerMetadataStatus.FAILED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        [third, first, noTime, second].each { FilePartnerMetadataStorage.getInstance().saveMetadata(it) }
+
+        def read = { PartnerMetadataQuery query ->
+            def consumed = []
+            FilePartnerMetadataStorage.getInstance().readMetadataForSender(query, { consumed.add(it.receivedSubmissionId()) })
+            return consumed
+        }
+
+        expect:
+        read(PartnerMetadataQuery.forSender(sender.universalId())) == ["paging-0", "paging-1", "paging-2", "paging-3"]
+        read(new PartnerMetadataQuery(sender.universalId(), null, null, null, null, 2)) == ["paging-0", "paging-1"]
+        read(new PartnerMetadataQuery(sender.universalId(), null, null, null, PartnerMetadataCursor.of(first), 2)) == ["paging-2", "paging-3"]
+        read(new PartnerMetadataQuery(sender.universalId(), Instant.parse("2024-01-02T00:00:00Z"), Instant.parse("2024-01-03T00:00:00Z"), null, null, null)) == ["paging-2"]
+        read(new PartnerMetadataQuery(sender.universalId(), null, null, PartnerMetadataStatus.FAILED, null, null)) == ["paging-0", "paging-1", "paging-3"]
+    }
+
+    def "readStatusCountsForSender counts the PartnerMetadata by receiver and status"() {
+        given:
+        def sender = new MessageHdDataType("counting_sender_name", "counting_sender_id", "counting_sender_type")
+        def unknownReceiver = new MessageHdDataType("unknown_receiver_name", null, "unknown_receiver_type")
+        def delivered1 = new PartnerMetadata("counting-1", null, null, null, null, PartnerMetadataStatus.DELIVERED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+        def delivered2 = new PartnerMetadata("counting-2", null, null, null, null, PartnerMetadataStatus.DELIVERED, null, null, sendingAppDetails, sender, receivingAppDetails, receivingFacilityDetails, null)
+        def pending = new PartnerMetadata("counting-3", null, null, null, null, PartnerMetadataStatus.PENDING, null, null, sendingAppDetails, sender, receivingAppDetails, unknownReceiver, null)
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        [delivered1, delivered2, pending].each { FilePartnerMetadataStorage.getInstance().saveMetadata(it) }
+
+        when:
+        def counts = FilePartnerMetadataStorage.getInstance().readStatusCountsForSender(sender.universalId())
+
+        then:
+        counts as Set == [
+            new PartnerMetadataStatusCount(receivingFacilityDetails.universalId(), PartnerMetadataStatus.DELIVERED, 2),
+            new PartnerMetadataStatusCount(null, PartnerMetadataStatus.PENDING, 1)
+        ] as Set
+    }
+
     def "readMetadataForMessageLinking returns a set of PartnerMetadata"() {
         given:
         TestApplicationContext.register(Formatter, Jackson.getInstance())
@@ -188,4 +269,192 @@ class FilePartnerMetadataStorageTest extends Specification {
         then:
         thrown(PartnerMetadataException)
     }
+
+    def "saveUnitOfWork saves the metadata and message links of the unit of work"() {
+        given:
+        def mockMessageLinkStorage = Mock(MessageLinkStorage)
+        TestApplicationContext.register(MessageLinkStorage, mockMessageLinkStorage)
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def metadata = new PartnerMetadata("receivedSubmissionId", "sentSubmissionId", Instant.parse("2023-12-04T18:51:48.941875Z"), Instant.parse("2023-12-04T18:51:48.941875Z"), "abcd", PartnerMetadataStatus.DELIVERED, null, PartnerMetadataMessageType.ORDER, sendingAppDetails, sendingFacilityDetails, receivingAppDetails, receivingFacilityDetails, "placer_order_number")
+        def messageLink = new MessageLink(UUID.randomUUID(), Set.of("receivedSubmissionId", "otherSubmissionId"))
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(metadata)
+        unitOfWork.saveMessageLink(messageLink)
+
+        when:
+        FilePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        FilePartnerMetadataStorage.getInstance().readMetadata("receivedSubmissionId").get() == metadata
+        1 * mockMessageLinkStorage.saveMessageLink(messageLink)
+    }
+
+    def "saveUnitOfWork throws PartnerMetadataException when unable to save the message links"() {
+        given:
+        def mockMessageLinkStorage = Mock(MessageLinkStorage)
+        mockMessageLinkStorage.saveMessageLink(_ as MessageLink) >> { throw new MessageLinkException("error", new Exception()) }
+        TestApplicationContext.register(MessageLinkStorage, mockMessageLinkStorage)
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMessageLink(new MessageLink(UUID.randomUUID(), "receivedSubmissionId"))
+
+        when:
+        FilePartnerMetadataStorage.getInstance().saveUnitOfWork(unitOfWork)
+
+        then:
+        thrown(PartnerMetadataException)
+    }
+
+    def "readMetadataForMessageLinking returns the submission IDs to link with metadata that isn't saved yet"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        def facilityDetails = new MessageHdDataType("facility_name", "facility_id", "facility_type")
+        def otherFacilityDetails = new MessageHdDataType("other_facility_name", "other_facility_id", "other_facility_type")
+        def metadata = new PartnerMetadata("receivedSubmissionId", null, null, null, null, null, null, null, null, facilityDetails, null, otherFacilityDetails, "placerOrderNumber")
+        def sameSendingFacility = new PartnerMetadata("1", null, null, null, null, null, null, null, null, facilityDetails, null, otherFacilityDetails, "placerOrderNumber")
+        def sameReceivingFacility = new PartnerMetadata("2", null, null, null, null, null, null, null, null, otherFacilityDetails, null, facilityDetails, "placerOrderNumber")
+        def otherPlacerOrderNumber = new PartnerMetadata("3", null, null, null, null, null, null, null, null, facilityDetails, null, otherFacilityDetails, "otherPlacerOrderNumber")
+        FilePartnerMetadataStorage.getInstance().saveMetadata(sameSendingFacility)
+        FilePartnerMetadataStorage.getInstance().saveMetadata(sameReceivingFacility)
+        FilePartnerMetadataStorage.getInstance().saveMetadata(otherPlacerOrderNumber)
+
+        when:
+        def actual = FilePartnerMetadataStorage.getInstance().readMetadataForMessageLinking(metadata)
+
+        then:
+        actual == Set.of("1", "2")
+    }
+
+    def "readMetadataForMessageLinking returns an empty set when the metadata has no placer order number"() {
+        given:
+        def metadata = new PartnerMetadata("receivedSubmissionId", null, null, null, null, null, null, null, null, sendingFacilityDetails, null, receivingFacilityDetails, null)
+
+        when:
+        def actual = FilePartnerMetadataStorage.getInstance().readMetadataForMessageLinking(metadata)
+
+        then:
+        actual.isEmpty()
+    }
+
+    def "readMetadata finds the metadata by its sent submission ID"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+        def metadata = metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.PENDING)
+
+        when:
+        FilePartnerMetadataStorage.getInstance().saveMetadata(metadata)
+
+        then:
+        FilePartnerMetadataStorage.getInstance().readMetadata("sent-receivedSubmissionId").get() == metadata
+    }
+
+    def "the index is rebuilt from the segments with the latest version of each metadata"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+        def storage = FilePartnerMetadataStorage.getInstance()
+        storage.segmentMaxBytes = 1
+        def pending = metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.PENDING)
+        def delivered = metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.DELIVERED)
+        def other = metadataWithStatus("otherSubmissionId", PartnerMetadataStatus.PENDING)
+        [pending, other, delivered].each { storage.saveMetadata(it) }
+
+        when:
+        storage.close()
+
+        then:
+        Files.list(FilePartnerMetadataStorage.METADATA_DIRECTORY).count() == 4
+
+        when:
+        def read = storage.readMetadata("receivedSubmissionId")
+
+        then:
+        read.get() == delivered
+        storage.readMetadataForSender(sendingFacilityDetails.universalId()) == Set.of(delivered, other)
+        storage.readMetadataForMessageLinking(delivered) == Set.of("otherSubmissionId")
+    }
+
+    def "a half written metadata at the end of the log is truncated when the index is rebuilt"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+        def storage = FilePartnerMetadataStorage.getInstance()
+        def metadata = metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.PENDING)
+        storage.saveMetadata(metadata)
+        storage.close()
+        def segmentPath = FilePartnerMetadataStorage.segmentPath(1)
+        def completeSize = Files.size(segmentPath)
+        Files.writeString(segmentPath, "{\"receivedSubmissionId\":\"half", StandardOpenOption.APPEND)
+
+        when:
+        def read = storage.readMetadata("receivedSubmissionId")
+
+        then:
+        read.get() == metadata
+        Files.size(segmentPath) == completeSize
+
+        when:
+        def other = metadataWithStatus("otherSubmissionId", PartnerMetadataStatus.PENDING)
+        storage.saveMetadata(other)
+
+        then:
+        storage.readMetadata("otherSubmissionId").get() == other
+    }
+
+    def "compact rewrites the live metadata of the full segments into the newest of them"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+        def storage = FilePartnerMetadataStorage.getInstance()
+        storage.segmentMaxBytes = 1
+        def other = metadataWithStatus("otherSubmissionId", PartnerMetadataStatus.PENDING)
+        def delivered = metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.DELIVERED)
+        [
+            metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.PENDING),
+            metadataWithStatus("receivedSubmissionId", PartnerMetadataStatus.FAILED),
+            other,
+            delivered
+        ].each { storage.saveMetadata(it) }
+
+        when:
+        storage.compact()
+
+        then:
+        Files.list(FilePartnerMetadataStorage.METADATA_DIRECTORY).map { it.getFileName().toString() }.sorted().toList() == [
+            FilePartnerMetadataStorage.segmentPath(4).getFileName().toString(),
+            FilePartnerMetadataStorage.segmentPath(5).getFileName().toString()
+        ]
+        Files.readAllLines(FilePartnerMetadataStorage.segmentPath(4)).size() == 2
+        storage.readMetadata("receivedSubmissionId").get() == delivered
+        storage.readMetadata("otherSubmissionId").get() == other
+
+        when:
+        storage.close()
+
+        then:
+        storage.readMetadata("receivedSubmissionId").get() == delivered
+        storage.readMetadata("otherSubmissionId").get() == other
+    }
+
+    def "compact leaves the segments alone while most of what they hold is live"() {
+        given:
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+        def storage = FilePartnerMetadataStorage.getInstance()
+        storage.segmentMaxBytes = 1
+        ["1", "2", "3"].each { storage.saveMetadata(metadataWithStatus(it, PartnerMetadataStatus.PENDING)) }
+
+        when:
+        storage.compact()
+
+        then:
+        Files.list(FilePartnerMetadataStorage.METADATA_DIRECTORY).count() == 4
+    }
 }
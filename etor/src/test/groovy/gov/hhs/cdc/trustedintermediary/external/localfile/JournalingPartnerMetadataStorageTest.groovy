@@ -0,0 +1,391 @@
+package gov.hhs.cdc.trustedintermediary.external.localfile
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.etor.messagelink.MessageLink
+import gov.hhs.cdc.trustedintermediary.etor.messages.MessageHdDataType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadata
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataException
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataMessageType
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStatus
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataStorage
+import gov.hhs.cdc.trustedintermediary.etor.metadata.partner.PartnerMetadataUnitOfWork
+import gov.hhs.cdc.trustedintermediary.external.jackson.Jackson
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+import spock.lang.Specification
+
+class JournalingPartnerMetadataStorageTest extends Specification {
+
+    def mockStorage = Mock(PartnerMetadataStorage)
+    def mockLogger = Mock(Logger)
+    Path journalPath
+    long now = 0
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(Logger, mockLogger)
+
+        journalPath = Files.createTempDirectory("journal").resolve("metadata.journal")
+    }
+
+    def cleanup() {
+        def journal = JournalingPartnerMetadataStorage.getInstance()
+        journal.stop()
+        journal.nanoTime = { System.nanoTime() } as LongSupplier
+    }
+
+    private JournalingPartnerMetadataStorage createJournal() {
+        def journal = JournalingPartnerMetadataStorage.getInstance()
+        // stopped first, so a journal opened again replays the file like a new run would
+        journal.stop()
+        journal.init(mockStorage, journalPath)
+        // the tests drain the journal themselves
+        journal.scheduler = Mock(ScheduledExecutorService)
+        journal.nanoTime = { now } as LongSupplier
+        TestApplicationContext.register(JournalingPartnerMetadataStorage, journal)
+        TestApplicationContext.injectRegisteredImplementations()
+        return journal
+    }
+
+    def "saved metadata is journaled and read back before it is saved to the storage"() {
+        given:
+        def journal = createJournal()
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING).withSentSubmissionId("sentId")
+
+        when:
+        journal.saveMetadata(metadata)
+
+        then:
+        0 * mockStorage.saveMetadata(_)
+        0 * mockStorage.saveUnitOfWork(_)
+        Files.readAllLines(journalPath).size() == 1
+        Files.readAllLines(journalPath)[0].startsWith(JournalingPartnerMetadataStorage.ENTRY_PREFIX)
+
+        when:
+        def byReceivedId = journal.readMetadata("receivedId")
+        def bySentId = journal.readMetadata("sentId")
+
+        then:
+        byReceivedId.get() == metadata
+        bySentId.get() == metadata
+        0 * mockStorage.readMetadata(_)
+    }
+
+    def "draining saves the entries as one unit of work and empties the journal"() {
+        given:
+        def journal = createJournal()
+        def firstVersion = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+        def lastVersion = new PartnerMetadata("receivedId", PartnerMetadataStatus.DELIVERED)
+        def linkId = UUID.randomUUID()
+        def unitOfWork = new PartnerMetadataUnitOfWork()
+        unitOfWork.saveMetadata(lastVersion)
+        unitOfWork.saveMessageLink(new MessageLink(linkId, "receivedId"))
+
+        journal.saveMetadata(firstVersion)
+        journal.saveUnitOfWork(unitOfWork)
+
+        when:
+        journal.drain()
+
+        then:
+        1 * mockStorage.saveUnitOfWork({ PartnerMetadataUnitOfWork saved ->
+            saved.metadata() as List == [lastVersion]
+                    && saved.messageLinks() as List == [new MessageLink(linkId, "receivedId")]
+        })
+        journal.pendingCount() == 0
+        Files.size(journalPath) == 0
+
+        when:
+        journal.readMetadata("receivedId")
+
+        then:
+        1 * mockStorage.readMetadata("receivedId") >> Optional.of(lastVersion)
+    }
+
+    def "draining saves at most a batch at a time and checkpoints the saved entries"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_JOURNAL_BATCH_SIZE", "2")
+        def journal = createJournal()
+        3.times { journal.saveMetadata(new PartnerMetadata("receivedId" + it, PartnerMetadataStatus.PENDING)) }
+        def savedBatches = []
+        def checkpointsAfterEachSave = []
+        mockStorage.saveUnitOfWork(_ as PartnerMetadataUnitOfWork) >> { PartnerMetadataUnitOfWork saved ->
+            savedBatches.add(saved.metadata()*.receivedSubmissionId())
+            checkpointsAfterEachSave.add(Files.readAllLines(journalPath).findAll { it.startsWith(JournalingPartnerMetadataStorage.CHECKPOINT_PREFIX) })
+        }
+
+        when:
+        journal.drain()
+
+        then:
+        savedBatches == [
+            ["receivedId0", "receivedId1"],
+            ["receivedId2"]
+        ]
+        checkpointsAfterEachSave == [[], ["C 1"]]
+        journal.pendingCount() == 0
+    }
+
+    def "a failed save keeps the entries and is retried with a growing delay"() {
+        given:
+        def journal = createJournal()
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+        journal.saveMetadata(metadata)
+
+        when:
+        journal.drain()
+
+        then:
+        1 * mockStorage.saveUnitOfWork(_) >> { throw new PartnerMetadataException("DogCow") }
+        1 * mockLogger.logError({ it.contains("retrying in 1000 ms") }, _ as PartnerMetadataException)
+        journal.pendingCount() == 1
+        journal.readMetadata("receivedId").get() == metadata
+
+        when:
+        now += TimeUnit.MILLISECONDS.toNanos(JournalingPartnerMetadataStorage.INITIAL_RETRY_DELAY_MILLIS - 1)
+        journal.drain()
+
+        then:
+        0 * mockStorage.saveUnitOfWork(_)
+
+        when:
+        now += TimeUnit.MILLISECONDS.toNanos(1)
+        journal.drain()
+
+        then:
+        1 * mockStorage.saveUnitOfWork(_) >> { throw new PartnerMetadataException("DogCow") }
+        1 * mockLogger.logError({ it.contains("retrying in 2000 ms") }, _ as PartnerMetadataException)
+
+        when:
+        now += TimeUnit.MILLISECONDS.toNanos(2_000)
+        journal.drain()
+
+        then:
+        1 * mockStorage.saveUnitOfWork(_)
+        journal.pendingCount() == 0
+    }
+
+    def "the retry delay doesn't grow past the maximum"() {
+        given:
+        def journal = createJournal()
+        journal.saveMetadata(new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING))
+        mockStorage.saveUnitOfWork(_) >> { throw new PartnerMetadataException("DogCow") }
+
+        when:
+        10.times {
+            journal.drain()
+            now += TimeUnit.MILLISECONDS.toNanos(JournalingPartnerMetadataStorage.MAX_RETRY_DELAY_MILLIS)
+        }
+
+        then:
+        // 1, 2, 4, 8, 16 and 32 seconds, and then the maximum
+        4 * mockLogger.logError({ it.contains("retrying in " + JournalingPartnerMetadataStorage.MAX_RETRY_DELAY_MILLIS + " ms") }, _ as PartnerMetadataException)
+        6 * mockLogger.logError(_ as String, _ as PartnerMetadataException)
+    }
+
+    def "after a failed batch the entries are saved one at a time until one is saved"() {
+        given:
+        def journal = createJournal()
+        3.times { journal.saveMetadata(new PartnerMetadata("receivedId" + it, PartnerMetadataStatus.PENDING)) }
+        def savedBatches = []
+
+        when:
+        journal.drain()
+
+        then:
+        1 * mockStorage.saveUnitOfWork(_) >> { throw new PartnerMetadataException("DogCow") }
+
+        when:
+        now += TimeUnit.MILLISECONDS.toNanos(JournalingPartnerMetadataStorage.INITIAL_RETRY_DELAY_MILLIS)
+        journal.drain()
+
+        then:
+        2 * mockStorage.saveUnitOfWork(_ as PartnerMetadataUnitOfWork) >> { PartnerMetadataUnitOfWork saved ->
+            savedBatches.add(saved.metadata()*.receivedSubmissionId())
+        }
+        savedBatches == [
+            ["receivedId0"],
+            ["receivedId1", "receivedId2"]
+        ]
+        journal.pendingCount() == 0
+    }
+
+    def "an entry that still fails after the maximum attempts is moved aside so the ones after it are saved"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("PARTNER_METADATA_JOURNAL_MAX_ATTEMPTS", "2")
+        def journal = createJournal()
+        journal.saveMetadata(new PartnerMetadata("poisonId", PartnerMetadataStatus.PENDING))
+        journal.saveMetadata(new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING))
+        def savedIds = []
+        mockStorage.saveUnitOfWork(_ as PartnerMetadataUnitOfWork) >> { PartnerMetadataUnitOfWork saved ->
+            if (saved.readMetadata("poisonId").isPresent()) {
+                throw new PartnerMetadataException("DogCow")
+            }
+            savedIds.addAll(saved.metadata()*.receivedSubmissionId())
+        }
+
+        when:
+        // the batch, the entry on its own twice, and then the entry after it
+        4.times {
+            journal.drain()
+            now += TimeUnit.MILLISECONDS.toNanos(JournalingPartnerMetadataStorage.MAX_RETRY_DELAY_MILLIS)
+        }
+
+        then:
+        savedIds == ["receivedId"]
+        journal.pendingCount() == 0
+        !journal.readMetadata("poisonId").isPresent()
+        1 * mockLogger.logError({ it.contains("Moved the entry 0 of the metadata journal aside") }, _ as PartnerMetadataException)
+        def rejected = Files.readAllLines(journalPath.resolveSibling("metadata.journal" + JournalingPartnerMetadataStorage.REJECTED_SUFFIX))
+        rejected.size() == 1
+        rejected[0].contains("poisonId")
+    }
+
+    def "the messages to link include the metadata that is still pending"() {
+        given:
+        def facility = new MessageHdDataType("namespace", "facility", "type")
+        def otherFacility = new MessageHdDataType("namespace", "other", "type")
+        def order = new PartnerMetadata("orderId", "hash", PartnerMetadataMessageType.ORDER, null, facility, null, otherFacility, "placer")
+        def result = new PartnerMetadata("resultId", "hash", PartnerMetadataMessageType.RESULT, null, otherFacility, null, facility, "placer")
+        def otherOrder = new PartnerMetadata("otherOrderId", "hash", PartnerMetadataMessageType.ORDER, null, facility, null, otherFacility, "otherPlacer")
+        def journal = createJournal()
+        journal.saveMetadata(order)
+        journal.saveMetadata(otherOrder)
+        mockStorage.readMetadataForMessageLinking(_ as PartnerMetadata) >> Set.of("savedResultId")
+        mockStorage.readMetadataForMessageLinking("savedId") >> Set.of()
+        mockStorage.readMetadata("savedId") >> Optional.of(result)
+
+        expect:
+        journal.readMetadataForMessageLinking(result) == Set.of("orderId", "savedResultId")
+        journal.readMetadataForMessageLinking("orderId") == Set.of("savedResultId")
+        journal.readMetadataForMessageLinking("savedId") == Set.of("orderId")
+    }
+
+    def "the entries after the last checkpoint are replayed when the journal is opened again"() {
+        given:
+        def journal = createJournal()
+        def savedMetadata = new PartnerMetadata("savedId", PartnerMetadataStatus.PENDING)
+        def unsavedMetadata = new PartnerMetadata("unsavedId", PartnerMetadataStatus.PENDING)
+        journal.saveMetadata(savedMetadata)
+        journal.saveMetadata(unsavedMetadata)
+        Files.writeString(journalPath, Files.readString(journalPath) + JournalingPartnerMetadataStorage.CHECKPOINT_PREFIX + "0\n")
+
+        when:
+        def reopenedJournal = createJournal()
+        def replayed = reopenedJournal.readMetadata("unsavedId")
+
+        then:
+        replayed.get() == unsavedMetadata
+        reopenedJournal.pendingCount() == 1
+
+        when:
+        reopenedJournal.saveMetadata(new PartnerMetadata("newId", PartnerMetadataStatus.PENDING))
+
+        then:
+        Files.readAllLines(journalPath).last().contains("\"sequence\":2")
+    }
+
+    def "a half written line at the end of the journal is skipped when it is replayed"() {
+        given:
+        def metadata = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+        def journal = createJournal()
+        journal.saveMetadata(metadata)
+        Files.writeString(journalPath, Files.readString(journalPath) + JournalingPartnerMetadataStorage.ENTRY_PREFIX + "{\"sequence\":1,\"meta")
+
+        when:
+        def reopenedJournal = createJournal()
+
+        then:
+        reopenedJournal.readMetadata("receivedId").get() == metadata
+        reopenedJournal.pendingCount() == 1
+        1 * mockLogger.logWarning("Skipping a line of the metadata journal that can't be read")
+    }
+
+    def "an empty unit of work isn't journaled"() {
+        given:
+        def journal = createJournal()
+
+        when:
+        journal.saveUnitOfWork(new PartnerMetadataUnitOfWork())
+
+        then:
+        journal.pendingCount() == 0
+        !Files.exists(journalPath)
+    }
+
+    def "the other reads are passed through to the storage"() {
+        given:
+        def journal = createJournal()
+
+        when:
+        journal.readMetadataForSender("sender")
+        journal.readStatusCountsForSender("sender")
+        journal.readMetadataForMessageLinking("receivedId")
+        journal.readMessageLinkKeys()
+
+        then:
+        1 * mockStorage.readMetadataForSender("sender")
+        1 * mockStorage.readStatusCountsForSender("sender")
+        1 * mockStorage.readMetadataForMessageLinking("receivedId") >> Set.of()
+        1 * mockStorage.readMessageLinkKeys()
+    }
+
+    def "mergeEntries merges the message links with the same ID"() {
+        given:
+        def linkId = UUID.randomUUID()
+        def otherLinkId = UUID.randomUUID()
+        def entries = [
+            new JournalingPartnerMetadataStorage.JournalEntry(0, [], [
+                new MessageLink(linkId, "first")
+            ]),
+            new JournalingPartnerMetadataStorage.JournalEntry(1, [], [
+                new MessageLink(linkId, "second"),
+                new MessageLink(otherLinkId, "third")
+            ])
+        ]
+
+        when:
+        def unitOfWork = JournalingPartnerMetadataStorage.mergeEntries(entries)
+
+        then:
+        unitOfWork.messageLinks() as List == [
+            new MessageLink(linkId, Set.of("first", "second")),
+            new MessageLink(otherLinkId, "third")
+        ]
+        entries[0].messageLinks()[0].getMessageIds() == Set.of("first")
+    }
+
+    def "mergeEntries asks for the metadata with a placer order number to be linked"() {
+        given:
+        def order = new PartnerMetadata("orderId", "hash", PartnerMetadataMessageType.ORDER, null, null, null, null, "placer")
+        def withoutOrder = new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING)
+
+        when:
+        def unitOfWork = JournalingPartnerMetadataStorage.mergeEntries([
+            new JournalingPartnerMetadataStorage.JournalEntry(0, [order, withoutOrder], [])
+        ])
+
+        then:
+        unitOfWork.metadata().size() == 2
+        unitOfWork.metadataToLink() as List == [order]
+    }
+
+    def "init can't change the journal once it's in use"() {
+        given:
+        def journal = createJournal()
+        journal.saveMetadata(new PartnerMetadata("receivedId", PartnerMetadataStatus.PENDING))
+
+        when:
+        journal.init(mockStorage, journalPath.resolveSibling("other.journal"))
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
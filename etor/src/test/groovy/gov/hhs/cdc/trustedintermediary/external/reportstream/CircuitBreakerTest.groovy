@@ -0,0 +1,108 @@
+package gov.hhs.cdc.trustedintermediary.external.reportstream
+
+import spock.lang.Specification
+
+class CircuitBreakerTest extends Specification {
+
+    def "the breaker opens after the threshold of consecutive failures"() {
+        given:
+        def breaker = new CircuitBreaker("history")
+
+        when:
+        def openedFirst = breaker.onFailure(3)
+        def openedSecond = breaker.onFailure(3)
+        def openedThird = breaker.onFailure(3)
+
+        then:
+        !openedFirst
+        !openedSecond
+        openedThird
+        breaker.state() == CircuitBreaker.State.OPEN
+        !breaker.tryAcquire(60_000)
+    }
+
+    def "a success resets the consecutive failures"() {
+        given:
+        def breaker = new CircuitBreaker("history")
+
+        when:
+        breaker.onFailure(2)
+        def closed = breaker.onSuccess()
+        breaker.onFailure(2)
+
+        then:
+        !closed
+        breaker.state() == CircuitBreaker.State.CLOSED
+        breaker.tryAcquire(60_000)
+    }
+
+    def "an open breaker lets a single probe through after the open period"() {
+        given:
+        def breaker = new CircuitBreaker("history")
+        breaker.onFailure(1)
+
+        when:
+        def probe = breaker.tryAcquire(0)
+        def secondProbe = breaker.tryAcquire(0)
+
+        then:
+        probe
+        !secondProbe
+        breaker.state() == CircuitBreaker.State.HALF_OPEN
+    }
+
+    def "the breaker closes when the probe succeeds"() {
+        given:
+        def breaker = new CircuitBreaker("history")
+        breaker.onFailure(1)
+        breaker.tryAcquire(0)
+
+        when:
+        def closed = breaker.onSuccess()
+
+        then:
+        closed
+        breaker.state() == CircuitBreaker.State.CLOSED
+        breaker.tryAcquire(60_000)
+    }
+
+    def "the breaker opens again when the probe fails"() {
+        given:
+        def breaker = new CircuitBreaker("history")
+        breaker.onFailure(5)
+        breaker.onFailure(5)
+        breaker.onFailure(5)
+        breaker.onFailure(5)
+        breaker.onFailure(5)
+        breaker.tryAcquire(0)
+
+        when:
+        def opened = breaker.onFailure(5)
+
+        then:
+        opened
+        breaker.state() == CircuitBreaker.State.OPEN
+        !breaker.tryAcquire(60_000)
+    }
+
+    def "statistics counts the requests of the endpoint"() {
+        given:
+        def breaker = new CircuitBreaker("waters")
+
+        when:
+        breaker.onSuccess()
+        breaker.onFailure(1)
+        breaker.tryAcquire(60_000)
+        breaker.onRetry()
+
+        then:
+        breaker.statistics() == [
+            "Endpoint": "waters",
+            "State": "OPEN",
+            "Successes": 1L,
+            "Failures": 1L,
+            "Rejections": 1L,
+            "Retries": 1L
+        ]
+    }
+}
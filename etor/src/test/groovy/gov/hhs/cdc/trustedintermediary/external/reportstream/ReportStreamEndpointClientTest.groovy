@@ -8,14 +8,23 @@ import gov.hhs.cdc.trustedintermediary.wrappers.AuthEngine
 import gov.hhs.cdc.trustedintermediary.wrappers.Cache
 import gov.hhs.cdc.trustedintermediary.wrappers.HttpClient
 import gov.hhs.cdc.trustedintermediary.wrappers.HttpClientException
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
 import gov.hhs.cdc.trustedintermediary.wrappers.Secrets
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.Formatter
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.FormatterProcessingException
 import gov.hhs.cdc.trustedintermediary.wrappers.formatter.TypeReference
 import spock.lang.Specification
 
+import java.net.ConnectException
+import java.net.SocketTimeoutException
 import java.time.LocalDateTime
 import java.time.temporal.ChronoUnit
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
 
 class ReportStreamEndpointClientTest extends Specification {
 
@@ -23,6 +32,11 @@ class ReportStreamEndpointClientTest extends Specification {
         TestApplicationContext.reset()
         TestApplicationContext.init()
         TestApplicationContext.register(ReportStreamEndpointClient, ReportStreamEndpointClient.getInstance())
+        ReportStreamEndpointClient.getInstance().scheduler = Mock(ScheduledExecutorService)
+        ReportStreamEndpointClient.getInstance().circuitBreakers.clear()
+        ReportStreamEndpointClient.getInstance().nanoTime = { System.nanoTime() } as LongSupplier
+        // a single attempt, unless a test is about the retries
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "1")
     }
 
     def "requestWatersEndpoint works"() {
@@ -145,7 +159,7 @@ class ReportStreamEndpointClientTest extends Specification {
         TestApplicationContext.injectRegisteredImplementations()
 
         when:
-        mockSecrets.getKey(_ as String) >> "Fake Azure Key"
+        mockCache.get(_ as String, mockSecrets) >> "Fake Azure Key"
         def actual = ReportStreamEndpointClient.getInstance().requestToken()
 
         then:
@@ -197,17 +211,17 @@ class ReportStreamEndpointClientTest extends Specification {
         exception.getCause().getClass() == FormatterProcessingException
     }
 
-    def "requestToken saves our private key only after successful call to RS"() {
+    def "requestToken signs with our private key retrieved through the cache"() {
         given:
         def mockSecrets = Mock(Secrets)
         def mockCache = Mock(Cache)
         def mockFormatter = Mock(Formatter)
+        def mockAuthEngine = Mock(AuthEngine)
 
         def fakeOurPrivateKey = "DogCow" // pragma: allowlist secret
-        mockSecrets.getKey(_ as String) >> fakeOurPrivateKey
         mockFormatter.convertJsonToObject(_ , _) >> [access_token: "Moof!"]
 
-        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(AuthEngine, mockAuthEngine)
         TestApplicationContext.register(HttpClient, Mock(HttpClient))
         TestApplicationContext.register(Formatter, mockFormatter)
         TestApplicationContext.register(Secrets, mockSecrets)
@@ -219,10 +233,12 @@ class ReportStreamEndpointClientTest extends Specification {
         ReportStreamEndpointClient.getInstance().requestToken()
 
         then:
-        1 * mockCache.put(_ as String, fakeOurPrivateKey)
+        1 * mockCache.get("trusted-intermediary-private-key-local", mockSecrets) >> fakeOurPrivateKey
+        1 * mockAuthEngine.generateToken(_ as String, _ as String, _ as String, _ as String, 300, fakeOurPrivateKey)
+        0 * mockSecrets.getKey(_)
     }
 
-    def "requestToken doesn't cache our private key if RS auth call fails"() {
+    def "requestToken doesn't cache a token if RS auth call fails"() {
         given:
         def mockClient = Mock(HttpClient)
         def mockCache = Mock(Cache)
@@ -248,38 +264,6 @@ class ReportStreamEndpointClientTest extends Specification {
         0 * mockCache.put(_ , _)
     }
 
-    def "cacheOurPrivateKeyIfNotCachedAlready doesn't cache when the key is already is cached"() {
-        given:
-        def mockCache = Mock(Cache)
-        mockCache.get(_ as String) >> "DogCow private key"
-
-        TestApplicationContext.register(Cache, mockCache)
-
-        TestApplicationContext.injectRegisteredImplementations()
-
-        when:
-        ReportStreamEndpointClient.getInstance().cacheOurPrivateKeyIfNotCachedAlready("Moof!")
-
-        then:
-        0 * mockCache.put(_, _)
-    }
-
-    def "cacheOurPrivateKeyIfNotCachedAlready caches when the key isn't cached"() {
-        given:
-        def mockCache = Mock(Cache)
-        mockCache.get(_ as String) >> null
-
-        TestApplicationContext.register(Cache, mockCache)
-
-        TestApplicationContext.injectRegisteredImplementations()
-
-        when:
-        ReportStreamEndpointClient.getInstance().cacheOurPrivateKeyIfNotCachedAlready("Moof!")
-
-        then:
-        1 * mockCache.put(_, _)
-    }
-
     def "composeAuthRequestBody works"() {
         given:
         def ReportStreamEndpointClient = ReportStreamEndpointClient.getInstance()
@@ -299,8 +283,10 @@ class ReportStreamEndpointClientTest extends Specification {
         def mockSecret = Mock(Secrets)
         def expected = "New Fake Azure Key"
         mockSecret.getKey(_ as String) >> expected
+        def keyCache = KeyCache.getInstance()
+        keyCache.scheduler = Mock(ScheduledExecutorService)
         TestApplicationContext.register(Secrets, mockSecret)
-        TestApplicationContext.register(Cache, KeyCache.getInstance())
+        TestApplicationContext.register(Cache, keyCache)
         TestApplicationContext.injectRegisteredImplementations()
         def rsOrderSender = ReportStreamEndpointClient.getInstance()
         when:
@@ -424,4 +410,434 @@ class ReportStreamEndpointClientTest extends Specification {
         then:
         token == cachedRsToken
     }
+
+    def "a caller without a valid token waits for the token refresh in flight"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        def mockLogger = Mock(Logger)
+        mockCache.get(_ as String) >> null
+        def requested = new CountDownLatch(1)
+        def waiting = new CountDownLatch(1)
+        mockLogger.logDebug("Waiting for the ReportStream token already being requested") >> { waiting.countDown() }
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def refresh = CompletableFuture.runAsync { ReportStreamEndpointClient.getInstance().refreshTokenInBackground() }
+        requested.await(5, TimeUnit.SECONDS)
+        def caller = CompletableFuture.supplyAsync { ReportStreamEndpointClient.getInstance().getRsToken() }
+        refresh.join()
+
+        then:
+        1 * mockClient.post(_, _, _) >> {
+            requested.countDown()
+            waiting.await(5, TimeUnit.SECONDS)
+            '{"access_token":"new token"}'
+        }
+        caller.join() == "new token"
+    }
+
+    def "refreshTokenInBackground logs an error without caching a token when RS fails"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        def mockLogger = Mock(Logger)
+        mockClient.post(_, _, _) >> { throw new HttpClientException("401", new Exception()) }
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().refreshTokenInBackground()
+
+        then:
+        1 * mockLogger.logError(_ as String, { it instanceof ReportStreamEndpointClientException })
+        0 * mockCache.put(_, _)
+    }
+
+    def "a failed token request isn't shared with the callers after it"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        mockCache.get(_ as String) >> null
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.injectRegisteredImplementations()
+
+        mockClient.post(_, _, _) >> { throw new HttpClientException("503", new Exception()) } >> '{"access_token":"new token"}'
+
+        when:
+        ReportStreamEndpointClient.getInstance().getRsToken()
+
+        then:
+        thrown(ReportStreamEndpointClientException)
+
+        when:
+        def token = ReportStreamEndpointClient.getInstance().getRsToken()
+
+        then:
+        token == "new token"
+    }
+
+    def "our private key is removed from the cache when RS rejects the sender token"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        mockCache.get(_ as String) >> null
+        mockClient.post(_, _, _) >> { throw new HttpClientException("401", 401, null) }
+
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestAuthEndpoint()
+
+        then:
+        thrown(ReportStreamEndpointClientException)
+        1 * mockCache.remove({ it.startsWith("trusted-intermediary-private-key-") })
+    }
+
+    def "our private key stays cached when the token request fails for another reason"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        mockClient.post(_, _, _) >> { throw new HttpClientException("503", 503, null) }
+
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestAuthEndpoint()
+
+        then:
+        thrown(ReportStreamEndpointClientException)
+        0 * mockCache.remove(_)
+    }
+
+    def "a new token schedules its refresh at the fraction of its lifetime"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        def mockAuthEngine = Mock(AuthEngine)
+        def mockScheduler = Mock(ScheduledExecutorService)
+        mockCache.get(_ as String) >> null
+        mockAuthEngine.getExpirationDate("new token") >> LocalDateTime.now().plus(100, ChronoUnit.SECONDS)
+        mockClient.post(_, _, _) >> '{"access_token":"new token"}'
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(AuthEngine, mockAuthEngine)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.injectRegisteredImplementations()
+        ReportStreamEndpointClient.getInstance().scheduler = mockScheduler
+
+        when:
+        ReportStreamEndpointClient.getInstance().getRsToken()
+
+        then:
+        1 * mockScheduler.schedule(_ as Runnable, { it > 70_000 && it <= 75_000 }, TimeUnit.MILLISECONDS)
+    }
+
+    def "refreshTokenInBackground caches a new token while the cached one is still valid"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockCache = Mock(Cache)
+        mockClient.post(_, _, _) >> '{"access_token":"new token"}'
+
+        TestApplicationContext.register(Formatter, Jackson.getInstance())
+        TestApplicationContext.register(AuthEngine, Mock(AuthEngine))
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Cache, mockCache)
+        TestApplicationContext.register(Secrets, Mock(Secrets))
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().refreshTokenInBackground()
+
+        then:
+        1 * mockCache.put(_ as String, "new token")
+    }
+
+    def "getTokenRefreshFraction falls back to the default unless the property is between 0 and 1"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_TOKEN_REFRESH_FRACTION", value)
+
+        expect:
+        ReportStreamEndpointClient.getTokenRefreshFraction() == expected
+
+        where:
+        value    | expected
+        "0.5"    | 0.5d
+        ""       | ReportStreamEndpointClient.DEFAULT_TOKEN_REFRESH_FRACTION
+        "0"      | ReportStreamEndpointClient.DEFAULT_TOKEN_REFRESH_FRACTION
+        "1.5"    | ReportStreamEndpointClient.DEFAULT_TOKEN_REFRESH_FRACTION
+        "dogcow" | ReportStreamEndpointClient.DEFAULT_TOKEN_REFRESH_FRACTION
+    }
+
+    def "a request that can be retried is sent again until it succeeds"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def response = ReportStreamEndpointClient.getInstance().requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        3 * mockClient.get(_ as String, _ as Map<String, String>) >>
+                { throw new HttpClientException("503", 503, null) } >>
+                { throw new HttpClientException("timed out", new SocketTimeoutException()) } >>
+                "200"
+        response == "200"
+        ReportStreamEndpointClient.getInstance().circuitBreaker(ReportStreamEndpointClient.HISTORY_ENDPOINT).statistics()["Retries"] == 2L
+    }
+
+    def "a request that keeps failing is given up after the maximum attempts"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestDeliveryEndpoint("report_id", "fake token")
+
+        then:
+        3 * mockClient.get(_ as String, _ as Map<String, String>) >> { throw new HttpClientException("502", 502, null) }
+        def exception = thrown(ReportStreamEndpointClientException)
+        exception.getCause().getClass() == HttpClientException
+    }
+
+    def "a request that succeeds after retrying logs the total delay of its retries"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+        mockClient.get(_ as String, _ as Map<String, String>) >> { throw new HttpClientException("503", 503, null) } >> "200"
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        1 * mockLogger.logInfo(_ as String, ReportStreamEndpointClient.HISTORY_ENDPOINT, 2, { it >= 0L && it <= 1L })
+    }
+
+    def "a request isn't retried when waiting would go over the retry budget"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BUDGET_MILLIS", "1000")
+        TestApplicationContext.injectRegisteredImplementations()
+        def client = ReportStreamEndpointClient.getInstance()
+        def now = 0L
+        client.nanoTime = { now } as LongSupplier
+
+        when:
+        client.requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        2 * mockClient.get(_ as String, _ as Map<String, String>) >>
+                { throw new HttpClientException("503", 503, null) } >>
+                {
+                    // the second attempt took longer than the whole budget
+                    now += TimeUnit.MILLISECONDS.toNanos(1001)
+                    throw new HttpClientException("503", 503, null)
+                }
+        thrown(ReportStreamEndpointClientException)
+        1 * mockLogger.logWarning(_ as String, ReportStreamEndpointClient.HISTORY_ENDPOINT, _ as Long, 1000L)
+        1 * mockLogger.logWarning(_ as String, ReportStreamEndpointClient.HISTORY_ENDPOINT, 2, { it >= 0L && it <= 1L })
+    }
+
+    def "the payload isn't sent again when ReportStream may have received it"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestWatersEndpoint("message_1", "fake token")
+
+        then:
+        1 * mockClient.post(_ as String, _ as Map<String, String>, _ as String) >> { throw new HttpClientException("timed out", new SocketTimeoutException()) }
+        thrown(ReportStreamEndpointClientException)
+    }
+
+    def "the payload is sent again when ReportStream couldn't have received it"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        def response = ReportStreamEndpointClient.getInstance().requestWatersEndpoint("message_1", "fake token")
+
+        then:
+        3 * mockClient.post(_ as String, _ as Map<String, String>, "message_1") >>
+                { throw new HttpClientException("refused", new ConnectException("Connection refused")) } >>
+                { throw new HttpClientException("503", 503, null) } >>
+                "200"
+        response == "200"
+    }
+
+    def "a request ReportStream rejected is neither retried nor counted against the endpoint"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_MAX_ATTEMPTS", "3")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_BREAKER_FAILURE_THRESHOLD", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ReportStreamEndpointClient.getInstance().requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        1 * mockClient.get(_ as String, _ as Map<String, String>) >> { throw new HttpClientException("400", 400, null) }
+        thrown(ReportStreamEndpointClientException)
+        ReportStreamEndpointClient.getInstance().circuitBreaker(ReportStreamEndpointClient.HISTORY_ENDPOINT).state() == CircuitBreaker.State.CLOSED
+    }
+
+    def "the circuit breaker stops the requests to an endpoint that keeps failing"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_BREAKER_FAILURE_THRESHOLD", "2")
+        TestApplicationContext.injectRegisteredImplementations()
+        def client = ReportStreamEndpointClient.getInstance()
+
+        when:
+        2.times {
+            try {
+                client.requestHistoryEndpoint("submission_id", "fake token")
+            } catch (ReportStreamEndpointClientException ignored) {
+            }
+        }
+
+        then:
+        2 * mockClient.get(_ as String, _ as Map<String, String>) >> { throw new HttpClientException("503", 503, null) }
+        client.circuitBreaker(ReportStreamEndpointClient.HISTORY_ENDPOINT).state() == CircuitBreaker.State.OPEN
+
+        when:
+        client.requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        0 * mockClient.get(_, _)
+        def exception = thrown(ReportStreamEndpointClientException)
+        exception.getCause().getMessage().contains("circuit breaker")
+
+        when:
+        def response = client.requestDeliveryEndpoint("report_id", "fake token")
+
+        then:
+        1 * mockClient.get(_ as String, _ as Map<String, String>) >> "200"
+        response == "200"
+    }
+
+    def "the circuit breaker closes when the probe after the open period succeeds"() {
+        given:
+        def mockClient = Mock(HttpClient)
+        TestApplicationContext.register(HttpClient, mockClient)
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_BREAKER_FAILURE_THRESHOLD", "1")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_BREAKER_OPEN_MILLIS", "1")
+        TestApplicationContext.injectRegisteredImplementations()
+        def client = ReportStreamEndpointClient.getInstance()
+        mockClient.get(_ as String, _ as Map<String, String>) >> { throw new HttpClientException("503", 503, null) } >> "200"
+
+        try {
+            client.requestHistoryEndpoint("submission_id", "fake token")
+        } catch (ReportStreamEndpointClientException ignored) {
+        }
+        Thread.sleep(5)
+
+        when:
+        def response = client.requestHistoryEndpoint("submission_id", "fake token")
+
+        then:
+        response == "200"
+        client.circuitBreaker(ReportStreamEndpointClient.HISTORY_ENDPOINT).state() == CircuitBreaker.State.CLOSED
+    }
+
+    def "unwrap returns the cause of a CompletionException and any other failure as is"() {
+        given:
+        def failure = new HttpClientException("503", 503, null)
+
+        expect:
+        ReportStreamEndpointClient.unwrap(new CompletionException(failure)) == failure
+        ReportStreamEndpointClient.unwrap(failure) == failure
+    }
+
+    def "isRetryable only retries what isn't idempotent when ReportStream couldn't have taken it"() {
+        expect:
+        ReportStreamEndpointClient.isRetryable(failure, idempotent) == expected
+
+        where:
+        failure                                                                  | idempotent | expected
+        new HttpClientException("timed out", new SocketTimeoutException())       | true       | true
+        new HttpClientException("timed out", new SocketTimeoutException())       | false      | false
+        new HttpClientException("refused", new ConnectException())               | false      | true
+        new HttpClientException("429", 429, null)                                | false      | true
+        new HttpClientException("503", 503, null)                                | false      | true
+        new HttpClientException("502", 502, null)                                | true       | true
+        new HttpClientException("502", 502, null)                                | false      | false
+        new HttpClientException("400", 400, null)                                | true       | false
+        new HttpClientException("401", 401, null)                                | true       | false
+        new IllegalStateException()                                              | true       | false
+    }
+
+    def "backoffMillis grows exponentially up to the maximum"() {
+        given:
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_BASE_MILLIS", "100")
+        TestApplicationContext.addEnvironmentVariable("REPORT_STREAM_RETRY_MAX_MILLIS", "1000")
+
+        expect:
+        (1..50).every {
+            def delay = ReportStreamEndpointClient.backoffMillis(attempt)
+            delay >= 0 && delay <= cap
+        }
+
+        where:
+        attempt | cap
+        1       | 100
+        2       | 200
+        4       | 800
+        5       | 1000
+        40      | 1000
+    }
 }
@@ -172,6 +172,54 @@ public class ApplicationContext {
         return value != null && !value.isBlank();
     }
 
+    /** Returns the property as an int, or the default when it's not set or not a whole number. */
+    public static int getIntProperty(String key, int defaultValue) {
+        long value = getLongProperty(key, defaultValue);
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE
+                ? (int) value
+                : defaultValue;
+    }
+
+    /** Returns the property as a long, or the default when it's not set or not a whole number. */
+    public static long getLongProperty(String key, long defaultValue) {
+        String value = getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /** Returns the property as an int, or the default when it's not a number above zero. */
+    public static int getPositiveIntProperty(String key, int defaultValue) {
+        int value = getIntProperty(key, defaultValue);
+        return value > 0 ? value : defaultValue;
+    }
+
+    /** Returns the property as a long, or the default when it's not a number above zero. */
+    public static long getPositiveLongProperty(String key, long defaultValue) {
+        long value = getLongProperty(key, defaultValue);
+        return value > 0 ? value : defaultValue;
+    }
+
+    /** Returns the property as a double, or the default when it's not set or not a number. */
+    public static double getDoubleProperty(String key, double defaultValue) {
+        String value = getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static String getEnvironment() {
         return getProperty("ENV", "local");
     }
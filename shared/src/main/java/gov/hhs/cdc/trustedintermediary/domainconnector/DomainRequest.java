@@ -1,6 +1,7 @@
 package gov.hhs.cdc.trustedintermediary.domainconnector;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /** Represents a request coming into the domain that it should handle. */
@@ -9,6 +10,7 @@ public class DomainRequest {
     private String url = "";
     private Map<String, String> headers = new HashMap<>();
     private Map<String, String> pathParams = new HashMap<>();
+    private Map<String, List<String>> queryParams = new HashMap<>();
 
     public String getBody() {
         return body;
@@ -47,4 +49,27 @@ public class DomainRequest {
     public void setPathParams(Map<String, String> headers) {
         this.pathParams = headers;
     }
+
+    public Map<String, List<String>> getQueryParams() {
+        return queryParams;
+    }
+
+    public void setQueryParams(Map<String, List<String>> queryParams) {
+        this.queryParams = queryParams;
+    }
+
+    /**
+     * Returns the first value of the given query parameter.
+     *
+     * @param name the name of the query parameter
+     * @return the first value of the query parameter, or null if the request doesn't have it
+     */
+    public String getQueryParam(String name) {
+        if (queryParams == null) {
+            return null;
+        }
+
+        List<String> values = queryParams.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
 }
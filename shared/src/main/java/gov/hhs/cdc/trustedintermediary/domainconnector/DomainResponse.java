@@ -11,6 +11,7 @@ public class DomainResponse {
     private int statusCode;
     private String body = "";
     private Map<String, String> headers = new HashMap<>();
+    private DomainResponseBodyWriter bodyWriter;
 
     public DomainResponse(int statusCode) {
         this.statusCode = statusCode;
@@ -39,4 +40,18 @@ public class DomainResponse {
     public void setHeaders(Map<String, String> headers) {
         this.headers = headers;
     }
+
+    /**
+     * Returns the writer that streams the body of the response, if the body is streamed instead of
+     * being held in a {@link String}.
+     *
+     * @return the body writer, or null if the body is a {@link String}
+     */
+    public DomainResponseBodyWriter getBodyWriter() {
+        return bodyWriter;
+    }
+
+    public void setBodyWriter(DomainResponseBodyWriter bodyWriter) {
+        this.bodyWriter = bodyWriter;
+    }
 }
@@ -0,0 +1,14 @@
+package gov.hhs.cdc.trustedintermediary.domainconnector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the body of a response directly to the client, so large bodies don't need to be held in
+ * memory. The writer is only called after the status code and headers have been sent, so it can't
+ * change them when something goes wrong part way through.
+ */
+@FunctionalInterface
+public interface DomainResponseBodyWriter {
+    void writeTo(OutputStream outputStream) throws IOException;
+}
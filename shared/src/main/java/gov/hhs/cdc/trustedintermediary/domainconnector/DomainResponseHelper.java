@@ -58,6 +58,16 @@ public class DomainResponseHelper {
         return constructResponseFromString(200, jsonBody);
     }
 
+    public DomainResponse constructOkStreamingResponse(DomainResponseBodyWriter jsonBodyWriter) {
+        logger.logInfo("Constructing the streaming response");
+        var response = new DomainResponse(200);
+        response.setBodyWriter(jsonBodyWriter);
+
+        response.setHeaders(Map.of(CONTENT_TYPE_LITERAL, APPLICATION_JSON_LITERAL));
+
+        return response;
+    }
+
     public DomainResponse constructErrorResponse(int httpStatus, String errorString) {
         return constructResponse(httpStatus, Map.of("error", errorString));
     }
@@ -1,24 +1,60 @@
 package gov.hhs.cdc.trustedintermediary.external.apache;
 
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
 import gov.hhs.cdc.trustedintermediary.wrappers.HttpClient;
 import gov.hhs.cdc.trustedintermediary.wrappers.HttpClientException;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import org.apache.hc.client5.http.fluent.Request;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.BasicHttpClientResponseHandler;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.ClassicHttpRequest;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.io.support.ClassicRequestBuilder;
 import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 
 /**
- * This class implements HttpClient and is a "humble object" for the Apache Client 5 library. Using
- * Apache Client 5 Fluent facade, we are able to perform CRUD operations such as POST, in a generic
- * way.
+ * This class implements HttpClient and is a "humble object" for the Apache Client 5 library. The
+ * requests go through one client whose connections are pooled and reused, and every request has a
+ * bound on how long it waits for a pooled connection, to connect and for the response, so a remote
+ * that stops answering can't hold the calling thread forever. The pool and the timeouts are
+ * configured with the HTTP_CLIENT_* properties, and the pool statistics are logged periodically.
  */
 public class ApacheClient implements HttpClient {
 
     private static final ApacheClient INSTANCE = new ApacheClient();
 
+    static final int DEFAULT_MAX_CONNECTIONS = 50;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 5_000;
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+    static final int DEFAULT_RESPONSE_TIMEOUT_MILLIS = 30_000;
+    static final int DEFAULT_IDLE_EVICTION_SECONDS = 30;
+    static final int DEFAULT_CONNECTION_TIME_TO_LIVE_SECONDS = 300;
+    static final int DEFAULT_METRICS_LOG_INTERVAL_SECONDS = 60;
+
+    @Inject Logger logger;
+
+    private final Object startLock = new Object();
+    private volatile CloseableHttpClient client;
+    ScheduledExecutorService scheduler;
+
     private ApacheClient() {}
 
     public static ApacheClient getInstance() {
@@ -28,30 +64,34 @@ public class ApacheClient implements HttpClient {
     @Override
     public String post(String url, Map<String, String> headerMap, String body)
             throws HttpClientException {
-        Header[] headers = convertMapToHeader(headerMap);
+        ClassicHttpRequest request =
+                ClassicRequestBuilder.post(url)
+                        .setHeaders(convertMapToHeader(headerMap))
+                        .setEntity(new StringEntity(body, StandardCharsets.UTF_8))
+                        .build();
 
         try {
-            return Request.post(url)
-                    .setHeaders(headers)
-                    .body(new StringEntity(body, StandardCharsets.UTF_8))
-                    .execute()
-                    .returnContent()
-                    .asString();
+            return execute(request);
         } catch (IOException e) {
             throw new HttpClientException(
-                    "Error occurred while making HTTP POST request to [" + url + "]", e);
+                    "Error occurred while making HTTP POST request to [" + url + "]",
+                    statusCode(e),
+                    e);
         }
     }
 
     @Override
     public String get(String url, Map<String, String> headerMap) throws HttpClientException {
-        Header[] headers = convertMapToHeader(headerMap);
+        ClassicHttpRequest request =
+                ClassicRequestBuilder.get(url).setHeaders(convertMapToHeader(headerMap)).build();
 
         try {
-            return Request.get(url).setHeaders(headers).execute().returnContent().asString();
+            return execute(request);
         } catch (IOException e) {
             throw new HttpClientException(
-                    "Error occurred while making HTTP GET request to [" + url + "]", e);
+                    "Error occurred while making HTTP GET request to [" + url + "]",
+                    statusCode(e),
+                    e);
         }
     }
 
@@ -65,4 +105,133 @@ public class ApacheClient implements HttpClient {
                 .map(entry -> new BasicHeader(entry.getKey(), entry.getValue()))
                 .toArray(Header[]::new);
     }
+
+    static int statusCode(IOException e) {
+        return e instanceof HttpResponseException responseException
+                ? responseException.getStatusCode()
+                : 0;
+    }
+
+    private String execute(ClassicHttpRequest request) throws IOException {
+        // the handler reads the body and releases the connection back to the pool, and throws
+        // for a response status of 300 and above like the fluent facade used to
+        return startIfNeeded().execute(request, new BasicHttpClientResponseHandler());
+    }
+
+    private CloseableHttpClient startIfNeeded() {
+        if (client != null) {
+            return client;
+        }
+
+        synchronized (startLock) {
+            if (client != null) {
+                return client;
+            }
+
+            PoolingHttpClientConnectionManager connectionManager =
+                    PoolingHttpClientConnectionManagerBuilder.create()
+                            .setMaxConnTotal(getMaxConnections())
+                            .setMaxConnPerRoute(getMaxConnectionsPerRoute())
+                            .setDefaultConnectionConfig(connectionConfig())
+                            .build();
+
+            CloseableHttpClient started =
+                    HttpClients.custom()
+                            .setConnectionManager(connectionManager)
+                            .setDefaultRequestConfig(requestConfig())
+                            .evictExpiredConnections()
+                            .evictIdleConnections(idleEviction())
+                            .build();
+
+            scheduleStatistics(connectionManager);
+
+            client = started;
+            return client;
+        }
+    }
+
+    private void scheduleStatistics(PoolingHttpClientConnectionManager connectionManager) {
+        if (scheduler == null) {
+            scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            runnable -> {
+                                Thread thread = new Thread(runnable, "http-pool-metrics");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+        }
+
+        long interval =
+                ApplicationContext.getPositiveIntProperty(
+                        "HTTP_CLIENT_METRICS_LOG_INTERVAL_SECONDS",
+                        DEFAULT_METRICS_LOG_INTERVAL_SECONDS);
+        scheduler.scheduleAtFixedRate(
+                () -> logPoolStatistics(connectionManager.getTotalStats()),
+                interval,
+                interval,
+                TimeUnit.SECONDS);
+    }
+
+    void logPoolStatistics(PoolStats poolStats) {
+        Map<String, Object> statisticsMap = new LinkedHashMap<>();
+        statisticsMap.put("Leased", poolStats.getLeased());
+        statisticsMap.put("Available", poolStats.getAvailable());
+        statisticsMap.put("Pending", poolStats.getPending());
+        statisticsMap.put("Max", poolStats.getMax());
+
+        logger.logMap("HTTP connection pool statistics:", statisticsMap);
+
+        if (poolStats.getPending() > 0 && poolStats.getLeased() >= poolStats.getMax()) {
+            logger.logWarning(
+                    "The HTTP connection pool is saturated, {} requests are waiting for one of its {} connections",
+                    poolStats.getPending(),
+                    poolStats.getMax());
+        }
+    }
+
+    private static int getMaxConnections() {
+        return ApplicationContext.getPositiveIntProperty(
+                "HTTP_CLIENT_MAX_CONNECTIONS", DEFAULT_MAX_CONNECTIONS);
+    }
+
+    private static int getMaxConnectionsPerRoute() {
+        return ApplicationContext.getPositiveIntProperty(
+                "HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE", DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    private static ConnectionConfig connectionConfig() {
+        return ConnectionConfig.custom()
+                .setConnectTimeout(
+                        Timeout.ofMilliseconds(
+                                ApplicationContext.getPositiveIntProperty(
+                                        "HTTP_CLIENT_CONNECT_TIMEOUT_MILLIS",
+                                        DEFAULT_CONNECT_TIMEOUT_MILLIS)))
+                .setTimeToLive(
+                        TimeValue.ofSeconds(
+                                ApplicationContext.getPositiveIntProperty(
+                                        "HTTP_CLIENT_CONNECTION_TIME_TO_LIVE_SECONDS",
+                                        DEFAULT_CONNECTION_TIME_TO_LIVE_SECONDS)))
+                .build();
+    }
+
+    private static RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(
+                        Timeout.ofMilliseconds(
+                                ApplicationContext.getPositiveIntProperty(
+                                        "HTTP_CLIENT_CONNECTION_REQUEST_TIMEOUT_MILLIS",
+                                        DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS)))
+                .setResponseTimeout(
+                        Timeout.ofMilliseconds(
+                                ApplicationContext.getPositiveIntProperty(
+                                        "HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS",
+                                        DEFAULT_RESPONSE_TIMEOUT_MILLIS)))
+                .build();
+    }
+
+    private static TimeValue idleEviction() {
+        return TimeValue.ofSeconds(
+                ApplicationContext.getPositiveIntProperty(
+                        "HTTP_CLIENT_IDLE_EVICTION_SECONDS", DEFAULT_IDLE_EVICTION_SECONDS));
+    }
 }
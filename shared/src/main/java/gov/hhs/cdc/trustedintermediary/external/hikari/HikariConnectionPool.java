@@ -5,24 +5,73 @@ import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
 import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
 import gov.hhs.cdc.trustedintermediary.wrappers.database.ConnectionPool;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+import javax.sql.DataSource;
 
 /**
- * A shared connection pool for connecting to the database. The class currently spins up 10
- * connections on server startup. This is the default Hikari behavior. For troubleshooting or tuning
- * help please check the HikariCP repo for info on how to tune the connection performance should any
- * issues arise.
+ * A shared connection pool for connecting to the database. By default the class spins up 10
+ * connections on server startup, which is the default Hikari behavior. The pool size, minimum idle
+ * connections, timeouts and leak detection threshold can be set with the DB_* environment
+ * variables read below. For troubleshooting or tuning help please check the HikariCP repo for info
+ * on how to tune the connection performance should any issues arise. The metrics of the pool are
+ * logged by {@link LoggingMetricsTracker}.
+ *
+ * <p>When DB_REPLICA_URL is set, a second pool is spun up for the read replica at that address, and
+ * {@link #getReadConnection()} connects to it. When DB_REPLICA_MAX_LAG_SECONDS is also set, the
+ * reads go back to the primary database while the replica is further behind than that. The replica
+ * pool waits DB_REPLICA_CONNECTION_TIMEOUT milliseconds for a connection, and when it can't be
+ * connected to, the reads go to the primary database for a while before the replica is tried again.
  */
 public class HikariConnectionPool implements ConnectionPool {
 
     private static HikariConnectionPool INSTANCE;
 
-    private final HikariDataSource ds;
+    static final long REPLICA_LAG_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    static final long REPLICA_RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    static final long DEFAULT_REPLICA_CONNECTION_TIMEOUT_MILLIS = 2000;
+
+    // the replica is up to date when it has replayed everything it received, otherwise it's behind
+    // by the time since the last transaction it replayed
+    static final String REPLICA_LAG_QUERY =
+            """
+            SELECT CASE
+                WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+                ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0)
+            END;
+            """;
+
+    private final DataSource ds;
+
+    private final DataSource replicaDs;
+
+    private final Long maxReplicaLagSeconds;
+
+    private volatile ReplicaLagCheck lastReplicaLagCheck;
+
+    private volatile Long replicaFailedAt;
+
+    LongSupplier nanoTime = System::nanoTime;
 
     private static final Logger LOGGER = ApplicationContext.getImplementation(Logger.class);
 
     private HikariConnectionPool() {
-        ds = constructHikariDataSource();
+        this(
+                constructHikariDataSource(),
+                constructReplicaHikariDataSource(),
+                getMaxReplicaLagSeconds());
+    }
+
+    HikariConnectionPool(DataSource ds, DataSource replicaDs, Long maxReplicaLagSeconds) {
+        this.ds = ds;
+        this.replicaDs = replicaDs;
+        this.maxReplicaLagSeconds = maxReplicaLagSeconds;
     }
 
     public static synchronized HikariConnectionPool getInstance() {
@@ -33,22 +82,68 @@ public class HikariConnectionPool implements ConnectionPool {
     }
 
     static HikariDataSource constructHikariDataSource() {
+        HikariDataSource config =
+                constructHikariDataSource(ApplicationContext.getProperty("DB_URL", ""));
+        config.setPoolName("primary");
 
-        HikariDataSource config = new PasswordChangingHikariDataSource();
+        return config;
+    }
 
-        try {
-            String maxLife = ApplicationContext.getProperty("DB_MAX_LIFETIME");
-            if (maxLife != null && !maxLife.isEmpty()) {
-                config.setMaxLifetime(Long.parseLong(maxLife));
-            } else {
-                LOGGER.logInfo("Using Hikari default DB Max Lifetime");
-            }
-        } catch (NumberFormatException e) {
-            LOGGER.logInfo("Using Hikari default DB Max Lifetime");
+    static HikariDataSource constructReplicaHikariDataSource() {
+        String replicaServerName = ApplicationContext.getProperty("DB_REPLICA_URL", "");
+        if (replicaServerName.isEmpty()) {
+            return null;
         }
 
+        HikariDataSource config = constructHikariDataSource(replicaServerName);
+        config.setPoolName("replica");
+        config.setReadOnly(true);
+        config.setConnectionTimeout(DEFAULT_REPLICA_CONNECTION_TIMEOUT_MILLIS);
+        configure(
+                "DB_REPLICA_CONNECTION_TIMEOUT",
+                "DB Replica Connection Timeout",
+                config::setConnectionTimeout);
+
+        return config;
+    }
+
+    static Long getMaxReplicaLagSeconds() {
+        if (!ApplicationContext.isPropertyPresent("DB_REPLICA_MAX_LAG_SECONDS")) {
+            return null;
+        }
+
+        long maxLag = ApplicationContext.getLongProperty("DB_REPLICA_MAX_LAG_SECONDS", -1);
+        if (maxLag < 0) {
+            LOGGER.logWarning("Invalid DB_REPLICA_MAX_LAG_SECONDS, not limiting the replica lag");
+            return null;
+        }
+
+        return maxLag;
+    }
+
+    private static HikariDataSource constructHikariDataSource(String serverName) {
+
+        HikariDataSource config = new PasswordChangingHikariDataSource();
+
+        configure("DB_MAX_LIFETIME", "DB Max Lifetime", config::setMaxLifetime);
+        configure(
+                "DB_MAXIMUM_POOL_SIZE",
+                "DB Maximum Pool Size",
+                size -> config.setMaximumPoolSize(Math.toIntExact(size)));
+        configure(
+                "DB_MINIMUM_IDLE",
+                "DB Minimum Idle",
+                idle -> config.setMinimumIdle(Math.toIntExact(idle)));
+        configure("DB_CONNECTION_TIMEOUT", "DB Connection Timeout", config::setConnectionTimeout);
+        configure("DB_IDLE_TIMEOUT", "DB Idle Timeout", config::setIdleTimeout);
+        configure(
+                "DB_LEAK_DETECTION_THRESHOLD",
+                "DB Leak Detection Threshold",
+                config::setLeakDetectionThreshold);
+
+        config.setMetricsTrackerFactory(LoggingMetricsTracker::start);
+
         String user = ApplicationContext.getProperty("DB_USER", "");
-        String serverName = ApplicationContext.getProperty("DB_URL", "");
         String dbName = ApplicationContext.getProperty("DB_NAME", "");
         String dbPort = ApplicationContext.getProperty("DB_PORT", "");
 
@@ -61,8 +156,95 @@ public class HikariConnectionPool implements ConnectionPool {
         return config;
     }
 
+    // the values are in milliseconds for the timeouts, and Hikari rejects the ones out of range
+    private static void configure(String propertyName, String description, LongConsumer setter) {
+        long value = ApplicationContext.getLongProperty(propertyName, -1);
+        if (value < 0) {
+            LOGGER.logInfo("Using default " + description);
+            return;
+        }
+
+        try {
+            setter.accept(value);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            LOGGER.logInfo("Using default " + description);
+        }
+    }
+
     @Override
     public Connection getConnection() throws SQLException {
         return ds.getConnection();
     }
+
+    @Override
+    public Connection getReadConnection() throws SQLException {
+        if (replicaDs == null) {
+            return getConnection();
+        }
+
+        // after the replica fails to connect, the reads skip it for a while instead of each one
+        // waiting out the connection timeout
+        Long failedAt = replicaFailedAt;
+        if (failedAt != null && nanoTime.getAsLong() - failedAt < REPLICA_RETRY_INTERVAL_NANOS) {
+            return getConnection();
+        }
+
+        Connection connection;
+        try {
+            connection = replicaDs.getConnection();
+        } catch (SQLException e) {
+            replicaFailedAt = nanoTime.getAsLong();
+            LOGGER.logWarning(
+                    "Unable to connect to the read replica, reading from the primary database for the next {} seconds",
+                    TimeUnit.NANOSECONDS.toSeconds(REPLICA_RETRY_INTERVAL_NANOS));
+            return getConnection();
+        }
+
+        if (failedAt != null) {
+            replicaFailedAt = null;
+            LOGGER.logInfo("Connected to the read replica again");
+        }
+
+        if (replicaIsUpToDate(connection)) {
+            return connection;
+        }
+
+        connection.close();
+        return getConnection();
+    }
+
+    private boolean replicaIsUpToDate(Connection connection) {
+        if (maxReplicaLagSeconds == null) {
+            return true;
+        }
+
+        // the lag is only checked every so often, so it doesn't add a query to each read
+        long now = nanoTime.getAsLong();
+        ReplicaLagCheck lastCheck = lastReplicaLagCheck;
+        if (lastCheck != null && now - lastCheck.checkedAt() < REPLICA_LAG_CHECK_INTERVAL_NANOS) {
+            return lastCheck.upToDate();
+        }
+
+        boolean upToDate;
+        try (PreparedStatement statement = connection.prepareStatement(REPLICA_LAG_QUERY);
+                ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            double lagSeconds = resultSet.getDouble(1);
+            upToDate = lagSeconds <= maxReplicaLagSeconds;
+            if (!upToDate && (lastCheck == null || lastCheck.upToDate())) {
+                LOGGER.logWarning(
+                        "The read replica is {} seconds behind, reading from the primary database until it catches up",
+                        lagSeconds);
+            }
+        } catch (SQLException e) {
+            LOGGER.logWarning(
+                    "Unable to check the lag of the read replica, reading from the primary database");
+            upToDate = false;
+        }
+
+        lastReplicaLagCheck = new ReplicaLagCheck(now, upToDate);
+        return upToDate;
+    }
+
+    private record ReplicaLagCheck(long checkedAt, boolean upToDate) {}
 }
@@ -0,0 +1,133 @@
+package gov.hhs.cdc.trustedintermediary.external.hikari;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.external.inmemory.Histogram;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the metrics of a Hikari connection pool and periodically logs how many connections are
+ * active, idle and waited for, along with a histogram of how long it took to acquire connections
+ * since the last time they were logged. It also logs when threads start waiting because all the
+ * connections are in use, and when a thread gives up waiting.
+ */
+public class LoggingMetricsTracker implements IMetricsTracker {
+
+    static final long DEFAULT_LOG_INTERVAL_SECONDS = 60;
+
+    private final Logger logger = ApplicationContext.getImplementation(Logger.class);
+
+    private final String poolName;
+    private final PoolStats poolStats;
+    private final Histogram acquisitionMillis = new Histogram();
+    private final LongAdder acquisitionNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final AtomicBoolean saturated = new AtomicBoolean();
+    private ScheduledExecutorService scheduler;
+
+    LoggingMetricsTracker(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+    }
+
+    /** Creates the tracker of a pool and starts logging its metrics. */
+    public static LoggingMetricsTracker start(String poolName, PoolStats poolStats) {
+        LoggingMetricsTracker tracker = new LoggingMetricsTracker(poolName, poolStats);
+
+        long interval =
+                ApplicationContext.getPositiveLongProperty(
+                        "DB_POOL_METRICS_LOG_INTERVAL_SECONDS", DEFAULT_LOG_INTERVAL_SECONDS);
+        tracker.scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "db-pool-metrics-" + poolName);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        tracker.scheduler.scheduleAtFixedRate(
+                tracker::logStatistics, interval, interval, TimeUnit.SECONDS);
+
+        return tracker;
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquisitionMillis.record(TimeUnit.NANOSECONDS.toMillis(elapsedAcquiredNanos));
+        acquisitionNanos.add(elapsedAcquiredNanos);
+
+        checkSaturation();
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+        checkSaturation();
+        logger.logWarning(
+                "Timed out waiting for a connection from the {} pool with {} active, {} idle and {} waiting",
+                poolName,
+                poolStats.getActiveConnections(),
+                poolStats.getIdleConnections(),
+                poolStats.getPendingThreads());
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void checkSaturation() {
+        boolean nowSaturated =
+                poolStats.getPendingThreads() > 0
+                        && poolStats.getActiveConnections() >= poolStats.getMaxConnections();
+
+        if (saturated.compareAndSet(!nowSaturated, nowSaturated)) {
+            if (nowSaturated) {
+                logger.logWarning(
+                        "The {} pool is saturated, {} threads are waiting for one of its {} connections",
+                        poolName,
+                        poolStats.getPendingThreads(),
+                        poolStats.getMaxConnections());
+            } else {
+                logger.logInfo("The {} pool is no longer saturated", poolName);
+            }
+        }
+    }
+
+    void logStatistics() {
+        // also checked here, in case no thread manages to acquire a connection anymore
+        checkSaturation();
+
+        Map<String, Object> statisticsMap = new LinkedHashMap<>();
+        statisticsMap.put("Pool", poolName);
+        statisticsMap.put("Active", poolStats.getActiveConnections());
+        statisticsMap.put("Idle", poolStats.getIdleConnections());
+        statisticsMap.put("Pending", poolStats.getPendingThreads());
+        statisticsMap.put("Total", poolStats.getTotalConnections());
+        statisticsMap.put("Max", poolStats.getMaxConnections());
+
+        long acquisitions = 0;
+        Map<String, Long> acquisitionBuckets = acquisitionMillis.snapshotThenReset("ms");
+        for (Map.Entry<String, Long> bucket : acquisitionBuckets.entrySet()) {
+            acquisitions += bucket.getValue();
+            statisticsMap.put("Acquired " + bucket.getKey(), bucket.getValue());
+        }
+        long totalNanos = acquisitionNanos.sumThenReset();
+        statisticsMap.put("Acquisitions", acquisitions);
+        statisticsMap.put(
+                "Mean Acquisition Millis",
+                acquisitions == 0 ? 0.0 : totalNanos / 1_000_000.0 / acquisitions);
+        statisticsMap.put("Timeouts", timeouts.sumThenReset());
+
+        logger.logMap("Database connection pool statistics:", statisticsMap);
+    }
+}
@@ -0,0 +1,49 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in buckets bounded by 1, 10, 100 and 1000, with a last bucket for the
+ * values of 1000 and over. Values are recorded concurrently without locking, and the counts are
+ * read and reset together when they're logged.
+ */
+public class Histogram {
+
+    // the upper bounds of the buckets, the last bucket has no bound
+    static final long[] BUCKET_BOUNDS = {1, 10, 100, 1_000};
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && value >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+    }
+
+    /**
+     * Returns the count of each bucket, named like "Under 10" or "Over 1000", and resets them.
+     *
+     * @param unit appended to the bound in the bucket names, like "ms", or empty
+     */
+    public Map<String, Long> snapshotThenReset(String unit) {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < buckets.length; i++) {
+            String bucketName =
+                    i < BUCKET_BOUNDS.length
+                            ? "Under " + BUCKET_BOUNDS[i] + unit
+                            : "Over " + BUCKET_BOUNDS[i - 1] + unit;
+            snapshot.put(bucketName, buckets[i].sumThenReset());
+        }
+        return snapshot;
+    }
+}
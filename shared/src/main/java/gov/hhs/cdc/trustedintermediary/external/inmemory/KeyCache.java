@@ -1,13 +1,45 @@
 package gov.hhs.cdc.trustedintermediary.external.inmemory;
 
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
 import gov.hhs.cdc.trustedintermediary.wrappers.Cache;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException;
+import gov.hhs.cdc.trustedintermediary.wrappers.Secrets;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.inject.Inject;
 
-/** This class implements the Cache interface, it uses a map for caching keys. */
+/**
+ * This class implements the Cache interface, it uses a map for caching keys. A secret retrieved
+ * through the cache is used for at most SECRET_CACHE_TTL_SECONDS after it was retrieved, and it's
+ * retrieved again in the background before then, so a rotated secret is picked up without a
+ * request waiting on the secrets. When the secrets can't be reached the cached secret keeps being
+ * used while the retrieval is retried, until it's that old. After that, callers retrieve it
+ * themselves. Callers that miss the same secret at the same time share a single retrieval.
+ */
 public class KeyCache implements Cache {
 
+    static final int DEFAULT_TTL_SECONDS = 3600;
+    static final double REFRESH_AHEAD_FRACTION = 0.8;
+    static final int RETRY_SECONDS = 30;
+
+    @Inject Logger logger;
+
     private Map<String, String> keys;
+    // when each secret was retrieved from the secrets, as System.nanoTime()
+    private final Map<String, Long> retrievedAt = new ConcurrentHashMap<>();
+    // the retrieval in flight of each secret, if any, which the callers missing it share
+    private final Map<String, CompletableFuture<String>> retrievals = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> scheduledRefreshes = new ConcurrentHashMap<>();
+    ScheduledExecutorService scheduler;
+    LongSupplier nanoTime = System::nanoTime;
 
     private KeyCache() {
         // ConcurrentHashMap<>() over Collections.synchronizedMap() due to performance.
@@ -30,4 +62,114 @@ public class KeyCache implements Cache {
     public String get(String key) {
         return keys.get(key);
     }
+
+    @Override
+    public void remove(String key) {
+        keys.remove(key);
+        retrievedAt.remove(key);
+    }
+
+    @Override
+    public String get(String secretName, Secrets secrets) throws SecretRetrievalException {
+        String key = keys.get(secretName);
+        if (key != null && !isExpired(secretName)) {
+            return key;
+        }
+
+        try {
+            return retrieve(secretName, secrets).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SecretRetrievalException cause) {
+                throw cause;
+            }
+            throw new SecretRetrievalException(
+                    "Not able to retrieve secret " + secretName, e.getCause());
+        }
+    }
+
+    /**
+     * Retrieves the secret unless it's already being retrieved, in which case that retrieval is
+     * returned instead. The secret is cached and its refresh is scheduled before the future
+     * completes.
+     */
+    CompletableFuture<String> retrieve(String secretName, Secrets secrets) {
+        CompletableFuture<String> retrieval = new CompletableFuture<>();
+        CompletableFuture<String> inFlight = retrievals.putIfAbsent(secretName, retrieval);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        try {
+            String key = secrets.getKey(secretName);
+            keys.put(secretName, key);
+            retrievedAt.put(secretName, nanoTime.getAsLong());
+            scheduleRefresh(
+                    secretName, secrets, (long) (getTtlSeconds() * REFRESH_AHEAD_FRACTION));
+            // removed first, so a caller after a failure retrieves the secret again
+            retrievals.remove(secretName, retrieval);
+            retrieval.complete(key);
+        } catch (SecretRetrievalException | RuntimeException e) {
+            retrievals.remove(secretName, retrieval);
+            retrieval.completeExceptionally(e);
+        }
+
+        return retrieval;
+    }
+
+    void refreshInBackground(String secretName, Secrets secrets) {
+        logger.logInfo("Refreshing the cached secret {} in the background", secretName);
+
+        retrieve(secretName, secrets)
+                .whenComplete(
+                        (key, throwable) -> {
+                            if (throwable != null) {
+                                // the cached secret is still used until a retry succeeds
+                                logger.logWarning(
+                                        "Unable to refresh the cached secret {}, retrying in {}"
+                                                + " seconds: {}",
+                                        secretName,
+                                        RETRY_SECONDS,
+                                        throwable.getMessage());
+                                scheduleRefresh(secretName, secrets, RETRY_SECONDS);
+                            }
+                        });
+    }
+
+    // a key that was put instead of retrieved from the secrets doesn't expire
+    private boolean isExpired(String secretName) {
+        Long retrieved = retrievedAt.get(secretName);
+        return retrieved != null
+                && nanoTime.getAsLong() - retrieved >= TimeUnit.SECONDS.toNanos(getTtlSeconds());
+    }
+
+    private void scheduleRefresh(String secretName, Secrets secrets, long delaySeconds) {
+        synchronized (this) {
+            if (scheduler == null) {
+                scheduler =
+                        Executors.newSingleThreadScheduledExecutor(
+                                runnable -> {
+                                    Thread thread = new Thread(runnable, "secret-cache-refresh");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                });
+            }
+        }
+
+        scheduledRefreshes.compute(
+                secretName,
+                (name, previous) -> {
+                    if (previous != null) {
+                        previous.cancel(false);
+                    }
+                    return scheduler.schedule(
+                            () -> refreshInBackground(secretName, secrets),
+                            delaySeconds,
+                            TimeUnit.SECONDS);
+                });
+    }
+
+    static int getTtlSeconds() {
+        return ApplicationContext.getPositiveIntProperty(
+                "SECRET_CACHE_TTL_SECONDS", DEFAULT_TTL_SECONDS);
+    }
 }
@@ -0,0 +1,172 @@
+package gov.hhs.cdc.trustedintermediary.external.postgres;
+
+import gov.hhs.cdc.trustedintermediary.context.ApplicationContext;
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger;
+import gov.hhs.cdc.trustedintermediary.wrappers.database.DatabaseCredentialsProvider;
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationHandler;
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationListener;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import javax.inject.Inject;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.postgresql.ds.PGSimpleDataSource;
+
+/**
+ * Implements the {@link NotificationListener} using Postgres' LISTEN. The notifications are
+ * received on a dedicated connection outside the connection pool, because a pooled connection would
+ * be handed to someone else and stop listening. When the connection is lost, the handlers are told
+ * that they may have missed notifications and the listener reconnects with an increasing delay.
+ */
+public class PostgresNotificationListener implements NotificationListener {
+
+    private static final PostgresNotificationListener INSTANCE = new PostgresNotificationListener();
+
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    static final int POLL_TIMEOUT_MILLIS = 10_000;
+    static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    static final long INITIAL_RECONNECT_DELAY_MILLIS = 1_000;
+    static final long MAX_RECONNECT_DELAY_MILLIS = 60_000;
+
+    @Inject Logger logger;
+    @Inject DatabaseCredentialsProvider credentialsProvider;
+
+    private final Map<String, List<NotificationHandler>> handlers = new ConcurrentHashMap<>();
+    Thread listenerThread;
+
+    public static PostgresNotificationListener getInstance() {
+        return INSTANCE;
+    }
+
+    private PostgresNotificationListener() {}
+
+    @Override
+    public synchronized void listen(String channel, NotificationHandler handler) {
+        if (!CHANNEL_PATTERN.matcher(channel).matches()) {
+            // the channel can't be a bind parameter of LISTEN, so only allow safe identifiers
+            throw new IllegalArgumentException("Invalid notification channel: " + channel);
+        }
+
+        handlers.computeIfAbsent(channel, key -> new CopyOnWriteArrayList<>()).add(handler);
+
+        if (listenerThread == null) {
+            listenerThread = new Thread(this::listenForever, "postgres-notification-listener");
+            listenerThread.setDaemon(true);
+            listenerThread.start();
+        }
+    }
+
+    void listenForever() {
+        long reconnectDelay = INITIAL_RECONNECT_DELAY_MILLIS;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try (Connection connection = createConnection()) {
+                Set<String> listenedChannels = new HashSet<>();
+                listenToNewChannels(connection, listenedChannels);
+
+                // anything sent before we started listening was missed
+                notificationsMissed();
+                reconnectDelay = INITIAL_RECONNECT_DELAY_MILLIS;
+                logger.logInfo("Listening for database notifications");
+
+                receiveNotifications(connection, listenedChannels);
+            } catch (Exception e) {
+                logger.logError("Lost the connection listening for database notifications", e);
+            }
+
+            notificationsMissed();
+
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    void dispatch(String channel, String payload) {
+        for (NotificationHandler handler : handlers.getOrDefault(channel, List.of())) {
+            try {
+                handler.onNotification(payload);
+            } catch (Exception e) {
+                logger.logError("Unable to handle the notification on channel " + channel, e);
+            }
+        }
+    }
+
+    void notificationsMissed() {
+        handlers.values().stream()
+                .flatMap(List::stream)
+                .forEach(
+                        handler -> {
+                            try {
+                                handler.onNotificationsMissed();
+                            } catch (Exception e) {
+                                logger.logError("Unable to handle missed notifications", e);
+                            }
+                        });
+    }
+
+    private void receiveNotifications(Connection connection, Set<String> listenedChannels)
+            throws SQLException {
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+
+        while (!Thread.currentThread().isInterrupted()) {
+            PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+
+            if (notifications == null || notifications.length == 0) {
+                // a silently dropped connection would otherwise look like a quiet channel
+                if (!connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    throw new SQLException("The notification connection is no longer valid");
+                }
+            } else {
+                for (PGNotification notification : notifications) {
+                    dispatch(notification.getName(), notification.getParameter());
+                }
+            }
+
+            listenToNewChannels(connection, listenedChannels);
+        }
+    }
+
+    private void listenToNewChannels(Connection connection, Set<String> listenedChannels)
+            throws SQLException {
+        for (String channel : handlers.keySet()) {
+            if (listenedChannels.contains(channel)) {
+                continue;
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + channel);
+            }
+            listenedChannels.add(channel);
+        }
+    }
+
+    private Connection createConnection() throws SQLException {
+        PGSimpleDataSource dataSource = new PGSimpleDataSource();
+        dataSource.setServerNames(new String[] {ApplicationContext.getProperty("DB_URL", "")});
+        dataSource.setDatabaseName(ApplicationContext.getProperty("DB_NAME", ""));
+        dataSource.setUser(ApplicationContext.getProperty("DB_USER", ""));
+        dataSource.setPassword(credentialsProvider.getPassword());
+
+        String port = ApplicationContext.getProperty("DB_PORT", "");
+        if (!port.isBlank()) {
+            dataSource.setPortNumbers(new int[] {Integer.parseInt(port)});
+        }
+
+        return dataSource.getConnection();
+    }
+}
@@ -6,4 +6,14 @@ public interface Cache {
     void put(String key, String value);
 
     String get(String key);
+
+    /**
+     * Gets the secret with the given name, retrieving it from the secrets the first time. A secret
+     * retrieved this way is kept up to date by the cache, so normally only the first call waits on
+     * the secrets.
+     */
+    String get(String secretName, Secrets secrets) throws SecretRetrievalException;
+
+    /** Removes the key, so a secret is retrieved from the secrets again the next time it's read. */
+    void remove(String key);
 }
@@ -3,7 +3,19 @@ package gov.hhs.cdc.trustedintermediary.wrappers;
 /** Custom exception class use to catch any exception coming from an HTTP request */
 public class HttpClientException extends Exception {
 
+    // 0 when the request failed without a response, like when the connection couldn't be made
+    private final int statusCode;
+
     public HttpClientException(String message, Throwable cause) {
+        this(message, 0, cause);
+    }
+
+    public HttpClientException(String message, int statusCode, Throwable cause) {
         super(message, cause);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
     }
 }
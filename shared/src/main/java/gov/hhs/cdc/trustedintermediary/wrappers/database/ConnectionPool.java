@@ -7,4 +7,13 @@ import java.sql.SQLException;
 public interface ConnectionPool {
 
     Connection getConnection() throws SQLException;
+
+    /**
+     * Gets a connection for reads that don't need to see the latest writes. The connection is to a
+     * read replica when one is configured and it's up to date enough, otherwise it's the same as
+     * {@link #getConnection()}. Nothing can be written with it.
+     *
+     * @return a connection to the read replica or the primary database
+     */
+    Connection getReadConnection() throws SQLException;
 }
@@ -0,0 +1,18 @@
+package gov.hhs.cdc.trustedintermediary.wrappers.database;
+
+/** Handles the notifications received by a {@link NotificationListener}. */
+public interface NotificationHandler {
+
+    /**
+     * Called for every notification received on the channel.
+     *
+     * @param payload The payload of the notification.
+     */
+    void onNotification(String payload);
+
+    /**
+     * Called when notifications may have been missed, for example because the connection to the
+     * database was lost, so anything derived from the notifications should be thrown away.
+     */
+    void onNotificationsMissed();
+}
@@ -0,0 +1,17 @@
+package gov.hhs.cdc.trustedintermediary.wrappers.database;
+
+/**
+ * Wrapper interface for listening to the notifications that any instance of the application sends
+ * through the database.
+ */
+public interface NotificationListener {
+
+    /**
+     * Starts listening for the notifications on the given channel, if not already, and passes them
+     * to the given handler.
+     *
+     * @param channel The channel to listen on.
+     * @param handler The handler of the notifications.
+     */
+    void listen(String channel, NotificationHandler handler);
+}
@@ -59,6 +59,70 @@ class ApplicationContextTest extends Specification {
         !isPresentWhenEmpty
     }
 
+    def "getIntProperty and getLongProperty fall back to the default unless the property is a whole number"() {
+        given:
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("numberProperty", value)
+
+        expect:
+        ApplicationContext.getIntProperty("numberProperty", 7) == expectedInt
+        ApplicationContext.getLongProperty("numberProperty", 7L) == expectedLong
+
+        where:
+        value         | expectedInt | expectedLong
+        "12"          | 12          | 12L
+        " 12 "        | 12          | 12L
+        "-3"          | -3          | -3L
+        "0"           | 0           | 0L
+        "4294967296"  | 7           | 4294967296L
+        ""            | 7           | 7L
+        "1.5"         | 7           | 7L
+        "dogcow"      | 7           | 7L
+    }
+
+    def "getIntProperty returns the default when the property isn't set"() {
+        given:
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("otherProperty", "12")
+
+        expect:
+        ApplicationContext.getIntProperty("numberProperty", 7) == 7
+        ApplicationContext.getLongProperty("numberProperty", 7L) == 7L
+    }
+
+    def "getPositiveIntProperty and getPositiveLongProperty fall back to the default unless the property is above zero"() {
+        given:
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("numberProperty", value)
+
+        expect:
+        ApplicationContext.getPositiveIntProperty("numberProperty", 7) == expected
+        ApplicationContext.getPositiveLongProperty("numberProperty", 7L) == (long) expected
+
+        where:
+        value    | expected
+        "12"     | 12
+        ""       | 7
+        "0"      | 7
+        "-3"     | 7
+        "dogcow" | 7
+    }
+
+    def "getDoubleProperty falls back to the default unless the property is a number"() {
+        given:
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("numberProperty", value)
+
+        expect:
+        ApplicationContext.getDoubleProperty("numberProperty", 0.5d) == expected
+
+        where:
+        value    | expected
+        "0.25"   | 0.25d
+        ""       | 0.5d
+        "dogcow" | 0.5d
+    }
+
     def "temp file is created when one does not already exist"() {
         given:
         def fileName = "ti_unit_test_file_not_already_exist.txt"
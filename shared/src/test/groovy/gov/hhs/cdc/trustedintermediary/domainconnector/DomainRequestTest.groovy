@@ -11,4 +11,15 @@ class DomainRequestTest extends Specification {
         then:
         noExceptionThrown()
     }
+
+    def "getQueryParam returns the first value of the query parameter"() {
+        given:
+        def request = new DomainRequest()
+        request.setQueryParams(["status": ["FAILED", "PENDING"], "empty": []])
+
+        expect:
+        request.getQueryParam("status") == "FAILED"
+        request.getQueryParam("empty") == null
+        request.getQueryParam("missing") == null
+    }
 }
@@ -53,6 +53,20 @@ class DomainResponseHelperTest extends Specification {
         actual.getHeaders().get(DomainResponseHelper.CONTENT_TYPE_LITERAL) == DomainResponseHelper.APPLICATION_JSON_LITERAL
     }
 
+    def "constructOkStreamingResponse returns a JSON response with the body writer"() {
+        given:
+        TestApplicationContext.injectRegisteredImplementations()
+        DomainResponseBodyWriter bodyWriter = { outputStream -> outputStream.write("{}".getBytes()) }
+
+        when:
+        def actual = DomainResponseHelper.getInstance().constructOkStreamingResponse(bodyWriter)
+
+        then:
+        actual.getStatusCode() == 200
+        actual.getBodyWriter() == bodyWriter
+        actual.getHeaders().get(DomainResponseHelper.CONTENT_TYPE_LITERAL) == DomainResponseHelper.APPLICATION_JSON_LITERAL
+    }
+
     def "constructOkResponseFromString returns expected response"() {
         given:
         def expectedResponseStatus = 200
@@ -1,7 +1,11 @@
 package gov.hhs.cdc.trustedintermediary.external.apache
 
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
 import gov.hhs.cdc.trustedintermediary.wrappers.HttpClientException
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import org.apache.hc.client5.http.HttpResponseException
 import org.apache.hc.core5.http.message.BasicHeader
+import org.apache.hc.core5.pool.PoolStats
 import spock.lang.Specification
 
 class ApacheClientTest extends Specification {
@@ -36,4 +40,45 @@ class ApacheClientTest extends Specification {
         then:
         thrown(HttpClientException)
     }
+
+    def "logPoolStatistics logs the connections of the pool"() {
+        given:
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(ApacheClient, ApacheClient.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ApacheClient.getInstance().logPoolStatistics(new PoolStats(3, 0, 2, 10))
+
+        then:
+        1 * mockLogger.logMap(_ as String, { Map<String, Object> statistics ->
+            statistics["Leased"] == 3 && statistics["Available"] == 2 && statistics["Pending"] == 0 && statistics["Max"] == 10
+        })
+        0 * mockLogger.logWarning(*_)
+    }
+
+    def "logPoolStatistics warns when requests wait for a connection of a full pool"() {
+        given:
+        def mockLogger = Mock(Logger)
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(ApacheClient, ApacheClient.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        when:
+        ApacheClient.getInstance().logPoolStatistics(new PoolStats(10, 4, 0, 10))
+
+        then:
+        1 * mockLogger.logWarning(_ as String, 4, 10)
+    }
+
+    def "statusCode is the status of the response that failed, or 0 without a response"() {
+        expect:
+        ApacheClient.statusCode(new HttpResponseException(503, "Service Unavailable")) == 503
+        ApacheClient.statusCode(new IOException("Connection refused")) == 0
+    }
 }
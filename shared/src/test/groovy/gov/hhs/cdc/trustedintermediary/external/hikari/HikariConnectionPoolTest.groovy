@@ -1,6 +1,12 @@
 package gov.hhs.cdc.trustedintermediary.external.hikari
 
+import com.zaxxer.hikari.HikariConfig
 import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.SQLException
+import javax.sql.DataSource
 import spock.lang.Specification
 
 class HikariConnectionPoolTest extends Specification {
@@ -53,4 +59,219 @@ class HikariConnectionPoolTest extends Specification {
         then:
         result.getMaxLifetime() == defaultLifetime
     }
+
+    def "connection pool sizing and timeouts are configurable" () {
+        when:
+        TestApplicationContext.addEnvironmentVariable("DB_MAXIMUM_POOL_SIZE", "25")
+        TestApplicationContext.addEnvironmentVariable("DB_MINIMUM_IDLE", "5")
+        TestApplicationContext.addEnvironmentVariable("DB_CONNECTION_TIMEOUT", "5000")
+        TestApplicationContext.addEnvironmentVariable("DB_IDLE_TIMEOUT", "120000")
+        TestApplicationContext.addEnvironmentVariable("DB_LEAK_DETECTION_THRESHOLD", "60000")
+        def result = HikariConnectionPool.constructHikariDataSource()
+
+        then:
+        result.getMaximumPoolSize() == 25
+        result.getMinimumIdle() == 5
+        result.getConnectionTimeout() == 5000L
+        result.getIdleTimeout() == 120000L
+        result.getLeakDetectionThreshold() == 60000L
+        result.getPoolName() == "primary"
+        result.getMetricsTrackerFactory() != null
+    }
+
+    def "connection pool uses the Hikari defaults for invalid sizing and timeouts" () {
+        given:
+        def defaults = new HikariConfig()
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("DB_MAXIMUM_POOL_SIZE", "0")
+        TestApplicationContext.addEnvironmentVariable("DB_MINIMUM_IDLE", "99999999999")
+        TestApplicationContext.addEnvironmentVariable("DB_CONNECTION_TIMEOUT", "DogCow")
+        TestApplicationContext.addEnvironmentVariable("DB_IDLE_TIMEOUT", "-1")
+        def result = HikariConnectionPool.constructHikariDataSource()
+
+        then:
+        result.getMaximumPoolSize() == defaults.getMaximumPoolSize()
+        result.getMinimumIdle() == defaults.getMinimumIdle()
+        result.getConnectionTimeout() == defaults.getConnectionTimeout()
+        result.getIdleTimeout() == defaults.getIdleTimeout()
+    }
+
+    def "the replica connection pool is only constructed when DB_REPLICA_URL is set" () {
+        expect:
+        HikariConnectionPool.constructReplicaHikariDataSource() == null
+
+        when:
+        TestApplicationContext.addEnvironmentVariable("DB_REPLICA_URL", "test_replica_url")
+        def result = HikariConnectionPool.constructReplicaHikariDataSource()
+
+        then:
+        result.getDataSourceProperties().get("serverName") == "test_replica_url"
+        result.getDataSourceProperties().get("databaseName") == "test_name"
+        result.isReadOnly()
+        result.getConnectionTimeout() == HikariConnectionPool.DEFAULT_REPLICA_CONNECTION_TIMEOUT_MILLIS
+    }
+
+    def "the replica connection timeout is configurable" () {
+        given:
+        TestApplicationContext.addEnvironmentVariable("DB_REPLICA_URL", "test_replica_url")
+        TestApplicationContext.addEnvironmentVariable("DB_CONNECTION_TIMEOUT", "5000")
+        TestApplicationContext.addEnvironmentVariable("DB_REPLICA_CONNECTION_TIMEOUT", "500")
+
+        when:
+        def result = HikariConnectionPool.constructReplicaHikariDataSource()
+
+        then:
+        result.getConnectionTimeout() == 500L
+    }
+
+    def "the maximum replica lag is only set when DB_REPLICA_MAX_LAG_SECONDS is a number of zero or more" () {
+        when:
+        TestApplicationContext.addEnvironmentVariable("DB_REPLICA_MAX_LAG_SECONDS", maxLag)
+
+        then:
+        HikariConnectionPool.getMaxReplicaLagSeconds() == expected
+
+        where:
+        maxLag   | expected
+        "30"     | 30L
+        ""       | null
+        "-1"     | null
+        "DogCow" | null
+    }
+
+    def "getReadConnection uses the primary database when there is no replica" () {
+        given:
+        def primary = Mock(DataSource)
+        def connection = Mock(Connection)
+        def pool = new HikariConnectionPool(primary, null, null)
+
+        when:
+        def result = pool.getReadConnection()
+
+        then:
+        1 * primary.getConnection() >> connection
+        result == connection
+    }
+
+    def "getReadConnection uses the replica when its lag isn't limited" () {
+        given:
+        def primary = Mock(DataSource)
+        def replica = Mock(DataSource)
+        def replicaConnection = Mock(Connection)
+        def pool = new HikariConnectionPool(primary, replica, null)
+
+        when:
+        def result = pool.getReadConnection()
+
+        then:
+        1 * replica.getConnection() >> replicaConnection
+        0 * primary.getConnection()
+        0 * replicaConnection.prepareStatement(_)
+        result == replicaConnection
+    }
+
+    def "getReadConnection uses the primary database when the replica can't be connected to" () {
+        given:
+        def primary = Mock(DataSource)
+        def replica = Mock(DataSource)
+        def connection = Mock(Connection)
+        replica.getConnection() >> { throw new SQLException("DogCow") }
+        def pool = new HikariConnectionPool(primary, replica, null)
+
+        when:
+        def result = pool.getReadConnection()
+
+        then:
+        1 * primary.getConnection() >> connection
+        result == connection
+    }
+
+    def "getReadConnection skips the replica for a while after it can't be connected to" () {
+        given:
+        def primary = Mock(DataSource)
+        def replica = Mock(DataSource)
+        def connection = Mock(Connection)
+        def replicaConnection = Mock(Connection)
+        primary.getConnection() >> connection
+        def pool = new HikariConnectionPool(primary, replica, null)
+        def now = 0L
+        pool.nanoTime = { now }
+
+        when:
+        def first = pool.getReadConnection()
+        now += HikariConnectionPool.REPLICA_RETRY_INTERVAL_NANOS - 1
+        def second = pool.getReadConnection()
+
+        then:
+        1 * replica.getConnection() >> { throw new SQLException("DogCow") }
+        first == connection
+        second == connection
+
+        when:
+        now += 1
+        def third = pool.getReadConnection()
+        def fourth = pool.getReadConnection()
+
+        then:
+        2 * replica.getConnection() >> replicaConnection
+        third == replicaConnection
+        fourth == replicaConnection
+    }
+
+    def "getReadConnection uses the replica while it's within the maximum lag and only checks the lag periodically" () {
+        given:
+        def primary = Mock(DataSource)
+        def replica = Mock(DataSource)
+        def replicaConnection = Mock(Connection)
+        def statement = Mock(PreparedStatement)
+        def resultSet = Mock(ResultSet)
+        replica.getConnection() >> replicaConnection
+        statement.executeQuery() >> resultSet
+        resultSet.getDouble(1) >> 2.5d
+        def pool = new HikariConnectionPool(primary, replica, 10L)
+        def now = 0L
+        pool.nanoTime = { now }
+
+        when:
+        def first = pool.getReadConnection()
+        now += HikariConnectionPool.REPLICA_LAG_CHECK_INTERVAL_NANOS - 1
+        def second = pool.getReadConnection()
+
+        then:
+        1 * replicaConnection.prepareStatement(HikariConnectionPool.REPLICA_LAG_QUERY) >> statement
+        0 * primary.getConnection()
+        first == replicaConnection
+        second == replicaConnection
+
+        when:
+        now += 1
+        pool.getReadConnection()
+
+        then:
+        1 * replicaConnection.prepareStatement(HikariConnectionPool.REPLICA_LAG_QUERY) >> statement
+    }
+
+    def "getReadConnection uses the primary database while the replica is further behind than the maximum lag" () {
+        given:
+        def primary = Mock(DataSource)
+        def replica = Mock(DataSource)
+        def connection = Mock(Connection)
+        def replicaConnection = Mock(Connection)
+        def statement = Mock(PreparedStatement)
+        def resultSet = Mock(ResultSet)
+        replica.getConnection() >> replicaConnection
+        replicaConnection.prepareStatement(_ as String) >> statement
+        statement.executeQuery() >> resultSet
+        resultSet.getDouble(1) >> 10.5d
+        def pool = new HikariConnectionPool(primary, replica, 10L)
+
+        when:
+        def result = pool.getReadConnection()
+
+        then:
+        1 * replicaConnection.close()
+        1 * primary.getConnection() >> connection
+        result == connection
+    }
 }
@@ -0,0 +1,112 @@
+package gov.hhs.cdc.trustedintermediary.external.hikari
+
+import com.zaxxer.hikari.metrics.PoolStats
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import java.util.concurrent.TimeUnit
+import spock.lang.Specification
+
+class LoggingMetricsTrackerTest extends Specification {
+
+    def mockLogger = Mock(Logger)
+    def poolStats = Stub(PoolStats, constructorArgs: [0L])
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Logger, mockLogger)
+
+        poolStats.getMaxConnections() >> 10
+        poolStats.getTotalConnections() >> 10
+    }
+
+    def "logStatistics logs the connection gauges and the acquisition time histogram since the last time"() {
+        given:
+        poolStats.getActiveConnections() >> 4
+        poolStats.getIdleConnections() >> 6
+        poolStats.getPendingThreads() >> 0
+        def tracker = new LoggingMetricsTracker("primary", poolStats)
+        tracker.recordConnectionAcquiredNanos(TimeUnit.MICROSECONDS.toNanos(500))
+        tracker.recordConnectionAcquiredNanos(TimeUnit.MILLISECONDS.toNanos(5))
+        tracker.recordConnectionAcquiredNanos(TimeUnit.MILLISECONDS.toNanos(5))
+        tracker.recordConnectionAcquiredNanos(TimeUnit.SECONDS.toNanos(2))
+
+        when:
+        tracker.logStatistics()
+
+        then:
+        1 * mockLogger.logMap(_ as String, { Map<String, Object> statistics ->
+            statistics["Pool"] == "primary"
+                    && statistics["Active"] == 4
+                    && statistics["Idle"] == 6
+                    && statistics["Pending"] == 0
+                    && statistics["Total"] == 10
+                    && statistics["Max"] == 10
+                    && statistics["Acquired Under 1ms"] == 1L
+                    && statistics["Acquired Under 10ms"] == 2L
+                    && statistics["Acquired Under 100ms"] == 0L
+                    && statistics["Acquired Under 1000ms"] == 0L
+                    && statistics["Acquired Over 1000ms"] == 1L
+                    && statistics["Acquisitions"] == 4L
+                    && statistics["Timeouts"] == 0L
+        })
+
+        when:
+        tracker.logStatistics()
+
+        then:
+        1 * mockLogger.logMap(_ as String, { Map<String, Object> statistics ->
+            statistics["Acquisitions"] == 0L && statistics["Mean Acquisition Millis"] == 0.0
+        })
+    }
+
+    def "a saturated pool is logged once until it isn't saturated anymore"() {
+        given:
+        poolStats.getActiveConnections() >> 10
+        poolStats.getPendingThreads() >>> [3, 3, 3, 0]
+        def tracker = new LoggingMetricsTracker("primary", poolStats)
+
+        when:
+        tracker.recordConnectionAcquiredNanos(1)
+        tracker.recordConnectionAcquiredNanos(1)
+
+        then:
+        1 * mockLogger.logWarning({ it.contains("saturated") }, *_)
+
+        when:
+        tracker.recordConnectionAcquiredNanos(1)
+
+        then:
+        1 * mockLogger.logInfo({ it.contains("no longer saturated") }, *_)
+        0 * mockLogger.logWarning(*_)
+    }
+
+    def "a connection timeout is logged and counted"() {
+        given:
+        poolStats.getActiveConnections() >> 10
+        poolStats.getPendingThreads() >> 0
+        def tracker = new LoggingMetricsTracker("primary", poolStats)
+
+        when:
+        tracker.recordConnectionTimeout()
+        tracker.logStatistics()
+
+        then:
+        1 * mockLogger.logWarning({ it.contains("Timed out") }, *_)
+        1 * mockLogger.logMap(_ as String, { Map<String, Object> statistics -> statistics["Timeouts"] == 1L })
+    }
+
+    def "start logs the statistics periodically until the tracker is closed"() {
+        given:
+        poolStats.getPendingThreads() >> 0
+        TestApplicationContext.addEnvironmentVariable("DB_POOL_METRICS_LOG_INTERVAL_SECONDS", "1")
+
+        when:
+        def tracker = LoggingMetricsTracker.start("primary", poolStats)
+        Thread.sleep(1500)
+        tracker.close()
+
+        then:
+        (1.._) * mockLogger.logMap(_ as String, _ as Map)
+    }
+}
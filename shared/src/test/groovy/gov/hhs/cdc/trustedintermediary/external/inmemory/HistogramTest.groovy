@@ -0,0 +1,31 @@
+package gov.hhs.cdc.trustedintermediary.external.inmemory
+
+import spock.lang.Specification
+
+class HistogramTest extends Specification {
+
+    def "record counts each value in the bucket under its bound"() {
+        given:
+        def histogram = new Histogram()
+
+        when:
+        [0L, 1L, 9L, 10L, 99L, 999L, 1_000L, 50_000L].each { histogram.record(it) }
+
+        then:
+        histogram.snapshotThenReset("") == ["Under 1": 1L, "Under 10": 2L, "Under 100": 2L, "Under 1000": 1L, "Over 1000": 2L]
+    }
+
+    def "snapshotThenReset appends the unit to the bucket names and resets the counts"() {
+        given:
+        def histogram = new Histogram()
+        histogram.record(5)
+
+        when:
+        def first = histogram.snapshotThenReset("ms")
+        def second = histogram.snapshotThenReset("ms")
+
+        then:
+        first == ["Under 1ms": 0L, "Under 10ms": 1L, "Under 100ms": 0L, "Under 1000ms": 0L, "Over 1000ms": 0L]
+        second.values().every { it == 0L }
+    }
+}
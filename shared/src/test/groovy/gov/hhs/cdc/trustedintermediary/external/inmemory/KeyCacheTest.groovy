@@ -1,6 +1,12 @@
 package gov.hhs.cdc.trustedintermediary.external.inmemory
 
-
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.SecretRetrievalException
+import gov.hhs.cdc.trustedintermediary.wrappers.Secrets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import spock.lang.Specification
 
 class KeyCacheTest extends Specification {
@@ -43,4 +49,168 @@ class KeyCacheTest extends Specification {
         keys.values().toSet().size() == 1 // all entries have same value, threads had to wait on the lock
 
     }
+
+    def "get retrieves a secret from the secrets only the first time and schedules its refresh"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+
+        when:
+        def first = cache.get("secret", mockSecrets)
+        def second = cache.get("secret", mockSecrets)
+
+        then:
+        1 * mockSecrets.getKey("secret") >> "value"
+        1 * cache.scheduler.schedule(_ as Runnable, (long) (KeyCache.DEFAULT_TTL_SECONDS * KeyCache.REFRESH_AHEAD_FRACTION), TimeUnit.SECONDS)
+        first == "value"
+        second == "value"
+    }
+
+    def "get throws the SecretRetrievalException and retrieves the secret again on the next call"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+        mockSecrets.getKey("secret") >> { throw new SecretRetrievalException("vault is down", new IOException()) } >> "value"
+
+        when:
+        cache.get("secret", mockSecrets)
+
+        then:
+        thrown(SecretRetrievalException)
+        cache.get("secret") == null
+
+        when:
+        def actual = cache.get("secret", mockSecrets)
+
+        then:
+        actual == "value"
+    }
+
+    def "callers that miss the same secret at the same time share a single retrieval"() {
+        given:
+        def cache = injectedCache()
+        def retrievals = new AtomicInteger()
+        def retrieving = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def secrets = { String secretName ->
+            retrievals.incrementAndGet()
+            retrieving.countDown()
+            release.await()
+            return "value"
+        } as Secrets
+
+        when:
+        def results = Collections.synchronizedList([])
+        def first = new Thread({ results.add(cache.get("secret", secrets)) })
+        first.start()
+        retrieving.await()
+        def second = new Thread({ results.add(cache.get("secret", secrets)) })
+        second.start()
+        while (second.getState() != Thread.State.WAITING) {
+            Thread.sleep(1)
+        }
+        release.countDown()
+        first.join()
+        second.join()
+
+        then:
+        retrievals.get() == 1
+        results == ["value", "value"]
+    }
+
+    def "refreshInBackground replaces the cached secret with the rotated one"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+        mockSecrets.getKey("secret") >>> ["value", "rotated value"]
+        cache.get("secret", mockSecrets)
+
+        when:
+        cache.refreshInBackground("secret", mockSecrets)
+
+        then:
+        cache.get("secret", mockSecrets) == "rotated value"
+    }
+
+    def "refreshInBackground keeps the cached secret and retries when the secrets can't be reached"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+        mockSecrets.getKey("secret") >> "value" >> { throw new SecretRetrievalException("vault is down", new IOException()) }
+        cache.get("secret", mockSecrets)
+
+        when:
+        cache.refreshInBackground("secret", mockSecrets)
+
+        then:
+        1 * cache.scheduler.schedule(_ as Runnable, KeyCache.RETRY_SECONDS, TimeUnit.SECONDS)
+        cache.get("secret", mockSecrets) == "value"
+    }
+
+    def "get doesn't use a cached secret once it's as old as the TTL"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+        def now = 0L
+        cache.nanoTime = { now }
+        mockSecrets.getKey("secret") >> "value" >> { throw new SecretRetrievalException("vault is down", new IOException()) }
+        cache.get("secret", mockSecrets)
+
+        when:
+        now += TimeUnit.SECONDS.toNanos(KeyCache.DEFAULT_TTL_SECONDS) - 1
+        def beforeExpiry = cache.get("secret", mockSecrets)
+
+        then:
+        beforeExpiry == "value"
+
+        when:
+        now += 1
+        cache.get("secret", mockSecrets)
+
+        then:
+        thrown(SecretRetrievalException)
+    }
+
+    def "remove makes the next get retrieve the secret again"() {
+        given:
+        def cache = injectedCache()
+        def mockSecrets = Mock(Secrets)
+        mockSecrets.getKey("secret") >>> ["value", "rotated value"]
+        cache.get("secret", mockSecrets)
+
+        when:
+        cache.remove("secret")
+
+        then:
+        cache.get("secret") == null
+        cache.get("secret", mockSecrets) == "rotated value"
+    }
+
+    def "getTtlSeconds falls back to the default unless the property is a positive number"() {
+        given:
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.addEnvironmentVariable("SECRET_CACHE_TTL_SECONDS", value)
+
+        expect:
+        KeyCache.getTtlSeconds() == expected
+
+        where:
+        value    | expected
+        "600"    | 600
+        ""       | KeyCache.DEFAULT_TTL_SECONDS
+        "0"      | KeyCache.DEFAULT_TTL_SECONDS
+        "-1"     | KeyCache.DEFAULT_TTL_SECONDS
+        "dogcow" | KeyCache.DEFAULT_TTL_SECONDS
+    }
+
+    def injectedCache() {
+        def cache = KeyCache.getInstance()
+        cache.scheduler = Mock(ScheduledExecutorService)
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(KeyCache, cache)
+        TestApplicationContext.injectRegisteredImplementations()
+        return cache
+    }
 }
@@ -1,5 +1,6 @@
 package gov.hhs.cdc.trustedintermediary.external.jjwt
 
+import gov.hhs.cdc.trustedintermediary.wrappers.InvalidTokenException
 import gov.hhs.cdc.trustedintermediary.wrappers.TokenGenerationException
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
@@ -98,4 +99,78 @@ class JjwtEngineTest extends Specification {
         then:
         actual == expected
     }
+
+    def "the private key parsed from the same PEM text is reused"() {
+        given:
+        def pemKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-private-key-local.pem"))
+        def engine = JjwtEngine.getInstance()
+
+        when:
+        def first = engine.cachedPrivateKey(pemKey)
+        def second = engine.cachedPrivateKey(new String(pemKey))
+        def rotated = engine.cachedPrivateKey(pemKey + "\n")
+
+        then:
+        first.is(second)
+        !first.is(rotated)
+        first == rotated
+    }
+
+    def "the parser of the same public PEM text is reused"() {
+        given:
+        def pemKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-public-key-local.pem"))
+        def engine = JjwtEngine.getInstance()
+
+        expect:
+        engine.cachedParser(pemKey).is(engine.cachedParser(new String(pemKey)))
+    }
+
+    def "a full parser cache drops the parser used the longest time ago"() {
+        given:
+        def pemKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-public-key-local.pem"))
+        def engine = JjwtEngine.getInstance()
+        // each extra line ending makes a different PEM text of the same key
+        def variant = { int index -> pemKey + ("\n" * index) }
+        def parser = engine.cachedParser(pemKey)
+        def firstVariantParser = engine.cachedParser(variant(1))
+        (2..<JjwtEngine.MAX_CACHED_KEYS).each { engine.cachedParser(variant(it)) }
+
+        when:
+        engine.cachedParser(pemKey)
+        engine.cachedParser(variant(JjwtEngine.MAX_CACHED_KEYS))
+
+        then:
+        engine.cachedParser(pemKey).is(parser)
+        !engine.cachedParser(variant(1)).is(firstVariantParser)
+    }
+
+    def "validateToken verifies repeatedly with the cached parser"() {
+        given:
+        def privateKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-private-key-local.pem"))
+        def publicKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-public-key-local.pem"))
+        def engine = JjwtEngine.getInstance()
+        def jwt = engine.generateToken("keyId", "issuer", "subject", "audience", 300, privateKey)
+
+        when:
+        engine.validateToken(jwt, publicKey)
+        engine.validateToken(jwt, publicKey)
+
+        then:
+        noExceptionThrown()
+    }
+
+    def "validateToken throws an InvalidTokenException for a token that was tampered with"() {
+        given:
+        def privateKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-private-key-local.pem"))
+        def publicKey = Files.readString(Path.of("..", "mock_credentials", "trusted-intermediary-public-key-local.pem"))
+        def engine = JjwtEngine.getInstance()
+        def jwt = engine.generateToken("keyId", "issuer", "subject", "audience", 300, privateKey)
+        engine.validateToken(jwt, publicKey)
+
+        when:
+        engine.validateToken(jwt.substring(0, jwt.length() - 4) + "AAAA", publicKey)
+
+        then:
+        thrown(InvalidTokenException)
+    }
 }
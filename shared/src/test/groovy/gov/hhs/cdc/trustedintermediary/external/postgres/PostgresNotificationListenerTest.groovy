@@ -0,0 +1,89 @@
+package gov.hhs.cdc.trustedintermediary.external.postgres
+
+import gov.hhs.cdc.trustedintermediary.context.TestApplicationContext
+import gov.hhs.cdc.trustedintermediary.wrappers.Logger
+import gov.hhs.cdc.trustedintermediary.wrappers.database.DatabaseCredentialsProvider
+import gov.hhs.cdc.trustedintermediary.wrappers.database.NotificationHandler
+import spock.lang.Specification
+
+class PostgresNotificationListenerTest extends Specification {
+
+    def mockLogger = Mock(Logger)
+
+    def setup() {
+        TestApplicationContext.reset()
+        TestApplicationContext.init()
+        TestApplicationContext.register(Logger, mockLogger)
+        TestApplicationContext.register(DatabaseCredentialsProvider, Mock(DatabaseCredentialsProvider))
+        TestApplicationContext.register(PostgresNotificationListener, PostgresNotificationListener.getInstance())
+        TestApplicationContext.injectRegisteredImplementations()
+
+        // keeps listen from connecting to a database that doesn't exist
+        PostgresNotificationListener.getInstance().listenerThread = new Thread({})
+    }
+
+    def "listen rejects channels that aren't safe identifiers"() {
+        when:
+        PostgresNotificationListener.getInstance().listen(channel, Mock(NotificationHandler))
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        channel << [
+            "",
+            "Upper_case",
+            "1starts_with_a_digit",
+            "channel; DROP TABLE metadata"
+        ]
+    }
+
+    def "dispatch passes the payload to the handlers of the channel"() {
+        given:
+        def listener = PostgresNotificationListener.getInstance()
+        def handler = Mock(NotificationHandler)
+        def otherHandler = Mock(NotificationHandler)
+        listener.listen("dispatch_channel", handler)
+        listener.listen("other_dispatch_channel", otherHandler)
+
+        when:
+        listener.dispatch("dispatch_channel", "DogCow")
+
+        then:
+        1 * handler.onNotification("DogCow")
+        0 * otherHandler.onNotification(_)
+    }
+
+    def "dispatch keeps going when a handler fails"() {
+        given:
+        def listener = PostgresNotificationListener.getInstance()
+        def failingHandler = Mock(NotificationHandler)
+        def handler = Mock(NotificationHandler)
+        listener.listen("failing_channel", failingHandler)
+        listener.listen("failing_channel", handler)
+
+        when:
+        listener.dispatch("failing_channel", "DogCow")
+
+        then:
+        1 * failingHandler.onNotification("DogCow") >> { throw new RuntimeException("Moof!") }
+        1 * handler.onNotification("DogCow")
+        1 * mockLogger.logError(_ as String, _ as RuntimeException)
+    }
+
+    def "notificationsMissed tells every handler"() {
+        given:
+        def listener = PostgresNotificationListener.getInstance()
+        def handler = Mock(NotificationHandler)
+        def otherHandler = Mock(NotificationHandler)
+        listener.listen("missed_channel", handler)
+        listener.listen("other_missed_channel", otherHandler)
+
+        when:
+        listener.notificationsMissed()
+
+        then:
+        1 * handler.onNotificationsMissed()
+        1 * otherHandler.onNotificationsMissed()
+    }
+}
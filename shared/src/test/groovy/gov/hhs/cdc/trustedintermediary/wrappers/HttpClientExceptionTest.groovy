@@ -15,4 +15,19 @@ class HttpClientExceptionTest extends Specification {
         exception.getMessage() == message
         exception.getCause() == innerException
     }
+
+    def "test constructor with a status code"() {
+        given:
+        def message = "DogCow"
+        def innerException = new IOException()
+
+        when:
+        def exception = new HttpClientException(message, 503, innerException)
+
+        then:
+        exception.getMessage() == message
+        exception.getStatusCode() == 503
+        exception.getCause() == innerException
+        new HttpClientException(message, innerException).getStatusCode() == 0
+    }
 }